@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>Title: ClassHeader</p>
+ * <p>Description: The name, super class, interfaces and runtime visible class annotations of a class file, read by walking the constant pool
+ * and skipping over the fields and methods. Nothing but the header names is decoded, so it is far cheaper than a full class file parse.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.ClassHeader</code></p>
+ */
+
+public class ClassHeader {
+	/** The class name */
+	public final String name;
+	/** The super class name, null if the class has none */
+	public final String superName;
+	/** The names of the directly implemented interfaces */
+	public final String[] ifaceNames;
+	/** The names of the runtime visible class annotations */
+	public final String[] annotationNames;
+
+	/** The class file magic */
+	private static final int MAGIC = 0xCAFEBABE;
+	/** The charset of the decoded names */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** The runtime visible annotations attribute name */
+	private static final byte[] VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations".getBytes(UTF8);
+	/** An empty string array const */
+	private static final String[] EMPTY = {};
+
+	/**
+	 * Creates a new ClassHeader
+	 * @param name The class name
+	 * @param superName The super class name, null if the class has none
+	 * @param ifaceNames The names of the directly implemented interfaces
+	 * @param annotationNames The names of the runtime visible class annotations
+	 */
+	private ClassHeader(final String name, final String superName, final String[] ifaceNames, final String[] annotationNames) {
+		this.name = name;
+		this.superName = superName;
+		this.ifaceNames = ifaceNames;
+		this.annotationNames = annotationNames;
+	}
+
+	/**
+	 * Reads the header of the passed class file
+	 * @param b The class file
+	 * @return the class header
+	 * @throws IllegalArgumentException thrown if the passed bytes are not a readable class file
+	 */
+	public static ClassHeader read(final byte[] b) {
+		try {
+			if(readInt(b, 0)!=MAGIC) throw new IllegalArgumentException("Not a class file");
+			final int cpCount = readShort(b, 8);
+			// the offset of each constant's data, after its tag
+			final int[] offsets = new int[cpCount];
+			int pos = 10;
+			for(int i = 1; i < cpCount; i++) {
+				final int tag = b[pos++];
+				offsets[i] = pos;
+				switch(tag) {
+					case 1:		// Utf8
+						pos += 2 + readShort(b, pos);
+						break;
+					case 3:		// Integer
+					case 4:		// Float
+					case 9:		// Fieldref
+					case 10:	// Methodref
+					case 11:	// InterfaceMethodref
+					case 12:	// NameAndType
+					case 17:	// Dynamic
+					case 18:	// InvokeDynamic
+						pos += 4;
+						break;
+					case 5:		// Long
+					case 6:		// Double
+						pos += 8;
+						i++;
+						break;
+					case 7:		// Class
+					case 8:		// String
+					case 16:	// MethodType
+					case 19:	// Module
+					case 20:	// Package
+						pos += 2;
+						break;
+					case 15:	// MethodHandle
+						pos += 3;
+						break;
+					default:
+						throw new IllegalArgumentException("Unknown constant pool tag [" + tag + "] at [" + (pos-1) + "]");
+				}
+			}
+			final int thisIndex = readShort(b, pos + 2);
+			final int superIndex = readShort(b, pos + 4);
+			final int ifaceCount = readShort(b, pos + 6);
+			pos += 8;
+			final String[] ifaceNames = ifaceCount==0 ? EMPTY : new String[ifaceCount];
+			for(int i = 0; i < ifaceCount; i++, pos += 2) {
+				ifaceNames[i] = className(b, offsets, readShort(b, pos));
+			}
+			// fields then methods
+			for(int m = 0; m < 2; m++) {
+				final int memberCount = readShort(b, pos);
+				pos += 2;
+				for(int i = 0; i < memberCount; i++) {
+					pos = skipAttributes(b, pos + 6);
+				}
+			}
+			String[] annotationNames = EMPTY;
+			final int attrCount = readShort(b, pos);
+			pos += 2;
+			for(int i = 0; i < attrCount; i++) {
+				final int length = readInt(b, pos + 2);
+				if(isUtf8(b, offsets[readShort(b, pos)], VISIBLE_ANNOTATIONS)) {
+					annotationNames = annotationNames(b, offsets, pos + 6);
+				}
+				pos += 6 + length;
+			}
+			return new ClassHeader(className(b, offsets, thisIndex), superIndex==0 ? null : className(b, offsets, superIndex), ifaceNames, annotationNames);
+		} catch (ArrayIndexOutOfBoundsException aex) {
+			throw new IllegalArgumentException("Truncated class file", aex);
+		}
+	}
+
+	/**
+	 * Skips the attribute count and attributes starting at the passed offset
+	 * @param b The class file
+	 * @param pos The offset of the attribute count
+	 * @return the offset following the attributes
+	 */
+	private static int skipAttributes(final byte[] b, int pos) {
+		final int attrCount = readShort(b, pos);
+		pos += 2;
+		for(int i = 0; i < attrCount; i++) {
+			pos += 6 + readInt(b, pos + 2);
+		}
+		return pos;
+	}
+
+	/**
+	 * Reads the type names of the annotations of a runtime visible annotations attribute
+	 * @param b The class file
+	 * @param offsets The constant data offsets
+	 * @param pos The offset of the attribute's annotation count
+	 * @return the annotation type names
+	 */
+	private static String[] annotationNames(final byte[] b, final int[] offsets, int pos) {
+		final int count = readShort(b, pos);
+		pos += 2;
+		final String[] names = new String[count];
+		for(int i = 0; i < count; i++) {
+			final String desc = utf8(b, offsets[readShort(b, pos)]);
+			names[i] = desc.substring(1, desc.length()-1).replace('/', '.');
+			pos = skipElementValuePairs(b, pos + 2);
+		}
+		return names;
+	}
+
+	/**
+	 * Skips the element value pairs of an annotation
+	 * @param b The class file
+	 * @param pos The offset of the pair count
+	 * @return the offset following the pairs
+	 */
+	private static int skipElementValuePairs(final byte[] b, int pos) {
+		final int count = readShort(b, pos);
+		pos += 2;
+		for(int i = 0; i < count; i++) {
+			pos = skipElementValue(b, pos + 2);
+		}
+		return pos;
+	}
+
+	/**
+	 * Skips an annotation element value
+	 * @param b The class file
+	 * @param pos The offset of the value's tag
+	 * @return the offset following the value
+	 */
+	private static int skipElementValue(final byte[] b, int pos) {
+		final int tag = b[pos++];
+		switch(tag) {
+			case 'e':
+				return pos + 4;
+			case '@':
+				return skipElementValuePairs(b, pos + 2);
+			case '[':
+				final int count = readShort(b, pos);
+				pos += 2;
+				for(int i = 0; i < count; i++) {
+					pos = skipElementValue(b, pos);
+				}
+				return pos;
+			default:
+				// const values and class infos
+				return pos + 2;
+		}
+	}
+
+	/**
+	 * Reads the binary name of the class constant at the passed index
+	 * @param b The class file
+	 * @param offsets The constant data offsets
+	 * @param index The class constant index
+	 * @return the binary class name
+	 */
+	private static String className(final byte[] b, final int[] offsets, final int index) {
+		return utf8(b, offsets[readShort(b, offsets[index])]).replace('/', '.');
+	}
+
+	/**
+	 * Decodes the Utf8 constant at the passed data offset
+	 * @param b The class file
+	 * @param offset The constant's data offset
+	 * @return the decoded string
+	 */
+	private static String utf8(final byte[] b, final int offset) {
+		return new String(b, offset + 2, readShort(b, offset), UTF8);
+	}
+
+	/**
+	 * Determines if the Utf8 constant at the passed data offset equals the passed bytes
+	 * @param b The class file
+	 * @param offset The constant's data offset
+	 * @param value The bytes to compare to
+	 * @return true if equal, false otherwise
+	 */
+	private static boolean isUtf8(final byte[] b, final int offset, final byte[] value) {
+		if(readShort(b, offset)!=value.length) return false;
+		for(int i = 0; i < value.length; i++) {
+			if(b[offset + 2 + i]!=value[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads an unsigned short
+	 * @param b The class file
+	 * @param pos The offset
+	 * @return the value
+	 */
+	private static int readShort(final byte[] b, final int pos) {
+		return ((b[pos] & 0xFF) << 8) | (b[pos+1] & 0xFF);
+	}
+
+	/**
+	 * Reads an int
+	 * @param b The class file
+	 * @param pos The offset
+	 * @return the value
+	 */
+	private static int readInt(final byte[] b, final int pos) {
+		return (b[pos] << 24) | ((b[pos+1] & 0xFF) << 16) | ((b[pos+2] & 0xFF) << 8) | (b[pos+3] & 0xFF);
+	}
+}
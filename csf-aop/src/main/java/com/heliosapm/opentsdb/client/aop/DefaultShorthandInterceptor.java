@@ -16,18 +16,29 @@
 package com.heliosapm.opentsdb.client.aop;
 
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import jsr166e.LongAdder;
+
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 import sun.misc.Unsafe;
 
+import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
 import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+import com.heliosapm.opentsdb.client.opentsdb.opt.ConcurrencyCounter;
+import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdMetricRegistry;
 import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOTMetricCache;
 import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOTMetricCache.OTMetricIdListener;
 import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
-import com.heliosapm.opentsdb.client.opentsdb.sink.IMetricSink;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Sampler;
+import com.heliosapm.opentsdb.client.opentsdb.opt.ThreadCpuClock;
+import com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorCell;
+import com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvester;
 import com.heliosapm.opentsdb.client.opentsdb.sink.MetricSink;
 
 /**
@@ -47,17 +58,44 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 	protected final int nonoopmask;	
 	/** Indicates if the measurement mask is enabled for the concurrency measurement */
 	protected final boolean hasConcurrent;
+	/** Indicates if the measurement mask is enabled for any CPU measurement */
+	protected final boolean hasCpuClock;
 	/** The concurrency counter */
-	protected final AtomicInteger concurrencyCounter;
+	protected final ConcurrencyCounter concurrencyCounter;
 	/** The metric sink hub */
 	protected final MetricSink sink;
 	/** The exception submission if error tracking is enabled */
 	protected final long[] exSub;
 	/** The swap map for this interceptor's mask */
 	protected final Map<Measurement, Integer> swapMap;
+	/** The calling thread's accumulator cell, null if measurements are submitted to the sink */
+	protected final ThreadLocal<AccumulatorCell> cells;
+	/** The invocation sampler, null if every invocation is measured. Whether it adapts to the time spent measuring is read from the sampler only. */
+	protected volatile Sampler sampler;
+	/** The number of measured invocations */
+	protected final LongAdder measured = new LongAdder();
+	/** Indicates if the interceptor has been disabled and no longer measures */
+	protected volatile boolean disabled = false;
+	/** The value array index of the invocation count, -1 if not measured */
+	protected final int invokeIndex;
+	/** The value array index of the return count, -1 if not measured */
+	protected final int returnIndex;
+	/** The index of this interceptor's re-entrancy depth in the thread's depth array, -1 if not re-entrancy guarded */
+	protected final int depthSlot;
 	/** A map of interceptors keyed by the mask within a map of interceptors keyed by the metricId */
 	private static final NonBlockingHashMapLong<NonBlockingHashMapLong<DefaultShorthandInterceptor>> interceptors = new NonBlockingHashMapLong<NonBlockingHashMapLong<DefaultShorthandInterceptor>>();
 	
+	/** The entry state returned for unsampled or re-entered invocations */
+	private static final long[] UNSAMPLED = {};
+	/** The depth slot serial number */
+	private static final AtomicInteger depthSlotSerial = new AtomicInteger(0);
+	/** The calling thread's re-entrancy depth of each guarded interceptor, indexed by depth slot */
+	private static final ThreadLocal<int[]> depths = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[Math.max(16, Integer.highestOneBit(depthSlotSerial.get()) << 1)];
+		}
+	};
 	/** A noop interceptor */
 	private static final DefaultShorthandInterceptor NOOP_INTERCEPTOR = new NoopShorthandInterceptor();
 	
@@ -151,13 +189,15 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 	/**
 	 * Creates a new DefaultShorthandInterceptor
 	 * @param metricId The parent OTMetric long hash code
-	 * @param mask The enabled measurement mask
+	 * @param instrumentationMask The enabled measurement mask and sampling options
 	 */
-	private DefaultShorthandInterceptor(final long metricId, final int mask) {
+	private DefaultShorthandInterceptor(final long metricId, final int instrumentationMask) {
 		this.metricId = metricId;
+		final int mask = Measurement.measurementMask(instrumentationMask);
 		this.mask = mask;			
 		nonoopmask = Measurement.swapDependees(mask);
 		hasConcurrent = Measurement.CONCURRENT.isEnabledFor(mask);
+		hasCpuClock = (nonoopmask & Measurement.CPU_CLOCK_MASK)!=0;
 		sink = MetricSink.sink();
 		swapMap = sink.getSwapMap(mask);
 		concurrencyCounter = Measurement.CONCURRENT.isEnabledFor(this.mask) ? sink.getConcurrencyCounter(metricId) : null;
@@ -166,6 +206,49 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 		} else {
 			exSub = Measurement.hasCatchBlock(mask) ? new long[]{Measurement.swapDependees(Measurement.ERROR.mask), metricId, -1, 1} : null;
 		}
+		final AccumulatorHarvester harvester = AccumulatorHarvester.getInstance();
+		if(harvester.isEnabled()) {
+			cells = new ThreadLocal<AccumulatorCell>() {
+				@Override
+				protected AccumulatorCell initialValue() {
+					return harvester.newCell(metricId, mask);
+				}
+			};
+		} else {
+			cells = null;
+		}
+		sampler = Sampler.newSampler(instrumentationMask);
+		if(sampler!=null) reportRate(sampler);
+		invokeIndex = slot(nonoopmask, Measurement.INVOKE);
+		returnIndex = slot(nonoopmask, Measurement.RETURN);
+		depthSlot = (Measurement.isReentrancyGuarded(instrumentationMask) && Measurement.hasBodyBlock(mask)) ? depthSlotSerial.getAndIncrement() : -1;
+	}
+
+	/**
+	 * Returns the calling thread's re-entrancy depth array, grown to hold this interceptor's depth slot
+	 * @return the depth array
+	 */
+	private int[] depths() {
+		int[] d = depths.get();
+		if(d.length <= depthSlot) {
+			d = Arrays.copyOf(d, Integer.highestOneBit(depthSlot) << 1);
+			depths.set(d);
+		}
+		return d;
+	}
+
+	/**
+	 * Returns the value array index of the passed measurement
+	 * @param nonoopmask The non-noop measurement mask the value array is populated for
+	 * @param measurement The measurement
+	 * @return the index, or -1 if the measurement is not enabled
+	 */
+	private static int slot(final int nonoopmask, final Measurement measurement) {
+		final Measurement[] enabled = Measurement.getEnabled(nonoopmask);
+		for(int i = 0; i < enabled.length; i++) {
+			if(enabled[i]==measurement) return i + Measurement.VALUEBUFFER_HEADER_SIZE;
+		}
+		return -1;
 	}
 	
 	private DefaultShorthandInterceptor() {
@@ -174,9 +257,15 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 		mask = -1;
 		metricId = -1;
 		hasConcurrent = false;
+		hasCpuClock = false;
 		exSub = null;
 		concurrencyCounter = null;
 		swapMap = null;
+		cells = null;
+		sampler = null;
+		invokeIndex = -1;
+		returnIndex = -1;
+		depthSlot = -1;
 	}
 
 //	/**
@@ -185,9 +274,23 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 //	 */
 	@Override
 	public long[] enter(/*final int mask, final long parentMetricId*/) {
-		final int concurrency = hasConcurrent ?  concurrencyCounter.incrementAndGet() : 0;			
+		// only the outermost invocation is measured, re-entered invocations are unwound in finalExit
+		if(depthSlot!=-1 && ++depths()[depthSlot] > 1) return UNSAMPLED;
+		final int concurrency = hasConcurrent ?  concurrencyCounter.enter() : 0;			
+		// the CPU clock frame is exited in finalExit, so a thrown exception does not leave it entered
+		if(hasCpuClock) ThreadCpuClock.enterFrame();
+		if(disabled) return UNSAMPLED;
+		final Sampler sampler = this.sampler;
+		if(sampler!=null && !sampler.sample()) return UNSAMPLED;
+		final boolean adaptive = sampler!=null && sampler.isAdaptive();
+		final long start = adaptive ? System.nanoTime() : 0L;
+		measured.increment();
 		final long[] valueArr = Measurement.enter(nonoopmask, metricId);
 		if(hasConcurrent) valueArr[swapMap.get(Measurement.CONCURRENT)] = concurrency;
+		if(adaptive) {
+			final long now = System.nanoTime();
+			sampler.cost(now - start, now);
+		}
 		return valueArr;
 	}
 
@@ -197,13 +300,112 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 	 */
 	@Override
 	public void exit(final long[] entryState) {
+		if(entryState==UNSAMPLED) return;
+		final Sampler sampler = this.sampler;
+		final boolean adaptive = sampler!=null && sampler.isAdaptive();
+		final long start = adaptive ? System.nanoTime() : 0L;
 		try {
 			Measurement.exit(entryState);
 		} catch (Throwable t) {
 			t.printStackTrace(System.err);
 		}
-		entryState[0] = mask;
-		sink.submit(entryState);
+		long weight = 1L;
+		if(sampler!=null) {
+			// the measured invocation stands for the unsampled invocations since the last one
+			weight = sampler.weight();
+			if(invokeIndex!=-1) entryState[invokeIndex] = weight;
+			if(returnIndex!=-1 && entryState[returnIndex]!=0L) entryState[returnIndex] = weight;
+		}
+		if(cells!=null) {
+			cells.get().accumulate(entryState, weight);
+		} else {
+			entryState[0] = mask;
+			sink.submit(entryState);
+		}
+		if(adaptive) {
+			final long now = System.nanoTime();
+			sampler.cost(now - start, now);
+		}
+	}
+
+	/**
+	 * Returns the interceptor's sampler
+	 * @return the sampler, or null if every invocation is measured
+	 */
+	public Sampler getSampler() {
+		return sampler;
+	}
+	
+	/**
+	 * Switches the interceptor to adaptive sampling, starting at the passed rate
+	 * @param exponent The initial sampling exponent: 1 in 2^exponent invocations are measured
+	 */
+	public void sample(final int exponent) {
+		final Sampler s = new Sampler(Math.min(exponent, Measurement.MAX_SAMPLING_EXPONENT), true);
+		sampler = s;
+		reportRate(s);
+	}
+
+	/**
+	 * Registers the passed sampler as the sampling rate gauge of this interceptor's metric, tagged <b><code>m=samplerate</code></b>
+	 * @param sampler The sampler
+	 */
+	protected void reportRate(final Sampler sampler) {
+		final OTMetric otMetric = LongIdOTMetricCache.getInstance().getOTMetric(metricId);
+		if(otMetric!=null) {
+			LongIdMetricRegistry.getInstance().register(MetricBuilder.metric(otMetric).tag("m", "samplerate").optBuild(), sampler);
+		}
+	}
+	
+	/**
+	 * Disables the interceptor. Invocations are no longer measured, but the concurrency count stays balanced.
+	 */
+	public void disable() {
+		disabled = true;
+	}
+	
+	/**
+	 * Indicates if the interceptor has been disabled
+	 * @return true if disabled, false otherwise
+	 */
+	public boolean isDisabled() {
+		return disabled;
+	}
+	
+	/**
+	 * Returns the number of measured invocations
+	 * @return the number of measured invocations
+	 */
+	public long getMeasuredCount() {
+		return measured.sum();
+	}
+	
+	/**
+	 * Returns the parent OTMetric long hash code
+	 * @return the parent metric id
+	 */
+	public long getMetricId() {
+		return metricId;
+	}
+	
+	/**
+	 * Returns the non-noop enabled measurement mask
+	 * @return the non-noop enabled measurement mask
+	 */
+	public int getNonOopMask() {
+		return nonoopmask;
+	}
+	
+	/**
+	 * Returns all the installed interceptors
+	 * @return the installed interceptors
+	 */
+	public static List<DefaultShorthandInterceptor> getInstalled() {
+		final List<DefaultShorthandInterceptor> installed = new ArrayList<DefaultShorthandInterceptor>();
+		for(NonBlockingHashMapLong<DefaultShorthandInterceptor> byMask: interceptors.values()) {
+			installed.addAll(byMask.values());
+		}
+		return installed;
 	}
 	
 	/**
@@ -212,7 +414,9 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 	 */
 	@Override
 	public void finalExit() {		
-		if(hasConcurrent) concurrencyCounter.decrementAndGet();
+		if(depthSlot!=-1 && depths()[depthSlot]-- > 1) return;
+		if(hasConcurrent) concurrencyCounter.exit();
+		if(hasCpuClock) ThreadCpuClock.exitFrame();
 	}
 	
 	/**
@@ -221,7 +425,7 @@ public class DefaultShorthandInterceptor implements ShorthandInterceptor {
 	 */
 	@Override
 	public void throwExit(final Throwable t) {			
-		sink.submit(exSub);
+		if(depthSlot==-1 || depths()[depthSlot] < 2) sink.submit(exSub);
 		if(t!=null) {
 //			t.printStackTrace(System.err);
 //			if(UNSAFE!=null) 
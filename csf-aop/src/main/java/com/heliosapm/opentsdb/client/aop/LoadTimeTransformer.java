@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: LoadTimeTransformer</p>
+ * <p>Description: Matches every class the JVM loads against the class pointcuts of the {@link InvocationOption#TRANSFORMER_RESIDENT} scripts,
+ * using a {@link PointcutMatcher} rebuilt whenever a script is added. The transformer never modifies a class as it is defined:
+ * the matched classes are queued, and once defined, are woven and retransformed in batches by the compiler, since the members a script
+ * instruments are resolved reflectively.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.LoadTimeTransformer</code></p>
+ */
+
+public class LoadTimeTransformer implements ClassFileTransformer, Runnable {
+	/** The number of drain periods a matched class is waited on to be defined before it is dropped */
+	private static final int MAX_ATTEMPTS = 10;
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The instrumentation instance to resolve the matched classes with */
+	protected final Instrumentation instrumentation;
+	/** The compiler weaving the matched classes */
+	protected final ShorthandCompiler compiler;
+	/** The resident scripts */
+	private final Set<ShorthandScript> scripts = new CopyOnWriteArraySet<ShorthandScript>();
+	/** The excluded package prefixes */
+	private final String excludes;
+	/** The drain period in ms. */
+	private final long period;
+	/** The current matcher, null until a script is added */
+	private volatile PointcutMatcher matcher = null;
+	/** The matched classes waiting to be defined */
+	private final BlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+	/** The number of loaded classes seen */
+	private final LongAdder seen = new LongAdder();
+	/** The number of loaded classes matched */
+	private final LongAdder matched = new LongAdder();
+
+	/**
+	 * Creates a new LoadTimeTransformer, registers it and starts its drain thread
+	 * @param instrumentation The instrumentation instance to register with and resolve the matched classes with
+	 * @param compiler The compiler weaving the matched classes
+	 */
+	LoadTimeTransformer(final Instrumentation instrumentation, final ShorthandCompiler compiler) {
+		this.instrumentation = instrumentation;
+		this.compiler = compiler;
+		excludes = ConfigurationReader.conf(Constants.PROP_LOADTIME_EXCLUDES, Constants.DEFAULT_LOADTIME_EXCLUDES);
+		period = ConfigurationReader.confLong(Constants.PROP_LOADTIME_PERIOD, Constants.DEFAULT_LOADTIME_PERIOD);
+		final Thread t = new Thread(this, "ShorthandLoadTimeWeaver");
+		t.setDaemon(true);
+		t.start();
+		instrumentation.addTransformer(this, false);
+		log.info("Load time transformer started. Excluded prefixes: [{}]", excludes);
+	}
+
+	/**
+	 * Adds resident scripts and rebuilds the matcher
+	 * @param residentScripts The scripts to add
+	 */
+	public synchronized void add(final Collection<ShorthandScript> residentScripts) {
+		if(!scripts.addAll(residentScripts)) return;
+		final long start = System.nanoTime();
+		matcher = new PointcutMatcher(scripts, excludes);
+		log.info("Load time pointcut matcher rebuilt for [{}] scripts in [{}] us.", scripts.size(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.instrument.ClassFileTransformer#transform(java.lang.ClassLoader, java.lang.String, java.lang.Class, java.security.ProtectionDomain, byte[])
+	 */
+	@Override
+	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+			final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+		final PointcutMatcher m = matcher;
+		if(m==null || classBeingRedefined!=null || className==null || classfileBuffer==null) return null;
+		seen.increment();
+		try {
+			final Set<ShorthandScript> matchedScripts = m.match(loader, className, classfileBuffer);
+			if(!matchedScripts.isEmpty()) {
+				matched.increment();
+				pending.add(new Pending(className.replace('/', '.'), loader, matchedScripts));
+			}
+		} catch (Throwable t) {
+			log.debug("Failed to match loading class [{}]: {}", className, t.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final List<Pending> drained = new ArrayList<Pending>();
+		while(true) {
+			try {
+				drained.add(pending.take());
+				// let the rest of a burst of loads queue up
+				Thread.sleep(period);
+				pending.drainTo(drained);
+				compile(drained);
+			} catch (InterruptedException iex) {
+				return;
+			} catch (Exception ex) {
+				log.warn("Load time weaving failed", ex);
+			} finally {
+				drained.clear();
+			}
+		}
+	}
+
+	/**
+	 * Resolves the drained classes that have been defined since and compiles them, queueing the others back
+	 * @param drained The drained matched classes
+	 */
+	protected void compile(final List<Pending> drained) {
+		// resolves through the classes each loader initiated, which never triggers a load
+		final Map<ClassLoader, Map<String, Pending>> byLoader = new IdentityHashMap<ClassLoader, Map<String, Pending>>();
+		for(Pending p: drained) {
+			Map<String, Pending> names = byLoader.get(p.loader);
+			if(names==null) {
+				names = new HashMap<String, Pending>();
+				byLoader.put(p.loader, names);
+			}
+			names.put(p.name, p);
+		}
+		final Map<Class<?>, Set<ShorthandScript>> loaded = new HashMap<Class<?>, Set<ShorthandScript>>(drained.size());
+		for(Map.Entry<ClassLoader, Map<String, Pending>> entry: byLoader.entrySet()) {
+			final Map<String, Pending> names = entry.getValue();
+			for(Class<?> clazz: instrumentation.getInitiatedClasses(entry.getKey())) {
+				if(clazz.getClassLoader()!=entry.getKey()) continue;
+				final Pending p = names.remove(clazz.getName());
+				if(p!=null) loaded.put(clazz, p.scripts);
+			}
+			for(Pending p: names.values()) {
+				if(++p.attempts < MAX_ATTEMPTS) {
+					pending.add(p);
+				} else {
+					log.debug("Matched class [{}] was not defined. Dropped.", p.name);
+				}
+			}
+		}
+		if(!loaded.isEmpty()) compiler.compileLoaded(loaded);
+	}
+
+	/**
+	 * Returns the number of loaded classes seen since the first script was added
+	 * @return the number of loaded classes seen
+	 */
+	public long getSeenCount() {
+		return seen.sum();
+	}
+
+	/**
+	 * Returns the number of loaded classes matched since the first script was added
+	 * @return the number of loaded classes matched
+	 */
+	public long getMatchedCount() {
+		return matched.sum();
+	}
+
+	/**
+	 * <p>Title: Pending</p>
+	 * <p>Description: A matched class waiting to be defined</p>
+	 */
+	private static class Pending {
+		/** The class name */
+		final String name;
+		/** The defining class loader, null for the bootstrap class loader */
+		final ClassLoader loader;
+		/** The matching scripts */
+		final Set<ShorthandScript> scripts;
+		/** The number of drains the class was not yet defined in */
+		int attempts = 0;
+
+		/**
+		 * Creates a new Pending
+		 * @param name The class name
+		 * @param loader The defining class loader, null for the bootstrap class loader
+		 * @param scripts The matching scripts
+		 */
+		Pending(final String name, final ClassLoader loader, final Set<ShorthandScript> scripts) {
+			this.name = name;
+			this.loader = loader;
+			this.scripts = scripts;
+		}
+	}
+}
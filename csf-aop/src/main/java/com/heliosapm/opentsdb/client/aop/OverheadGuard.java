@@ -0,0 +1,373 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.lang.reflect.Member;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Sampler;
+
+/**
+ * <p>Title: OverheadGuard</p>
+ * <p>Description: Watches the instrumentation overhead of every installed {@link DefaultShorthandInterceptor}. The cost of one measured
+ * invocation is calibrated per measurement mask by timing the {@link Measurement} readers, and each period the guard multiplies it by the
+ * interceptor's measured invocation rate. An interceptor over the {@link Constants#PROP_OVERHEAD_BUDGET} is acted on according to
+ * {@link Constants#PROP_OVERHEAD_ACTION}:<ul>
+ * 	<li><b>sample</b>: switches to adaptive sampling at a rate bringing it under budget, or lowers the rate of the sampler configured by its script.
+ * 	If it is over budget again, it is restored. An interceptor whose script's sampler is already at the lowest rate is restored right away.</li>
+ * 	<li><b>restore</b>: disables the interceptor and restores the original bytecode of the members it instruments, leaving the other
+ * 	instrumented members of their classes woven.</li>
+ * 	<li><b>log</b>: only reports it.</li>
+ * </ul>
+ * Each decision is emitted as a notification by the {@link ShorthandScript} that instrumented the method. Several sites may share an
+ * interceptor when their metric names are the same, so the sites are tracked per interceptor and each is acted on.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.OverheadGuard</code></p>
+ */
+
+public class OverheadGuard implements Runnable {
+	/** The singleton instance */
+	private static volatile OverheadGuard instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The number of invocations per calibration */
+	private static final int CALIBRATION_INVOCATIONS = 2000;
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** Indicates if the guard is enabled */
+	private final boolean enabled;
+	/** The overhead budget per instrumented method in ns. per second */
+	private final long budget;
+	/** The check period in ms. */
+	private final long period;
+	/** The action taken on a method over budget */
+	private final String action;
+	/** The watched instrumentation sites, identified by class and member, keyed by the metric id and measurement mask of their interceptor */
+	private final ConcurrentHashMap<String, Set<Site>> sites = new ConcurrentHashMap<String, Set<Site>>();
+	/** The calibrated ns. per measured invocation keyed by non-noop measurement mask, only accessed by the guard thread */
+	private final Map<Integer, Long> costs = new HashMap<Integer, Long>();
+	/** The measured count of each interceptor at the last check, only accessed by the guard thread */
+	private Map<DefaultShorthandInterceptor, Long> lastCounts = new IdentityHashMap<DefaultShorthandInterceptor, Long>();
+	/** The interceptors the guard switched to sampling or lowered the sampling rate of, only accessed by the guard thread */
+	private final Set<DefaultShorthandInterceptor> sampled = Collections.newSetFromMap(new IdentityHashMap<DefaultShorthandInterceptor, Boolean>());
+	/** The nano time of the last check */
+	private long lastCheck = System.nanoTime();
+
+	/**
+	 * Acquires and returns the OverheadGuard singleton instance
+	 * @return the OverheadGuard singleton instance
+	 */
+	public static OverheadGuard getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new OverheadGuard();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new OverheadGuard and starts its guard thread if enabled
+	 */
+	private OverheadGuard() {
+		enabled = ConfigurationReader.confBool(Constants.PROP_OVERHEAD_ENABLED, Constants.DEFAULT_OVERHEAD_ENABLED);
+		budget = ConfigurationReader.confLong(Constants.PROP_OVERHEAD_BUDGET, Constants.DEFAULT_OVERHEAD_BUDGET);
+		period = ConfigurationReader.confLong(Constants.PROP_OVERHEAD_PERIOD, Constants.DEFAULT_OVERHEAD_PERIOD);
+		action = ConfigurationReader.conf(Constants.PROP_OVERHEAD_ACTION, Constants.DEFAULT_OVERHEAD_ACTION).trim().toLowerCase();
+		if(enabled) {
+			final Thread t = new Thread(this, "InstrumentationOverheadGuard");
+			t.setDaemon(true);
+			t.start();
+			log.info("Instrumentation overhead guard started. Budget: {} ns/s, period: {} ms, action: {}", budget, period, action);
+		}
+	}
+
+	/**
+	 * Registers the shorthand script and target of an instrumentation site
+	 * @param metricId The site's metric id
+	 * @param instrumentationMask The site's instrumentation mask
+	 * @param site The site
+	 */
+	public void watch(final long metricId, final int instrumentationMask, final Site site) {
+		if(!enabled) return;
+		final String key = key(metricId, Measurement.measurementMask(instrumentationMask));
+		Set<Site> watched = sites.get(key);
+		if(watched==null) {
+			watched = Collections.newSetFromMap(new ConcurrentHashMap<Site, Boolean>());
+			final Set<Site> prior = sites.putIfAbsent(key, watched);
+			if(prior!=null) watched = prior;
+		}
+		// a re-woven site replaces its prior registration
+		watched.remove(site);
+		watched.add(site);
+	}
+
+	/**
+	 * Builds the site key for the passed metric id and measurement mask
+	 * @param metricId The metric id
+	 * @param mask The measurement mask
+	 * @return the key
+	 */
+	private static String key(final long metricId, final int mask) {
+		return metricId + ":" + mask;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				Thread.sleep(period);
+				check();
+			} catch (InterruptedException iex) {
+				return;
+			} catch (Exception ex) {
+				log.warn("Instrumentation overhead check failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Estimates the overhead of every installed interceptor since the last check and acts on those over budget
+	 */
+	protected void check() {
+		final long now = System.nanoTime();
+		final double seconds = (double)(now - lastCheck) / TimeUnit.SECONDS.toNanos(1);
+		lastCheck = now;
+		final Map<DefaultShorthandInterceptor, Long> counts = new IdentityHashMap<DefaultShorthandInterceptor, Long>();
+		for(DefaultShorthandInterceptor interceptor: DefaultShorthandInterceptor.getInstalled()) {
+			if(interceptor.isDisabled()) continue;
+			final long count = interceptor.getMeasuredCount();
+			counts.put(interceptor, count);
+			final Long last = lastCounts.get(interceptor);
+			if(last==null || seconds <= 0d) continue;
+			final long overhead = (long)((count - last) * cost(interceptor.getNonOopMask()) / seconds);
+			if(overhead > budget) {
+				overBudget(interceptor, overhead);
+			}
+		}
+		lastCounts = counts;
+	}
+
+	/**
+	 * Acts on an interceptor over budget
+	 * @param interceptor The interceptor
+	 * @param overhead The estimated overhead in ns. per second
+	 */
+	protected void overBudget(final DefaultShorthandInterceptor interceptor, final long overhead) {
+		final Set<Site> watched = sites.get(key(interceptor.getMetricId(), interceptor.mask));
+		final Site[] targets = watched==null ? new Site[0] : watched.toArray(new Site[0]);
+		if("log".equals(action)) {
+			notify(targets, interceptor, overhead, ShorthandScriptMBean.NOTIF_OVERHEAD_EXCEEDED, "", null);
+		} else if("sample".equals(action) && !sampled.contains(interceptor) && sample(interceptor, overhead)) {
+			final long rate = interceptor.getSampler().getRate();
+			notify(targets, interceptor, overhead, ShorthandScriptMBean.NOTIF_OVERHEAD_SAMPLED, String.format(" Switched to 1 in %s sampling.", rate), Collections.<String, Object>singletonMap("sampleRate", rate));
+		} else {
+			sampled.remove(interceptor);
+			interceptor.disable();
+			if(targets.length==0) {
+				notify(targets, interceptor, overhead, ShorthandScriptMBean.NOTIF_OVERHEAD_RESTORED, " Instrumentation disabled.", Collections.<String, Object>singletonMap("restored", false));
+			}
+			for(Site site: targets) {
+				final boolean restored = ShorthandCompiler.getInstance().restore(site.targetClass, site.member);
+				if(restored) watched.remove(site);
+				notify(new Site[]{site}, interceptor, overhead, ShorthandScriptMBean.NOTIF_OVERHEAD_RESTORED,
+						String.format(" Instrumentation disabled%s.", restored ? " and original bytecode restored" : ""), Collections.<String, Object>singletonMap("restored", restored));
+			}
+		}
+	}
+
+	/**
+	 * Switches an interceptor over budget to adaptive sampling, or lowers the rate of the sampler its script configured
+	 * @param interceptor The interceptor
+	 * @param overhead The estimated overhead in ns. per second
+	 * @return true if sampled, false if the script's sampler is already at the lowest rate
+	 */
+	private boolean sample(final DefaultShorthandInterceptor interceptor, final long overhead) {
+		// one rate step under budget, from which the adaptive sampler settles
+		final int steps = 65 - Long.numberOfLeadingZeros(Math.max(1L, overhead / Math.max(1L, budget)));
+		final Sampler sampler = interceptor.getSampler();
+		if(sampler==null) {
+			interceptor.sample(steps);
+		} else if(!sampler.escalate(steps)) {
+			return false;
+		}
+		sampled.add(interceptor);
+		return true;
+	}
+
+	/**
+	 * Logs a decision for each of the passed sites and emits it through the site's script
+	 * @param targets The sites sharing the interceptor
+	 * @param interceptor The interceptor over budget
+	 * @param overhead The estimated overhead in ns. per second
+	 * @param type The notification type
+	 * @param action The description of the action taken, appended to the message
+	 * @param actionData The action details, null if none
+	 */
+	private void notify(final Site[] targets, final DefaultShorthandInterceptor interceptor, final long overhead, final String type, final String action, final Map<String, Object> actionData) {
+		if(targets.length==0) {
+			notify(null, type, String.format("Instrumentation of [metricId %s] overhead %s ns/s exceeds budget %s ns/s.%s", interceptor.getMetricId(), overhead, budget, action), userData(null, interceptor, overhead, actionData));
+			return;
+		}
+		for(Site site: targets) {
+			final String target = site.targetClass.getName() + "." + site.member.getName();
+			notify(site, type, String.format("Instrumentation of [%s] overhead %s ns/s exceeds budget %s ns/s.%s", target, overhead, budget, action), userData(site, interceptor, overhead, actionData));
+		}
+	}
+
+	/**
+	 * Builds the notification user data of a decision
+	 * @param site The site, null if not known
+	 * @param interceptor The interceptor over budget
+	 * @param overhead The estimated overhead in ns. per second
+	 * @param actionData The action details, null if none
+	 * @return the user data
+	 */
+	private Map<String, Object> userData(final Site site, final DefaultShorthandInterceptor interceptor, final long overhead, final Map<String, Object> actionData) {
+		final Map<String, Object> userData = new LinkedHashMap<String, Object>();
+		userData.put("metricId", interceptor.getMetricId());
+		userData.put("mask", interceptor.mask);
+		userData.put("overhead", overhead);
+		userData.put("budget", budget);
+		if(site!=null) {
+			userData.put("class", site.targetClass.getName());
+			userData.put("member", site.member.getName());
+		}
+		if(actionData!=null) userData.putAll(actionData);
+		return userData;
+	}
+
+	/**
+	 * Logs a decision and emits it through the site's script
+	 * @param site The site, null if not known
+	 * @param type The notification type
+	 * @param message The notification message
+	 * @param userData The decision details
+	 */
+	private void notify(final Site site, final String type, final String message, final Map<String, Object> userData) {
+		log.warn(message);
+		if(site!=null) {
+			site.script.sendOverheadNotification(type, message, userData);
+		}
+	}
+
+	/**
+	 * Returns the calibrated cost of one measured invocation for the passed mask, calibrating it on first use
+	 * @param nonoopmask The non-noop measurement mask
+	 * @return the cost in ns.
+	 */
+	protected long cost(final int nonoopmask) {
+		Long cost = costs.get(nonoopmask);
+		if(cost==null) {
+			for(int i = 0; i < CALIBRATION_INVOCATIONS/4; i++) {
+				Measurement.exit(Measurement.enter(nonoopmask, 0L));
+			}
+			final long start = System.nanoTime();
+			for(int i = 0; i < CALIBRATION_INVOCATIONS; i++) {
+				Measurement.exit(Measurement.enter(nonoopmask, 0L));
+			}
+			cost = Math.max(1L, (System.nanoTime() - start) / CALIBRATION_INVOCATIONS);
+			costs.put(nonoopmask, cost);
+			log.info("Calibrated measurement cost for mask [{}]: {} ns/invocation", nonoopmask, cost);
+		}
+		return cost;
+	}
+
+	/**
+	 * Returns the overhead budget
+	 * @return the overhead budget per instrumented method in ns. per second
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Indicates if the guard is enabled
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * <p>Title: Site</p>
+	 * <p>Description: The script and target of an instrumentation site, identified by the instrumented class and member</p>
+	 */
+	public static class Site {
+		/** The script that instrumented the site */
+		final ShorthandScript script;
+		/** The instrumented class */
+		final Class<?> targetClass;
+		/** The instrumented member */
+		final Member member;
+
+		/**
+		 * Creates a new Site
+		 * @param script The script that instrumented the site
+		 * @param targetClass The instrumented class
+		 * @param member The instrumented member
+		 */
+		public Site(final ShorthandScript script, final Class<?> targetClass, final Member member) {
+			this.script = script;
+			this.targetClass = targetClass;
+			this.member = member;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * targetClass.hashCode() + member.hashCode();
+		}
+
+		/**
+		 * Sites are equal if they instrument the same member of the same class
+		 * {@inheritDoc}
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(final Object obj) {
+			if(this==obj) return true;
+			if(!(obj instanceof Site)) return false;
+			final Site other = (Site)obj;
+			return targetClass==other.targetClass && member.equals(other.member);
+		}
+	}
+}
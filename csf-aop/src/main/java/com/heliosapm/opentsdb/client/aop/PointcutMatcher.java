@@ -0,0 +1,416 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Title: PointcutMatcher</p>
+ * <p>Description: Matches classes as they are loaded against the class pointcuts of a set of {@link ShorthandScript}s, precompiled so that
+ * the common case, a class no script targets, is rejected as cheaply as possible:<ol>
+ * 	<li>Classes in an excluded package are rejected by a prefix trie walk of the class name.</li>
+ * 	<li>Classes targeted by name are found through a bloom filter of the target names, only probing the name map on a hit.</li>
+ * 	<li>If any script targets subtypes or annotations, the {@link ClassHeader} is read and the super class and interfaces are probed
+ * 	in a bloom filter of the targeted types and their known subtypes, and the class annotations in the map of targeted annotations.</li>
+ * </ol>
+ * A matched class targeted by subtype, or by annotation including subtypes, joins the targeted types so its own subtypes match when they load,
+ * and the targeted types bloom filter is rebuilt twice as large whenever it fills up, so its false positive rate stays bounded.</p>
+ * <p>Since pointcuts match by name, a script only matches the classes loaded by the class loader of its target class, or by a class loader
+ * delegating to it, where the name resolves to the script's target.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.PointcutMatcher</code></p>
+ */
+
+public class PointcutMatcher {
+	/** The excluded package prefixes */
+	private final PrefixTrie excludes;
+	/** The scripts targeting a class by name, keyed by the class name */
+	private final Map<String, Set<ShorthandScript>> named = new HashMap<String, Set<ShorthandScript>>();
+	/** The bloom filter of the targeted class names */
+	private final BloomFilter namedFilter;
+	/** The scripts targeting the subtypes of a type, keyed by the type name */
+	private final Map<String, Set<ShorthandScript>> types = new ConcurrentHashMap<String, Set<ShorthandScript>>();
+	/** The bloom filter of the targeted type names, replaced by a larger one when full */
+	private volatile BloomFilter typesFilter;
+	/** The scripts targeting the types annotated with an annotation, keyed by the annotation name */
+	private final Map<String, Set<ShorthandScript>> annotations = new HashMap<String, Set<ShorthandScript>>();
+	/** Indicates if the class header must be read to match */
+	private final boolean headerRequired;
+
+	/** The exclusions splitter */
+	private static final Pattern COMMA_SPLITTER = Pattern.compile(",");
+	/** An empty script set const */
+	private static final Set<ShorthandScript> EMPTY = Collections.emptySet();
+
+	/**
+	 * Creates a new PointcutMatcher
+	 * @param scripts The scripts to match the class pointcuts of
+	 * @param excludedPrefixes A comma separated list of internal form package prefixes to never match
+	 */
+	public PointcutMatcher(final Collection<ShorthandScript> scripts, final String excludedPrefixes) {
+		excludes = new PrefixTrie();
+		if(excludedPrefixes!=null) {
+			for(String prefix: COMMA_SPLITTER.split(excludedPrefixes)) {
+				if(!prefix.trim().isEmpty()) excludes.add(prefix.trim());
+			}
+		}
+		final TypeIndex typeIndex = TypeIndex.getInstance();
+		for(ShorthandScript script: scripts) {
+			final Class<?> target = script.getTargetClass();
+			if(script.isTargetClassAnnotation()) {
+				link(annotations, target.getName(), script);
+				if(script.isInherritanceEnabled()) {
+					for(String name: typeIndex.getAnnotatedTypeNames(target.getName())) {
+						link(types, name, script);
+						for(String sub: typeIndex.getSubTypeNames(name)) {
+							link(types, sub, script);
+						}
+					}
+				}
+			} else if(!script.isInherritanceEnabled() || Modifier.isFinal(target.getModifiers())) {
+				link(named, target.getName(), script);
+			} else {
+				link(types, target.getName(), script);
+				for(String sub: typeIndex.getSubTypeNames(target.getName())) {
+					link(types, sub, script);
+				}
+			}
+		}
+		namedFilter = new BloomFilter(named.size());
+		for(String name: named.keySet()) {
+			namedFilter.add(name);
+		}
+		typesFilter = typesFilter(types.size() * 2);
+		headerRequired = !types.isEmpty() || !annotations.isEmpty();
+	}
+
+	/**
+	 * Returns the scripts whose class pointcut matches the passed loading class
+	 * @param loader The class loader defining the class, null for the bootstrap class loader
+	 * @param internalName The internal form name of the class
+	 * @param classfileBuffer The class file, only read if a script targets subtypes or annotations
+	 * @return the matching scripts, empty if none match
+	 */
+	public Set<ShorthandScript> match(final ClassLoader loader, final String internalName, final byte[] classfileBuffer) {
+		if(excludes.matches(internalName)) return EMPTY;
+		final String name = internalName.replace('/', '.');
+		Set<ShorthandScript> matched = null;
+		if(namedFilter.mightContain(name)) {
+			matched = add(matched, named.get(name), loader);
+		}
+		if(!headerRequired) return matched==null ? EMPTY : matched;
+		final ClassHeader header;
+		try {
+			header = ClassHeader.read(classfileBuffer);
+		} catch (Exception ex) {
+			return matched==null ? EMPTY : matched;
+		}
+		final BloomFilter filter = typesFilter;
+		Set<ShorthandScript> subTyped = null;
+		if(header.superName!=null && filter.mightContain(header.superName)) {
+			subTyped = add(subTyped, types.get(header.superName), loader);
+		}
+		for(String iface: header.ifaceNames) {
+			if(filter.mightContain(iface)) subTyped = add(subTyped, types.get(iface), loader);
+		}
+		if(!annotations.isEmpty()) {
+			for(String annotation: header.annotationNames) {
+				final Set<ShorthandScript> annotatedBy = add(null, annotations.get(annotation), loader);
+				if(annotatedBy==null) continue;
+				matched = add(matched, annotatedBy);
+				for(ShorthandScript script: annotatedBy) {
+					if(script.isInherritanceEnabled()) subTyped = add(subTyped, Collections.singleton(script));
+				}
+			}
+		}
+		if(subTyped!=null) {
+			matched = add(matched, subTyped);
+			// the class' own subtypes match too
+			synchronized(types) {
+				for(ShorthandScript script: subTyped) {
+					link(types, name, script);
+				}
+				BloomFilter current = typesFilter;
+				if(current.add(name) && current.isFull()) {
+					current = typesFilter(current.capacity() * 2);
+					typesFilter = current;
+				}
+			}
+		}
+		return matched==null ? EMPTY : matched;
+	}
+
+	/**
+	 * Builds a bloom filter of the targeted type names. Must be called holding the types lock once the matcher is published.
+	 * @param capacity The expected number of targeted types
+	 * @return the bloom filter
+	 */
+	private BloomFilter typesFilter(final int capacity) {
+		final BloomFilter filter = new BloomFilter(Math.max(capacity, types.size() * 2));
+		for(String name: types.keySet()) {
+			filter.add(name);
+		}
+		return filter;
+	}
+
+	/**
+	 * Adds the passed scripts targeting classes visible to the passed class loader to the passed set, creating it if null
+	 * @param set The set to add to, null if not created yet
+	 * @param scripts The scripts to add, null for none
+	 * @param loader The class loader defining the matched class, null for the bootstrap class loader
+	 * @return the set
+	 */
+	private static Set<ShorthandScript> add(Set<ShorthandScript> set, final Set<ShorthandScript> scripts, final ClassLoader loader) {
+		if(scripts==null) return set;
+		for(ShorthandScript script: scripts) {
+			if(!isVisible(script.getTargetClass().getClassLoader(), loader)) continue;
+			if(set==null) set = new HashSet<ShorthandScript>();
+			set.add(script);
+		}
+		return set;
+	}
+
+	/**
+	 * Determines if a class defined by the passed target class loader is visible to the passed class loader,
+	 * i.e. if the target loader is the bootstrap loader, the loader itself, or one of its parents
+	 * @param target The target class loader, null for the bootstrap class loader
+	 * @param loader The class loader, null for the bootstrap class loader
+	 * @return true if visible, false otherwise
+	 */
+	static boolean isVisible(final ClassLoader target, final ClassLoader loader) {
+		if(target==null) return true;
+		for(ClassLoader cl = loader; cl!=null; cl = cl.getParent()) {
+			if(cl==target) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the passed scripts to the passed set, creating it if null
+	 * @param set The set to add to, null if not created yet
+	 * @param scripts The scripts to add, null for none
+	 * @return the set
+	 */
+	private static Set<ShorthandScript> add(Set<ShorthandScript> set, final Set<ShorthandScript> scripts) {
+		if(scripts==null || scripts.isEmpty()) return set;
+		if(set==null) set = new HashSet<ShorthandScript>();
+		set.addAll(scripts);
+		return set;
+	}
+
+	/**
+	 * Adds a script to the copy on write set keyed by the passed key
+	 * @param map The map of sets
+	 * @param key The key
+	 * @param script The script to add
+	 */
+	private static void link(final Map<String, Set<ShorthandScript>> map, final String key, final ShorthandScript script) {
+		synchronized(map) {
+			final Set<ShorthandScript> current = map.get(key);
+			if(current!=null && current.contains(script)) return;
+			final Set<ShorthandScript> scripts = current==null ? new HashSet<ShorthandScript>(2) : new HashSet<ShorthandScript>(current);
+			scripts.add(script);
+			map.put(key, scripts);
+		}
+	}
+
+	/**
+	 * Indicates if the matcher has no pointcuts
+	 * @return true if no class can match, false otherwise
+	 */
+	public boolean isEmpty() {
+		return named.isEmpty() && types.isEmpty() && annotations.isEmpty();
+	}
+
+	/**
+	 * <p>Title: PrefixTrie</p>
+	 * <p>Description: A character trie of string prefixes</p>
+	 */
+	static class PrefixTrie {
+		/** The root node */
+		private final Node root = new Node();
+
+		/**
+		 * Adds a prefix
+		 * @param prefix The prefix to add
+		 */
+		void add(final String prefix) {
+			Node node = root;
+			for(int i = 0; i < prefix.length(); i++) {
+				node = node.child(prefix.charAt(i), true);
+			}
+			node.terminal = true;
+		}
+
+		/**
+		 * Determines if the passed string starts with any of the prefixes
+		 * @param s The string to test
+		 * @return true if it starts with a prefix, false otherwise
+		 */
+		boolean matches(final String s) {
+			Node node = root;
+			for(int i = 0; i < s.length(); i++) {
+				if(node.terminal) return true;
+				node = node.child(s.charAt(i), false);
+				if(node==null) return false;
+			}
+			return node.terminal;
+		}
+
+		/**
+		 * <p>Title: Node</p>
+		 * <p>Description: A trie node, with its children in parallel arrays since the fan out is small</p>
+		 */
+		private static class Node {
+			/** The child characters */
+			char[] chars = new char[0];
+			/** The child nodes */
+			Node[] children = new Node[0];
+			/** Indicates if a prefix ends at this node */
+			boolean terminal = false;
+
+			/**
+			 * Returns the child for the passed character
+			 * @param c The character
+			 * @param create true to create the child if it does not exist
+			 * @return the child, or null if it does not exist and was not created
+			 */
+			Node child(final char c, final boolean create) {
+				for(int i = 0; i < chars.length; i++) {
+					if(chars[i]==c) return children[i];
+				}
+				if(!create) return null;
+				final int len = chars.length;
+				final char[] tmpChars = new char[len + 1];
+				final Node[] tmpChildren = new Node[len + 1];
+				System.arraycopy(chars, 0, tmpChars, 0, len);
+				System.arraycopy(children, 0, tmpChildren, 0, len);
+				tmpChars[len] = c;
+				tmpChildren[len] = new Node();
+				chars = tmpChars;
+				children = tmpChildren;
+				return tmpChildren[len];
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: BloomFilter</p>
+	 * <p>Description: A thread safe bloom filter of strings, sized at 16 bits per expected entry and probed 3 times per entry.
+	 * It keeps a count of the entries added, so the owner can replace it with a larger one once it holds more than expected.</p>
+	 */
+	static class BloomFilter {
+		/** The filter bits */
+		private final AtomicLongArray bits;
+		/** The bit index mask */
+		private final int mask;
+		/** The number of entries the filter is sized for */
+		private final int capacity;
+		/** The number of entries added */
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		/**
+		 * Creates a new BloomFilter
+		 * @param expected The expected number of entries
+		 */
+		BloomFilter(final int expected) {
+			final int size = Math.max(1024, Integer.highestOneBit(Math.max(1, expected) * 16 - 1) << 1);
+			bits = new AtomicLongArray(size >>> 6);
+			mask = size - 1;
+			capacity = size >>> 4;
+		}
+
+		/**
+		 * Adds a string
+		 * @param s The string to add
+		 * @return true if the string was not already (possibly) contained, false otherwise
+		 */
+		boolean add(final String s) {
+			final int h1 = s.hashCode();
+			final int h2 = mix(h1);
+			boolean added = false;
+			for(int i = 0; i < 3; i++) {
+				final int bit = (h1 + (i * h2)) & mask;
+				final int word = bit >>> 6;
+				final long flag = 1L << (bit & 63);
+				while(true) {
+					final long current = bits.get(word);
+					if((current & flag)!=0) break;
+					if(bits.compareAndSet(word, current, current | flag)) {
+						added = true;
+						break;
+					}
+				}
+			}
+			if(added) count.incrementAndGet();
+			return added;
+		}
+
+		/**
+		 * Returns the number of entries the filter is sized for
+		 * @return the capacity
+		 */
+		int capacity() {
+			return capacity;
+		}
+
+		/**
+		 * Indicates if more entries than the filter is sized for have been added, so its false positive rate exceeds its design rate
+		 * @return true if full, false otherwise
+		 */
+		boolean isFull() {
+			return count.get() > capacity;
+		}
+
+		/**
+		 * Determines if the passed string might have been added
+		 * @param s The string to test
+		 * @return false if it was definitely not added, true if it might have been
+		 */
+		boolean mightContain(final String s) {
+			final int h1 = s.hashCode();
+			final int h2 = mix(h1);
+			for(int i = 0; i < 3; i++) {
+				final int bit = (h1 + (i * h2)) & mask;
+				if((bits.get(bit >>> 6) & (1L << (bit & 63)))==0) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Derives the second probe hash
+		 * @param h The string hash code
+		 * @return the second hash, always odd
+		 */
+		private static int mix(int h) {
+			h ^= (h >>> 16);
+			h *= 0x85ebca6b;
+			h ^= (h >>> 13);
+			return h | 1;
+		}
+	}
+}
@@ -25,11 +25,13 @@
 package com.heliosapm.opentsdb.client.aop;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Member;
+import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.security.KeyFactory;
 import java.security.PrivateKey;
@@ -40,11 +42,20 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -54,14 +65,23 @@ import java.util.concurrent.atomic.AtomicLong;
 import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.compiler.Javac;
 
 import javax.management.ObjectName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.heliosapm.opentsdb.client.aop.naming.MetricIdResolver;
 import com.heliosapm.opentsdb.client.aop.naming.MetricNameCompiler;
 import com.heliosapm.opentsdb.client.aop.naming.MetricNameProvider;
+import com.heliosapm.opentsdb.client.aop.naming.MetricNamingToken;
 import com.heliosapm.opentsdb.client.logging.LoggingConfiguration;
 import com.heliosapm.opentsdb.client.name.AgentName;
 import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
@@ -88,6 +108,27 @@ public class ShorthandCompiler {
 	private static volatile ShorthandCompiler instance = null;
 	/** The singleton instance ctor lock */
 	private static final Object lock = new Object();
+	/** The HotSpot runtime MBean, read reflectively since it is internal to the JVM, null if not available */
+	private static final Object HOTSPOT_RUNTIME;
+	/** The HotSpot runtime MBean's accessor of the <b><code>sun.rt.safepointTime</code></b> counter in ms, null if not available */
+	private static final Method SAFEPOINT_TIME;
+
+	static {
+		Object runtime = null;
+		Method safepointTime = null;
+		try {
+			final Method getRuntime = Class.forName("sun.management.ManagementFactoryHelper").getDeclaredMethod("getHotspotRuntimeMBean");
+			getRuntime.setAccessible(true);
+			runtime = getRuntime.invoke(null);
+			safepointTime = Class.forName("sun.management.HotspotRuntimeMBean").getDeclaredMethod("getTotalSafepointTime");
+			safepointTime.setAccessible(true);
+		} catch (Throwable t) {
+			runtime = null;
+			safepointTime = null;
+		}
+		HOTSPOT_RUNTIME = runtime;
+		SAFEPOINT_TIME = safepointTime;
+	}
 	/** Instance logger */
 	protected final Logger log = LogManager.getLogger(getClass());
 	/** The instrumentation instance to instrument with */
@@ -106,11 +147,33 @@ public class ShorthandCompiler {
 	protected final CtClass throwableCtClass;
 	/** The directory where the transient byte code will be written */
 	private final String byteCodeDir;	
+	/** The persistent instrumented bytecode cache, null if disabled */
+	private final WovenClassCache wovenCache;
+	/** The streaming weaver, null if the javassist weaver is configured */
+	private final StreamingWeaver streamingWeaver;
+	/** The weave stats of each engine: the number of woven classes, the weave time in ns. and the allocated bytes (-1 if not available) */
+	private final Map<String, AtomicLong[]> weaveStats = new ConcurrentHashMap<String, AtomicLong[]>();
 	/** The compiler's JMX ObjectName */
 	public final ObjectName OBJECT_NAME;
+	/** The stats of the last batch compile */
+	private volatile long[] lastBatchStats = null;
+	/** The transformers left resident after their compile */
+	private final Set<BatchTransformer> residentTransformers = new CopyOnWriteArraySet<BatchTransformer>();
+	/** The load time transformer matching the resident scripts against loading classes, null until a resident script is compiled */
+	private volatile LoadTimeTransformer loadTimeTransformer = null;
+	/** The resident transformer supplying the instrumented bytecode of the classes matched as they loaded */
+	private final BatchTransformer loadTimeBatch = new BatchTransformer();
+	/** The scripts keyed by the instrumented members of each instrumented class, as last woven */
+	private final Map<Class<?>, Map<Member, ShorthandScript>> instrumented = new ConcurrentHashMap<Class<?>, Map<Member, ShorthandScript>>();
 	
 	/** The name of the directory within the agent home where we'll write the transient byte code to */
 	public static final String BYTE_CODE_DIR = ".bytecode";
+	/** The name of the directory within the agent home where we'll cache the instrumented byte code */
+	public static final String WOVEN_CACHE_DIR = ".woven";
+	/** The javassist weaving engine name */
+	public static final String WEAVER_JAVASSIST = "javassist";
+	/** The streaming weaving engine name */
+	public static final String WEAVER_STREAMING = "streaming";
 	/** The name of the directory where we'll write the transient byte code to if things don't work out with the agent home */
 	public static final String STANDBY_BYTE_CODE_DIR = System.getProperty("java.io.tmpdir") + File.separator + ".tsdb-aop" + File.separator + Constants.SPID; 
 	
@@ -175,6 +238,13 @@ public class ShorthandCompiler {
 		}
 		byteCodeDir = byteCodeDirReady ? f.getAbsolutePath() : null;
 		log.info("Transient ByteCode Directory: {}", byteCodeDir);
+		wovenCache = (byteCodeDir!=null && ConfigurationReader.confBool(Constants.PROP_WOVEN_CACHE, Constants.DEFAULT_WOVEN_CACHE)) ? new WovenClassCache(new File(new File(byteCodeDir).getParentFile(), WOVEN_CACHE_DIR)) : null;
+		final String weaver = ConfigurationReader.conf(Constants.PROP_WEAVER, Constants.DEFAULT_WEAVER).trim().toLowerCase();
+		streamingWeaver = WEAVER_STREAMING.equals(weaver) ? new StreamingWeaver() : null;
+		for(String engine: new String[]{WEAVER_JAVASSIST, WEAVER_STREAMING}) {
+			weaveStats.put(engine, new AtomicLong[]{new AtomicLong(0L), new AtomicLong(0L), new AtomicLong(0L)});
+		}
+		log.info("Weaving Engine: {}", streamingWeaver==null ? WEAVER_JAVASSIST : WEAVER_STREAMING);
 //		final int cnt = Util.registerMBeanEverywhere(this, OBJECT_NAME);
 //		log.info("Registered RetransformerLite on [{}] MBeanServers", cnt);
 		
@@ -351,111 +421,793 @@ public class ShorthandCompiler {
 	}
 	
 	/**
-	 * Compiles the passed scripts
+	 * Compiles the passed scripts. The classes targeted by any {@link InvocationOption#TRANSFORMER_BATCH} script are
+	 * compiled in one batch (see {@link #compileBatch(Map)}), and the others are compiled and retransformed one class at a time.
 	 * @param scriptsToCompile A map of sets of parsed shorthand scripts keyed by the class the scripts are instrumenting.
 	 */
-	// Return a classfiletransformer
 	public void compile(final Map<Class<?>, Set<ShorthandScript>> scriptsToCompile) {
 		if(scriptsToCompile==null || scriptsToCompile.isEmpty()) return;
-		final Map<String, Integer> classesToTransform = new HashMap<String, Integer>(scriptsToCompile.size());
-		final Map<String, byte[]> byteCode = new HashMap<String, byte[]>(scriptsToCompile.size());
+		// matched against loading classes first, so no class loaded during the compile is missed
+		final Set<ShorthandScript> resident = new HashSet<ShorthandScript>();
+		for(Set<ShorthandScript> scripts: scriptsToCompile.values()) {
+			for(ShorthandScript script: scripts) {
+				if(script.isResidentTransformer()) resident.add(script);
+			}
+		}
+		if(!resident.isEmpty()) getLoadTimeTransformer().add(resident);
+		final Map<Class<?>, Set<ShorthandScript>> batch = new HashMap<Class<?>, Set<ShorthandScript>>(scriptsToCompile.size());
+		final Map<Class<?>, Set<ShorthandScript>> single = new HashMap<Class<?>, Set<ShorthandScript>>(scriptsToCompile.size());
+		for(Map.Entry<Class<?>, Set<ShorthandScript>> entry: scriptsToCompile.entrySet()) {
+			boolean isBatch = false;
+			for(ShorthandScript script: entry.getValue()) {
+				if(script.isBatchTransform()) {
+					isBatch = true;
+					break;
+				}
+			}
+			(isBatch ? batch : single).put(entry.getKey(), entry.getValue());
+		}
+		if(!batch.isEmpty()) compileBatch(batch);
+		for(Map.Entry<Class<?>, Set<ShorthandScript>> entry: single.entrySet()) {
+			final Map<Class<?>, Map<Member, ShorthandScript>> targets = getTargets(Collections.singletonMap(entry.getKey(), entry.getValue()));
+			final ClassPool cp = new ClassPool(classPool);
+			final Set<CtClass> remove = new HashSet<CtClass>();
+			final BatchTransformer transformer = new BatchTransformer();
+			try {
+				for(Map.Entry<Class<?>, Map<Member, ShorthandScript>> target: targets.entrySet()) {
+					transformer.put(target.getKey(), generate(target.getKey(), target.getValue(), cp, remove));
+				}
+			} catch (Exception ex) {
+				log.error("Failed to instrument [{}]", entry.getKey().getName(), ex);
+				continue;
+			} finally {
+				detach(remove);
+			}
+			instrumentation.addTransformer(transformer, true);
+			try {
+				instrumentation.retransformClasses(transformer.getClasses());
+			} catch (Exception ex) {
+				log.error("Failed to retransform [{}]", entry.getKey().getName(), ex);
+			} finally {
+				if(!isResident(entry.getValue())) {
+					try { instrumentation.removeTransformer(transformer); } catch (Exception x) {/* No Op */}
+				} else {
+					residentTransformers.add(transformer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the load time transformer, creating and registering it on first call
+	 * @return the load time transformer
+	 */
+	protected LoadTimeTransformer getLoadTimeTransformer() {
+		if(loadTimeTransformer==null) {
+			synchronized(loadTimeBatch) {
+				if(loadTimeTransformer==null) {
+					instrumentation.addTransformer(loadTimeBatch, true);
+					loadTimeTransformer = new LoadTimeTransformer(instrumentation, this);
+				}
+			}
+		}
+		return loadTimeTransformer;
+	}
+
+	/**
+	 * Compiles the classes matched by the {@link LoadTimeTransformer} as they loaded, retransforming them in a single call.
+	 * The instrumented bytecode is kept by a resident transformer for later retransforms, holding the classes weakly so they can still be unloaded.
+	 * @param loaded The matching scripts keyed by the loaded class
+	 */
+	protected void compileLoaded(final Map<Class<?>, Set<ShorthandScript>> loaded) {
 		final ClassPool cp = new ClassPool(classPool);
 		final Set<CtClass> remove = new HashSet<CtClass>();
+		final List<Class<?>> woven = new ArrayList<Class<?>>(loaded.size());
 		try {
-			for(Map.Entry<Class<?>, Set<ShorthandScript>> entry: scriptsToCompile.entrySet()) {
+			for(Map.Entry<Class<?>, Set<ShorthandScript>> entry: loaded.entrySet()) {
 				final Class<?> clazz = entry.getKey();
-				final Set<ShorthandScript> scripts = entry.getValue();
-				if(scripts.isEmpty()) continue;
-				if(!instrumentation.isModifiableClass(clazz)) {
-					log.warn("The class [{}] with [{}] shorthand scripts is not modifiable. Skipping.", clazz.getName(), scripts.size());
+				if(!instrumentation.isModifiableClass(clazz)) continue;
+				final Map<Member, ShorthandScript> members = new HashMap<Member, ShorthandScript>();
+				for(ShorthandScript script: entry.getValue()) {
+					for(Member member: script.getTargetMembers(clazz)) {
+						members.put(member, script);
+					}
 				}
-				for(ShorthandScript script: scripts) {
-					final Map<Class<?>, Set<Member>> targets = script.getTargetMembers();
-					for(Map.Entry<Class<?>, Set<Member>> target: targets.entrySet()) {
-						final Class<?> targetClass = target.getKey();
-						final CtClass targetCtClass = getCtClass(targetClass, cp, remove);
-						final Set<Member> targetMembers = target.getValue();
-						for(Member member: targetMembers) {
-//							final MetricNameProvider mnp = getNameProvider(clazz, member, script.getMetricNameTemplate());
-							final String metricName = "instrumented:method=sleep,class=TestClass";
-							final OTMetric metric = MetricBuilder.metric(metricName).measurement(script.measurementBitMask).subMetric(script.measurementBitMask).optBuild();
-							final CtMethod ctMethod = targetCtClass.getMethod(member.getName(), StringHelper.getMemberDescriptor(member));
-							targetCtClass.removeMethod(ctMethod);
-							instrument(ctMethod, metric.longHashCode(), script.getMeasurementBitMask());
-							targetCtClass.addMethod(ctMethod);
-						}
-						targetCtClass.writeFile(byteCodeDir);
-						byteCode.put(b2i(clazz), targetCtClass.toBytecode());
-						log("Wrote Class File for [%s]", targetClass.getName());
-					}					
-				}								
-				classesToTransform.put(b2i(clazz), System.identityHashCode(clazz.getClassLoader()));
-				final ClassFileTransformer cft = new ClassFileTransformer() {
+				if(members.isEmpty()) continue;
+				try {
+					loadTimeBatch.put(clazz, generate(clazz, members, cp, remove));
+					woven.add(clazz);
+				} catch (Exception ex) {
+					log.error("Failed to instrument loaded class [{}]", clazz.getName(), ex);
+				}
+			}
+		} finally {
+			detach(remove);
+		}
+		if(woven.isEmpty()) return;
+		try {
+			instrumentation.retransformClasses(woven.toArray(new Class<?>[woven.size()]));
+			log.info("Instrumented [{}] classes as they loaded", woven.size());
+		} catch (Exception ex) {
+			log.error("Failed to retransform [{}] loaded classes", woven.size(), ex);
+		}
+	}
+
+	/**
+	 * Compiles the passed scripts in one batch: the instrumented bytecode of all the target classes is generated in parallel,
+	 * each in its own child {@link ClassPool}, one transformer keyed by class name and class loader is installed, and all the target classes are retransformed in a single
+	 * {@link Instrumentation#retransformClasses(Class...)} call. The transformer is removed after the retransform unless
+	 * a script is {@link InvocationOption#TRANSFORMER_RESIDENT}. The batch timings are logged and retained for {@link #getLastBatchStats()}.
+	 * @param scriptsToCompile A map of sets of parsed shorthand scripts keyed by the class the scripts are instrumenting.
+	 */
+	protected void compileBatch(final Map<Class<?>, Set<ShorthandScript>> scriptsToCompile) {
+		final long start = System.nanoTime();
+		final Map<Class<?>, Map<Member, ShorthandScript>> targets = getTargets(scriptsToCompile);
+		if(targets.isEmpty()) return;
+		final Set<CtClass> remove = Collections.synchronizedSet(new HashSet<CtClass>());
+		final BatchTransformer transformer = new BatchTransformer();
+		final ExecutorService pool = Executors.newFixedThreadPool(Math.min(Constants.CORES, targets.size()), new ThreadFactory() {
+			final AtomicInteger serial = new AtomicInteger(0);
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "ShorthandCompiler#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			final Map<Class<?>, Future<byte[]>> futures = new HashMap<Class<?>, Future<byte[]>>(targets.size());
+			for(final Map.Entry<Class<?>, Map<Member, ShorthandScript>> target: targets.entrySet()) {
+				futures.put(target.getKey(), pool.submit(new Callable<byte[]>() {
 					@Override
-					public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
-							final ProtectionDomain protectionDomain, final byte[] classfileBuffer)
-							throws IllegalClassFormatException {
-						
-						return byteCode.get(className);
+					public byte[] call() throws Exception {
+						// a ClassPool is not thread safe, so each class is woven in its own child pool, which only reads the shared parent
+						return generate(target.getKey(), target.getValue(), new ClassPool(classPool), remove);
 					}
-				};
-				instrumentation.addTransformer(cft, true);
+				}));
+			}
+			for(Map.Entry<Class<?>, Future<byte[]>> f: futures.entrySet()) {
 				try {
-					instrumentation.retransformClasses(clazz);
-				} finally {
-					try { instrumentation.removeTransformer(cft); } catch (Exception x) {/* No Op */}
+					transformer.put(f.getKey(), f.getValue().get());
+				} catch (ExecutionException eex) {
+					log.error("Failed to generate instrumented bytecode for [{}]. Skipping.", f.getKey().getName(), eex.getCause());
 				}
 			}
+		} catch (InterruptedException iex) {
+			log.warn("Interrupted while generating instrumented bytecode. Abandoning batch.");
+			Thread.currentThread().interrupt();
+			return;
+		} finally {
+			pool.shutdownNow();
+			detach(remove);
+		}
+		final Class<?>[] classes = transformer.getClasses();
+		if(classes.length==0) return;
+		final long generated = System.nanoTime();
+		final long safepointStart = getSafepointTime();
+		instrumentation.addTransformer(transformer, true);
+		try {
+			instrumentation.retransformClasses(classes);
 		} catch (Exception ex) {
-			log.error("Failed to instrument", ex);
+			log.error("Batch retransform of [{}] classes failed", classes.length, ex);
+		} finally {
+			if(!isResident(scriptsToCompile.values())) {
+				try { instrumentation.removeTransformer(transformer); } catch (Exception x) {/* No Op */}
+			} else {
+				residentTransformers.add(transformer);
+			}
 		}
+		final long end = System.nanoTime();
+		final long safepoint = safepointStart < 0L ? -1L : (getSafepointTime() - safepointStart);
+		lastBatchStats = new long[]{classes.length, TimeUnit.NANOSECONDS.toMillis(generated - start), TimeUnit.NANOSECONDS.toMillis(end - generated), safepoint, TimeUnit.NANOSECONDS.toMillis(end - start)};
+		log.info("Batch instrumented [{}] classes. Bytecode generation: {} ms, retransform: {} ms, safepoint: {} ms, total: {} ms",
+				lastBatchStats[0], lastBatchStats[1], lastBatchStats[2], lastBatchStats[3], lastBatchStats[4]);
 	}
-	
-	
+
+	/**
+	 * Restores the original bytecode of an instrumented class, and releases the site switch slots of its members once retransformed
+	 * @param clazz The class to restore
+	 * @return true if the class was retransformed, false otherwise
+	 */
+	public boolean restore(final Class<?> clazz) {
+		final Map<Member, ShorthandScript> woven = instrumented.remove(clazz);
+		loadTimeBatch.remove(clazz);
+		for(BatchTransformer transformer: residentTransformers) {
+			transformer.remove(clazz);
+			if(transformer.getClasses().length==0) {
+				residentTransformers.remove(transformer);
+				try { instrumentation.removeTransformer(transformer); } catch (Exception x) {/* No Op */}
+			}
+		}
+		try {
+			instrumentation.retransformClasses(clazz);
+			if(woven!=null) {
+				for(Member member: woven.keySet()) {
+					SiteSwitch.release(clazz, member);
+					MetricIdResolver.release(clazz, member);
+				}
+			}
+			log.info("Restored original bytecode of [{}]", clazz.getName());
+			return true;
+		} catch (Exception ex) {
+			log.error("Failed to restore original bytecode of [{}]", clazz.getName(), ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Restores the original bytecode of one instrumented member: the class is re-woven without the member and retransformed,
+	 * so its other instrumented members keep their instrumentation. The class is fully restored if no other member is instrumented.
+	 * The site switch slot of the member is released once retransformed.
+	 * @param clazz The class declaring the member
+	 * @param member The member to restore
+	 * @return true if the class was retransformed, false otherwise
+	 */
+	public boolean restore(final Class<?> clazz, final Member member) {
+		final Map<Member, ShorthandScript> woven = instrumented.get(clazz);
+		if(woven==null || !woven.containsKey(member)) return false;
+		final Map<Member, ShorthandScript> members = new HashMap<Member, ShorthandScript>(woven);
+		members.remove(member);
+		if(members.isEmpty()) return restore(clazz);
+		final Set<CtClass> remove = new HashSet<CtClass>();
+		final byte[] byteCode;
+		try {
+			byteCode = generate(clazz, members, new ClassPool(classPool), remove);
+		} catch (Exception ex) {
+			log.error("Failed to re-instrument [{}] without [{}]", clazz.getName(), member.getName(), ex);
+			return false;
+		} finally {
+			detach(remove);
+		}
+		// the resident transformers supply the re-woven bytecode from now on
+		boolean resident = loadTimeBatch.replace(clazz, byteCode);
+		for(BatchTransformer transformer: residentTransformers) {
+			if(transformer.replace(clazz, byteCode)) resident = true;
+		}
+		BatchTransformer transformer = null;
+		if(!resident) {
+			transformer = new BatchTransformer();
+			transformer.put(clazz, byteCode);
+			instrumentation.addTransformer(transformer, true);
+		}
+		try {
+			instrumentation.retransformClasses(clazz);
+			SiteSwitch.release(clazz, member);
+			MetricIdResolver.release(clazz, member);
+			log.info("Restored original bytecode of [{}.{}]", clazz.getName(), member.getName());
+			return true;
+		} catch (Exception ex) {
+			log.error("Failed to restore original bytecode of [{}.{}]", clazz.getName(), member.getName(), ex);
+			return false;
+		} finally {
+			if(transformer!=null) {
+				try { instrumentation.removeTransformer(transformer); } catch (Exception x) {/* No Op */}
+			}
+		}
+	}
+
+	/**
+	 * Returns the stats of the last batch compile: the number of retransformed classes, the bytecode generation time, the retransform time,
+	 * the safepoint time accumulated during the retransform (-1 if not available) and the total time, all in ms.
+	 * @return the last batch stats, or null if no batch has been compiled
+	 */
+	public long[] getLastBatchStats() {
+		final long[] stats = lastBatchStats;
+		return stats==null ? null : stats.clone();
+	}
+
+	/**
+	 * Returns the JVM's total safepoint time
+	 * @return the total safepoint time in ms, or -1 if not available on this JVM
+	 */
+	protected static long getSafepointTime() {
+		if(SAFEPOINT_TIME==null) return -1L;
+		try {
+			return ((Long)SAFEPOINT_TIME.invoke(HOTSPOT_RUNTIME)).longValue();
+		} catch (Throwable t) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * Resolves the target members of the passed scripts, keyed by the target class. Unmodifiable classes are skipped.
+	 * @param scriptsToCompile A map of sets of parsed shorthand scripts keyed by the class the scripts are instrumenting.
+	 * @return a map of the scripts keyed by the target member within a map keyed by the target class
+	 */
+	protected Map<Class<?>, Map<Member, ShorthandScript>> getTargets(final Map<Class<?>, Set<ShorthandScript>> scriptsToCompile) {
+		final Map<Class<?>, Map<Member, ShorthandScript>> targets = new HashMap<Class<?>, Map<Member, ShorthandScript>>();
+		for(Set<ShorthandScript> scripts: scriptsToCompile.values()) {
+			for(ShorthandScript script: scripts) {
+				for(Map.Entry<Class<?>, Set<Member>> target: script.getTargetMembers().entrySet()) {
+					final Class<?> targetClass = target.getKey();
+					if(target.getValue().isEmpty()) continue;
+					if(!instrumentation.isModifiableClass(targetClass)) {
+						log.warn("The class [{}] targeted by shorthand script [{}] is not modifiable. Skipping.", targetClass.getName(), script);
+						continue;
+					}
+					Map<Member, ShorthandScript> members = targets.get(targetClass);
+					if(members==null) {
+						members = new HashMap<Member, ShorthandScript>();
+						targets.put(targetClass, members);
+					}
+					for(Member member: target.getValue()) {
+						members.put(member, script);
+					}
+				}
+			}
+		}
+		return targets;
+	}
+
+	/**
+	 * Generates the instrumented bytecode of the passed target class, writing it to the transient bytecode directory if one is available.
+	 * If the same class was instrumented by the same scripts before, the bytecode is replayed from the {@link WovenClassCache}.
+	 * Otherwise the class is woven by the configured engine. Classes with runtime named members, or that the {@link StreamingWeaver} fails on,
+	 * are woven by javassist.
+	 * @param targetClass The class to instrument
+	 * @param members The scripts keyed by the members to instrument
+	 * @param cp The class pool to get the CtClass from
+	 * @param remove The set of CtClasses to detach once compilation is complete
+	 * @return the instrumented bytecode
+	 * @throws Exception thrown on any error generating the bytecode
+	 */
+	protected byte[] generate(final Class<?> targetClass, final Map<Member, ShorthandScript> members, final ClassPool cp, final Set<CtClass> remove) throws Exception {
+		final String key = wovenCache==null ? null : cacheKey(targetClass, members);
+		if(key!=null) {
+			final WovenClassCache.Woven woven = wovenCache.get(key);
+			if(woven!=null && replay(targetClass, members, woven)) {
+				log.info("Woven class cache hit for [{}]", targetClass.getName());
+				if(byteCodeDir!=null) writeByteCode(targetClass, woven.byteCode);
+				instrumented.put(targetClass, new HashMap<Member, ShorthandScript>(members));
+				return woven.byteCode;
+			}
+			log.debug("Woven class cache miss for [{}]", targetClass.getName());
+		}
+		final List<WovenClassCache.WovenSite> sites = key==null ? null : new ArrayList<WovenClassCache.WovenSite>(members.size());
+		final long startAlloc = allocatedBytes();
+		final long start = System.nanoTime();
+		byte[] byteCode = null;
+		String engine = WEAVER_STREAMING;
+		if(streamingWeaver!=null && !hasRuntimeNaming(members)) {
+			byteCode = stream(targetClass, members, sites);
+		}
+		if(byteCode==null) {
+			engine = WEAVER_JAVASSIST;
+			final CtClass targetCtClass = getCtClass(targetClass, cp, remove);
+			for(Map.Entry<Member, ShorthandScript> entry: members.entrySet()) {
+				final Member member = entry.getKey();
+				final ShorthandScript script = entry.getValue();
+//				final MetricNameProvider mnp = getNameProvider(clazz, member, script.getMetricNameTemplate());
+				final String descriptor = StringHelper.getMemberDescriptor(member);
+				final CtMethod ctMethod = targetCtClass.getMethod(member.getName(), descriptor);
+				targetCtClass.removeMethod(ctMethod);
+				final String template = script.getMetricNameTemplate();
+				final int switchSlot = SiteSwitch.bind(targetClass, member, script);
+				if(template!=null && MetricNamingToken.hasRuntimeTokens(template)) {
+					final MetricIdResolver resolver = MetricNameCompiler.getMetricIdResolver(targetClass, member, template, script.measurementBitMask, script.getInstrumentationMask(), new OverheadGuard.Site(script, targetClass, member));
+					instrument(ctMethod, resolver.getCallSiteSource(), script.getInstrumentationMask(), switchSlot);
+				} else {
+					final long metricId = register(targetClass, member, script, descriptor, switchSlot, sites);
+					instrument(ctMethod, metricId, script.getInstrumentationMask(), switchSlot);
+				}
+				targetCtClass.addMethod(ctMethod);
+			}
+			byteCode = targetCtClass.toBytecode();
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long endAlloc = allocatedBytes();
+		final AtomicLong[] stats = weaveStats.get(engine);
+		stats[0].incrementAndGet();
+		stats[1].addAndGet(elapsed);
+		if(startAlloc!=-1L && endAlloc!=-1L) stats[2].addAndGet(endAlloc - startAlloc);
+		log.debug("Woven [{}] with {} in {} us.", targetClass.getName(), engine, TimeUnit.NANOSECONDS.toMicros(elapsed));
+		if(byteCodeDir!=null) writeByteCode(targetClass, byteCode);
+		if(key!=null) wovenCache.put(key, new WovenClassCache.Woven(byteCode, sites));
+		instrumented.put(targetClass, new HashMap<Member, ShorthandScript>(members));
+		return byteCode;
+	}
+
+	/**
+	 * Weaves the passed target class with the {@link StreamingWeaver}
+	 * @param targetClass The class to instrument
+	 * @param members The scripts keyed by the members to instrument
+	 * @param sites The list to add the woven sites to, null if not cached
+	 * @return the instrumented bytecode, or null if the class could not be streamed and should be woven by javassist
+	 */
+	protected byte[] stream(final Class<?> targetClass, final Map<Member, ShorthandScript> members, final List<WovenClassCache.WovenSite> sites) {
+		final byte[] original = WovenClassCache.originalByteCode(targetClass);
+		if(original==null) return null;
+		final int siteCount = sites==null ? 0 : sites.size();
+		try {
+			final Map<String, StreamingWeaver.Hook> hooks = new HashMap<String, StreamingWeaver.Hook>(members.size());
+			for(Map.Entry<Member, ShorthandScript> entry: members.entrySet()) {
+				final Member member = entry.getKey();
+				final ShorthandScript script = entry.getValue();
+				final String descriptor = StringHelper.getMemberDescriptor(member);
+				final int switchSlot = SiteSwitch.bind(targetClass, member, script);
+				final long metricId = register(targetClass, member, script, descriptor, switchSlot, sites);
+				if(Measurement.hasBodyBlock(script.getInstrumentationMask())) {
+					DefaultShorthandInterceptor.install(metricId, script.getInstrumentationMask());
+				}
+				hooks.put(member.getName() + descriptor, new StreamingWeaver.Hook(metricId, script.getInstrumentationMask(), switchSlot));
+			}
+			return streamingWeaver.weave(original, targetClass.getClassLoader(), hooks);
+		} catch (Exception ex) {
+			log.warn("Failed to stream weave [{}]. Falling back to javassist: {}", targetClass.getName(), ex.toString());
+			if(sites!=null) sites.subList(siteCount, sites.size()).clear();
+			return null;
+		}
+	}
+
+	/**
+	 * Builds the metric of an instrumented member with a metric name known at weave time and registers the site with the overhead guard
+	 * @param targetClass The class to instrument
+	 * @param member The member to instrument
+	 * @param script The script instrumenting the member
+	 * @param descriptor The member descriptor
+	 * @param switchSlot The site switch slot bound to the member
+	 * @param sites The list to add the woven site to, null if not cached
+	 * @return the metric id
+	 */
+	protected long register(final Class<?> targetClass, final Member member, final ShorthandScript script, final String descriptor, final int switchSlot, final List<WovenClassCache.WovenSite> sites) {
+		final String metricName = "instrumented:method=sleep,class=TestClass";
+		final OTMetric metric = MetricBuilder.metric(metricName).measurement(script.measurementBitMask).subMetric(script.measurementBitMask).optBuild();
+		OverheadGuard.getInstance().watch(metric.longHashCode(), script.getInstrumentationMask(), new OverheadGuard.Site(script, targetClass, member));
+		if(sites!=null) sites.add(new WovenClassCache.WovenSite(member.getName(), descriptor, metricName, metric.longHashCode(), script.measurementBitMask, script.getInstrumentationMask(), switchSlot));
+		return metric.longHashCode();
+	}
+
+	/**
+	 * Determines if any of the passed scripts names its metrics from runtime values
+	 * @param members The scripts keyed by the members to instrument
+	 * @return true if any script's metric name template has runtime tokens
+	 */
+	protected static boolean hasRuntimeNaming(final Map<Member, ShorthandScript> members) {
+		for(ShorthandScript script: members.values()) {
+			final String template = script.getMetricNameTemplate();
+			if(template!=null && MetricNamingToken.hasRuntimeTokens(template)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the weave stats of the passed engine, for comparing the engines on the same workload
+	 * @param engine The engine name, {@link #WEAVER_JAVASSIST} or {@link #WEAVER_STREAMING}
+	 * @return the number of woven classes, the total weave time in ns. and the total allocated bytes, or null if the engine is unknown
+	 */
+	public long[] getWeaveStats(final String engine) {
+		final AtomicLong[] stats = weaveStats.get(engine);
+		if(stats==null) return null;
+		return new long[]{stats[0].get(), stats[1].get(), stats[2].get()};
+	}
+
+	/**
+	 * Weaves the passed hooks into the passed class with the named engine, without caching, registering or retransforming anything.
+	 * Used to compare the weave time and memory of the engines on the same classes.
+	 * @param targetClass The class to weave
+	 * @param hooks The hooks keyed by the name and descriptor of the methods to weave
+	 * @param engine The weaving engine, {@link #WEAVER_JAVASSIST} or {@link #WEAVER_STREAMING}
+	 * @return the woven bytecode
+	 * @throws Exception thrown on any error weaving the class
+	 */
+	public byte[] weave(final Class<?> targetClass, final Map<String, StreamingWeaver.Hook> hooks, final String engine) throws Exception {
+		if(WEAVER_STREAMING.equals(engine)) {
+			final byte[] original = WovenClassCache.originalByteCode(targetClass);
+			if(original==null) throw new IllegalArgumentException("Cannot read the bytecode of [" + targetClass.getName() + "]");
+			return (streamingWeaver==null ? new StreamingWeaver() : streamingWeaver).weave(original, targetClass.getClassLoader(), hooks);
+		}
+		final Set<CtClass> remove = new HashSet<CtClass>();
+		try {
+			final CtClass targetCtClass = getCtClass(targetClass, new ClassPool(classPool), remove);
+			for(CtMethod ctMethod: targetCtClass.getDeclaredMethods()) {
+				final StreamingWeaver.Hook hook = hooks.get(ctMethod.getName() + ctMethod.getSignature());
+				if(hook!=null) instrument(ctMethod, hook.metricId, hook.instrumentationMask, hook.switchSlot);
+			}
+			return targetCtClass.toBytecode();
+		} finally {
+			detach(remove);
+		}
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread
+	 * @return the allocated bytes, or -1 if not available on this JVM
+	 */
+	protected static long allocatedBytes() {
+		try {
+			final java.lang.management.ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+			if(tmx instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		} catch (Throwable t) {/* No Op */}
+		return -1L;
+	}
+
+	/**
+	 * Computes the woven class cache key of the passed target class.
+	 * Classes with runtime named members are not cached since their resolver slots are assigned at runtime.
+	 * @param targetClass The class to instrument
+	 * @param members The scripts keyed by the members to instrument
+	 * @return the key, or null if the class' instrumented bytecode cannot be cached
+	 */
+	protected String cacheKey(final Class<?> targetClass, final Map<Member, ShorthandScript> members) {
+		if(hasRuntimeNaming(members)) return null;
+		return wovenCache.key(targetClass, new HashSet<ShorthandScript>(members.values()));
+	}
+
+	/**
+	 * Re-registers the metrics, interceptors, site switches and overhead guard sites referenced by cached instrumented bytecode.
+	 * Every cached site is validated before any is registered, so a mismatched entry leaves no switch slot or interceptor behind.
+	 * @param targetClass The instrumented class
+	 * @param members The scripts keyed by the members to instrument
+	 * @param woven The cached instrumented class
+	 * @return true if every cached site was re-registered, false if the cached entry does not match and the class must be woven
+	 */
+	protected boolean replay(final Class<?> targetClass, final Map<Member, ShorthandScript> members, final WovenClassCache.Woven woven) {
+		final Map<String, Map.Entry<Member, ShorthandScript>> byDescriptor = new HashMap<String, Map.Entry<Member, ShorthandScript>>(members.size());
+		for(Map.Entry<Member, ShorthandScript> entry: members.entrySet()) {
+			byDescriptor.put(entry.getKey().getName() + StringHelper.getMemberDescriptor(entry.getKey()), entry);
+		}
+		if(byDescriptor.size()!=woven.sites.size()) return false;
+		final List<Map.Entry<Member, ShorthandScript>> entries = new ArrayList<Map.Entry<Member, ShorthandScript>>(woven.sites.size());
+		for(WovenClassCache.WovenSite site: woven.sites) {
+			final Map.Entry<Member, ShorthandScript> entry = byDescriptor.get(site.memberName + site.descriptor);
+			if(entry==null) return false;
+			final OTMetric metric = MetricBuilder.metric(site.metricName).measurement(site.measurementBitMask).subMetric(site.measurementBitMask).optBuild();
+			if(metric.longHashCode()!=site.metricId) {
+				log.warn("Cached metric id of [{}.{}] no longer matches [{}]", targetClass.getName(), site.memberName, site.metricName);
+				return false;
+			}
+			if(!SiteSwitch.isBindable(targetClass, entry.getKey(), site.switchSlot)) {
+				log.debug("Cached site switch of [{}.{}] is bound to another site", targetClass.getName(), site.memberName);
+				return false;
+			}
+			entries.add(entry);
+		}
+		for(int i = 0; i < entries.size(); i++) {
+			final WovenClassCache.WovenSite site = woven.sites.get(i);
+			final Map.Entry<Member, ShorthandScript> entry = entries.get(i);
+			if(!SiteSwitch.rebind(targetClass, entry.getKey(), entry.getValue(), site.switchSlot)) {
+				// lost the slot since it was validated: the slots already re-bound are kept by their sites when the class is woven
+				log.debug("Cached site switch of [{}.{}] was bound to another site", targetClass.getName(), site.memberName);
+				return false;
+			}
+		}
+		for(int i = 0; i < entries.size(); i++) {
+			final WovenClassCache.WovenSite site = woven.sites.get(i);
+			final Map.Entry<Member, ShorthandScript> entry = entries.get(i);
+			if(Measurement.hasBodyBlock(site.instrumentationMask)) {
+				DefaultShorthandInterceptor.install(site.metricId, site.instrumentationMask);
+			}
+			OverheadGuard.getInstance().watch(site.metricId, site.instrumentationMask, new OverheadGuard.Site(entry.getValue(), targetClass, entry.getKey()));
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the passed instrumented bytecode to the transient bytecode directory
+	 * @param targetClass The instrumented class
+	 * @param byteCode The instrumented bytecode
+	 */
+	protected void writeByteCode(final Class<?> targetClass, final byte[] byteCode) {
+		final File f = new File(byteCodeDir, b2i(targetClass) + ".class");
+		FileOutputStream fos = null;
+		try {
+			f.getParentFile().mkdirs();
+			fos = new FileOutputStream(f);
+			fos.write(byteCode);
+			log("Wrote Class File for [%s]", targetClass.getName());
+		} catch (Exception ex) {
+			log.warn("Failed to write transient bytecode for [{}]: {}", targetClass.getName(), ex.toString());
+		} finally {
+			if(fos!=null) try { fos.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Detaches the passed CtClasses from their class pool
+	 * @param remove The CtClasses to detach
+	 */
+	protected static void detach(final Collection<CtClass> remove) {
+		synchronized(remove) {
+			for(CtClass ctc: remove) {
+				try { ctc.detach(); } catch (Exception x) {/* No Op */}
+			}
+			remove.clear();
+		}
+	}
+
+	/**
+	 * Determines if any of the passed scripts requires a resident transformer
+	 * @param scripts The scripts to test
+	 * @return true if any script is {@link InvocationOption#TRANSFORMER_RESIDENT}
+	 */
+	protected static boolean isResident(final Collection<Set<ShorthandScript>> scripts) {
+		for(Set<ShorthandScript> set: scripts) {
+			if(isResident(set)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Determines if any of the passed scripts requires a resident transformer
+	 * @param scripts The scripts to test
+	 * @return true if any script is {@link InvocationOption#TRANSFORMER_RESIDENT}
+	 */
+	protected static boolean isResident(final Set<ShorthandScript> scripts) {
+		for(ShorthandScript script: scripts) {
+			if(script.isResidentTransformer()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * <p>Title: BatchTransformer</p>
+	 * <p>Description: A class file transformer supplying the instrumented bytecode of a set of classes on retransform. The classes are held weakly,
+	 * keyed by class identity, so a resident transformer never keeps an instrumented class or its class loader from being unloaded.</p>
+	 */
+	protected static class BatchTransformer implements ClassFileTransformer {
+		/** The instrumented bytecode keyed by the weakly held class */
+		private final Map<Class<?>, byte[]> byteCode = Collections.synchronizedMap(new WeakHashMap<Class<?>, byte[]>());
+
+		/**
+		 * Adds the instrumented bytecode of a class
+		 * @param clazz The class
+		 * @param bytes The instrumented bytecode
+		 */
+		void put(final Class<?> clazz, final byte[] bytes) {
+			byteCode.put(clazz, bytes);
+		}
+
+		/**
+		 * Replaces the instrumented bytecode of a class, if this transformer supplies it
+		 * @param clazz The class
+		 * @param bytes The instrumented bytecode
+		 * @return true if replaced, false if this transformer does not supply the class' bytecode
+		 */
+		boolean replace(final Class<?> clazz, final byte[] bytes) {
+			synchronized(byteCode) {
+				if(!byteCode.containsKey(clazz)) return false;
+				byteCode.put(clazz, bytes);
+				return true;
+			}
+		}
+
+		/**
+		 * Removes the instrumented bytecode of a class
+		 * @param clazz The class
+		 */
+		void remove(final Class<?> clazz) {
+			byteCode.remove(clazz);
+		}
+
+		/**
+		 * Returns the instrumented classes which have not been unloaded
+		 * @return the instrumented classes
+		 */
+		Class<?>[] getClasses() {
+			synchronized(byteCode) {
+				return byteCode.keySet().toArray(new Class<?>[byteCode.size()]);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.instrument.ClassFileTransformer#transform(java.lang.ClassLoader, java.lang.String, java.lang.Class, java.security.ProtectionDomain, byte[])
+		 */
+		@Override
+		public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+				final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+			// only supplies bytecode on retransform, where the class is always passed
+			if(classBeingRedefined==null) return null;
+			return byteCode.get(classBeingRedefined);
+		}
+	}
+
 	/**
 	 * Instruments the passed CtMethod
 	 * @param ctMethod The method to instrument
 	 * @param metricId The parent metric Id
-	 * @param measurementMask The enabled measurement mask
+	 * @param measurementMask The enabled measurement mask plus the sampling options (see {@link Measurement#sampled(int, int, boolean)})
+	 * @param switchSlot The site switch slot bound to the method (see {@link SiteSwitch})
 	 */
-	protected void instrument(final CtMethod ctMethod, final long metricId, final int measurementMask) {
+	protected void instrument(final CtMethod ctMethod, final long metricId, final int measurementMask, final int switchSlot) {
+		if(Measurement.hasBodyBlock(measurementMask)) {
+			DefaultShorthandInterceptor.install(metricId, measurementMask);
+		}
+		instrument(ctMethod, metricId + "L", measurementMask, switchSlot);
+	}
+	
+	/**
+	 * Instruments the passed CtMethod with the metric ID computed by the passed source at each invocation.
+	 * The site switch is read into a local on entry and every hook is skipped if it was off. When on, the interceptor is resolved once
+	 * into a local and every hook is called on it. The catch and finally handlers only cover the code following the switch read,
+	 * so they read the same locals and always pair up with the enter hook.
+	 * @param ctMethod The method to instrument
+	 * @param metricIdSource The javassist source of the parent metric Id, either a long constant or a {@link MetricIdResolver} call site
+	 * @param measurementMask The enabled measurement mask plus the sampling options (see {@link Measurement#sampled(int, int, boolean)})
+	 * @param switchSlot The site switch slot bound to the method (see {@link SiteSwitch})
+	 */
+	protected void instrument(final CtMethod ctMethod, final String metricIdSource, final int measurementMask, final int switchSlot) {
 		if(ctMethod==null) throw new IllegalArgumentException("The passed CtMethod was null");
+		final boolean body = Measurement.hasBodyBlock(measurementMask);
+		final boolean catchBlock = Measurement.hasCatchBlock(measurementMask);
+		final boolean finallyBlock = Measurement.hasFinallyBlock(measurementMask);
+		if(!body && !catchBlock && !finallyBlock) return;
 		try {
-			if(Measurement.hasBodyBlock(measurementMask)) {
-				DefaultShorthandInterceptor.install(metricId, measurementMask);
-//				final String metricIdFieldName =  "_metricId_" + Math.abs(metricId) + "_" + measurementMask;
-//				final String valueFieldName =  "_measured_" + Math.abs(metricId) + "_" + measurementMask;
-//				final String interceptorFieldName =  "_interceptor_" + Math.abs(metricId) + "_" + measurementMask;
-//				final String metricIdFieldName =  "_ametricId_"; // + Math.abs(metricId) + "_" + measurementMask;
-				final String valueFieldName =  "_measured_"; // + Math.abs(metricId) + "_" + measurementMask;
-				final String interceptorFieldName =  "_interceptor_"; // + Math.abs(metricId) + "_" + measurementMask;
-				
-//				ctMethod.addLocalVariable(metricIdFieldName, CtClass.longType);
+			final String switchFieldName = "_enabled_";
+			final String valueFieldName =  "_measured_";
+			final String interceptorFieldName =  "_interceptor_";
+			final String interceptorSource = "DefaultShorthandInterceptor.get(" + metricIdSource + "," + measurementMask + ")";
+			ctMethod.addLocalVariable(switchFieldName, CtClass.booleanType);
+			ctMethod.addLocalVariable(interceptorFieldName, interceptorCtClass);
+			final StringBuilder bodyCode = new StringBuilder("{ \n\t");
+			// assigned ahead of the switch read, so they are assigned in every frame the handlers cover
+			bodyCode.append(interceptorFieldName).append(" = null;\n\t");
+			if(body) {
 				ctMethod.addLocalVariable(valueFieldName, longArrCtClass);
-				ctMethod.addLocalVariable(interceptorFieldName, interceptorCtClass);
-				final String bodyCode = "{ \n\t" +  
-						interceptorFieldName + " = DefaultShorthandInterceptor.get(" + metricId + "L," + measurementMask + ");\n\t"
-						+ valueFieldName + " = " + interceptorFieldName +  
-//							".enter(" + measurementMask + "," + metricId + "L);\n\t"
-						".enter();\n\t"
-				+ " }";
-				log("Body Code:\n" + bodyCode);
-				ctMethod.insertBefore(bodyCode);
-				//ctMethod.insertBefore(valueFieldName + " = DefaultShorthandInterceptor.get(" + metricId + "L," + measurementMask + ").enter(" + measurementMask + "," + metricId + "L);");
-				ctMethod.insertAfter(interceptorFieldName + ".exit(" + valueFieldName + ");");
-			}
-			if(Measurement.hasCatchBlock(measurementMask)) {
-				ctMethod.addCatch("{ DefaultShorthandInterceptor.get("  + metricId + "L," + measurementMask + ").throwExit($e); throw new RuntimeException(); }", throwableCtClass, "$e");
-			}
-			if(Measurement.hasFinallyBlock(measurementMask)) {
-				ctMethod.insertAfter("{ DefaultShorthandInterceptor.get("  + metricId + "L," + measurementMask + ").finalExit(); }", true);
-			}
-			
+				bodyCode.append(valueFieldName).append(" = null;\n\t");
+			}
+			bodyCode.append(switchFieldName).append(" = SiteSwitch.isEnabled(").append(switchSlot).append(");\n\t");
+			// the interceptor is resolved once per invocation and every hook is called on it
+			bodyCode.append("if(").append(switchFieldName).append(") {\n\t\t")
+				.append(interceptorFieldName).append(" = ").append(interceptorSource).append(";\n\t\t");
+			if(body) {
+				bodyCode.append(valueFieldName).append(" = ").append(interceptorFieldName).append(".enter();\n\t");
+			}
+			bodyCode.append("}\n }");
+			log("Body Code:\n" + bodyCode);
+			final int length = ctMethod.getMethodInfo().getCodeAttribute().getCodeLength();
+			ctMethod.insertBefore(bodyCode.toString());
+			final int start = ctMethod.getMethodInfo().getCodeAttribute().getCodeLength() - length;
+			if(body) {
+				ctMethod.insertAfter("if(" + switchFieldName + ") " + interceptorFieldName + ".exit(" + valueFieldName + ");");
+			}
+			if(finallyBlock) {
+				ctMethod.insertAfter("if(" + switchFieldName + ") " + interceptorFieldName + ".finalExit();");
+			}
+			if(catchBlock) {
+				addHandler(ctMethod, "{ if(" + switchFieldName + ") " + interceptorFieldName + ".throwExit($e); throw $e; }", start);
+			}
+			if(finallyBlock) {
+				// also covers the catch handler, as a javassist finally does
+				addHandler(ctMethod, "{ if(" + switchFieldName + ") " + interceptorFieldName + ".finalExit(); throw $e; }", start);
+			}
 		} catch (Exception ex) {
-			log.error("Failed to instrument [{}.{}] with metricId [{}] and mask [{}]", ctMethod.getDeclaringClass().getName(), ctMethod.getMethodInfo().getDescriptor(), metricId, measurementMask, ex);
+			log.error("Failed to instrument [{}.{}] with metricId [{}] and mask [{}]", ctMethod.getDeclaringClass().getName(), ctMethod.getMethodInfo().getDescriptor(), metricIdSource, measurementMask, ex);
 			throw new RuntimeException(ex);
 		}
 	}
+
+	/**
+	 * Appends a handler of any throwable to the passed CtMethod, as {@link CtMethod#addCatch(String, CtClass, String)} does,
+	 * but covering only the code from the passed position, so the handler source can read the locals assigned ahead of it
+	 * @param ctMethod The method to add the handler to
+	 * @param source The handler source, with the caught throwable as <b><code>$e</code></b>
+	 * @param start The position of the first covered instruction
+	 * @throws Exception thrown on any error compiling the handler
+	 */
+	protected void addHandler(final CtMethod ctMethod, final String source, final int start) throws Exception {
+		final CtClass declaringClass = ctMethod.getDeclaringClass();
+		final MethodInfo methodInfo = ctMethod.getMethodInfo();
+		final CodeAttribute code = methodInfo.getCodeAttribute();
+		final ConstPool constPool = methodInfo.getConstPool();
+		final CodeIterator iter = code.iterator();
+		final Bytecode handler = new Bytecode(constPool, code.getMaxStack(), code.getMaxLocals());
+		handler.setStackDepth(1);
+		final Javac javac = new Javac(handler, declaringClass);
+		javac.recordParams(ctMethod.getParameterTypes(), Modifier.isStatic(ctMethod.getModifiers()));
+		javac.recordLocalVariables(code, 0);
+		handler.addAstore(javac.recordVariable(throwableCtClass, "$e"));
+		javac.compileStmnt(source);
+		code.setMaxStack(Math.max(code.getMaxStack(), handler.getMaxStack()));
+		code.setMaxLocals(Math.max(code.getMaxLocals(), handler.getMaxLocals()));
+		final int end = iter.getCodeLength();
+		final int handlerPc = iter.append(handler.get());
+		code.getExceptionTable().add(start, end, handlerPc, constPool.addClassInfo(throwableCtClass));
+		iter.append(handler.getExceptionTable(), handlerPc);
+		methodInfo.rebuildStackMapIf6(declaringClass.getClassPool(), declaringClass.getClassFile2());
+	}
 	
 	/**
 	 * Converts the internal format class name to the binary name format
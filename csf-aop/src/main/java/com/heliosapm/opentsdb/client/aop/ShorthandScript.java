@@ -40,20 +40,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
-import org.reflections.scanners.TypeAnnotationsScanner;
-import org.reflections.util.ConfigurationBuilder;
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+
 
-import com.google.common.collect.Multimap;
 import com.heliosapm.opentsdb.client.classloaders.ClassLoaderRepository;
 import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
 import com.heliosapm.opentsdb.client.opentsdb.Constants;
@@ -73,7 +68,7 @@ import com.heliosapm.utils.lang.StringHelper;
 	</pre></h4>
 
  */
-public class ShorthandScript implements ShorthandScriptMBean {
+public class ShorthandScript extends NotificationBroadcasterSupport implements ShorthandScriptMBean {
 	/** The shorthand expression parser */
 	/*
 	 * TODO: Need to integrate:
@@ -105,7 +100,7 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	                "(?:\\[(.*)\\])?" +         		// (8)	The optional method attributes
 //	                "\\s" +                             // spacer
 	                "(?:\\-(\\w+))?" +                 	// (9)	The method instrumentation options (-dr)
-	                "(?:m\\:\\[(.*)\\])?" +         		// (10)	The measurement bitmask option. [] is mandatory if specified. It may contain the bitmask int, or comma separated Measurement names
+	                "(?:m\\:\\[(.*)\\])?" +         		// (10)	The measurement bitmask option. [] is mandatory if specified. It may contain the bitmask int, or comma separated Measurement names, and a sample=<N>|auto[:<N>] sampling option
 //					"\\s+?" + 							// optional spacer
 	                "(?:\\[(.*)\\])?" +         		// (11)	The sub-metric bitmask option. [] is mandatory if specified. It may contain the bitmask int, or comma separated SubMetric names	                
 	                "\\s" +                            	// spacer
@@ -129,6 +124,8 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	/** The single quote cleaner */
 	public static final Pattern SQ_CLEANER = Pattern.compile("'");
 	
+	/** The measurement expression sampling option: <b><code>sample=&lt;N&gt;</code></b> for fixed 1-in-N sampling, <b><code>sample=auto[:&lt;N&gt;]</code></b> for adaptive sampling starting at 1-in-N */
+	public static final Pattern SAMPLING_OPTION = Pattern.compile("sample=(?:(auto):?)?(\\d+)?", Pattern.CASE_INSENSITIVE);
 	/** A comma splitter */
 	public static final Pattern COMMA_SPLITTER = Pattern.compile(",");
 	
@@ -142,6 +139,14 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	/** The shorthand symbol indicating the script should be compiled and installed, but disabled */
 	public static final String DISABLED = "DISABLED";
 	
+	/** The notifications emitted by shorthand scripts */
+	private static final MBeanNotificationInfo[] NOTIFICATION_INFOS = {
+		new MBeanNotificationInfo(new String[]{NOTIF_OVERHEAD_SAMPLED, NOTIF_OVERHEAD_RESTORED, NOTIF_OVERHEAD_EXCEEDED}, Notification.class.getName(), "Instrumentation overhead guard decisions"),
+		new MBeanNotificationInfo(new String[]{NOTIF_ENABLED, NOTIF_DISABLED}, Notification.class.getName(), "Instrumented sites switched on or off")
+	};
+	/** The notification sequence */
+	private final AtomicLong notificationSequence = new AtomicLong(0L);
+	
 	
 	
 	/** The symbol for a class ctor */
@@ -150,28 +155,6 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	/** The JVM's end of line character */
 	public static final String EOL = System.getProperty("line.separator", "\n");
 
-	//==============================================================================================
-	//		Parallel Scan Thread Pool
-	//==============================================================================================
-	
-	
-	/** An executor service to execute classpath scans in parallel */
-	private static final ExecutorService scanExecutor = Executors.newCachedThreadPool(new ThreadFactory(){
-		private final AtomicInteger serial = new AtomicInteger();
-		@Override
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(r, "ReflectionsScanningThread#" + serial.incrementAndGet());
-			t.setDaemon(true);
-			return t;
-		}
-	});
-	
-	static {
-		((ThreadPoolExecutor)scanExecutor).prestartCoreThread();
-		((ThreadPoolExecutor)scanExecutor).prestartCoreThread();
-	}
-
-
 	//==============================================================================================
 	//		Target Class Attributes
 	//==============================================================================================
@@ -213,15 +196,25 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	protected int measurementBitMask = Measurement.DEFAULT_MASK;
 	/** The subMetric bitmask */
 	protected int subMetricBitMask = SubMetric.DEFAULT_MASK;
+	/** The 1-in-N sampling rate, or the initial rate if adaptive */
+	protected int samplingRate = 1;
+	/** Indicates if the sampling rate adapts to the sampling overhead budget */
+	protected boolean adaptiveSampling = false;
 	
 	/** The metric name template */
 	protected String metricNameTemplate = null;
+	/** The white space cleaned script source */
+	protected final String source;
 	/** Indicates if the instrumented method should have the instrumentation enabled when the method is called reentrantly (i.e. self-calls) */
 	protected boolean allowReentrant = false;
 	/** Indicates if all instrumentation on the current thread should be disabled when the method is invoked */
 	protected boolean disableOnTrigger = false;
 	/** Indicates if the instrumentation should be disabled at start time (and require intervention to activate) */
 	protected boolean startDisabled = false;
+	/** Indicates if the instrumented sites are switched on, initially off if {@link #startDisabled} */
+	protected volatile boolean enabled = true;
+	/** The switch slots of the sites instrumented by this script (see {@link SiteSwitch}) */
+	private final Set<Integer> siteSlots = new HashSet<Integer>();
 	/** Indicates if the instrumentation should batch transform (see {@link InvocationOption#TRANSFORMER_BATCH}) */
 	protected boolean batchTransform = false;
 	/** Indicates if the instrumentation's classfile transformer should stay resident (see {@link InvocationOption#TRANSFORMER_RESIDENT}) */
@@ -281,6 +274,8 @@ public class ShorthandScript implements ShorthandScriptMBean {
 		builder.append(Arrays.toString(InvocationOption.getEnabled(methodInvocationOption)));
 		builder.append("\n\tmeasurements:");
 		builder.append(Arrays.toString(Measurement.getEnabled(measurementBitMask)));
+		builder.append("\n\tsampling:");
+		builder.append(adaptiveSampling ? "auto:" : "").append(samplingRate);
 		builder.append("\n\tsubMetrics:");
 		builder.append(Arrays.toString(SubMetric.getEnabled(subMetricBitMask)));		
 		builder.append("\n\tmetricNameTemplate:");
@@ -359,9 +354,11 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	 * @param classLoaders A map of classloader names keyed by the type the classloader is for (i.e. <b>target</b> or <b>collector</b>)
 	 */
 	private ShorthandScript(String source, Map<String, String> classLoaders) {
+		super(NOTIFICATION_INFOS);
 		this.classLoaders = classLoaders;
 		parsingTolerance = ConfigurationReader.confBool(Constants.PROP_SHORTHAND_TOLERANT_PROPERTY, Constants.DEFAULT_SHORTHAND_TOLERANT_PROPERTY);
 		String whiteSpaceCleanedSource = WH_CLEANER.matcher(source).replaceAll(" ");
+		this.source = whiteSpaceCleanedSource;
 		Matcher matcher = SH_PATTERN.matcher(whiteSpaceCleanedSource);
 		if(!matcher.matches()) {
 			throw new ShorthandParseFailureException("Shorthand script regex pattern not recognized", whiteSpaceCleanedSource);
@@ -405,7 +402,27 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	 * @param subMetricNames The configured subMetrics
 	 * @throws ShorthandParseFailureException thrown if tolerance is false and there are invalid measurements or subMetrics.
 	 */
-	protected void validateMethodInstrumentation(final String source, final String measurementNames, final String subMetricNames) {
+	protected void validateMethodInstrumentation(final String source, final String measurementOptions, final String subMetricNames) {
+		String measurementNames = measurementOptions;
+		if(measurementNames!=null) {
+			final StringBuilder names = new StringBuilder();
+			for(String option: COMMA_SPLITTER.split(measurementNames)) {
+				final Matcher m = SAMPLING_OPTION.matcher(option.trim());
+				if(!m.matches()) {
+					if(names.length()>0) names.append(',');
+					names.append(option);
+					continue;
+				}
+				try {
+					adaptiveSampling = m.group(1)!=null;
+					samplingRate = m.group(2)==null ? 1 : Integer.parseInt(m.group(2));
+					if(samplingRate < 1) throw new Exception("Invalid sampling rate [" + samplingRate + "]");
+				} catch (Exception ex) {
+					throw new ShorthandParseFailureException("Failed to parse sampling option", source, ex);
+				}
+			}
+			measurementNames = names.length()==0 ? null : names.toString();
+		}
 		try {
 			Measurement[] measurements = measurementNames==null ? Measurement.getEnabled(Measurement.DEFAULT_MASK) : Measurement.decode(!parsingTolerance, measurementNames);
 			if(measurements.length==0) {
@@ -437,30 +454,38 @@ public class ShorthandScript implements ShorthandScriptMBean {
 		Set<Class<?>> targetClasses = getTargetClasses();
 		Map<Class<?>, Set<Member>> targetMembers = new HashMap<Class<?>, Set<Member>>(targetClasses.size());
 		for(Class<?> clazz: targetClasses) {
-			targetMembers.put(clazz, new HashSet<Member>());
+			targetMembers.put(clazz, getTargetMembers(clazz));
 		}
+		return targetMembers;
+	}
+
+	/**
+	 * Returns the members of the passed class matched by this script's method pointcut
+	 * @param clazz The class to get the members of
+	 * @return the matched members
+	 */
+	public Set<Member> getTargetMembers(final Class<?> clazz) {
+		final Set<Member> members = new HashSet<Member>();
 		Class<? extends Annotation> annotationClass = null;
 		if(targetMethodAnnotation) {
 			annotationClass = methodAnnotationClass;
 		}
-		for(Map.Entry<Class<?>, Set<Member>> entry: targetMembers.entrySet()) {
-			for(Method m: entry.getKey().getDeclaredMethods()) {
-				if(targetMethodAnnotation) {
-					if(m.getAnnotation(annotationClass)!=null) {
-						if(isMatchingSignature(m) && isMatchingAttribute(m)) {
-							entry.getValue().add(m);
-						}
-					}
-				} else if(methodName!=null && methodName.equals(m.getName())) {
+		for(Method m: clazz.getDeclaredMethods()) {
+			if(targetMethodAnnotation) {
+				if(m.getAnnotation(annotationClass)!=null) {
 					if(isMatchingSignature(m) && isMatchingAttribute(m)) {
-						entry.getValue().add(m);
+						members.add(m);
 					}
-				} else if(methodNameExpression!=null && methodNameExpression.matcher(m.getName()).matches()) {
-					if(isMatchingSignature(m) && isMatchingAttribute(m)) entry.getValue().add(m);
 				}
+			} else if(methodName!=null && methodName.equals(m.getName())) {
+				if(isMatchingSignature(m) && isMatchingAttribute(m)) {
+					members.add(m);
+				}
+			} else if(methodNameExpression!=null && methodNameExpression.matcher(m.getName()).matches()) {
+				if(isMatchingSignature(m) && isMatchingAttribute(m)) members.add(m);
 			}
 		}
-		return targetMembers;
+		return members;
 	}
 	
 	
@@ -491,8 +516,10 @@ public class ShorthandScript implements ShorthandScriptMBean {
 
 	/**
 	 * {@inheritDoc}
+	 * <p>Inherritance and annotation targets are resolved from the shared {@link TypeIndex}. As with the former Reflections scan,
+	 * annotation targets honor {@link java.lang.annotation.Inherited} when inherritance is enabled, and include all the subtypes
+	 * of the annotated types when it is not.</p>
 	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getTargetClasses()
-	 * FIXME:  Can be optimized if we know what the classloader is and it is localized
 	 */
 	@SuppressWarnings("unchecked")
 	@Override
@@ -500,49 +527,13 @@ public class ShorthandScript implements ShorthandScriptMBean {
 		if(!targetClassAnnotation && (!inherritanceEnabled || Modifier.isFinal(targetClass.getModifiers()))) {
 			return new HashSet<Class<?>>(Arrays.asList(targetClass));
 		}		
-		ConfigurationBuilder cb = new ConfigurationBuilder()
-			.addClassLoader(targetClass.getClassLoader())
-			.addClassLoader(Thread.currentThread().getContextClassLoader())
-			.addScanners(new SubTypesScanner());
-		if(targetClassLoader!=null) {
-			cb.addClassLoader(targetClassLoader);
-		}
-		
-		if(targetClassAnnotation) {
-			cb.addScanners(new TypeAnnotationsScanner());
-		}
-		cb.setExecutorService(scanExecutor);
-		Reflections reflections = new Reflections(ConfigurationBuilder.build());
-		
 		if(targetClassAnnotation) {
-			return reflections.getTypesAnnotatedWith((Class<? extends Annotation>) targetClass, inherritanceEnabled);
-		} else if(inherritanceEnabled) {
-//			printReflectionsRepo(reflections);
-//			log("Classpath: %s", ManagementFactory.getRuntimeMXBean().getClassPath());
-//			log("Command Line: %s", ManagementFactory.getRuntimeMXBean().getInputArguments());
-			Set<?> subTypes = reflections.getSubTypesOf(targetClass);
-			Set<Class<?>> results = new HashSet<Class<?>>((Collection<? extends Class<?>>) subTypes);
-			return results;
+			return TypeIndex.getInstance().getTypesAnnotatedWith((Class<? extends Annotation>) targetClass, inherritanceEnabled, targetClassLoader);
 		}
-		Set<Class<?>> results  = new HashSet<Class<?>>(Arrays.asList(targetClass));
+		final Set<Class<?>> results = TypeIndex.getInstance().getSubTypesOf(targetClass, targetClassLoader);
 		return results;
 	}
 	
-	private void printReflectionsRepo(final Reflections ref) {
-		final StringBuilder b = new StringBuilder("\n\t======= Reflections List:");
-		for(String s: ref.getStore().keySet()) {
-			b.append("\n").append("Scanner:").append(s);
-			Multimap<String, String> mm = ref.getStore().get(s);
-			for(Map.Entry<String, Collection<String>> entry : mm.asMap().entrySet()) {
-				b.append("\n\t").append(entry.getKey());
-				for(String n: entry.getValue()) {
-					b.append("\n\t\t").append(n);
-				}
-			}
-		}
-		log(b.toString());
-	}
-	
 	/**
 	 * Validates, loads and configures the target method invocation options
 	 * @param source The source (for reporting in any ecxeption thrown)
@@ -552,6 +543,7 @@ public class ShorthandScript implements ShorthandScriptMBean {
 		allowReentrant = InvocationOption.isAllowReentrant(parsedInvocationOptions);
 		disableOnTrigger = InvocationOption.isDisableOnTrigger(parsedInvocationOptions);
 		startDisabled = InvocationOption.isStartDisabled(parsedInvocationOptions);
+		enabled = !startDisabled;
 		// ==========================
 		batchTransform = InvocationOption.isBatchTransform(parsedInvocationOptions);
 		residentTransformer = InvocationOption.isResidentTransformer(parsedInvocationOptions);
@@ -867,6 +859,27 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	}
 
 
+	/**
+	 * Emits an instrumentation overhead guard notification
+	 * @param type The notification type
+	 * @param message The notification message
+	 * @param userData The decision details
+	 */
+	public void sendOverheadNotification(final String type, final String message, final Map<String, Object> userData) {
+		final Notification notif = new Notification(type, this, notificationSequence.incrementAndGet(), System.currentTimeMillis(), message);
+		notif.setUserData(userData);
+		sendNotification(notif);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getSource()
+	 */
+	@Override
+	public String getSource() {
+		return source;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getMetricNameTemplate()
@@ -952,6 +965,77 @@ public class ShorthandScript implements ShorthandScriptMBean {
 		return startDisabled;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#isEnabled()
+	 */
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#enable()
+	 */
+	@Override
+	public void enable() {
+		setEnabled(true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#disable()
+	 */
+	@Override
+	public void disable() {
+		setEnabled(false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getSiteCount()
+	 */
+	@Override
+	public synchronized int getSiteCount() {
+		return siteSlots.size();
+	}
+
+	/**
+	 * Switches all the sites instrumented by this script on or off
+	 * @param on true to switch on, false to switch off
+	 */
+	protected void setEnabled(final boolean on) {
+		final int sites;
+		synchronized(this) {
+			if(enabled==on) return;
+			enabled = on;
+			for(Integer slot: siteSlots) {
+				SiteSwitch.set(slot, on);
+			}
+			sites = siteSlots.size();
+		}
+		sendNotification(new Notification(on ? NOTIF_ENABLED : NOTIF_DISABLED, this, notificationSequence.incrementAndGet(), System.currentTimeMillis(), 
+				"Switched " + (on ? "on " : "off ") + sites + " sites instrumented by [" + source + "]"));
+	}
+
+	/**
+	 * Adds a site switch slot to the sites instrumented by this script and sets the switch to this script's state
+	 * @param slot The site switch slot
+	 */
+	synchronized void bindSite(final int slot) {
+		siteSlots.add(slot);
+		SiteSwitch.set(slot, enabled);
+	}
+
+	/**
+	 * Removes a site switch slot from the sites instrumented by this script, once the site is instrumented by another script
+	 * @param slot The site switch slot
+	 */
+	synchronized void unbindSite(final int slot) {
+		siteSlots.remove(slot);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getTargetClassLoader()
@@ -979,6 +1063,34 @@ public class ShorthandScript implements ShorthandScriptMBean {
 	public int getMeasurementBitMask() {		
 		return measurementBitMask;
 	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getInstrumentationMask()
+	 */
+	@Override
+	public int getInstrumentationMask() {
+		final int mask = (samplingRate==1 && !adaptiveSampling) ? measurementBitMask : Measurement.sampled(measurementBitMask, samplingRate, adaptiveSampling);
+		return allowReentrant ? mask : (mask | Measurement.REENTRANCY_GUARD_MASK);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#getSamplingRate()
+	 */
+	@Override
+	public int getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.aop.ShorthandScriptMBean#isAdaptiveSampling()
+	 */
+	@Override
+	public boolean isAdaptiveSampling() {
+		return adaptiveSampling;
+	}
 	
 	/**
 	 * {@inheritDoc}
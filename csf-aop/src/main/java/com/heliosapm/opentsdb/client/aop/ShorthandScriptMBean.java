@@ -32,6 +32,17 @@ import java.util.regex.Pattern;
  */
 
 public interface ShorthandScriptMBean {
+	/** The notification type emitted when an instrumented method over its overhead budget is switched to sampling */
+	public static final String NOTIF_OVERHEAD_SAMPLED = "shorthand.overhead.sampled";
+	/** The notification type emitted when an instrumented method over its overhead budget is deinstrumented */
+	public static final String NOTIF_OVERHEAD_RESTORED = "shorthand.overhead.restored";
+	/** The notification type emitted when an instrumented method is over its overhead budget and no action is configured */
+	public static final String NOTIF_OVERHEAD_EXCEEDED = "shorthand.overhead.exceeded";
+	/** The notification type emitted when the sites instrumented by a script are switched on */
+	public static final String NOTIF_ENABLED = "shorthand.enabled";
+	/** The notification type emitted when the sites instrumented by a script are switched off */
+	public static final String NOTIF_DISABLED = "shorthand.disabled";
+	
 	/**
 	 * Returns a map of sets of members (methods and constructors) targetted for instrumentation, keyed by the classes they are declared in.
 	 * @return a map of sets of members keyed by the declaring class
@@ -110,6 +121,12 @@ public interface ShorthandScriptMBean {
 	 * @return the methodTemplate
 	 */
 	public abstract String getMetricNameTemplate();
+	
+	/**
+	 * Returns the white space cleaned script source
+	 * @return the script source
+	 */
+	public abstract String getSource();
 
 	/**
 	 * Returns the 
@@ -147,6 +164,29 @@ public interface ShorthandScriptMBean {
 	 */
 	public abstract boolean isStartDisabled();
 
+	/**
+	 * Indicates if the sites instrumented by this script are switched on
+	 * @return true if measuring, false if switched off
+	 */
+	public abstract boolean isEnabled();
+
+	/**
+	 * Switches on all the sites instrumented by this script, without retransforming the instrumented classes
+	 */
+	public abstract void enable();
+
+	/**
+	 * Switches off all the sites instrumented by this script, without retransforming the instrumented classes.
+	 * Switched off sites skip all their hooks until switched back on.
+	 */
+	public abstract void disable();
+
+	/**
+	 * Returns the number of sites instrumented by this script
+	 * @return the number of instrumented sites
+	 */
+	public abstract int getSiteCount();
+
 	/**
 	 * Returns the target class classloader
 	 * @return the target class classloader
@@ -164,6 +204,24 @@ public interface ShorthandScriptMBean {
 	 * @return the bitmask of the enabled measurements
 	 */
 	public abstract int getMeasurementBitMask();
+
+	/**
+	 * Returns the instrumentation mask: the bitmask of the enabled measurements plus the sampling and re-entrancy options
+	 * @return the instrumentation mask
+	 */
+	public abstract int getInstrumentationMask();
+
+	/**
+	 * Returns the 1-in-N sampling rate of the instrumented methods, or the initial rate if sampling is adaptive
+	 * @return the sampling rate, 1 if every invocation is measured
+	 */
+	public abstract int getSamplingRate();
+
+	/**
+	 * Indicates if the sampling rate adapts to the sampling overhead budget
+	 * @return true if adaptively sampled, false otherwise
+	 */
+	public abstract boolean isAdaptiveSampling();
 	
 	/**
 	 * Returns the bitmask of the enabled subMetrics
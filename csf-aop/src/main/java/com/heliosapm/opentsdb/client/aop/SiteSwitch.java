@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Member;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.utils.lang.StringHelper;
+
+/**
+ * <p>Title: SiteSwitch</p>
+ * <p>Description: The runtime on/off switches of the instrumented sites. Each instrumented member is bound to a switch slot woven into
+ * its bytecode as a constant, and the woven code reads the slot's switch once on entry: when off, none of the hooks run and the
+ * invocation costs a static array read and a branch. Flipping a switch takes effect on the next invocation, without retransforming the class.</p>
+ * <p>An invocation in flight keeps the decision it made on entry, so its enter and exit hooks always pair up.</p>
+ * <p>The number of slots is fixed at {@link Constants#PROP_SITE_SWITCHES}. Once exhausted, sites are bound to the {@link #ALWAYS_ON} slot.
+ * A slot is released when its site is restored to its original bytecode, or when the class loader of its site is collected, and is then reused.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.SiteSwitch</code></p>
+ */
+
+public class SiteSwitch {
+	/** The slot of the sites that cannot be switched off */
+	public static final int ALWAYS_ON = 0;
+	/** The number of switch slots */
+	public static final int CAPACITY = Math.max(2, ConfigurationReader.confInt(Constants.PROP_SITE_SWITCHES, Constants.DEFAULT_SITE_SWITCHES));
+
+	/** Static class logger */
+	private static final Logger log = LogManager.getLogger(SiteSwitch.class);
+	/** The switches, 1 for on, 0 for off, indexed by slot */
+	private static final AtomicIntegerArray switches = new AtomicIntegerArray(CAPACITY);
+	/** The bound slots keyed by site key, within a map keyed by the weakly held class loader of the instrumented class */
+	private static final Map<ClassLoader, Map<String, Integer>> slots = new WeakHashMap<ClassLoader, Map<String, Integer>>();
+	/** The site key bound to each slot, indexed by slot */
+	private static final String[] siteKeys = new String[CAPACITY];
+	/** The weakly held class loader of the site bound to each slot, null for the bootstrap class loader, indexed by slot */
+	@SuppressWarnings("unchecked")
+	private static final WeakReference<ClassLoader>[] loaders = new WeakReference[CAPACITY];
+	/** The script owning each slot, indexed by slot */
+	private static final ShorthandScript[] owners = new ShorthandScript[CAPACITY];
+	/** The slot the search for a free slot starts at */
+	private static int nextSlot = ALWAYS_ON + 1;
+
+	static {
+		switches.set(ALWAYS_ON, 1);
+	}
+
+	private SiteSwitch() {}
+
+	/**
+	 * Indicates if the site bound to the passed slot is switched on. Called by instrumented code.
+	 * @param slot The switch slot
+	 * @return true if on, false if off
+	 */
+	public static boolean isEnabled(final int slot) {
+		return switches.get(slot)!=0;
+	}
+
+	/**
+	 * Binds an instrumented member to a switch slot owned by the passed script, and sets the switch to the script's state.
+	 * A member bound before keeps its slot, so re-instrumenting a class does not consume slots.
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @param script The script instrumenting the member
+	 * @return the switch slot, {@link #ALWAYS_ON} if no slot is left
+	 */
+	public static int bind(final Class<?> clazz, final Member member, final ShorthandScript script) {
+		final ClassLoader loader = clazz.getClassLoader();
+		final String siteKey = siteKey(clazz, member);
+		synchronized(slots) {
+			Integer slot = sites(loader, false).get(siteKey);
+			if(slot==null) {
+				slot = freeSlot();
+				if(slot==ALWAYS_ON) {
+					log.warn("No site switch left for [{}]. The site cannot be switched off. Raise [{}] above [{}]", siteKey, Constants.PROP_SITE_SWITCHES, CAPACITY);
+					return ALWAYS_ON;
+				}
+				claim(loader, siteKey, slot);
+			}
+			own(slot, script);
+			return slot;
+		}
+	}
+
+	/**
+	 * Re-binds an instrumented member to the switch slot woven into its cached bytecode
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @param script The script instrumenting the member
+	 * @param slot The woven switch slot
+	 * @return true if the member is now bound to the slot, false if the slot is bound to another member
+	 */
+	public static boolean rebind(final Class<?> clazz, final Member member, final ShorthandScript script, final int slot) {
+		if(slot==ALWAYS_ON) return true;
+		if(slot < 0 || slot >= CAPACITY) return false;
+		final ClassLoader loader = clazz.getClassLoader();
+		final String siteKey = siteKey(clazz, member);
+		synchronized(slots) {
+			final Integer bound = sites(loader, false).get(siteKey);
+			if(bound!=null && bound.intValue()!=slot) return false;
+			if(bound==null) {
+				if(!isFree(slot)) return false;
+				claim(loader, siteKey, slot);
+			}
+			own(slot, script);
+			return true;
+		}
+	}
+
+	/**
+	 * Indicates if an instrumented member can be re-bound to the passed slot by {@link #rebind(Class, Member, ShorthandScript, int)}, without binding it
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @param slot The woven switch slot
+	 * @return true if the slot is free or already bound to the member, false otherwise
+	 */
+	public static boolean isBindable(final Class<?> clazz, final Member member, final int slot) {
+		if(slot==ALWAYS_ON) return true;
+		if(slot < 0 || slot >= CAPACITY) return false;
+		final String siteKey = siteKey(clazz, member);
+		synchronized(slots) {
+			final Integer bound = sites(clazz.getClassLoader(), false).get(siteKey);
+			if(bound!=null) return bound.intValue()==slot;
+			return isFree(slot);
+		}
+	}
+
+	/**
+	 * Releases the switch slot bound to an instrumented member, once the member is restored to its original bytecode, so the slot can be reused.
+	 * The owning script no longer switches the slot, and the slot is switched off until bound again.
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @return true if a slot was released, false if the member was not bound to a slot
+	 */
+	public static boolean release(final Class<?> clazz, final Member member) {
+		final String siteKey = siteKey(clazz, member);
+		synchronized(slots) {
+			final Integer slot = sites(clazz.getClassLoader(), false).get(siteKey);
+			if(slot==null) return false;
+			release(slot);
+			return true;
+		}
+	}
+
+	/**
+	 * Returns the slot bound to an instrumented member
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @return the bound slot, or -1 if the member is not bound to a slot
+	 */
+	public static int getSlot(final Class<?> clazz, final Member member) {
+		final String siteKey = siteKey(clazz, member);
+		synchronized(slots) {
+			final Integer slot = sites(clazz.getClassLoader(), false).get(siteKey);
+			return slot==null ? -1 : slot.intValue();
+		}
+	}
+
+	/**
+	 * Sets the switch of the passed slot. The {@link #ALWAYS_ON} slot is never switched off.
+	 * @param slot The switch slot
+	 * @param on true to switch on, false to switch off
+	 */
+	static void set(final int slot, final boolean on) {
+		if(slot!=ALWAYS_ON) switches.set(slot, on ? 1 : 0);
+	}
+
+	/**
+	 * Returns the number of bound slots
+	 * @return the number of bound slots
+	 */
+	public static int getBoundCount() {
+		synchronized(slots) {
+			int count = 0;
+			for(Map<String, Integer> sites: slots.values()) {
+				count += sites.size();
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Returns the bound slots of the sites of the passed class loader. Must be called holding the slots lock.
+	 * @param loader The class loader of the instrumented classes, null for the bootstrap class loader
+	 * @param create true to create the map if the class loader has no bound site
+	 * @return the bound slots keyed by site key, empty and immutable if the class loader has no bound site and create is false
+	 */
+	private static Map<String, Integer> sites(final ClassLoader loader, final boolean create) {
+		Map<String, Integer> sites = slots.get(loader);
+		if(sites==null) {
+			if(!create) return Collections.emptyMap();
+			sites = new HashMap<String, Integer>();
+			slots.put(loader, sites);
+		}
+		return sites;
+	}
+
+	/**
+	 * Finds a free slot, starting after the last slot found and wrapping around. Must be called holding the slots lock.
+	 * @return the free slot, or {@link #ALWAYS_ON} if none is free
+	 */
+	private static int freeSlot() {
+		for(int i = 1; i < CAPACITY; i++) {
+			final int slot = nextSlot;
+			nextSlot = slot + 1 < CAPACITY ? slot + 1 : ALWAYS_ON + 1;
+			// skips the slots re-bound from cached bytecode
+			if(isFree(slot)) return slot;
+		}
+		return ALWAYS_ON;
+	}
+
+	/**
+	 * Indicates if the passed slot is free, releasing it if the class loader of its site has been collected. Must be called holding the slots lock.
+	 * @param slot The slot
+	 * @return true if free, false if bound
+	 */
+	private static boolean isFree(final int slot) {
+		if(siteKeys[slot]==null) return true;
+		if(loaders[slot]==null || loaders[slot].get()!=null) return false;
+		release(slot);
+		return true;
+	}
+
+	/**
+	 * Records the binding of a site to a slot. Must be called holding the slots lock.
+	 * @param loader The class loader of the instrumented class, null for the bootstrap class loader
+	 * @param siteKey The site key
+	 * @param slot The slot
+	 */
+	private static void claim(final ClassLoader loader, final String siteKey, final int slot) {
+		sites(loader, true).put(siteKey, slot);
+		siteKeys[slot] = siteKey;
+		loaders[slot] = loader==null ? null : new WeakReference<ClassLoader>(loader);
+	}
+
+	/**
+	 * Releases a bound slot. Must be called holding the slots lock.
+	 * @param slot The slot
+	 */
+	private static void release(final int slot) {
+		final ClassLoader loader = loaders[slot]==null ? null : loaders[slot].get();
+		// the sites of a collected class loader are already gone
+		if(loaders[slot]==null || loader!=null) {
+			final Map<String, Integer> sites = sites(loader, false);
+			sites.remove(siteKeys[slot]);
+			if(sites.isEmpty()) slots.remove(loader);
+		}
+		final ShorthandScript owner = owners[slot];
+		if(owner!=null) owner.unbindSite(slot);
+		owners[slot] = null;
+		siteKeys[slot] = null;
+		loaders[slot] = null;
+		switches.set(slot, 0);
+	}
+
+	/**
+	 * Transfers the ownership of a slot to the passed script, which sets the switch to its state. Must be called holding the slots lock.
+	 * @param slot The slot
+	 * @param script The owning script
+	 */
+	private static void own(final int slot, final ShorthandScript script) {
+		final ShorthandScript prior = owners[slot];
+		if(prior!=null && prior!=script) prior.unbindSite(slot);
+		owners[slot] = script;
+		script.bindSite(slot);
+	}
+
+	/**
+	 * Builds the key of an instrumented site, unique within the class loader of the instrumented class
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @return the site key
+	 */
+	private static String siteKey(final Class<?> clazz, final Member member) {
+		return clazz.getName() + "." + member.getName() + StringHelper.getMemberDescriptor(member);
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: StreamingWeaver</p>
+ * <p>Description: Weaves the {@link DefaultShorthandInterceptor} hooks straight into a class file, without compiling any source
+ * and without materializing the class in a {@link ClassPool}. The class file is parsed once, the enter, exit, catch and finally hooks
+ * are emitted as bytecode into each instrumented method, and the class file is written back out.</p>
+ * <p>The woven method is equivalent to the one woven by {@link ShorthandCompiler#instrument(javassist.CtMethod, long, int)}:
+ * the interceptor is acquired and entered before the original code, exited before each return, and, per the instrumentation mask,
+ * the original code is covered by a catch handler calling {@link DefaultShorthandInterceptor#throwExit(Throwable)} and a finally
+ * handler calling {@link DefaultShorthandInterceptor#finalExit()}. The {@link SiteSwitch} of the site is read into a local on entry,
+ * and every hook is branched over if it was off.</p>
+ * <p>Only metric ids known at weave time are supported: call sites with runtime naming are woven by javassist.</p>
+ * <p>The {@link com.heliosapm.opentsdb.client.aoplite.RetransformerLite} keeps weaving with javassist source: it lives in csf-core, which
+ * does not depend on this module, and its single elapsed time trace is not an interceptor hook this weaver emits.</p>
+ * <p>{@link ShorthandCompiler#weave(Class, Map, String)} weaves the same hooks with either engine to compare their weave time and memory.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.StreamingWeaver</code></p>
+ */
+
+public class StreamingWeaver {
+	/** The interceptor class name */
+	private static final String INTERCEPTOR = DefaultShorthandInterceptor.class.getName();
+	/** The interceptor acquisition descriptor */
+	private static final String GET_DESC = "(JI)L" + ShorthandCompiler.b2i(DefaultShorthandInterceptor.class) + ";";
+	/** The site switch class name */
+	private static final String SWITCH = SiteSwitch.class.getName();
+
+	/**
+	 * Weaves the hooks of the passed sites into the passed class file
+	 * @param byteCode The original class file
+	 * @param classLoader The class loader of the class, used to resolve types when the stack map frames are rebuilt
+	 * @param hooks The hooks to weave keyed by the method name and descriptor
+	 * @return the woven class file
+	 * @throws Exception thrown on any error weaving the class file
+	 */
+	public byte[] weave(final byte[] byteCode, final ClassLoader classLoader, final Map<String, Hook> hooks) throws Exception {
+		final ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(byteCode)));
+		final ConstPool constPool = classFile.getConstPool();
+		// only consulted for common super types while the frames are rebuilt, and dropped with the class file
+		ClassPool framePool = null;
+		int woven = 0;
+		@SuppressWarnings("unchecked")
+		final List<MethodInfo> methods = classFile.getMethods();
+		for(MethodInfo methodInfo: methods) {
+			final Hook hook = hooks.get(methodInfo.getName() + methodInfo.getDescriptor());
+			if(hook==null) continue;
+			final CodeAttribute code = methodInfo.getCodeAttribute();
+			if(code==null || methodInfo.isConstructor() || methodInfo.isStaticInitializer()) {
+				throw new IllegalArgumentException("Cannot weave [" + classFile.getName() + "." + methodInfo.getName() + methodInfo.getDescriptor() + "]");
+			}
+			weave(constPool, code, hook);
+			if(framePool==null) {
+				framePool = new ClassPool(true);
+				if(classLoader!=null) framePool.appendClassPath(new LoaderClassPath(classLoader));
+			}
+			methodInfo.rebuildStackMapIf6(framePool, classFile);
+			woven++;
+		}
+		if(woven!=hooks.size()) {
+			throw new IllegalArgumentException("Found " + woven + " of the " + hooks.size() + " methods to weave in [" + classFile.getName() + "]");
+		}
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream(byteCode.length + (woven * 64));
+		final DataOutputStream dos = new DataOutputStream(baos);
+		classFile.write(dos);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Weaves the passed hook into the passed method code
+	 * @param constPool The class file's constant pool
+	 * @param code The method code
+	 * @param hook The hook to weave
+	 * @throws Exception thrown on any error weaving the code
+	 */
+	protected void weave(final ConstPool constPool, final CodeAttribute code, final Hook hook) throws Exception {
+		final int mask = hook.instrumentationMask;
+		final boolean body = Measurement.hasBodyBlock(mask);
+		final boolean catchBlock = Measurement.hasCatchBlock(mask);
+		final boolean finallyBlock = Measurement.hasFinallyBlock(mask);
+		if(!body && !catchBlock && !finallyBlock) return;
+		final int switchSlot = code.getMaxLocals();
+		final int interceptorSlot = switchSlot + 1;
+		final int valuesSlot = switchSlot + 2;
+		code.setMaxLocals(body ? valuesSlot + 1 : interceptorSlot + 1);
+		final CodeIterator iter = code.iterator();
+		// exit hooks before each return, reached by any branch to the return
+		if(body || finallyBlock) {
+			while(iter.hasNext()) {
+				final int pos = iter.next();
+				final int opcode = iter.byteAt(pos);
+				if(opcode < Opcode.IRETURN || opcode > Opcode.RETURN) continue;
+				final Bytecode exit = new Bytecode(constPool);
+				final int branch = addSwitchBranch(exit, switchSlot);
+				if(body) {
+					exit.addAload(interceptorSlot);
+					exit.addAload(valuesSlot);
+					exit.addInvokevirtual(INTERCEPTOR, "exit", "([J)V");
+				}
+				if(finallyBlock) {
+					exit.addAload(interceptorSlot);
+					exit.addInvokevirtual(INTERCEPTOR, "finalExit", "()V");
+				}
+				endSwitchBranch(exit, branch);
+				iter.insertAt(pos, exit.get());
+			}
+		}
+		// switch read and enter hook ahead of the original code, but not reached by branches to the first instruction
+		final Bytecode enter = new Bytecode(constPool);
+		// assigned on both switch paths so the exit hooks and handlers can read them
+		enter.addOpcode(Opcode.ACONST_NULL);
+		enter.addAstore(interceptorSlot);
+		if(body) {
+			enter.addOpcode(Opcode.ACONST_NULL);
+			enter.addAstore(valuesSlot);
+		}
+		enter.addIconst(hook.switchSlot);
+		enter.addInvokestatic(SWITCH, "isEnabled", "(I)Z");
+		enter.addIstore(switchSlot);
+		// the interceptor is resolved once per invocation and every hook is called on it
+		final int enterBranch = addSwitchBranch(enter, switchSlot);
+		addInterceptor(enter, hook);
+		enter.addAstore(interceptorSlot);
+		if(body) {
+			enter.addAload(interceptorSlot);
+			enter.addInvokevirtual(INTERCEPTOR, "enter", "()[J");
+			enter.addAstore(valuesSlot);
+		}
+		endSwitchBranch(enter, enterBranch);
+		final int length = code.getCodeLength();
+		iter.insertExAt(0, enter.get());
+		final int start = code.getCodeLength() - length;
+		final int end = code.getCodeLength();
+		final int throwable = constPool.addClassInfo(Throwable.class.getName());
+		// handlers are appended after the last instruction, so they are only reached by a throw
+		if(catchBlock) {
+			final Bytecode handler = new Bytecode(constPool);
+			final int branch = addSwitchBranch(handler, switchSlot);
+			handler.addOpcode(Opcode.DUP);
+			handler.addAload(interceptorSlot);
+			handler.addOpcode(Opcode.SWAP);
+			handler.addInvokevirtual(INTERCEPTOR, "throwExit", "(Ljava/lang/Throwable;)V");
+			endSwitchBranch(handler, branch);
+			handler.addOpcode(Opcode.ATHROW);
+			final int handlerPc = iter.append(handler.get());
+			code.getExceptionTable().add(start, end, handlerPc, throwable);
+		}
+		if(finallyBlock) {
+			// also covers the catch handler, as a javassist finally does
+			final int coveredEnd = code.getCodeLength();
+			final Bytecode handler = new Bytecode(constPool);
+			final int branch = addSwitchBranch(handler, switchSlot);
+			handler.addAload(interceptorSlot);
+			handler.addInvokevirtual(INTERCEPTOR, "finalExit", "()V");
+			endSwitchBranch(handler, branch);
+			handler.addOpcode(Opcode.ATHROW);
+			final int handlerPc = iter.append(handler.get());
+			code.getExceptionTable().add(start, coveredEnd, handlerPc, throwable);
+		}
+		code.computeMaxStack();
+	}
+
+	/**
+	 * Adds a branch over the following hook code, taken if the site was switched off on entry
+	 * @param bytecode The bytecode to add to
+	 * @param switchSlot The local variable slot of the switch read on entry
+	 * @return the branch position, to be passed to {@link #endSwitchBranch(Bytecode, int)}
+	 */
+	private static int addSwitchBranch(final Bytecode bytecode, final int switchSlot) {
+		bytecode.addIload(switchSlot);
+		final int branch = bytecode.currentPc();
+		bytecode.addOpcode(Opcode.IFEQ);
+		bytecode.addIndex(0);
+		return branch;
+	}
+
+	/**
+	 * Sets the target of a switch branch to the current position
+	 * @param bytecode The bytecode
+	 * @param branch The branch position returned by {@link #addSwitchBranch(Bytecode, int)}
+	 */
+	private static void endSwitchBranch(final Bytecode bytecode, final int branch) {
+		bytecode.write16bit(branch + 1, bytecode.currentPc() - branch);
+	}
+
+	/**
+	 * Adds the acquisition of the hook's interceptor to the passed bytecode
+	 * @param bytecode The bytecode to add to
+	 * @param hook The hook
+	 */
+	private static void addInterceptor(final Bytecode bytecode, final Hook hook) {
+		bytecode.addLconst(hook.metricId);
+		bytecode.addIconst(hook.instrumentationMask);
+		bytecode.addInvokestatic(INTERCEPTOR, "get", GET_DESC);
+	}
+
+	/**
+	 * <p>Title: Hook</p>
+	 * <p>Description: The metric id, instrumentation mask and site switch slot woven into a method</p>
+	 */
+	public static class Hook {
+		/** The metric id */
+		final long metricId;
+		/** The instrumentation mask */
+		final int instrumentationMask;
+		/** The site switch slot */
+		final int switchSlot;
+
+		/**
+		 * Creates a new Hook
+		 * @param metricId The metric id
+		 * @param instrumentationMask The instrumentation mask
+		 * @param switchSlot The site switch slot
+		 */
+		public Hook(final long metricId, final int instrumentationMask, final int switchSlot) {
+			this.metricId = metricId;
+			this.instrumentationMask = instrumentationMask;
+			this.switchSlot = switchSlot;
+		}
+	}
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.name.AgentName;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: TypeIndex</p>
+ * <p>Description: A shared index of the supertypes, interfaces and class annotations of the JVM's classes, used to resolve the
+ * target classes of shorthand scripts targeting a type's subtypes or an annotation without scanning the classpath.</p>
+ * <p>The index is seeded from the classes already loaded when it is created and is then maintained by a passive
+ * {@link ClassFileTransformer} which reads the {@link ClassHeader} of each class as it is loaded, never modifying the bytecode.
+ * When {@link Constants#PROP_TYPE_INDEX_PERSIST} is enabled, the index is saved to the agent's offline directory on shutdown
+ * and reloaded on the next start, so types not yet loaded in this run can still be resolved.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.TypeIndex</code></p>
+ */
+
+public class TypeIndex implements ClassFileTransformer {
+	/** The singleton instance */
+	private static volatile TypeIndex instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The name of the file within the agent home where the index is persisted */
+	public static final String TYPE_INDEX_FILE = ".typeindex";
+	/** The persisted entry field delimiter */
+	private static final String DELIM = "|";
+	/** The persisted entry field splitter */
+	private static final Pattern DELIM_SPLITTER = Pattern.compile("\\|");
+	/** The persisted entry name list splitter */
+	private static final Pattern COMMA_SPLITTER = Pattern.compile(",");
+	/** An empty string array const */
+	private static final String[] EMPTY = {};
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The indexed types keyed by class name */
+	private final Map<String, TypeEntry> types = new ConcurrentHashMap<String, TypeEntry>(8192);
+	/** The names of the types directly extending or implementing a type, keyed by the type's name */
+	private final Map<String, Set<String>> subTypes = new ConcurrentHashMap<String, Set<String>>(8192);
+	/** The names of the types annotated with an annotation, keyed by the annotation's name */
+	private final Map<String, Set<String>> annotated = new ConcurrentHashMap<String, Set<String>>(1024);
+	/** The file the index is persisted to, null if persistence is disabled */
+	private final File indexFile;
+
+	/**
+	 * Acquires and returns the TypeIndex singleton instance
+	 * @return the TypeIndex singleton instance
+	 */
+	public static TypeIndex getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new TypeIndex();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new TypeIndex
+	 */
+	private TypeIndex() {
+		final long start = System.currentTimeMillis();
+		if(ConfigurationReader.confBool(Constants.PROP_TYPE_INDEX_PERSIST, Constants.DEFAULT_TYPE_INDEX_PERSIST)) {
+			indexFile = new File(ConfigurationReader.conf(Constants.PROP_OFFLINE_DIR, Constants.DEFAULT_OFFLINE_DIR) + File.separator + AgentName.appName() + File.separator + TYPE_INDEX_FILE);
+			load();
+			Runtime.getRuntime().addShutdownHook(new Thread("TypeIndexSaver") {
+				@Override
+				public void run() {
+					save();
+				}
+			});
+		} else {
+			indexFile = null;
+		}
+		final Instrumentation instrumentation = TransformerManager.getInstrumentation();
+		if(instrumentation!=null) {
+			instrumentation.addTransformer(this, false);
+			for(Class<?> clazz: instrumentation.getAllLoadedClasses()) {
+				index(clazz);
+			}
+		} else {
+			log.warn("No instrumentation available. The type index will not track loaded classes.");
+		}
+		log.info("Type index initialized with [{}] types in [{}] ms", types.size(), System.currentTimeMillis()-start);
+	}
+
+	/**
+	 * Returns the resolvable subtypes of the passed type, excluding the type itself
+	 * @param type The type to get the subtypes of
+	 * @param classLoaders Additional class loaders to resolve subtypes that have not been loaded in this run
+	 * @return the subtypes
+	 */
+	public Set<Class<?>> getSubTypesOf(final Class<?> type, final ClassLoader...classLoaders) {
+		final Set<Class<?>> classes = resolve(getSubTypeNames(type.getName()), type.getClassLoader(), classLoaders);
+		// drops types whose persisted header is stale or that resolved to a same named class in an unrelated class loader
+		for(Iterator<Class<?>> iter = classes.iterator(); iter.hasNext();) {
+			if(!type.isAssignableFrom(iter.next())) iter.remove();
+		}
+		return classes;
+	}
+
+	/**
+	 * Returns the resolvable types annotated with the passed annotation, with the semantics of the Reflections scanner it replaces:
+	 * when honoring {@link Inherited}, the annotated classes' subclasses are included only if the annotation is {@link Inherited},
+	 * and when not honoring it, all the subtypes of the annotated types are included, including the implementors of annotated interfaces.
+	 * Each resolved type is checked against its loaded class, so stale persisted headers are dropped.
+	 * @param annotation The annotation type
+	 * @param honorInherited true to honor {@link Inherited}, false to include all the subtypes of the annotated types
+	 * @param classLoaders Additional class loaders to resolve types that have not been loaded in this run
+	 * @return the annotated types
+	 */
+	public Set<Class<?>> getTypesAnnotatedWith(final Class<? extends Annotation> annotation, final boolean honorInherited, final ClassLoader...classLoaders) {
+		final Set<String> direct = annotated.get(annotation.getName());
+		if(direct==null) return new HashSet<Class<?>>();
+		final Set<Class<?>> annotatedTypes = resolve(new HashSet<String>(direct), annotation.getClassLoader(), classLoaders);
+		for(Iterator<Class<?>> iter = annotatedTypes.iterator(); iter.hasNext();) {
+			if(!isDeclared(iter.next(), annotation)) iter.remove();
+		}
+		if(annotatedTypes.isEmpty() || (honorInherited && !annotation.isAnnotationPresent(Inherited.class))) return annotatedTypes;
+		final Set<String> names = new HashSet<String>();
+		for(Class<?> type: annotatedTypes) {
+			if(honorInherited) {
+				if(!type.isInterface()) names.addAll(getSubClassNames(type.getName()));
+			} else {
+				names.addAll(getSubTypeNames(type.getName()));
+			}
+		}
+		names.removeAll(direct);
+		final Set<Class<?>> subTypes = resolve(names, annotation.getClassLoader(), classLoaders);
+		for(Iterator<Class<?>> iter = subTypes.iterator(); iter.hasNext();) {
+			final Class<?> subType = iter.next();
+			if(honorInherited) {
+				if(!subType.isAnnotationPresent(annotation)) iter.remove();
+			} else if(!isSubTypeOfAny(subType, annotatedTypes)) {
+				iter.remove();
+			}
+		}
+		annotatedTypes.addAll(subTypes);
+		return annotatedTypes;
+	}
+
+	/**
+	 * Determines if the passed type declares the passed annotation
+	 * @param type The type to test
+	 * @param annotation The annotation type
+	 * @return true if the annotation is declared on the type, false otherwise
+	 */
+	private static boolean isDeclared(final Class<?> type, final Class<? extends Annotation> annotation) {
+		try {
+			for(Annotation ann: type.getDeclaredAnnotations()) {
+				if(ann.annotationType()==annotation) return true;
+			}
+		} catch (Throwable t) {
+			/* No Op */
+		}
+		return false;
+	}
+
+	/**
+	 * Determines if the passed type extends or implements any of the passed types
+	 * @param type The type to test
+	 * @param superTypes The candidate super types
+	 * @return true if the type is a subtype of any of the super types, false otherwise
+	 */
+	private static boolean isSubTypeOfAny(final Class<?> type, final Set<Class<?>> superTypes) {
+		for(Class<?> superType: superTypes) {
+			if(superType.isAssignableFrom(type)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the names of the types directly annotated with the named annotation
+	 * @param annotationName The annotation name
+	 * @return the annotated type names
+	 */
+	protected Set<String> getAnnotatedTypeNames(final String annotationName) {
+		final Set<String> direct = annotated.get(annotationName);
+		return direct==null ? new HashSet<String>() : new HashSet<String>(direct);
+	}
+
+	/**
+	 * Returns the names of all the types transitively extending or implementing the named type
+	 * @param typeName The type name
+	 * @return the subtype names
+	 */
+	protected Set<String> getSubTypeNames(final String typeName) {
+		final Set<String> names = new HashSet<String>();
+		final LinkedList<String> pending = new LinkedList<String>();
+		pending.add(typeName);
+		while(!pending.isEmpty()) {
+			final Set<String> direct = subTypes.get(pending.removeFirst());
+			if(direct==null) continue;
+			for(String name: direct) {
+				if(names.add(name)) pending.add(name);
+			}
+		}
+		names.remove(typeName);
+		return names;
+	}
+
+	/**
+	 * Returns the names of all the classes transitively extending the named class, excluding the implementors of interfaces
+	 * @param className The class name
+	 * @return the subclass names
+	 */
+	protected Set<String> getSubClassNames(final String className) {
+		final Set<String> names = new HashSet<String>();
+		final LinkedList<String> pending = new LinkedList<String>();
+		pending.add(className);
+		while(!pending.isEmpty()) {
+			final String superName = pending.removeFirst();
+			final Set<String> direct = subTypes.get(superName);
+			if(direct==null) continue;
+			for(String name: direct) {
+				final TypeEntry entry = types.get(name);
+				if(entry!=null && superName.equals(entry.superName) && names.add(name)) pending.add(name);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Resolves the named types, first through the class loaders they were seen loading in, then through the passed class loaders
+	 * @param names The type names
+	 * @param typeLoader The class loader of the type the names were looked up for
+	 * @param classLoaders Additional class loaders
+	 * @return the resolved types
+	 */
+	protected Set<Class<?>> resolve(final Set<String> names, final ClassLoader typeLoader, final ClassLoader...classLoaders) {
+		final List<ClassLoader> fallback = new ArrayList<ClassLoader>(classLoaders.length + 2);
+		if(typeLoader!=null) fallback.add(typeLoader);
+		final ClassLoader ctx = Thread.currentThread().getContextClassLoader();
+		if(ctx!=null) fallback.add(ctx);
+		for(ClassLoader cl: classLoaders) {
+			if(cl!=null) fallback.add(cl);
+		}
+		final Set<Class<?>> classes = new HashSet<Class<?>>(names.size());
+		for(String name: names) {
+			final TypeEntry entry = types.get(name);
+			boolean found = false;
+			if(entry!=null) {
+				if(entry.bootstrap) {
+					found = add(classes, name, null);
+				}
+				for(WeakReference<ClassLoader> ref: entry.loaders) {
+					final ClassLoader cl = ref.get();
+					if(cl!=null && add(classes, name, cl)) found = true;
+				}
+			}
+			if(!found) {
+				for(ClassLoader cl: fallback) {
+					if(add(classes, name, cl)) break;
+				}
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Loads the named class through the passed class loader without initializing it, adding it to the passed set
+	 * @param classes The set to add to
+	 * @param name The class name
+	 * @param classLoader The class loader, null for the bootstrap class loader
+	 * @return true if the class was loaded, false otherwise
+	 */
+	private static boolean add(final Set<Class<?>> classes, final String name, final ClassLoader classLoader) {
+		try {
+			classes.add(Class.forName(name, false, classLoader));
+			return true;
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Indexes a loaded class
+	 * @param clazz The class to index
+	 */
+	protected void index(final Class<?> clazz) {
+		try {
+			if(clazz.isArray() || clazz.isPrimitive()) return;
+			final Class<?> superClass = clazz.getSuperclass();
+			final Class<?>[] ifaces = clazz.getInterfaces();
+			final String[] ifaceNames = new String[ifaces.length];
+			for(int i = 0; i < ifaces.length; i++) {
+				ifaceNames[i] = ifaces[i].getName();
+			}
+			String[] annotationNames = EMPTY;
+			try {
+				final Annotation[] annotations = clazz.getDeclaredAnnotations();
+				annotationNames = new String[annotations.length];
+				for(int i = 0; i < annotations.length; i++) {
+					annotationNames[i] = annotations[i].annotationType().getName();
+				}
+			} catch (Throwable t) {
+				/* No Op */
+			}
+			index(clazz.getName(), superClass==null ? null : superClass.getName(), ifaceNames, annotationNames, clazz.getClassLoader(), true);
+		} catch (Throwable t) {
+			log.debug("Failed to index loaded class [{}]: {}", clazz.getName(), t.toString());
+		}
+	}
+
+	/**
+	 * Indexes a type
+	 * @param name The type name
+	 * @param superName The super class name, null if the type has none
+	 * @param ifaceNames The names of the directly implemented interfaces
+	 * @param annotationNames The names of the runtime visible class annotations
+	 * @param classLoader The class loader the type was loaded in
+	 * @param loaded true if the type was loaded in this run, false if it was read from the persisted index
+	 */
+	protected void index(final String name, final String superName, final String[] ifaceNames, final String[] annotationNames, final ClassLoader classLoader, final boolean loaded) {
+		TypeEntry entry = types.get(name);
+		// a type loaded in this run supersedes its persisted header
+		if(entry==null || (loaded && !entry.loaded)) {
+			final TypeEntry current = new TypeEntry(name, superName, ifaceNames, annotationNames);
+			current.loaded = loaded;
+			if(entry!=null) {
+				current.bootstrap = entry.bootstrap;
+				current.loaders.addAll(entry.loaders);
+				unlink(entry, current);
+			}
+			types.put(name, current);
+			if(superName!=null) link(subTypes, superName, name);
+			for(String iface: ifaceNames) {
+				link(subTypes, iface, name);
+			}
+			for(String ann: annotationNames) {
+				link(annotated, ann, name);
+			}
+			entry = current;
+		}
+		if(loaded) {
+			if(classLoader==null) {
+				entry.bootstrap = true;
+			} else {
+				entry.addLoader(classLoader);
+			}
+		}
+	}
+
+	/**
+	 * Removes the links of a superseded type header that its current header does not have
+	 * @param superseded The superseded header
+	 * @param current The current header
+	 */
+	private void unlink(final TypeEntry superseded, final TypeEntry current) {
+		if(superseded.superName!=null && !superseded.superName.equals(current.superName)) {
+			unlink(subTypes, superseded.superName, superseded.name);
+		}
+		for(String iface: superseded.ifaceNames) {
+			if(!contains(current.ifaceNames, iface)) unlink(subTypes, iface, superseded.name);
+		}
+		for(String ann: superseded.annotationNames) {
+			if(!contains(current.annotationNames, ann)) unlink(annotated, ann, superseded.name);
+		}
+	}
+
+	/**
+	 * Removes a name from the set keyed by the passed key
+	 * @param map The map of sets
+	 * @param key The key
+	 * @param name The name to remove
+	 */
+	private static void unlink(final Map<String, Set<String>> map, final String key, final String name) {
+		final Set<String> names = map.get(key);
+		if(names!=null) names.remove(name);
+	}
+
+	/**
+	 * Determines if the passed names contain the passed name
+	 * @param names The names
+	 * @param name The name
+	 * @return true if found, false otherwise
+	 */
+	private static boolean contains(final String[] names, final String name) {
+		for(String n: names) {
+			if(n.equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a name to the set keyed by the passed key
+	 * @param map The map of sets
+	 * @param key The key
+	 * @param name The name to add
+	 */
+	private static void link(final Map<String, Set<String>> map, final String key, final String name) {
+		Set<String> names = map.get(key);
+		if(names==null) {
+			names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			final Set<String> prior = ((ConcurrentHashMap<String, Set<String>>)map).putIfAbsent(key, names);
+			if(prior!=null) names = prior;
+		}
+		names.add(name);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.instrument.ClassFileTransformer#transform(java.lang.ClassLoader, java.lang.String, java.lang.Class, java.security.ProtectionDomain, byte[])
+	 */
+	@Override
+	public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+			final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+		if(classBeingRedefined!=null || classfileBuffer==null) return null;
+		try {
+			final ClassHeader header = ClassHeader.read(classfileBuffer);
+			index(header.name, header.superName, header.ifaceNames, header.annotationNames, loader, true);
+		} catch (Throwable t) {
+			log.debug("Failed to index class [{}]: {}", className, t.toString());
+		}
+		return null;
+	}
+
+	/**
+	 * Loads the persisted index
+	 */
+	protected void load() {
+		if(indexFile==null || !indexFile.canRead()) return;
+		BufferedReader reader = null;
+		int cnt = 0;
+		try {
+			reader = new BufferedReader(new FileReader(indexFile));
+			String line = null;
+			while((line = reader.readLine())!=null) {
+				final String[] fields = DELIM_SPLITTER.split(line, -1);
+				if(fields.length!=4 || fields[0].isEmpty()) continue;
+				index(fields[0], fields[1].isEmpty() ? null : fields[1], names(fields[2]), names(fields[3]), null, false);
+				cnt++;
+			}
+			log.info("Loaded [{}] persisted types from [{}]", cnt, indexFile);
+		} catch (Exception ex) {
+			log.warn("Failed to load persisted type index from [{}]: {}", indexFile, ex.toString());
+		} finally {
+			if(reader!=null) try { reader.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Saves the index to the persisted index file, if persistence is enabled
+	 */
+	public void save() {
+		if(indexFile==null) return;
+		final File tmp = new File(indexFile.getAbsolutePath() + ".tmp");
+		BufferedWriter writer = null;
+		try {
+			indexFile.getParentFile().mkdirs();
+			writer = new BufferedWriter(new FileWriter(tmp));
+			for(TypeEntry entry: types.values()) {
+				writer.write(entry.name);
+				writer.write(DELIM);
+				if(entry.superName!=null) writer.write(entry.superName);
+				writer.write(DELIM);
+				writer.write(join(entry.ifaceNames));
+				writer.write(DELIM);
+				writer.write(join(entry.annotationNames));
+				writer.newLine();
+			}
+			writer.close();
+			writer = null;
+			if(indexFile.exists() && !indexFile.delete()) {
+				log.warn("Failed to replace persisted type index [{}]", indexFile);
+				return;
+			}
+			if(!tmp.renameTo(indexFile)) {
+				log.warn("Failed to rename persisted type index [{}] to [{}]", tmp, indexFile);
+			}
+		} catch (Exception ex) {
+			log.warn("Failed to save type index to [{}]: {}", indexFile, ex.toString());
+		} finally {
+			if(writer!=null) try { writer.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Splits a persisted comma separated name list
+	 * @param names The persisted names
+	 * @return the names
+	 */
+	private static String[] names(final String names) {
+		return names.isEmpty() ? EMPTY : COMMA_SPLITTER.split(names);
+	}
+
+	/**
+	 * Joins names into a comma separated name list
+	 * @param names The names
+	 * @return the joined names
+	 */
+	private static String join(final String[] names) {
+		if(names.length==0) return "";
+		final StringBuilder b = new StringBuilder();
+		for(String name: names) {
+			if(b.length()>0) b.append(",");
+			b.append(name);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Returns the number of indexed types
+	 * @return the number of indexed types
+	 */
+	public int size() {
+		return types.size();
+	}
+
+	/**
+	 * <p>Title: TypeEntry</p>
+	 * <p>Description: The indexed header of a type</p>
+	 */
+	private static class TypeEntry {
+		/** The type name */
+		final String name;
+		/** The super class name, null if the type has none */
+		final String superName;
+		/** The names of the directly implemented interfaces */
+		final String[] ifaceNames;
+		/** The names of the runtime visible class annotations */
+		final String[] annotationNames;
+		/** The class loaders the type has been loaded in */
+		final List<WeakReference<ClassLoader>> loaders = new CopyOnWriteArrayList<WeakReference<ClassLoader>>();
+		/** Indicates if the type has been loaded in the bootstrap class loader */
+		volatile boolean bootstrap = false;
+		/** Indicates if the type has been loaded in this run */
+		volatile boolean loaded = false;
+
+		/**
+		 * Creates a new TypeEntry
+		 * @param name The type name
+		 * @param superName The super class name, null if the type has none
+		 * @param ifaceNames The names of the directly implemented interfaces
+		 * @param annotationNames The names of the runtime visible class annotations
+		 */
+		TypeEntry(final String name, final String superName, final String[] ifaceNames, final String[] annotationNames) {
+			this.name = name;
+			this.superName = superName;
+			this.ifaceNames = ifaceNames;
+			this.annotationNames = annotationNames;
+		}
+
+		/**
+		 * Records a class loader the type has been loaded in
+		 * @param classLoader The class loader
+		 */
+		void addLoader(final ClassLoader classLoader) {
+			for(WeakReference<ClassLoader> ref: loaders) {
+				if(ref.get()==classLoader) return;
+			}
+			loaders.add(new WeakReference<ClassLoader>(classLoader));
+		}
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: WovenClassCache</p>
+ * <p>Description: A persistent, content addressed cache of instrumented class bytecode. An entry is keyed by the hash of the
+ * original class bytes, the sources of the scripts instrumenting the class and the agent version, so any change to one of them
+ * misses the cache. Alongside the bytecode, an entry records the metric and site switch slot of each instrumented member so the compiler can
+ * re-register the metrics, interceptors and switches the bytecode refers to without weaving the class again.</p>
+ * <p>Entries are touched when read, and the cache is pruned at startup of the entries unused for longer than {@link Constants#PROP_WOVEN_CACHE_AGE},
+ * then of the least recently used entries until it fits in {@link Constants#PROP_WOVEN_CACHE_SIZE}, since superseded keys are never read again.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.WovenClassCache</code></p>
+ */
+
+public class WovenClassCache {
+	/** The cache entry file extension */
+	public static final String EXTENSION = ".woven";
+	/** The cache entry format version */
+	private static final int FORMAT_VERSION = 2;
+	/** The key hash charset */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** Hex digits */
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The cache directory */
+	private final File cacheDir;
+	/** The agent version folded into every key */
+	private final String agentVersion;
+
+	/**
+	 * Creates a new WovenClassCache
+	 * @param cacheDir The cache directory
+	 */
+	public WovenClassCache(final File cacheDir) {
+		this.cacheDir = cacheDir;
+		agentVersion = agentVersion();
+		log.info("Woven class cache directory: {}, agent version: {}", cacheDir, agentVersion);
+		prune(ConfigurationReader.confLong(Constants.PROP_WOVEN_CACHE_SIZE, Constants.DEFAULT_WOVEN_CACHE_SIZE),
+				ConfigurationReader.confLong(Constants.PROP_WOVEN_CACHE_AGE, Constants.DEFAULT_WOVEN_CACHE_AGE));
+	}
+
+	/**
+	 * Deletes the entries unused for longer than the passed age, then the least recently used entries until the cache fits in the passed size
+	 * @param maxSize The maximum total size of the entries in bytes
+	 * @param maxAge The maximum age of an entry since its last use in ms.
+	 */
+	protected void prune(final long maxSize, final long maxAge) {
+		final File[] files = cacheDir.listFiles();
+		if(files==null) return;
+		final List<File> entries = new ArrayList<File>(files.length);
+		final long now = System.currentTimeMillis();
+		long size = 0L;
+		int pruned = 0;
+		for(File f: files) {
+			if(!f.isFile()) continue;
+			if(now - f.lastModified() > maxAge) {
+				// also clears the temp files of interrupted writes
+				if(f.delete()) pruned++;
+				continue;
+			}
+			if(!f.getName().endsWith(EXTENSION)) continue;
+			entries.add(f);
+			size += f.length();
+		}
+		if(size > maxSize) {
+			Collections.sort(entries, new Comparator<File>() {
+				@Override
+				public int compare(final File f1, final File f2) {
+					final long m1 = f1.lastModified(), m2 = f2.lastModified();
+					return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+				}
+			});
+			for(File f: entries) {
+				if(size <= maxSize) break;
+				final long length = f.length();
+				if(f.delete()) {
+					size -= length;
+					pruned++;
+				}
+			}
+		}
+		if(pruned > 0) log.info("Pruned [{}] woven class cache entries. Cache size: {} bytes", pruned, size);
+	}
+
+	/**
+	 * Computes the agent version: the implementation version when packaged, and the hash of the instrumentation classes' bytecode,
+	 * so that a rebuilt agent does not reuse bytecode woven by a prior build with the same version
+	 * @return the agent version
+	 */
+	private static String agentVersion() {
+		final String impl = ShorthandCompiler.class.getPackage().getImplementationVersion();
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for(Class<?> clazz: new Class<?>[]{ShorthandCompiler.class, StreamingWeaver.class, SiteSwitch.class, DefaultShorthandInterceptor.class, Measurement.class}) {
+				final byte[] bytes = originalByteCode(clazz);
+				if(bytes!=null) md.update(bytes);
+			}
+			return (impl==null ? "dev" : impl) + "-" + hex(md.digest());
+		} catch (Exception ex) {
+			return impl==null ? "dev" : impl;
+		}
+	}
+
+	/**
+	 * Computes the cache key of a class instrumented by the passed scripts
+	 * @param clazz The class
+	 * @param scripts The scripts instrumenting the class
+	 * @return the key, or null if the class' original bytecode cannot be read
+	 */
+	public String key(final Class<?> clazz, final Collection<ShorthandScript> scripts) {
+		final byte[] original = originalByteCode(clazz);
+		if(original==null) return null;
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(original);
+			// script order does not change the woven bytecode
+			final TreeSet<String> sources = new TreeSet<String>();
+			for(ShorthandScript script: scripts) {
+				sources.add(script.getSource());
+			}
+			for(String source: sources) {
+				md.update((byte)0);
+				md.update(source.getBytes(UTF8));
+			}
+			md.update((byte)0);
+			md.update(agentVersion.getBytes(UTF8));
+			return hex(md.digest());
+		} catch (Exception ex) {
+			log.warn("Failed to compute the woven class cache key for [{}]: {}", clazz.getName(), ex.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the cached entry for the passed key
+	 * @param key The cache key
+	 * @return the entry, or null if not cached or unreadable
+	 */
+	public Woven get(final String key) {
+		final File f = new File(cacheDir, key + EXTENSION);
+		if(!f.canRead()) return null;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			if(dis.readInt()!=FORMAT_VERSION) return null;
+			final int siteCount = dis.readInt();
+			final List<WovenSite> sites = new ArrayList<WovenSite>(siteCount);
+			for(int i = 0; i < siteCount; i++) {
+				sites.add(new WovenSite(dis.readUTF(), dis.readUTF(), dis.readUTF(), dis.readLong(), dis.readInt(), dis.readInt(), dis.readInt()));
+			}
+			final byte[] byteCode = new byte[dis.readInt()];
+			dis.readFully(byteCode);
+			// marks the entry as recently used for pruning
+			f.setLastModified(System.currentTimeMillis());
+			return new Woven(byteCode, sites);
+		} catch (Exception ex) {
+			log.warn("Discarding unreadable woven class cache entry [{}]: {}", f, ex.toString());
+			f.delete();
+			return null;
+		} finally {
+			if(dis!=null) try { dis.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Caches an entry
+	 * @param key The cache key
+	 * @param woven The entry
+	 */
+	public void put(final String key, final Woven woven) {
+		final File f = new File(cacheDir, key + EXTENSION);
+		final File tmp = new File(cacheDir, key + EXTENSION + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			cacheDir.mkdirs();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeInt(woven.sites.size());
+			for(WovenSite site: woven.sites) {
+				dos.writeUTF(site.memberName);
+				dos.writeUTF(site.descriptor);
+				dos.writeUTF(site.metricName);
+				dos.writeLong(site.metricId);
+				dos.writeInt(site.measurementBitMask);
+				dos.writeInt(site.instrumentationMask);
+				dos.writeInt(site.switchSlot);
+			}
+			dos.writeInt(woven.byteCode.length);
+			dos.write(woven.byteCode);
+			dos.close();
+			dos = null;
+			if(!tmp.renameTo(f)) {
+				f.delete();
+				if(!tmp.renameTo(f)) log.warn("Failed to write woven class cache entry [{}]", f);
+			}
+		} catch (Exception ex) {
+			log.warn("Failed to write woven class cache entry [{}]: {}", f, ex.toString());
+		} finally {
+			if(dos!=null) try { dos.close(); } catch (Exception x) {/* No Op */}
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Reads the original bytecode of the passed class from its class loader's resources
+	 * @param clazz The class
+	 * @return the bytecode, or null if it cannot be read
+	 */
+	static byte[] originalByteCode(final Class<?> clazz) {
+		final String resource = clazz.getName().replace('.', '/') + ".class";
+		final ClassLoader classLoader = clazz.getClassLoader();
+		InputStream is = null;
+		try {
+			is = classLoader==null ? ClassLoader.getSystemResourceAsStream(resource) : classLoader.getResourceAsStream(resource);
+			if(is==null) return null;
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+			final byte[] buff = new byte[4096];
+			int read = -1;
+			while((read = is.read(buff))!=-1) {
+				baos.write(buff, 0, read);
+			}
+			return baos.toByteArray();
+		} catch (Exception ex) {
+			return null;
+		} finally {
+			if(is!=null) try { is.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+	/**
+	 * Renders the passed bytes as hex
+	 * @param bytes The bytes
+	 * @return the hex string
+	 */
+	private static String hex(final byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			chars[i*2] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[i*2+1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * <p>Title: Woven</p>
+	 * <p>Description: A cached instrumented class</p>
+	 */
+	public static class Woven {
+		/** The instrumented bytecode */
+		final byte[] byteCode;
+		/** The instrumented members' metrics */
+		final List<WovenSite> sites;
+
+		/**
+		 * Creates a new Woven
+		 * @param byteCode The instrumented bytecode
+		 * @param sites The instrumented members' metrics
+		 */
+		public Woven(final byte[] byteCode, final List<WovenSite> sites) {
+			this.byteCode = byteCode;
+			this.sites = sites;
+		}
+	}
+
+	/**
+	 * <p>Title: WovenSite</p>
+	 * <p>Description: The metric and site switch of an instrumented member of a cached instrumented class</p>
+	 */
+	public static class WovenSite {
+		/** The member name */
+		final String memberName;
+		/** The member descriptor */
+		final String descriptor;
+		/** The metric name */
+		final String metricName;
+		/** The metric id woven into the bytecode */
+		final long metricId;
+		/** The enabled measurement mask */
+		final int measurementBitMask;
+		/** The instrumentation mask */
+		final int instrumentationMask;
+		/** The site switch slot woven into the bytecode */
+		final int switchSlot;
+
+		/**
+		 * Creates a new WovenSite
+		 * @param memberName The member name
+		 * @param descriptor The member descriptor
+		 * @param metricName The metric name
+		 * @param metricId The metric id woven into the bytecode
+		 * @param measurementBitMask The enabled measurement mask
+		 * @param instrumentationMask The instrumentation mask
+		 * @param switchSlot The site switch slot woven into the bytecode
+		 */
+		public WovenSite(final String memberName, final String descriptor, final String metricName, final long metricId, final int measurementBitMask, final int instrumentationMask, final int switchSlot) {
+			this.memberName = memberName;
+			this.descriptor = descriptor;
+			this.metricName = metricName;
+			this.metricId = metricId;
+			this.measurementBitMask = measurementBitMask;
+			this.instrumentationMask = instrumentationMask;
+			this.switchSlot = switchSlot;
+		}
+	}
+}
@@ -240,7 +240,7 @@ public class Extractors {
 				if(argType.isPrimitive()) {
 					extract = String.format("(\"\" + $%s)", index);
 				} else {
-					extract = String.format("ShorthandStaticInterceptor.nvl($%s)", index, index );
+					extract = String.format("String.valueOf($%s)", index);
 				}
 				
 				
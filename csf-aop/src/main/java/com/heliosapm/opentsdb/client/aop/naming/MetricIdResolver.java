@@ -0,0 +1,410 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.aop.naming;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.heliosapm.opentsdb.client.aop.DefaultShorthandInterceptor;
+import com.heliosapm.opentsdb.client.aop.OverheadGuard;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
+import com.heliosapm.utils.lang.StringHelper;
+
+/**
+ * <p>Title: MetricIdResolver</p>
+ * <p>Description: Resolves the metric ID of an instrumented call site whose metric name depends on runtime values
+ * ({@link MetricNamingToken#$THIS}, {@link MetricNamingToken#$ARG} or {@link MetricNamingToken#$JAVA}).
+ * The call site passes the extracted values and gets back the ID of the metric they name from a small lock-free table,
+ * so a repeated value costs a hash probe rather than a metric name build and cache lookup.</p>
+ * <p>The table is bounded at {@link Constants#PROP_NAMING_CACHE_SIZE} distinct values. Once full, new values resolve to the call site's
+ * "other" metric, whose runtime name parts are all <b><code>other</code></b>, so runtime naming cannot grow the metric cardinality without bound.</p>
+ * <p>Re-instrumenting a call site reuses its resolver and slot. A resolver only holds its class and site weakly, and its slot is reused
+ * once the call site is restored to its original bytecode or its class is collected.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.aop.naming.MetricIdResolver</code></p>
+ */
+
+public class MetricIdResolver {
+	/** The maximum number of distinct values resolved per call site */
+	public static final int CACHE_SIZE = Math.max(1, ConfigurationReader.confInt(Constants.PROP_NAMING_CACHE_SIZE, Constants.DEFAULT_NAMING_CACHE_SIZE));
+	/** The runtime name part of the overflow metric */
+	public static final String OTHER = "other";
+	/** The separator of the values in a multi value key */
+	private static final char KEY_SEPARATOR = '\u0001';
+
+	/** The registered resolvers, indexed by slot */
+	private static volatile MetricIdResolver[] resolvers = new MetricIdResolver[0];
+	/** The registered slots keyed by resolver key, within a map keyed by the weakly held target class */
+	private static final Map<Class<?>, Map<String, Integer>> slots = new WeakHashMap<Class<?>, Map<String, Integer>>();
+
+	/** The metric name format, with a <b><code>%s</code></b> for each runtime value */
+	private final String nameFormat;
+	/** The javassist source expressions extracting the runtime values at the call site */
+	private final String[] valueExpressions;
+	/** The enabled measurement mask of the resolved metrics */
+	private final int measurementMask;
+	/** The instrumentation mask the resolved metrics' interceptors are installed with */
+	private final int instrumentationMask;
+	/** The resolved metric IDs, open addressed by value key */
+	private final AtomicReferenceArray<Entry> table;
+	/** The table index mask */
+	private final int indexMask;
+	/** The number of resolved values */
+	private final AtomicInteger size = new AtomicInteger(0);
+	/** The number of resolutions that overflowed to the "other" metric */
+	private final AtomicInteger overflows = new AtomicInteger(0);
+	/** The ID of the "other" metric */
+	private final long otherId;
+	/** This resolver's registry key */
+	private final String key;
+	/** The instrumented class */
+	private final WeakReference<Class<?>> targetClass;
+	/** This resolver's registry slot */
+	private int slot;
+	/** Set once the call site is restored. Guarded by the slots lock. */
+	private boolean released = false;
+	/** The instrumentation site the resolved metrics' overhead is attributed to, null if not watched.
+	 * Held weakly, as a watched site is held by the {@link OverheadGuard} */
+	private volatile WeakReference<OverheadGuard.Site> site;
+
+	/**
+	 * Returns the resolver of an instrumented call site, registering a new one unless the call site was resolved before with the same name format and masks
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @param nameFormat The metric name format, with a <b><code>%s</code></b> for each runtime value
+	 * @param valueExpressions The javassist source expressions extracting the runtime values at the call site
+	 * @param measurementMask The enabled measurement mask of the resolved metrics
+	 * @param instrumentationMask The instrumentation mask the resolved metrics' interceptors are installed with
+	 * @param site The instrumentation site the resolved metrics' overhead is attributed to, null if not watched
+	 * @return the resolver
+	 */
+	public static MetricIdResolver getInstance(final Class<?> clazz, final Member member, final String nameFormat, final String[] valueExpressions, final int measurementMask, final int instrumentationMask, final OverheadGuard.Site site) {
+		if(clazz==null) throw new IllegalArgumentException("The passed class was null");
+		if(member==null) throw new IllegalArgumentException("The passed member was null");
+		final String key = member.getName() + StringHelper.getMemberDescriptor(member) + KEY_SEPARATOR + measurementMask + KEY_SEPARATOR + instrumentationMask
+				+ KEY_SEPARATOR + nameFormat + KEY_SEPARATOR + (valueExpressions==null ? "" : Arrays.toString(valueExpressions));
+		synchronized(slots) {
+			final Integer slot = slotsOf(clazz, false).get(key);
+			if(slot!=null) {
+				final MetricIdResolver resolver = resolvers[slot];
+				resolver.released = false;
+				resolver.rewatch(site);
+				return resolver;
+			}
+		}
+		final MetricIdResolver resolver = new MetricIdResolver(clazz, key, nameFormat, valueExpressions, measurementMask, instrumentationMask, site);
+		synchronized(slots) {
+			final Integer slot = slotsOf(clazz, false).get(key);
+			// registered concurrently: its metrics are the same
+			if(slot!=null) return resolvers[slot];
+			register(resolver);
+			slotsOf(clazz, true).put(key, resolver.slot);
+		}
+		return resolver;
+	}
+
+	/**
+	 * Releases the resolvers of an instrumented member, once the member is restored to its original bytecode, so their slots can be reused
+	 * @param clazz The instrumented class
+	 * @param member The instrumented member
+	 * @return the number of released resolvers
+	 */
+	public static int release(final Class<?> clazz, final Member member) {
+		final String prefix = member.getName() + StringHelper.getMemberDescriptor(member) + KEY_SEPARATOR;
+		int released = 0;
+		synchronized(slots) {
+			for(Map.Entry<String, Integer> entry: slotsOf(clazz, false).entrySet()) {
+				if(!entry.getKey().startsWith(prefix)) continue;
+				final MetricIdResolver resolver = resolvers[entry.getValue()];
+				if(!resolver.released) {
+					resolver.released = true;
+					resolver.site = null;
+					released++;
+				}
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Returns the registered slots of the resolvers of the passed class. Must be called holding the slots lock.
+	 * @param clazz The instrumented class
+	 * @param create true to create the map if the class has no registered resolver
+	 * @return the registered slots keyed by resolver key, empty and immutable if the class has no registered resolver and create is false
+	 */
+	private static Map<String, Integer> slotsOf(final Class<?> clazz, final boolean create) {
+		Map<String, Integer> classSlots = slots.get(clazz);
+		if(classSlots==null) {
+			if(!create) return Collections.emptyMap();
+			classSlots = new HashMap<String, Integer>();
+			slots.put(clazz, classSlots);
+		}
+		return classSlots;
+	}
+
+	/**
+	 * Creates a new MetricIdResolver
+	 * @param clazz The instrumented class
+	 * @param key The resolver's registry key
+	 * @param nameFormat The metric name format, with a <b><code>%s</code></b> for each runtime value
+	 * @param valueExpressions The javassist source expressions extracting the runtime values at the call site
+	 * @param measurementMask The enabled measurement mask of the resolved metrics
+	 * @param instrumentationMask The instrumentation mask the resolved metrics' interceptors are installed with
+	 * @param site The instrumentation site the resolved metrics' overhead is attributed to, null if not watched
+	 */
+	private MetricIdResolver(final Class<?> clazz, final String key, final String nameFormat, final String[] valueExpressions, final int measurementMask, final int instrumentationMask, final OverheadGuard.Site site) {
+		if(nameFormat==null || nameFormat.trim().isEmpty()) throw new IllegalArgumentException("The passed name format was null or empty");
+		if(valueExpressions==null || valueExpressions.length==0) throw new IllegalArgumentException("The passed value expressions were null or empty");
+		this.nameFormat = nameFormat;
+		this.valueExpressions = valueExpressions.clone();
+		this.measurementMask = measurementMask;
+		this.instrumentationMask = instrumentationMask;
+		this.key = key;
+		targetClass = new WeakReference<Class<?>>(clazz);
+		this.site = site==null ? null : new WeakReference<OverheadGuard.Site>(site);
+		table = new AtomicReferenceArray<Entry>(Integer.highestOneBit(CACHE_SIZE) << 2);
+		indexMask = table.length() - 1;
+		final String[] other = new String[valueExpressions.length];
+		Arrays.fill(other, OTHER);
+		otherId = install(other);
+	}
+
+	/**
+	 * Registers a resolver in a free slot, growing the registry if none is free. Must be called holding the slots lock.
+	 * @param resolver The resolver to register
+	 */
+	private static void register(final MetricIdResolver resolver) {
+		final MetricIdResolver[] current = resolvers;
+		int slot = -1;
+		for(int i = 0; i < current.length; i++) {
+			if(isFree(current[i])) {
+				slot = i;
+				break;
+			}
+		}
+		final MetricIdResolver[] tmp;
+		if(slot==-1) {
+			slot = current.length;
+			tmp = new MetricIdResolver[slot + 1];
+			System.arraycopy(current, 0, tmp, 0, slot);
+		} else {
+			tmp = current.clone();
+		}
+		resolver.slot = slot;
+		tmp[slot] = resolver;
+		resolvers = tmp;
+	}
+
+	/**
+	 * Indicates if the passed resolver's slot is free, unregistering the resolver if it was released or its class has been collected.
+	 * Must be called holding the slots lock.
+	 * @param resolver The resolver registered in the slot
+	 * @return true if free, false if in use
+	 */
+	private static boolean isFree(final MetricIdResolver resolver) {
+		final Class<?> clazz = resolver.targetClass.get();
+		if(clazz!=null && !resolver.released) return false;
+		if(clazz!=null) {
+			final Map<String, Integer> classSlots = slots.get(clazz);
+			if(classSlots!=null) {
+				classSlots.remove(resolver.key);
+				if(classSlots.isEmpty()) slots.remove(clazz);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Attributes the resolved metrics' overhead to the passed site, when the call site is re-instrumented
+	 * @param site The instrumentation site, null if not watched
+	 */
+	private void rewatch(final OverheadGuard.Site site) {
+		this.site = site==null ? null : new WeakReference<OverheadGuard.Site>(site);
+		if(site==null) return;
+		final OverheadGuard guard = OverheadGuard.getInstance();
+		guard.watch(otherId, instrumentationMask, site);
+		for(int i = 0; i < table.length(); i++) {
+			final Entry e = table.get(i);
+			if(e!=null) guard.watch(e.id, instrumentationMask, site);
+		}
+	}
+
+	/**
+	 * Returns the resolver registered in the passed slot. Called by instrumented code.
+	 * @param slot The resolver slot
+	 * @return the resolver
+	 */
+	public static MetricIdResolver get(final int slot) {
+		return resolvers[slot];
+	}
+
+	/**
+	 * Resolves the metric ID for a single runtime value
+	 * @param value The runtime value
+	 * @return the metric ID
+	 */
+	public long resolve(final Object value) {
+		final String key = String.valueOf(value);
+		return resolve(key, null);
+	}
+
+	/**
+	 * Resolves the metric ID for the passed runtime values
+	 * @param values The runtime values, in name format order
+	 * @return the metric ID
+	 */
+	public long resolve(final Object[] values) {
+		if(values.length==1) return resolve(values[0]);
+		final String[] parts = new String[values.length];
+		final StringBuilder b = new StringBuilder();
+		for(int i = 0; i < values.length; i++) {
+			parts[i] = String.valueOf(values[i]);
+			if(i>0) b.append(KEY_SEPARATOR);
+			b.append(parts[i]);
+		}
+		return resolve(b.toString(), parts);
+	}
+
+	/**
+	 * Resolves the metric ID for the passed value key
+	 * @param key The value key
+	 * @param parts The runtime name parts, or null if the key is the single part
+	 * @return the metric ID
+	 */
+	private long resolve(final String key, final String[] parts) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		int index = h & indexMask;
+		while(true) {
+			final Entry e = table.get(index);
+			if(e==null) {
+				if(size.get() >= CACHE_SIZE) {
+					overflows.incrementAndGet();
+					return otherId;
+				}
+				if(size.incrementAndGet() > CACHE_SIZE) {
+					size.decrementAndGet();
+					overflows.incrementAndGet();
+					return otherId;
+				}
+				final Entry entry = new Entry(key, install(parts==null ? new String[]{key} : parts));
+				if(table.compareAndSet(index, null, entry)) return entry.id;
+				// lost the slot to another value: give back the reservation and re-probe this slot
+				size.decrementAndGet();
+				continue;
+			}
+			if(e.key.equals(key)) return e.id;
+			index = (index + 1) & indexMask;
+		}
+	}
+
+	/**
+	 * Builds the metric named by the passed runtime name parts and installs its interceptor
+	 * @param parts The runtime name parts
+	 * @return the metric ID
+	 */
+	private long install(final String[] parts) {
+		final String metricName = String.format(nameFormat, (Object[])parts);
+		final long metricId = MetricBuilder.metric(metricName).measurement(measurementMask).subMetric(measurementMask).optBuild().longHashCode();
+		DefaultShorthandInterceptor.install(metricId, instrumentationMask);
+		final WeakReference<OverheadGuard.Site> siteRef = site;
+		final OverheadGuard.Site watched = siteRef==null ? null : siteRef.get();
+		if(watched!=null) OverheadGuard.getInstance().watch(metricId, instrumentationMask, watched);
+		return metricId;
+	}
+
+	/**
+	 * Returns the javassist source resolving the metric ID at the call site
+	 * @return the call site source
+	 */
+	public String getCallSiteSource() {
+		final StringBuilder b = new StringBuilder(MetricIdResolver.class.getName()).append(".get(").append(slot).append(").resolve(");
+		if(valueExpressions.length==1) {
+			b.append("($w)(").append(valueExpressions[0]).append(")");
+		} else {
+			b.append("new Object[]{");
+			for(int i = 0; i < valueExpressions.length; i++) {
+				if(i>0) b.append(",");
+				b.append("($w)(").append(valueExpressions[i]).append(")");
+			}
+			b.append("}");
+		}
+		return b.append(")").toString();
+	}
+
+	/**
+	 * Returns the metric name format
+	 * @return the metric name format
+	 */
+	public String getNameFormat() {
+		return nameFormat;
+	}
+
+	/**
+	 * Returns the number of distinct values resolved to their own metric
+	 * @return the number of resolved values
+	 */
+	public int getSize() {
+		return Math.min(size.get(), CACHE_SIZE);
+	}
+
+	/**
+	 * Returns the number of resolutions that overflowed to the "other" metric
+	 * @return the overflow count
+	 */
+	public int getOverflows() {
+		return overflows.get();
+	}
+
+	/**
+	 * Returns the ID of the "other" metric
+	 * @return the "other" metric ID
+	 */
+	public long getOtherId() {
+		return otherId;
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: A resolved value key and metric ID</p>
+	 */
+	private static class Entry {
+		/** The value key */
+		final String key;
+		/** The metric ID */
+		final long id;
+
+		/**
+		 * Creates a new Entry
+		 * @param key The value key
+		 * @param id The metric ID
+		 */
+		Entry(final String key, final long id) {
+			this.key = key;
+			this.id = id;
+		}
+	}
+}
@@ -36,6 +36,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
+import com.heliosapm.opentsdb.client.aop.OverheadGuard;
 
 /**
  * <p>Title: MetricNameCompiler</p>
@@ -160,6 +161,35 @@ public class MetricNameCompiler {
 		
 	}
 	
+	/**
+	 * Compiles a per-call-site metric ID resolver for a metric name expression containing runtime tokens.
+	 * The resolver's {@link MetricIdResolver#getCallSiteSource()} is injected at the call site in place of a constant metric ID.
+	 * @param clazz The target class
+	 * @param member The target method or constructor (fields not supported)
+	 * @param metricNameExpression The metric name expression
+	 * @param measurementMask The enabled measurement mask of the resolved metrics
+	 * @param instrumentationMask The instrumentation mask the resolved metrics' interceptors are installed with
+	 * @param site The instrumentation site the resolved metrics' overhead is attributed to, null if not watched
+	 * @return the resolver
+	 */
+	public static MetricIdResolver getMetricIdResolver(final Class<?> clazz, final Member member, final String metricNameExpression, final int measurementMask, final int instrumentationMask, final OverheadGuard.Site site) {
+		if(!MetricNamingToken.hasRuntimeTokens(metricNameExpression)) throw new IllegalArgumentException("The expression [" + metricNameExpression + "] has no runtime tokens");
+		final List<String> valueExpressions = new ArrayList<String>();
+		final StringBuffer b = new StringBuffer();
+		final Matcher matcher = MetricNamingToken.ALL_PATTERNS.matcher(metricNameExpression);
+		while(matcher.find()) {
+			final String matchedPattern = matcher.group(0);
+			final MetricNamingToken token = MetricNamingToken.matchToken(matchedPattern);
+			final String[] replacers = token.extractor.getStringReplacement(matchedPattern, clazz, member);
+			matcher.appendReplacement(b, replacers[0]);
+			if(token.runtime) {
+				valueExpressions.add(replacers[1]);
+			}
+		}
+		matcher.appendTail(b);
+		return MetricIdResolver.getInstance(clazz, member, b.toString(), valueExpressions.toArray(new String[valueExpressions.size()]), measurementMask, instrumentationMask, site);
+	}
+	
 	/**
 	 * Attempts to locate the MetricNameProvider for the passed class, method and expression
 	 * @param clazz The target class
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.heliosapm.shorthand;
+
+import java.lang.reflect.Method;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import test.com.heliosapm.base.BaseTest;
+import test.com.heliosapm.shorthand.testclasses.WeaveFixture;
+
+import com.heliosapm.opentsdb.client.aop.naming.MetricIdResolver;
+import com.heliosapm.opentsdb.client.aop.naming.MetricNameCompiler;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: MetricIdResolverTestCase</p>
+ * <p>Description: Test cases for reusing the metric id resolvers of re-instrumented call sites and releasing their slots</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.shorthand.MetricIdResolverTestCase</code></p>
+ */
+@SuppressWarnings("static-method")
+public class MetricIdResolverTestCase extends BaseTest {
+	/** The measurement mask of the resolved metrics */
+	static final int MASK = Measurement.getMaskFor(Measurement.ELAPSED);
+	/** Extracts the slot from a resolver's call site source */
+	static final Pattern SLOT = Pattern.compile("\\.get\\((\\d+)\\)");
+
+	/**
+	 * Tests that re-instrumenting a call site reuses its resolver, and that a released resolver's slot is reused by another call site
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReuseAndRelease() throws Exception {
+		final Method loop = WeaveFixture.class.getDeclaredMethod("loop", int.class);
+		final Method branchy = WeaveFixture.class.getDeclaredMethod("branchy", Object.class);
+		final String template = "test.resolver.loop.${arg[0]}";
+		final MetricIdResolver first = MetricNameCompiler.getMetricIdResolver(WeaveFixture.class, loop, template, MASK, MASK, null);
+		MetricIdResolver second = null;
+		try {
+			assertSame("Resolver not reused", first, MetricNameCompiler.getMetricIdResolver(WeaveFixture.class, loop, template, MASK, MASK, null));
+			assertNotSame("Resolver shared by another template", first, MetricNameCompiler.getMetricIdResolver(WeaveFixture.class, loop, template + ".x", MASK, MASK, null));
+			final long metricId = first.resolve(Integer.valueOf(1));
+			assertEquals("Released resolvers", 2, MetricIdResolver.release(WeaveFixture.class, loop));
+			assertEquals("Released twice", 0, MetricIdResolver.release(WeaveFixture.class, loop));
+			// re-instrumented before its slot is reused
+			assertSame("Released resolver not revived", first, MetricNameCompiler.getMetricIdResolver(WeaveFixture.class, loop, template, MASK, MASK, null));
+			assertSame("Revived resolver not registered", first, MetricIdResolver.get(slot(first)));
+			assertEquals("Resolved metric changed", metricId, first.resolve(Integer.valueOf(1)));
+			assertEquals("Released resolvers", 1, MetricIdResolver.release(WeaveFixture.class, loop));
+			second = MetricNameCompiler.getMetricIdResolver(WeaveFixture.class, branchy, "test.resolver.branchy.${arg[0]}", MASK, MASK, null);
+			assertTrue("Released slot not reused", slot(second) <= slot(first));
+			assertSame("New resolver not registered", second, MetricIdResolver.get(slot(second)));
+		} finally {
+			MetricIdResolver.release(WeaveFixture.class, loop);
+			MetricIdResolver.release(WeaveFixture.class, branchy);
+		}
+	}
+
+	/**
+	 * Returns the slot of the passed resolver
+	 * @param resolver The resolver
+	 * @return the slot
+	 */
+	static int slot(final MetricIdResolver resolver) {
+		final Matcher m = SLOT.matcher(resolver.getCallSiteSource());
+		assertTrue("No slot in call site source", m.find());
+		return Integer.parseInt(m.group(1));
+	}
+}
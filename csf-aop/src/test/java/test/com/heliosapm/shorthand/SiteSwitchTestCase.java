@@ -0,0 +1,170 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.heliosapm.shorthand;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+
+import org.junit.Test;
+
+import test.com.heliosapm.base.BaseTest;
+import test.com.heliosapm.shorthand.testclasses.WeaveFixture;
+
+import com.heliosapm.opentsdb.client.aop.ShorthandScript;
+import com.heliosapm.opentsdb.client.aop.SiteSwitch;
+
+/**
+ * <p>Title: SiteSwitchTestCase</p>
+ * <p>Description: Test cases for the site switches: switching sites with their script, starting them disabled, and binding and releasing slots</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.shorthand.SiteSwitchTestCase</code></p>
+ */
+@SuppressWarnings("static-method")
+public class SiteSwitchTestCase extends BaseTest {
+	/** The fixture class name */
+	static final String FIXTURE = WeaveFixture.class.getName();
+
+	/**
+	 * Tests that the sites bound to a script are switched on and off with the script
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testEnableDisable() throws Exception {
+		final ShorthandScript script = ShorthandScript.parse(FIXTURE + " loop 'test.switch.enable'");
+		final Method member = WeaveFixture.class.getDeclaredMethod("loop", int.class);
+		final int slot = SiteSwitch.bind(WeaveFixture.class, member, script);
+		try {
+			assertTrue("No slot bound", slot!=SiteSwitch.ALWAYS_ON);
+			assertEquals("Rebound to another slot", slot, SiteSwitch.bind(WeaveFixture.class, member, script));
+			assertEquals("Site count", 1, script.getSiteCount());
+			assertTrue("Site not started on", SiteSwitch.isEnabled(slot));
+			script.disable();
+			assertFalse("Site not switched off", SiteSwitch.isEnabled(slot));
+			assertTrue("Always on slot switched off", SiteSwitch.isEnabled(SiteSwitch.ALWAYS_ON));
+			script.enable();
+			assertTrue("Site not switched on", SiteSwitch.isEnabled(slot));
+		} finally {
+			SiteSwitch.release(WeaveFixture.class, member);
+		}
+	}
+
+	/**
+	 * Tests that the sites bound to a {@link com.heliosapm.opentsdb.client.aop.InvocationOption#START_DISABLED} script start switched off
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStartDisabled() throws Exception {
+		final ShorthandScript script = ShorthandScript.parse(FIXTURE + " branchy -s 'test.switch.disabled'");
+		assertTrue("Script not start disabled", script.isStartDisabled());
+		assertFalse("Script enabled", script.isEnabled());
+		final Method member = WeaveFixture.class.getDeclaredMethod("branchy", Object.class);
+		final int slot = SiteSwitch.bind(WeaveFixture.class, member, script);
+		try {
+			assertTrue("No slot bound", slot!=SiteSwitch.ALWAYS_ON);
+			assertFalse("Site started on", SiteSwitch.isEnabled(slot));
+			script.enable();
+			assertTrue("Site not switched on", SiteSwitch.isEnabled(slot));
+			script.disable();
+			assertFalse("Site not switched off", SiteSwitch.isEnabled(slot));
+		} finally {
+			SiteSwitch.release(WeaveFixture.class, member);
+		}
+	}
+
+	/**
+	 * Tests that a member's site moves to the script last binding it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRebindOwner() throws Exception {
+		final ShorthandScript first = ShorthandScript.parse(FIXTURE + " widen 'test.switch.first'");
+		final ShorthandScript second = ShorthandScript.parse(FIXTURE + " widen -s 'test.switch.second'");
+		final Method member = WeaveFixture.class.getDeclaredMethod("widen", long.class, double.class);
+		final int slot = SiteSwitch.bind(WeaveFixture.class, member, first);
+		try {
+			assertTrue("Site not started on", SiteSwitch.isEnabled(slot));
+			assertEquals("Rebound to another slot", slot, SiteSwitch.bind(WeaveFixture.class, member, second));
+			assertEquals("First script site count", 0, first.getSiteCount());
+			assertEquals("Second script site count", 1, second.getSiteCount());
+			assertFalse("Site not switched to the second script's state", SiteSwitch.isEnabled(slot));
+			second.enable();
+			assertTrue("Site not switched on", SiteSwitch.isEnabled(slot));
+			first.disable();
+			assertTrue("Site switched off by its former script", SiteSwitch.isEnabled(slot));
+		} finally {
+			SiteSwitch.release(WeaveFixture.class, member);
+		}
+	}
+
+	/**
+	 * Tests that the same member of classes of the same name defined by different class loaders are bound to different slots,
+	 * and that released slots are unbound from their script and can be bound again
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBindRelease() throws Exception {
+		final ShorthandScript script = ShorthandScript.parse(FIXTURE + " recurse 'test.switch.release'");
+		final Class<?> reloaded = StreamingWeaverTestCase.load(byteCode(WeaveFixture.class)).getClass();
+		assertNotSame("Fixture not reloaded", WeaveFixture.class, reloaded);
+		final Method member = WeaveFixture.class.getDeclaredMethod("recurse", int.class, boolean.class);
+		final Method reloadedMember = reloaded.getDeclaredMethod("recurse", int.class, boolean.class);
+		final int bound = SiteSwitch.getBoundCount();
+		final int slot = SiteSwitch.bind(WeaveFixture.class, member, script);
+		final int reloadedSlot = SiteSwitch.bind(reloaded, reloadedMember, script);
+		try {
+			assertTrue("Same slot for different class loaders", slot!=reloadedSlot);
+			assertEquals("Bound count", bound + 2, SiteSwitch.getBoundCount());
+			assertEquals("Slot", slot, SiteSwitch.getSlot(WeaveFixture.class, member));
+			assertEquals("Reloaded slot", reloadedSlot, SiteSwitch.getSlot(reloaded, reloadedMember));
+			assertEquals("Site count", 2, script.getSiteCount());
+		} finally {
+			assertTrue("Slot not released", SiteSwitch.release(WeaveFixture.class, member));
+			assertTrue("Reloaded slot not released", SiteSwitch.release(reloaded, reloadedMember));
+		}
+		assertFalse("Slot released twice", SiteSwitch.release(WeaveFixture.class, member));
+		assertEquals("Released slot", -1, SiteSwitch.getSlot(WeaveFixture.class, member));
+		assertEquals("Bound count", bound, SiteSwitch.getBoundCount());
+		assertEquals("Site count", 0, script.getSiteCount());
+		assertFalse("Released slot switched on", SiteSwitch.isEnabled(slot));
+		assertTrue("Released slot not bindable", SiteSwitch.isBindable(WeaveFixture.class, member, slot));
+		script.disable();
+		script.enable();
+		assertFalse("Released slot switched on by its former script", SiteSwitch.isEnabled(slot) || SiteSwitch.isEnabled(reloadedSlot));
+	}
+
+	/**
+	 * Reads the bytecode of the passed class
+	 * @param clazz The class
+	 * @return the bytecode
+	 * @throws Exception thrown on any error reading the bytecode
+	 */
+	static byte[] byteCode(final Class<?> clazz) throws Exception {
+		final InputStream is = clazz.getClassLoader().getResourceAsStream(clazz.getName().replace('.', '/') + ".class");
+		try {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final byte[] buff = new byte[4096];
+			int read = -1;
+			while((read = is.read(buff))!=-1) {
+				baos.write(buff, 0, read);
+			}
+			return baos.toByteArray();
+		} finally {
+			try { is.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.heliosapm.shorthand;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import test.com.heliosapm.base.BaseTest;
+import test.com.heliosapm.shorthand.testclasses.IWeaveFixture;
+import test.com.heliosapm.shorthand.testclasses.WeaveFixture;
+
+import com.heliosapm.opentsdb.client.aop.DefaultShorthandInterceptor;
+import com.heliosapm.opentsdb.client.aop.ShorthandCompiler;
+import com.heliosapm.opentsdb.client.aop.SiteSwitch;
+import com.heliosapm.opentsdb.client.aop.StreamingWeaver;
+import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: StreamingWeaverTestCase</p>
+ * <p>Description: Test cases for the streaming weaver, which weave a fixture with each combination of hooks and load it.
+ * The weave time and memory of the engines are compared by the csf-server <code>WeaverBenchmark</code>, and the cost of the re-entrancy guard by its <code>ReentrancyGuardBenchmark</code>.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.shorthand.StreamingWeaverTestCase</code></p>
+ */
+@SuppressWarnings("static-method")
+public class StreamingWeaverTestCase extends BaseTest {
+	/** The body hook mask */
+	static final int BODY = Measurement.getMaskFor(Measurement.ELAPSED);
+	/** The catch hook mask */
+	static final int CATCH = Measurement.getMaskFor(Measurement.ERROR);
+	/** The finally hook mask */
+	static final int FINALLY = Measurement.getMaskFor(Measurement.CONCURRENT);
+	/** The descriptors of the fixture methods to weave */
+	static final String[] METHODS = {"loop(I)I", "branchy(Ljava/lang/Object;)Ljava/lang/String;", "thrower(Ljava/lang/String;)V", "widen(JD)J", "scale(JD)J", "recurse(IZ)I"};
+
+	/**
+	 * Weaves the fixture with each combination of the body, catch and finally hooks, loads it and verifies it behaves as the unwoven fixture
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHookCombinations() throws Exception {
+		final IWeaveFixture expected = new WeaveFixture();
+		for(int combo = 1; combo < 8; combo++) {
+			final int mask = ((combo & 1)!=0 ? BODY : 0) | ((combo & 2)!=0 ? CATCH : 0) | ((combo & 4)!=0 ? FINALLY : 0);
+			final byte[] woven = ShorthandCompiler.getInstance().weave(WeaveFixture.class, hooks("combo" + combo, mask), ShorthandCompiler.WEAVER_STREAMING);
+			final IWeaveFixture fixture = load(woven);
+			assertNotSame("Fixture not reloaded", WeaveFixture.class, fixture.getClass());
+			for(int i = 0; i < 3; i++) {
+				assertEquals("loop, mask " + mask, expected.loop(20), fixture.loop(20));
+				assertEquals("branchy, mask " + mask, expected.branchy(null), fixture.branchy(null));
+				assertEquals("branchy, mask " + mask, expected.branchy("abcdef"), fixture.branchy("abcdef"));
+				assertEquals("branchy, mask " + mask, expected.branchy("ab"), fixture.branchy("ab"));
+				assertEquals("branchy, mask " + mask, expected.branchy(1), fixture.branchy(1));
+				assertEquals("widen, mask " + mask, expected.widen(3, 2.5d), fixture.widen(3, 2.5d));
+				assertEquals("recurse, mask " + mask, expected.recurse(10, false), fixture.recurse(10, false));
+				try {
+					fixture.thrower("combo" + combo);
+					fail("thrower did not throw, mask " + mask);
+				} catch (IllegalStateException ex) {
+					assertEquals("thrower, mask " + mask, "combo" + combo, ex.getMessage());
+				}
+			}
+			log("Woven and loaded mask [%s] (body:%s, catch:%s, finally:%s), [%s] bytes", mask, Measurement.hasBodyBlock(mask), Measurement.hasCatchBlock(mask), Measurement.hasFinallyBlock(mask), woven.length);
+		}
+	}
+
+	/**
+	 * Weaves the fixture with a re-entrancy guarded body hook with each engine, and verifies only the outermost frame of a recursion is measured
+	 * and the guard unwinds when the recursion throws
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReentrancyGuard() throws Exception {
+		final int mask = BODY | Measurement.REENTRANCY_GUARD_MASK;
+		for(String engine: new String[]{ShorthandCompiler.WEAVER_JAVASSIST, ShorthandCompiler.WEAVER_STREAMING}) {
+			final Map<String, StreamingWeaver.Hook> hooks = hooks("guard" + engine, mask);
+			final DefaultShorthandInterceptor interceptor = DefaultShorthandInterceptor.get(metricId("guard" + engine, mask), mask);
+			final IWeaveFixture fixture = load(ShorthandCompiler.getInstance().weave(WeaveFixture.class, hooks, engine));
+			final long start = interceptor.getMeasuredCount();
+			assertEquals("Recursion depth [" + engine + "]", 100, fixture.recurse(100, false));
+			assertEquals("Measured frames [" + engine + "]", start + 1, interceptor.getMeasuredCount());
+			try {
+				fixture.recurse(100, true);
+				fail("recurse did not throw [" + engine + "]");
+			} catch (IllegalStateException ex) {
+				assertEquals("bottom", ex.getMessage());
+			}
+			assertEquals("Measured frames after throw [" + engine + "]", start + 2, interceptor.getMeasuredCount());
+			// a guard left wound by the throw would skip this outermost frame
+			fixture.recurse(5, false);
+			assertEquals("Measured frames after unwind [" + engine + "]", start + 3, interceptor.getMeasuredCount());
+		}
+		final Map<String, StreamingWeaver.Hook> hooks = hooks("unguarded", BODY);
+		final DefaultShorthandInterceptor interceptor = DefaultShorthandInterceptor.get(metricId("unguarded", BODY), BODY);
+		final IWeaveFixture fixture = load(ShorthandCompiler.getInstance().weave(WeaveFixture.class, hooks, ShorthandCompiler.WEAVER_STREAMING));
+		final long start = interceptor.getMeasuredCount();
+		fixture.recurse(100, false);
+		assertEquals("Unguarded measured frames", start + 101, interceptor.getMeasuredCount());
+	}
+
+	/**
+	 * Builds the hooks of the fixture methods on a new metric
+	 * @param name The metric name suffix
+	 * @param mask The instrumentation mask
+	 * @return the hooks keyed by method name and descriptor
+	 */
+	static Map<String, StreamingWeaver.Hook> hooks(final String name, final int mask) {
+		final long metricId = metricId(name, mask);
+		DefaultShorthandInterceptor.install(metricId, mask);
+		final Map<String, StreamingWeaver.Hook> hooks = new HashMap<String, StreamingWeaver.Hook>(METHODS.length);
+		for(String method: METHODS) {
+			hooks.put(method, new StreamingWeaver.Hook(metricId, mask, SiteSwitch.ALWAYS_ON));
+		}
+		return hooks;
+	}
+
+	/**
+	 * Returns the id of the test metric with the passed name suffix, building it if not present
+	 * @param name The metric name suffix
+	 * @param mask The instrumentation mask
+	 * @return the metric id
+	 */
+	static long metricId(final String name, final int mask) {
+		final int measurementMask = Measurement.measurementMask(mask);
+		return MetricBuilder.metric("test.weave:fixture=" + name).measurement(measurementMask).subMetric(measurementMask).optBuild().longHashCode();
+	}
+
+	/**
+	 * Loads the passed woven fixture bytecode in a new class loader and creates an instance
+	 * @param byteCode The woven fixture bytecode
+	 * @return the woven fixture instance
+	 * @throws Exception thrown on any error loading the fixture
+	 */
+	static IWeaveFixture load(final byte[] byteCode) throws Exception {
+		final ClassLoader loader = new ClassLoader(WeaveFixture.class.getClassLoader()) {
+			@Override
+			protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+				if(!WeaveFixture.class.getName().equals(name)) return super.loadClass(name, resolve);
+				Class<?> clazz = findLoadedClass(name);
+				if(clazz==null) clazz = defineClass(name, byteCode, 0, byteCode.length);
+				if(resolve) resolveClass(clazz);
+				return clazz;
+			}
+		};
+		return (IWeaveFixture)Class.forName(WeaveFixture.class.getName(), true, loader).newInstance();
+	}
+}
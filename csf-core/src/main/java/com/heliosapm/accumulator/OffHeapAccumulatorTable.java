@@ -0,0 +1,543 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.accumulator;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.util.Timeout;
+
+import sun.misc.Unsafe;
+
+import com.heliosapm.opentsdb.client.opentsdb.Threading;
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: OffHeapAccumulatorTable</p>
+ * <p>Description: An off-heap, open-addressed table of fixed width accumulator slots keyed by long metric id.
+ * Each slot holds the count, sum, min, max and last value accumulated for its metric id in the current period.</p>
+ * <p>The table is double-buffered: writers update the active half in place with CAS and never allocate, and each
+ * period event flips the halves, waits out the writers still in the frozen half, then hands the frozen half's address
+ * to the registered {@link CopiedAddressProcedure}s which read it in place using the static slot readers. The frozen
+ * half is cleared once every procedure has returned, ready to become the active half on the next flip.</p>
+ * <p>Metric id <b>0</b> marks an empty slot and cannot be accumulated.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.accumulator.OffHeapAccumulatorTable</code></p>
+ */
+
+public class OffHeapAccumulatorTable implements Runnable, OffHeapAccumulatorTableMBean {
+	/** The unsafe instance */
+	private static final Unsafe unsafe;
+
+	/** The offset of the metric id in a slot */
+	public static final int KEY = 0;
+	/** The offset of the count in a slot */
+	public static final int COUNT = 8;
+	/** The offset of the sum in a slot */
+	public static final int SUM = 16;
+	/** The offset of the min in a slot */
+	public static final int MIN = 24;
+	/** The offset of the max in a slot */
+	public static final int MAX = 32;
+	/** The offset of the last value in a slot */
+	public static final int LAST = 40;
+	/** The size of a slot in bytes */
+	public static final int SLOT_BYTES = 48;
+
+	/** The number of ints each in-flight stripe is padded out to, so stripes do not share a cache line */
+	private static final int PAD = 16;
+
+	static {
+		try {
+			final Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = (Unsafe) theUnsafe.get(null);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to acquire Unsafe", ex);
+		}
+	}
+
+	/** Instance logger */
+	private final Logger log;
+	/** The table name */
+	private final String name;
+	/** The number of slots in each half, a power of 2 */
+	private final int capacity;
+	/** The slot index mask */
+	private final int slotMask;
+	/** The maximum number of metric ids accumulated per period */
+	private final int maxEntries;
+	/** The period length in ms. */
+	private final long period;
+	/** The base addresses of the two halves */
+	private final long[] addresses = new long[2];
+	/** The number of claimed slots in each half */
+	private final AtomicIntegerArray sizes = new AtomicIntegerArray(2);
+	/** The number of writers in flight in each half, striped by thread id */
+	private final AtomicIntegerArray inFlight;
+	/** The number of in-flight stripes per half */
+	private final int stripes;
+	/** The registered period event listeners */
+	private final List<PeriodEventListener> listeners = new CopyOnWriteArrayList<PeriodEventListener>();
+	/** The registered frozen half procedures */
+	private final List<CopiedAddressProcedure<?>> procedures = new CopyOnWriteArrayList<CopiedAddressProcedure<?>>();
+	/** The JMX ObjectName */
+	private final ObjectName objectName;
+	/** The period schedule handle, null if flips are driven externally */
+	private final Timeout schedule;
+	/** Indicates if the table has been closed */
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/** The index of the active half */
+	private volatile int active = 0;
+	/** The start time of the current period in ms. */
+	private volatile long periodStart = System.currentTimeMillis();
+	/** The number of dropped values */
+	private final LongAdder drops = new LongAdder();
+	/** The number of completed flips */
+	private final AtomicLong flips = new AtomicLong(0L);
+	/** The elapsed time of the last flip in ms. */
+	private volatile long lastFlipTime = 0L;
+
+	/**
+	 * Creates a new OffHeapAccumulatorTable
+	 * @param name The table name
+	 * @param maxEntries The maximum number of metric ids accumulated per period
+	 * @param period The period length in ms. If less than 1, the owner drives flips by calling {@link #flip()}
+	 */
+	public OffHeapAccumulatorTable(final String name, final int maxEntries, final long period) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+		if(maxEntries < 1 || maxEntries > (1 << 29)) throw new IllegalArgumentException("Invalid max entries [" + maxEntries + "]");
+		this.name = name.trim();
+		this.maxEntries = maxEntries;
+		this.period = period;
+		// keep the load factor at or below 0.5 so probe sequences stay short
+		capacity = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+		slotMask = capacity - 1;
+		stripes = Integer.highestOneBit(Threading.CORES * 2 - 1) << 1;
+		inFlight = new AtomicIntegerArray(2 * stripes * PAD);
+		log = LogManager.getLogger(getClass().getName() + "." + this.name);
+		final long bytes = (long)capacity * SLOT_BYTES;
+		addresses[0] = unsafe.allocateMemory(bytes);
+		try {
+			addresses[1] = unsafe.allocateMemory(bytes);
+		} catch (OutOfMemoryError oom) {
+			unsafe.freeMemory(addresses[0]);
+			throw oom;
+		}
+		clear(addresses[0]);
+		clear(addresses[1]);
+		schedule = period > 0 ? Threading.getInstance().schedule(this, period, period) : null;
+		objectName = JMXHelper.objectName(Util.getJMXDomain() + ":service=AccumulatorTable,name=" + this.name);
+		try {
+			JMXHelper.registerMBean(this, objectName);
+		} catch (Exception ex) {
+			log.warn("Failed to register OffHeapAccumulatorTable JMX interface. Will continue without:" + ex);
+		}
+		log.info("OffHeapAccumulatorTable [{}] initialized. Slots: {}, allocated: {} bytes, period: {} ms.", this.name, capacity, bytes * 2, period);
+	}
+
+	/**
+	 * 64 bit mixing hash so sequential metric ids do not cluster
+	 * @param v The value to hash
+	 * @return the hash
+	 */
+	private static long mix(long v) {
+		v = (v ^ (v >>> 33)) * 0xff51afd7ed558ccdL;
+		v = (v ^ (v >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return v ^ (v >>> 33);
+	}
+
+	/**
+	 * Accumulates a value for the passed metric id into the current period
+	 * @param metricId The metric id, which must not be 0
+	 * @param value The value
+	 * @return true if the value was accumulated, false if it was dropped because the period's table is full or the table is closed
+	 */
+	public boolean accumulate(final long metricId, final long value) {
+		if(metricId==0L) throw new IllegalArgumentException("Metric id 0 is reserved");
+		final int stripe = ((int)Thread.currentThread().getId() & (stripes - 1)) * PAD;
+		int half, counter;
+		while(true) {
+			half = active;
+			counter = half * stripes * PAD + stripe;
+			inFlight.incrementAndGet(counter);
+			// checked after the increment so a close that missed our increment cannot be freeing the memory
+			if(closed.get()) {
+				inFlight.decrementAndGet(counter);
+				return false;
+			}
+			// re-check so a flip that missed our increment cannot be freezing this half
+			if(active==half) break;
+			inFlight.decrementAndGet(counter);
+		}
+		try {
+			final long slot = claim(addresses[half], half, metricId);
+			if(slot==0L) {
+				drops.increment();
+				return false;
+			}
+			update(slot, value);
+			return true;
+		} finally {
+			inFlight.decrementAndGet(counter);
+		}
+	}
+
+	/**
+	 * Finds or claims the slot for the passed metric id
+	 * @param base The base address of the half
+	 * @param half The half index
+	 * @param metricId The metric id
+	 * @return the slot address, or 0 if the metric id is not present and the half is full
+	 */
+	private long claim(final long base, final int half, final long metricId) {
+		int index = (int)mix(metricId) & slotMask;
+		for(int probes = 0; probes < capacity; probes++) {
+			final long slot = base + ((long)index * SLOT_BYTES);
+			long key = unsafe.getLongVolatile(null, slot + KEY);
+			if(key==metricId) return slot;
+			if(key==0L) {
+				if(sizes.get(half) >= maxEntries) return 0L;
+				if(unsafe.compareAndSwapLong(null, slot + KEY, 0L, metricId)) {
+					sizes.incrementAndGet(half);
+					return slot;
+				}
+				// lost the race for the slot, but possibly to a writer of the same metric id
+				if(unsafe.getLongVolatile(null, slot + KEY)==metricId) return slot;
+			}
+			index = (index + 1) & slotMask;
+		}
+		return 0L;
+	}
+
+	/**
+	 * Updates a slot's accumulators with the passed value
+	 * @param slot The slot address
+	 * @param value The value
+	 */
+	private static void update(final long slot, final long value) {
+		long cur;
+		do {
+			cur = unsafe.getLongVolatile(null, slot + COUNT);
+		} while(!unsafe.compareAndSwapLong(null, slot + COUNT, cur, cur + 1));
+		do {
+			cur = unsafe.getLongVolatile(null, slot + SUM);
+		} while(!unsafe.compareAndSwapLong(null, slot + SUM, cur, cur + value));
+		do {
+			cur = unsafe.getLongVolatile(null, slot + MIN);
+		} while(value < cur && !unsafe.compareAndSwapLong(null, slot + MIN, cur, value));
+		do {
+			cur = unsafe.getLongVolatile(null, slot + MAX);
+		} while(value > cur && !unsafe.compareAndSwapLong(null, slot + MAX, cur, value));
+		unsafe.putLongVolatile(null, slot + LAST, value);
+	}
+
+	/**
+	 * Clears a half, leaving every slot empty with its min and max primed
+	 * @param base The base address of the half
+	 */
+	private void clear(final long base) {
+		unsafe.setMemory(base, (long)capacity * SLOT_BYTES, (byte)0);
+		for(int i = 0; i < capacity; i++) {
+			final long slot = base + ((long)i * SLOT_BYTES);
+			unsafe.putLong(slot + MIN, Long.MAX_VALUE);
+			unsafe.putLong(slot + MAX, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			flip();
+		} catch (Exception ex) {
+			log.warn("Accumulator table flip failed", ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#flip()
+	 */
+	@Override
+	public synchronized void flip() {
+		if(closed.get()) return;
+		final long start = System.nanoTime();
+		final int frozen = active;
+		final long now = System.currentTimeMillis();
+		final long priorStart = periodStart;
+		final long newEnd = now + (period > 0 ? period : now - priorStart);
+		periodStart = now;
+		sizes.set(frozen ^ 1, 0);
+		active = frozen ^ 1;
+		// wait out the writers that entered the frozen half before the flip
+		final int base = frozen * stripes * PAD;
+		for(int i = 0; i < stripes; i++) {
+			while(inFlight.get(base + (i * PAD)) != 0) {
+				Thread.yield();
+			}
+		}
+		for(PeriodEventListener listener: listeners) {
+			try {
+				listener.onNewPeriod(now, newEnd, priorStart, now);
+			} catch (Exception ex) {
+				log.warn("Period event listener [{}] failed", listener, ex);
+			}
+		}
+		final long address = addresses[frozen];
+		final Object[] refs = new Object[]{capacity, sizes.get(frozen), priorStart, now};
+		for(CopiedAddressProcedure<?> procedure: procedures) {
+			try {
+				procedure.addressSpace(name, address, refs);
+			} catch (Exception ex) {
+				log.warn("Frozen table procedure [{}] failed", procedure, ex);
+			}
+		}
+		clear(address);
+		final long elapsed = System.nanoTime() - start;
+		final long[] priorPeriod = new long[]{priorStart, now};
+		for(PeriodEventListener listener: listeners) {
+			if(listener instanceof PeriodEventCompletionListener) {
+				try {
+					((PeriodEventCompletionListener)listener).periodEventComplete(priorPeriod, elapsed);
+				} catch (Exception ex) {
+					log.warn("Period completion listener [{}] failed", listener, ex);
+				}
+			}
+		}
+		flips.incrementAndGet();
+		lastFlipTime = TimeUnit.NANOSECONDS.toMillis(elapsed);
+	}
+
+	/**
+	 * Registers a period event listener, notified on each flip before the frozen half is handed to the procedures.
+	 * {@link PeriodEventCompletionListener}s are also notified once the frozen half has been cleared.
+	 * @param listener The listener to register
+	 */
+	public void addPeriodEventListener(final PeriodEventListener listener) {
+		if(listener!=null) listeners.add(listener);
+	}
+
+	/**
+	 * Removes a registered period event listener
+	 * @param listener The listener to remove
+	 */
+	public void removePeriodEventListener(final PeriodEventListener listener) {
+		if(listener!=null) listeners.remove(listener);
+	}
+
+	/**
+	 * Registers a procedure called on each flip with the table name, the frozen half's address and the refs
+	 * <b><code>{capacity, size, priorStartTime, priorEndTime}</code></b>. The address is only valid until the procedure returns.
+	 * @param procedure The procedure to register
+	 */
+	public void addProcedure(final CopiedAddressProcedure<?> procedure) {
+		if(procedure!=null) procedures.add(procedure);
+	}
+
+	/**
+	 * Removes a registered procedure
+	 * @param procedure The procedure to remove
+	 */
+	public void removeProcedure(final CopiedAddressProcedure<?> procedure) {
+		if(procedure!=null) procedures.remove(procedure);
+	}
+
+	/**
+	 * Returns the metric id in the passed slot of a frozen half
+	 * @param address The frozen half's address
+	 * @param slot The slot index
+	 * @return the metric id, or 0 if the slot is empty
+	 */
+	public static long key(final long address, final int slot) {
+		return unsafe.getLong(address + ((long)slot * SLOT_BYTES) + KEY);
+	}
+
+	/**
+	 * Returns the count in the passed slot of a frozen half
+	 * @param address The frozen half's address
+	 * @param slot The slot index
+	 * @return the count
+	 */
+	public static long count(final long address, final int slot) {
+		return unsafe.getLong(address + ((long)slot * SLOT_BYTES) + COUNT);
+	}
+
+	/**
+	 * Returns the sum in the passed slot of a frozen half
+	 * @param address The frozen half's address
+	 * @param slot The slot index
+	 * @return the sum
+	 */
+	public static long sum(final long address, final int slot) {
+		return unsafe.getLong(address + ((long)slot * SLOT_BYTES) + SUM);
+	}
+
+	/**
+	 * Returns the min in the passed slot of a frozen half
+	 * @param address The frozen half's address
+	 * @param slot The slot index
+	 * @return the min
+	 */
+	public static long min(final long address, final int slot) {
+		return unsafe.getLong(address + ((long)slot * SLOT_BYTES) + MIN);
+	}
+
+	/**
+	 * Returns the max in the passed slot of a frozen half
+	 * @param address The frozen half's address
+	 * @param slot The slot index
+	 * @return the max
+	 */
+	public static long max(final long address, final int slot) {
+		return unsafe.getLong(address + ((long)slot * SLOT_BYTES) + MAX);
+	}
+
+	/**
+	 * Returns the last value in the passed slot of a frozen half
+	 * @param address The frozen half's address
+	 * @param slot The slot index
+	 * @return the last value
+	 */
+	public static long last(final long address, final int slot) {
+		return unsafe.getLong(address + ((long)slot * SLOT_BYTES) + LAST);
+	}
+
+	/**
+	 * Stops the period schedule, unregisters the JMX interface and frees the table's memory once the writers in flight have left.
+	 * Values accumulated after the close are dropped.
+	 */
+	public void close() {
+		if(closed.compareAndSet(false, true)) {
+			if(schedule!=null) schedule.cancel();
+			synchronized(this) {
+				// wait out the writers that entered before the close, later ones see the closed flag and back out
+				for(int i = 0; i < inFlight.length(); i++) {
+					while(inFlight.get(i) != 0) {
+						Thread.yield();
+					}
+				}
+				unsafe.freeMemory(addresses[0]);
+				unsafe.freeMemory(addresses[1]);
+			}
+			try {
+				JMXHelper.unregisterMBean(objectName);
+			} catch (Exception ex) {
+				/* No Op */
+			}
+			log.info("OffHeapAccumulatorTable [{}] closed", name);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getName()
+	 */
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getCapacity()
+	 */
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getMaxEntries()
+	 */
+	@Override
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getSize()
+	 */
+	@Override
+	public int getSize() {
+		return sizes.get(active);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getAllocatedBytes()
+	 */
+	@Override
+	public long getAllocatedBytes() {
+		return (long)capacity * SLOT_BYTES * 2;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getDrops()
+	 */
+	@Override
+	public long getDrops() {
+		return drops.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getFlips()
+	 */
+	@Override
+	public long getFlips() {
+		return flips.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getLastFlipTime()
+	 */
+	@Override
+	public long getLastFlipTime() {
+		return lastFlipTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.OffHeapAccumulatorTableMBean#getPeriod()
+	 */
+	@Override
+	public long getPeriod() {
+		return period;
+	}
+
+}
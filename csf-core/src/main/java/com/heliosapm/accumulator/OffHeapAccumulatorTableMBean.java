@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.accumulator;
+
+/**
+ * <p>Title: OffHeapAccumulatorTableMBean</p>
+ * <p>Description: JMX MBean interface for an {@link OffHeapAccumulatorTable}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.accumulator.OffHeapAccumulatorTableMBean</code></p>
+ */
+
+public interface OffHeapAccumulatorTableMBean {
+
+	/**
+	 * Returns the table name
+	 * @return the table name
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of slots in each half of the table
+	 * @return the slot capacity
+	 */
+	public int getCapacity();
+
+	/**
+	 * Returns the maximum number of metric ids accumulated per period
+	 * @return the maximum number of metric ids
+	 */
+	public int getMaxEntries();
+
+	/**
+	 * Returns the number of metric ids accumulated in the current period
+	 * @return the number of metric ids
+	 */
+	public int getSize();
+
+	/**
+	 * Returns the total off-heap memory allocated for both halves in bytes
+	 * @return the allocated bytes
+	 */
+	public long getAllocatedBytes();
+
+	/**
+	 * Returns the number of values dropped because the active half was full
+	 * @return the number of dropped values
+	 */
+	public long getDrops();
+
+	/**
+	 * Returns the number of completed period flips
+	 * @return the number of flips
+	 */
+	public long getFlips();
+
+	/**
+	 * Returns the elapsed time of the last flip, including listener and procedure callbacks, in ms.
+	 * @return the last flip time
+	 */
+	public long getLastFlipTime();
+
+	/**
+	 * Returns the period length in ms.
+	 * @return the period length
+	 */
+	public long getPeriod();
+
+	/**
+	 * Ends the current period now
+	 */
+	public void flip();
+
+}
@@ -17,6 +17,7 @@
 package com.heliosapm.opentsdb.client.aoplite;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
@@ -60,6 +61,8 @@ import com.heliosapm.opentsdb.client.name.AgentName;
 import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
 import com.heliosapm.opentsdb.client.opentsdb.Constants;
 import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetricCache;
 import com.heliosapm.opentsdb.client.util.Util;
 import com.heliosapm.utils.instrumentation.InstrumentationMBean;
 import com.heliosapm.utils.jmx.JMXHelper;
@@ -106,6 +109,23 @@ public class RetransformerLite extends StandardMBean implements RetransformerLit
 	
 	/** The instrumented class method names in a set keyed by the instrumented class */
 	private final Map<Class<?>, Set<String>> instrumentedClasses = Collections.synchronizedMap(new WeakHashMap< Class<?>, Set<String>>()); 
+	/** The instrumented byte code keyed by the instrumented class */
+	private final Map<Class<?>, byte[]> instrumentedByteCode = Collections.synchronizedMap(new WeakHashMap< Class<?>, byte[]>());
+	/** The transformer supplying the instrumented byte code when an instrumented class is retransformed */
+	private final ClassFileTransformer instrumentor = new ClassFileTransformer() {
+		@Override
+		public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined,
+				final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+			// class loads are never instrumented here, so they pay no more than this check
+			if(classBeingRedefined==null) return null;
+			return instrumentedByteCode.get(classBeingRedefined);
+		}
+	};
+
+	/** The metric handle slots keyed by metric name */
+	private static final Map<String, Integer> handleSlots = new HashMap<String, Integer>();
+	/** The pre-resolved metrics traced by instrumented code, indexed by handle slot */
+	private static volatile OTMetric[] handles = new OTMetric[0];
 			
 	
 	/** The name of the directory within the agent home where we'll write the transient byte code to */
@@ -174,11 +194,41 @@ public class RetransformerLite extends StandardMBean implements RetransformerLit
 		}
 		byteCodeDir = byteCodeDirReady ? f.getAbsolutePath() : null;
 		log.info("Transient ByteCode Directory: {}", byteCodeDir);
+		if(instrumentation!=null) instrumentation.addTransformer(instrumentor, true);
 		final int cnt = JMXHelper.registerMBeanEverywhere(this, OBJECT_NAME);
 		log.info("Registered RetransformerLite on [{}] MBeanServers", cnt);
 		
 	}
 	
+	/**
+	 * Traces an elapsed time to a pre-resolved metric. Called by instrumented code.
+	 * @param handle The metric handle slot allocated by {@link #handle(String)}
+	 * @param elapsed The elapsed time in ns.
+	 */
+	public static void trace(final int handle, final long elapsed) {
+		handles[handle].trace(elapsed);
+	}
+	
+	/**
+	 * Resolves the named metric and returns the handle slot instrumented code traces it with
+	 * @param metricName The metric name
+	 * @return the handle slot
+	 */
+	static int handle(final String metricName) {
+		synchronized(handleSlots) {
+			Integer slot = handleSlots.get(metricName);
+			if(slot==null) {
+				slot = handles.length;
+				final OTMetric[] tmp = new OTMetric[slot + 1];
+				System.arraycopy(handles, 0, tmp, 0, slot);
+				tmp[slot] = OTMetricCache.getInstance().getOTMetric(metricName);
+				handles = tmp;
+				handleSlots.put(metricName, slot);
+			}
+			return slot;
+		}
+	}
+	
 	/**
 	 * Re-registers specific known problematic class file tranformers
 	 * from non-retransform to retransform.
@@ -245,7 +295,7 @@ public class RetransformerLite extends StandardMBean implements RetransformerLit
 		@Override
 		public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, 
 				final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
-			if(className.equals(internalName)) {
+			if(internalName.equals(className)) {
 				if(byteCode==null) {
 					byteCode = classfileBuffer;
 				} else {
@@ -352,66 +402,65 @@ public class RetransformerLite extends StandardMBean implements RetransformerLit
 				}
 			}
 		}
+		// captures the original byte code, so a merge does not instrument over the current instrumentation
+		final byte[] priorByteCode = instrumentedByteCode.remove(clazz);
+		CtClass target = null;
 		try {
 			final byte[] byteCode = getByteCodeFor(clazz);
 			final ClassPool cp = new ClassPool();
 			cp.appendClassPath(new ClassClassPath(this.getClass()));
 			cp.appendClassPath(new ByteArrayClassPath(clazz.getName(), byteCode));
 			cp.appendClassPath(new LoaderClassPath(clazz.getClassLoader()));
-			cp.importPackage("com.heliosapm.opentsdb.client.opentsdb");
-			final CtClass target = cp.get(clazz.getName());
+			target = cp.get(clazz.getName());
 			for(Method mx: methods.values()) {
 				final String metricName = MetricBuilder.metric("method.elapsedns").tag("method", mx.getName()).tag("class", Util.clean(clazz.getSimpleName())).tag("package", Util.clean(clazz.getPackage().getName())).build().toString();
-				log.info("Adding metric name {}", metricName);
+				final int handle = handle(metricName);
+				log.info("Adding metric name {} with handle {}", metricName, handle);
 				CtMethod ctm = target.getDeclaredMethod(mx.getName(), sig(cp, mx));
 				target.removeMethod(ctm);
 	            ctm.addLocalVariable("xxxstart", CtClass.longType);
-	            ctm.addLocalVariable("xxxelapsed", CtClass.longType);
 	            ctm.insertBefore("xxxstart = System.nanoTime();");
-	            ctm.insertAfter("xxxelapsed = System.nanoTime() - xxxstart; System.out.println(\"Elapsed:\" + xxxelapsed); OTMetricCache.getInstance().getOTMetric(\"" + metricName + "\").trace(xxxelapsed);");            
+	            ctm.insertAfter(RetransformerLite.class.getName() + ".trace(" + handle + ", System.nanoTime() - xxxstart);");
 	            target.addMethod(ctm);
 			}
-			final byte[] instrumentedByteCode = target.toBytecode();
-			getByteCodeFor(clazz, instrumentedByteCode);
+			final byte[] instrumentedBytes = target.toBytecode();
 			if(byteCodeDir!=null) {
-				target.writeFile(byteCodeDir);
-				log.debug("Saved transformed class [{}] to [{}]", target.getName(), byteCodeDir);
+				writeByteCode(clazz, instrumentedBytes);
 			}
+			instrumentedByteCode.put(clazz, instrumentedBytes);
+			instrumentation.retransformClasses(clazz);
 			instrumentedClasses.put(clazz, methods.keySet());
-			final String internalName = b2i(clazz.getName());
-			final ClassFileTransformer instrumentor = new ClassFileTransformer() {				
-				@Override
-				public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
-						ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
-					if(internalName.equals(className)) {
-						return instrumentedByteCode;
-					}
-					cp.appendClassPath(new ByteArrayClassPath(i2b(className), classfileBuffer));
-					cp.appendClassPath(new LoaderClassPath(loader));
-					try {
-						CtClass ctclazz = cp.get(i2b(className));
-						if(ctclazz.subclassOf(target)) {
-							log.info("Subclass of target:" + className);
-							ctclazz.writeFile(byteCodeDir);
-						}
-						return classfileBuffer;
-					} catch (Exception ex) {
-						ex.printStackTrace(System.err);
-						return classfileBuffer;
-					}
-				}
-			};
-			try {
-				instrumentation.addTransformer(instrumentor, true);
-				instrumentation.retransformClasses(clazz);
-			} finally {
-				//instrumentation.removeTransformer(instrumentor);
-			}
 			return methods.size();
-			//ByteCapturingClassTransform transformer = new ByteCapturingClassTransform(clazz, instrumentedByteCode);
 		} catch (Exception ex) {
+			if(priorByteCode!=null) {
+				instrumentedByteCode.put(clazz, priorByteCode);
+			} else {
+				instrumentedByteCode.remove(clazz);
+			}
 			log.error("Failed to instrument [{}]", clazz.getName(), ex);
 			throw new RuntimeException(ex);
+		} finally {
+			if(target!=null) target.detach();
+		}
+	}
+	
+	/**
+	 * Writes the passed instrumented byte code to the transient byte code directory
+	 * @param clazz The instrumented class
+	 * @param byteCode The instrumented byte code
+	 */
+	protected void writeByteCode(final Class<?> clazz, final byte[] byteCode) {
+		final File f = new File(byteCodeDir, b2i(clazz.getName()) + ".class");
+		FileOutputStream fos = null;
+		try {
+			f.getParentFile().mkdirs();
+			fos = new FileOutputStream(f);
+			fos.write(byteCode);
+			log.debug("Saved transformed class [{}] to [{}]", clazz.getName(), byteCodeDir);
+		} catch (Exception ex) {
+			log.warn("Failed to save transformed class [{}] to [{}]: {}", clazz.getName(), byteCodeDir, ex.toString());
+		} finally {
+			if(fos!=null) try { fos.close(); } catch (Exception x) {/* No Op */}
 		}
 	}
 	
@@ -491,6 +540,7 @@ public class RetransformerLite extends StandardMBean implements RetransformerLit
 		}		
 		if(clazz==null) throw new IllegalArgumentException("The class [" + className + "] is not instrumented");
 		try {
+			instrumentedByteCode.remove(clazz);
 			instrumentation.retransformClasses(clazz);
 			instrumentedClasses.remove(clazz);
 			log.info("Uninstrumented class [{}]", className);
@@ -506,7 +556,9 @@ public class RetransformerLite extends StandardMBean implements RetransformerLit
 	@Override
 	public void restoreAllClasses() {
 		try {
-			instrumentation.retransformClasses(instrumentedClasses.keySet().toArray(new Class[instrumentedClasses.size()]));
+			final Class<?>[] classes = instrumentedClasses.keySet().toArray(new Class[instrumentedClasses.size()]);
+			instrumentedByteCode.clear();
+			instrumentation.retransformClasses(classes);
 			instrumentedClasses.clear();
 		} catch (Exception e) {
 			log.error("Failed to restore all classes", e);
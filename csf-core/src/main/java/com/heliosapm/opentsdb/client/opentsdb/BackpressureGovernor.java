@@ -0,0 +1,510 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: BackpressureGovernor</p>
+ * <p>Description: Singleton that aggregates the load of the metric pipeline stages (the sender's in-flight requests,
+ * the shared thread pool queue, the metric sink input queue etc.) into a single pressure level and applies the
+ * configured {@link BackpressurePolicy} to producers when the pressure is at or above the configured threshold.</p>
+ * <p>Producers call {@link #admit(boolean)} before enqueueing a submission and {@link #overflow(boolean)} when
+ * their own queue rejected the submission, and act on the returned {@link Admission}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernor</code></p>
+ */
+
+public class BackpressureGovernor implements BackpressureGovernorMBean {
+	/** The singleton instance */
+	private static volatile BackpressureGovernor instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+
+	/** The registered pressure sources keyed by name */
+	private final Map<String, PressureSource> sources = new ConcurrentHashMap<String, PressureSource>();
+	/** The drop counters keyed by the policy that dropped */
+	private final EnumMap<BackpressurePolicy, LongAdder> drops = new EnumMap<BackpressurePolicy, LongAdder>(BackpressurePolicy.class);
+	/** The number of times a producer blocked */
+	private final LongAdder blockCount = new LongAdder();
+	/** The total time in ms. producers spent blocked */
+	private final LongAdder blockTime = new LongAdder();
+	/** The monitor blocked producers wait on */
+	private final Object relief = new Object();
+	/** Guards against concurrent pressure refreshes */
+	private final AtomicBoolean refreshing = new AtomicBoolean(false);
+	/** Per thread xorshift seeds for sampling */
+	private final ThreadLocal<long[]> seeds = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			final long seed = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+			return new long[]{seed==0 ? 1L : seed};
+		}
+	};
+
+	/** The current load shedding policy */
+	private volatile BackpressurePolicy policy;
+	/** The pressure threshold percentage */
+	private volatile int threshold;
+	/** The maximum block time in ms. */
+	private volatile long maxBlockTime;
+	/** The sample acceptance percentage */
+	private volatile int sampleRate;
+	/** The minimum period between pressure refreshes in ms. */
+	private final long refreshPeriod;
+	/** The last computed pressure percentage */
+	private volatile int pressure = 0;
+	/** The timestamp of the last pressure refresh */
+	private volatile long lastRefresh = 0L;
+
+	/**
+	 * <p>Title: Admission</p>
+	 * <p>Description: The decision returned to a producer for a submission</p>
+	 */
+	public static enum Admission {
+		/** The submission should be enqueued */
+		ACCEPT,
+		/** The submission should be dropped */
+		REJECT,
+		/** The producer should discard its oldest pending submission(s) and then enqueue the submission */
+		EVICT,
+		/** The producer should fold the raw data point into its metric's rollup instead of enqueueing it */
+		AGGREGATE;
+	}
+
+	/**
+	 * <p>Title: PressureSource</p>
+	 * <p>Description: A pipeline stage that reports its load to the governor</p>
+	 */
+	public static interface PressureSource {
+		/**
+		 * Returns the current load of this stage as a percentage where 100 is full
+		 * @return the current load percentage
+		 */
+		public int getPressure();
+	}
+
+	/**
+	 * Acquires the BackpressureGovernor singleton instance
+	 * @return the BackpressureGovernor singleton instance
+	 */
+	public static BackpressureGovernor getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new BackpressureGovernor();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Creates a new BackpressureGovernor
+	 */
+	private BackpressureGovernor() {
+		policy = ConfigurationReader.confEnum(BackpressurePolicy.class, Constants.PROP_BP_POLICY, Constants.DEFAULT_BP_POLICY);
+		threshold = ConfigurationReader.confInt(Constants.PROP_BP_THRESHOLD, Constants.DEFAULT_BP_THRESHOLD);
+		maxBlockTime = ConfigurationReader.confLong(Constants.PROP_BP_MAX_BLOCK, Constants.DEFAULT_BP_MAX_BLOCK);
+		sampleRate = ConfigurationReader.confInt(Constants.PROP_BP_SAMPLE_RATE, Constants.DEFAULT_BP_SAMPLE_RATE);
+		refreshPeriod = ConfigurationReader.confLong(Constants.PROP_BP_REFRESH, Constants.DEFAULT_BP_REFRESH);
+		for(BackpressurePolicy p: BackpressurePolicy.values()) {
+			drops.put(p, new LongAdder());
+		}
+		try {
+			JMXHelper.registerMBean(this, OBJECT_NAME);
+		} catch (Exception ex) {
+			log.warn("Failed to register BackpressureGovernor JMX interface. Will continue without:" + ex);
+		}
+		log.info("BackpressureGovernor Initialized\n\tPolicy:{}\n\tThreshold:{}%\n\tMax Block:{} ms.\n\tSample Rate:{}%", policy, threshold, maxBlockTime, sampleRate);
+	}
+
+	/**
+	 * Registers a pressure source
+	 * @param name The name of the source
+	 * @param source The source
+	 */
+	public void registerSource(final String name, final PressureSource source) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+		if(source==null) throw new IllegalArgumentException("The passed source was null");
+		sources.put(name.trim(), source);
+	}
+
+	/**
+	 * Removes a registered pressure source
+	 * @param name The name of the source to remove
+	 */
+	public void removeSource(final String name) {
+		if(name!=null) sources.remove(name.trim());
+	}
+
+	/**
+	 * Decides on a producer's submission according to the current pressure
+	 * @param aggregated true if the submission feeds aggregated metrics, false if it is a raw traced data point
+	 * @return the admission decision
+	 */
+	public Admission admit(final boolean aggregated) {
+		refresh(false);
+		if(pressure < threshold) return Admission.ACCEPT;
+		return apply(aggregated);
+	}
+
+	/**
+	 * Decides on a producer's submission that was rejected by the producer's own full queue.
+	 * The policy is applied regardless of the current pressure.
+	 * @param aggregated true if the submission feeds aggregated metrics, false if it is a raw traced data point
+	 * @return the admission decision
+	 */
+	public Admission overflow(final boolean aggregated) {
+		refresh(true);
+		return apply(aggregated);
+	}
+
+	/**
+	 * Records submissions discarded by a producer following an {@link Admission#EVICT}
+	 * @param count The number of discarded submissions
+	 */
+	public void evicted(final int count) {
+		if(count > 0) drops.get(BackpressurePolicy.DROP_OLDEST).add(count);
+	}
+
+	/**
+	 * Records a raw data point that could not be folded into a rollup following an {@link Admission#AGGREGATE}
+	 */
+	public void unaggregated() {
+		drops.get(BackpressurePolicy.AGGREGATE_ONLY).increment();
+	}
+
+	/**
+	 * Applies the current policy
+	 * @param aggregated true if the submission feeds aggregated metrics
+	 * @return the admission decision
+	 */
+	private Admission apply(final boolean aggregated) {
+		final BackpressurePolicy p = policy;
+		switch(p) {
+			case BLOCK:
+				if(awaitRelief()) return Admission.ACCEPT;
+				break;
+			case DROP_OLDEST:
+				return Admission.EVICT;
+			case SAMPLE:
+				if(nextPercent() < sampleRate) return Admission.ACCEPT;
+				break;
+			case AGGREGATE_ONLY:
+				return aggregated ? Admission.ACCEPT : Admission.AGGREGATE;
+			default:
+				break;
+		}
+		drops.get(p).increment();
+		return Admission.REJECT;
+	}
+
+	/**
+	 * Blocks the calling thread until the pressure drops below the threshold or the max block time elapses
+	 * @return true if the pressure dropped below the threshold, false if the wait timed out or was interrupted
+	 */
+	private boolean awaitRelief() {
+		final long start = System.currentTimeMillis();
+		final long deadline = start + maxBlockTime;
+		blockCount.increment();
+		try {
+			long now = start;
+			while(now < deadline) {
+				synchronized(relief) {
+					relief.wait(Math.max(1L, Math.min(deadline - now, refreshPeriod)));
+				}
+				refresh(true);
+				if(pressure < threshold) return true;
+				now = System.currentTimeMillis();
+			}
+			return false;
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blockTime.add(System.currentTimeMillis() - start);
+		}
+	}
+
+	/**
+	 * Recomputes the pressure level if the refresh period has elapsed
+	 * @param force true to recompute regardless of the refresh period
+	 */
+	private void refresh(final boolean force) {
+		final long now = System.currentTimeMillis();
+		if(!force && now - lastRefresh < refreshPeriod) return;
+		if(!refreshing.compareAndSet(false, true)) return;
+		try {
+			int max = 0;
+			for(PressureSource source: sources.values()) {
+				try {
+					final int p = source.getPressure();
+					if(p > max) max = p;
+				} catch (Exception x) {/* No Op */}
+			}
+			final int prior = pressure;
+			pressure = max;
+			lastRefresh = now;
+			if(prior >= threshold && max < threshold) {
+				synchronized(relief) {
+					relief.notifyAll();
+				}
+			}
+		} finally {
+			refreshing.set(false);
+		}
+	}
+
+	/**
+	 * Returns a pseudo random number between 0 (inclusive) and 100 (exclusive) from a thread local xorshift
+	 * @return a pseudo random percentage
+	 */
+	private int nextPercent() {
+		final long[] seed = seeds.get();
+		long x = seed[0];
+		x ^= (x << 21);
+		x ^= (x >>> 35);
+		x ^= (x << 4);
+		seed[0] = x;
+		return (int)((x >>> 1) % 100);
+	}
+
+	/**
+	 * Computes a percentage load for the passed used and capacity counts
+	 * @param used The used count
+	 * @param capacity The capacity
+	 * @return the load percentage
+	 */
+	public static int percent(final long used, final long capacity) {
+		if(capacity < 1) return 0;
+		if(used >= capacity) return 100;
+		return (int)(used * 100 / capacity);
+	}
+
+	/**
+	 * Returns the current load shedding policy
+	 * @return the current load shedding policy
+	 */
+	public BackpressurePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Sets the load shedding policy
+	 * @param policy The policy to set
+	 */
+	public void setPolicy(final BackpressurePolicy policy) {
+		if(policy==null) throw new IllegalArgumentException("The passed policy was null");
+		this.policy = policy;
+		log.info("Changed BackpressurePolicy to [{}]", policy.name());
+		synchronized(relief) {
+			relief.notifyAll();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getPressure()
+	 */
+	@Override
+	public int getPressure() {
+		refresh(false);
+		return pressure;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getSourcePressures()
+	 */
+	@Override
+	public Map<String, Integer> getSourcePressures() {
+		final Map<String, Integer> map = new HashMap<String, Integer>(sources.size());
+		for(Map.Entry<String, PressureSource> entry: sources.entrySet()) {
+			try {
+				map.put(entry.getKey(), entry.getValue().getPressure());
+			} catch (Exception x) {/* No Op */}
+		}
+		return map;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#isOverloaded()
+	 */
+	@Override
+	public boolean isOverloaded() {
+		return getPressure() >= threshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getPolicyName()
+	 */
+	@Override
+	public String getPolicyName() {
+		return policy.name();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#setPolicyName(java.lang.String)
+	 */
+	@Override
+	public void setPolicyName(final String policyName) {
+		setPolicy(BackpressurePolicy.forName(policyName));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getThreshold()
+	 */
+	@Override
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#setThreshold(int)
+	 */
+	@Override
+	public void setThreshold(final int threshold) {
+		if(threshold < 1 || threshold > 100) throw new IllegalArgumentException("Invalid threshold [" + threshold + "]. Must be > 0 and <= 100");
+		this.threshold = threshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getMaxBlockTime()
+	 */
+	@Override
+	public long getMaxBlockTime() {
+		return maxBlockTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#setMaxBlockTime(long)
+	 */
+	@Override
+	public void setMaxBlockTime(final long maxBlockTime) {
+		if(maxBlockTime < 0) throw new IllegalArgumentException("Invalid max block time [" + maxBlockTime + "]");
+		this.maxBlockTime = maxBlockTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getSampleRate()
+	 */
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#setSampleRate(int)
+	 */
+	@Override
+	public void setSampleRate(final int sampleRate) {
+		if(sampleRate < 0 || sampleRate > 100) throw new IllegalArgumentException("Invalid sample rate [" + sampleRate + "]. Must be >= 0 and <= 100");
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getDrops()
+	 */
+	@Override
+	public Map<String, Long> getDrops() {
+		final Map<String, Long> map = new HashMap<String, Long>(drops.size());
+		for(Map.Entry<BackpressurePolicy, LongAdder> entry: drops.entrySet()) {
+			map.put(entry.getKey().name(), entry.getValue().longValue());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the number of submissions dropped by the passed policy
+	 * @param policy The policy
+	 * @return the drop count
+	 */
+	public long getDrops(final BackpressurePolicy policy) {
+		if(policy==null) throw new IllegalArgumentException("The passed policy was null");
+		return drops.get(policy).longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getTotalDrops()
+	 */
+	@Override
+	public long getTotalDrops() {
+		long total = 0;
+		for(LongAdder la: drops.values()) {
+			total += la.longValue();
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getBlockCount()
+	 */
+	@Override
+	public long getBlockCount() {
+		return blockCount.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#getBlockTime()
+	 */
+	@Override
+	public long getBlockTime() {
+		return blockTime.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean#resetCounters()
+	 */
+	@Override
+	public void resetCounters() {
+		for(LongAdder la: drops.values()) {
+			la.reset();
+		}
+		blockCount.reset();
+		blockTime.reset();
+	}
+
+}
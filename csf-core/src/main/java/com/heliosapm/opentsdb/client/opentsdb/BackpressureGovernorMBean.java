@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: BackpressureGovernorMBean</p>
+ * <p>Description: JMX MBean interface for the {@link BackpressureGovernor}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernorMBean</code></p>
+ */
+
+public interface BackpressureGovernorMBean {
+
+	/** The BackpressureGovernor JMX ObjectName */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName(Util.getJMXDomain() + ":service=BackpressureGovernor");
+
+	/**
+	 * Returns the current pipeline pressure level as a percentage, being the highest pressure of all the registered sources
+	 * @return the current pressure level
+	 */
+	public int getPressure();
+
+	/**
+	 * Returns the current pressure level of each registered pressure source as a percentage
+	 * @return a map of pressure levels keyed by the source name
+	 */
+	public Map<String, Integer> getSourcePressures();
+
+	/**
+	 * Indicates if the current pressure is at or above the threshold
+	 * @return true if the pipeline is overloaded, false otherwise
+	 */
+	public boolean isOverloaded();
+
+	/**
+	 * Returns the name of the current load shedding policy
+	 * @return the name of the current load shedding policy
+	 */
+	public String getPolicyName();
+
+	/**
+	 * Sets the current load shedding policy
+	 * @param policyName The name of the policy to set
+	 */
+	public void setPolicyName(String policyName);
+
+	/**
+	 * Returns the pressure threshold percentage at which the policy is applied
+	 * @return the pressure threshold percentage
+	 */
+	public int getThreshold();
+
+	/**
+	 * Sets the pressure threshold percentage at which the policy is applied
+	 * @param threshold the pressure threshold percentage
+	 */
+	public void setThreshold(int threshold);
+
+	/**
+	 * Returns the maximum time in ms. that a producer will block under the BLOCK policy
+	 * @return the maximum block time in ms.
+	 */
+	public long getMaxBlockTime();
+
+	/**
+	 * Sets the maximum time in ms. that a producer will block under the BLOCK policy
+	 * @param maxBlockTime the maximum block time in ms.
+	 */
+	public void setMaxBlockTime(long maxBlockTime);
+
+	/**
+	 * Returns the percentage of submissions accepted under the SAMPLE policy
+	 * @return the sample acceptance percentage
+	 */
+	public int getSampleRate();
+
+	/**
+	 * Sets the percentage of submissions accepted under the SAMPLE policy
+	 * @param sampleRate the sample acceptance percentage
+	 */
+	public void setSampleRate(int sampleRate);
+
+	/**
+	 * Returns the total number of dropped submissions keyed by the policy that dropped them
+	 * @return a map of drop counts keyed by policy name
+	 */
+	public Map<String, Long> getDrops();
+
+	/**
+	 * Returns the total number of dropped submissions across all policies
+	 * @return the total number of dropped submissions
+	 */
+	public long getTotalDrops();
+
+	/**
+	 * Returns the number of times a producer was blocked under the BLOCK policy
+	 * @return the number of producer blocks
+	 */
+	public long getBlockCount();
+
+	/**
+	 * Returns the total time in ms. producers have spent blocked under the BLOCK policy
+	 * @return the total blocked time in ms.
+	 */
+	public long getBlockTime();
+
+	/**
+	 * Resets the drop and block counters
+	 */
+	public void resetCounters();
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+/**
+ * <p>Title: BackpressurePolicy</p>
+ * <p>Description: Enumerates the load shedding policies applied by the {@link BackpressureGovernor}
+ * to metric producers when the pipeline from the tracers to the OpenTSDB sender is overloaded.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.BackpressurePolicy</code></p>
+ */
+
+public enum BackpressurePolicy {
+	/** The producer blocks until the pressure drops below the threshold, or the max block time elapses, in which case the submission is dropped */
+	BLOCK,
+	/** The new submission is dropped */
+	DROP_NEWEST,
+	/** The oldest pending submission(s) of the producer are discarded to make room for the new submission */
+	DROP_OLDEST,
+	/** A configured percentage of submissions is accepted and the rest are dropped */
+	SAMPLE,
+	/** Aggregated submissions (e.g. measurements into the metric sink) are accepted and raw traced data points are rolled up per metric,
+	 * so each metric sends one data point (the mean of its numeric values, at the latest timestamp) per lane flush period. Non numeric values are dropped. */
+	AGGREGATE_ONLY;
+
+	/** Comma separated valid names */
+	public static final String VALID_NAMES;
+
+	static {
+		StringBuilder b = new StringBuilder();
+		for(BackpressurePolicy p: BackpressurePolicy.values()) {
+			b.append(p.name()).append(",");
+		}
+		VALID_NAMES = b.deleteCharAt(b.length()-1).toString();
+	}
+
+	/**
+	 * Decodes the passed name to a BackpressurePolicy
+	 * @param name The name to decode. Trimmed and case insensitive.
+	 * @return the decoded BackpressurePolicy
+	 */
+	public static BackpressurePolicy forName(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed policy name was null or empty");
+		try {
+			return BackpressurePolicy.valueOf(name.trim().toUpperCase());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid backpressure policy name [" + name + "]. Valid values are:" + VALID_NAMES);
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>Title: BatchTrace</p>
+ * <p>Description: Carries the stage timestamps of one metric batch through the send path, recording each
+ * {@link DeliveryStage} elapsed time into the {@link DeliveryTracer} as the stage completes.
+ * A batch ends exactly once, either acknowledged ({@link DeliveryStage#DELIVERY}), failed ({@link DeliveryStage#FAILED}) or spilled ({@link DeliveryStage#SPILL}).</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.BatchTrace</code></p>
+ */
+
+final class BatchTrace {
+	/** The tracer stage times are recorded to */
+	private static final DeliveryTracer tracer = DeliveryTracer.getInstance();
+
+	/** The nano time the first metric was appended, or the flush time for batches not built in a traced buffer */
+	private final long appended;
+	/** Indicates if the batch was built in a traced buffer */
+	private final boolean buffered;
+	/** The flush nano time */
+	private volatile long flushed = 0L;
+	/** The current compression start nano time */
+	private volatile long compressing = 0L;
+	/** The current http request start nano time */
+	private volatile long requested = 0L;
+	/** Set when the batch is acknowledged, failed or spilled */
+	private final AtomicBoolean ended = new AtomicBoolean(false);
+
+	private BatchTrace(final long appended, final boolean buffered) {
+		this.appended = appended;
+		this.buffered = buffered;
+	}
+
+	/**
+	 * Starts a trace for a batch when its first metric is appended
+	 * @return the new trace
+	 */
+	static BatchTrace appended() {
+		return new BatchTrace(System.nanoTime(), true);
+	}
+
+	/**
+	 * Starts a trace for an already built batch being flushed
+	 * @return the new trace
+	 */
+	static BatchTrace flushed() {
+		final BatchTrace trace = new BatchTrace(System.nanoTime(), false);
+		trace.flushed = trace.appended;
+		return trace;
+	}
+
+	/**
+	 * Marks the batch's flush trigger
+	 * @return this trace
+	 */
+	BatchTrace flush() {
+		flushed = System.nanoTime();
+		if(buffered) tracer.record(DeliveryStage.BUFFER, flushed - appended);
+		return this;
+	}
+
+	/**
+	 * Marks the start of the batch's compression
+	 */
+	void compressing() {
+		compressing = System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of the batch's compression
+	 */
+	void compressed() {
+		tracer.record(DeliveryStage.COMPRESS, System.nanoTime() - compressing);
+	}
+
+	/**
+	 * Marks the start of an http request for the batch. Retries restart the request stage.
+	 */
+	void requested() {
+		final long now = System.nanoTime();
+		if(requested==0L) tracer.record(DeliveryStage.QUEUE, now - flushed);
+		requested = now;
+	}
+
+	/**
+	 * Marks the receipt of an http response for the batch. Only a 2xx response counts as a delivery.
+	 * @param statusCode The http response status code
+	 */
+	void responded(final int statusCode) {
+		final long now = System.nanoTime();
+		if(requested!=0L) tracer.record(DeliveryStage.REQUEST, now - requested);
+		if(ended.compareAndSet(false, true)) {
+			tracer.record(statusCode >= 200 && statusCode < 300 ? DeliveryStage.DELIVERY : DeliveryStage.FAILED, now - appended);
+		}
+	}
+
+	/**
+	 * Marks the batch's spill to the offline store
+	 */
+	void spilled() {
+		if(ended.compareAndSet(false, true)) {
+			tracer.record(DeliveryStage.SPILL, System.nanoTime() - appended);
+		}
+	}
+}
@@ -69,6 +69,14 @@ public interface Constants {
 	public static final String PROP_REQUEST_RETRY_DELAY = "tsdb.http.request.retries.delay";
 	/** The default retry delay in ms. */
 	public static final int DEFAULT_REQUEST_RETRY_DELAY = 2000;
+	/** The system property config name for posting metrics with the native netty sender instead of the async http client */
+	public static final String PROP_NATIVE_SENDER = "tsdb.http.native";
+	/** The default native sender enablement */
+	public static final boolean DEFAULT_NATIVE_SENDER = false;
+	/** The system property config name for the maximum number of pipelined posts per native sender connection */
+	public static final String PROP_NATIVE_PIPELINE = "tsdb.http.native.pipeline";
+	/** The default maximum number of pipelined posts per native sender connection */
+	public static final int DEFAULT_NATIVE_PIPELINE = 4;
 
 	// =======================================
 	// Metric Sink
@@ -90,7 +98,191 @@ public interface Constants {
 	public static final String PROP_SINK_INPUT_QFAIR = "tsdb.metricsink.inputq.fair";
 	/** The default metric sink input queue size */
 	public static final boolean DEFAULT_SINK_INPUT_QFAIR = false;
-	
+	/** The system property config name for the number of metric sink aggregation shards */
+	public static final String PROP_SINK_SHARDS = "tsdb.metricsink.shards";
+	/** The default number of metric sink aggregation shards */
+	public static final int DEFAULT_SINK_SHARDS = Math.max(1, CORES/2);
+	/** The system property config name for accumulating instrumented method measurements in per-thread cells instead of submitting them to the sink */
+	public static final String PROP_SINK_ACCUMULATE = "tsdb.metricsink.accumulate";
+	/** The default per-thread accumulation enablement */
+	public static final boolean DEFAULT_SINK_ACCUMULATE = true;
+	/** The system property config name for the period in ms. on which per-thread accumulators are harvested */
+	public static final String PROP_SINK_HARVEST_PERIOD = "tsdb.metricsink.harvest.period";
+	/** The default per-thread accumulator harvest period in ms. */
+	public static final long DEFAULT_SINK_HARVEST_PERIOD = 5000;
+	/** The system property config name for the number of consecutive idle harvests after which a per-thread accumulator is retired */
+	public static final String PROP_SINK_CELL_IDLE = "tsdb.metricsink.cell.idle";
+	/** The default number of idle harvests before a per-thread accumulator is retired */
+	public static final int DEFAULT_SINK_CELL_IDLE = 12;
+
+	// =======================================
+	// Striped Metrics
+	// =======================================
+
+	/** The system property config name for the regex matched against metric names to select striped meters and concurrency counters. Empty selects none */
+	public static final String PROP_STRIPED_PATTERN = "tsdb.metrics.striped.pattern";
+	/** The default striped metric name pattern, which selects all metrics */
+	public static final String DEFAULT_STRIPED_PATTERN = ".*";
+
+	// =======================================
+	// Sampling
+	// =======================================
+
+	/** The system property config name for the adaptive sampling overhead budget: the measurement ns. an adaptively sampled method may spend per second */
+	public static final String PROP_SAMPLING_BUDGET = "tsdb.sampling.budget";
+	/** The default adaptive sampling overhead budget, 1% of one core */
+	public static final long DEFAULT_SAMPLING_BUDGET = 10000000L;
+	/** The system property config name for the period in ms. on which adaptively sampled methods adjust their sampling rate */
+	public static final String PROP_SAMPLING_PERIOD = "tsdb.sampling.period";
+	/** The default adaptive sampling adjustment period in ms. */
+	public static final long DEFAULT_SAMPLING_PERIOD = 1000;
+
+	// =======================================
+	// Thread CPU Clocks and Contention
+	// =======================================
+
+	/** The system property config name for the thread CPU clock used by the CPU measurements: <b>auto</b>, <b>mxbean</b> or <b>coarse</b> */
+	public static final String PROP_CPU_CLOCK = "tsdb.cpuclock";
+	/** The default thread CPU clock, which selects the cheaper clock for each CPU time by calibration */
+	public static final String DEFAULT_CPU_CLOCK = "auto";
+	/** The system property config name for the calibrated ns. per read above which the auto clock switches a CPU time to the coarse clock */
+	public static final String PROP_CPU_CLOCK_THRESHOLD = "tsdb.cpuclock.threshold";
+	/** The default auto clock read cost threshold in ns. */
+	public static final long DEFAULT_CPU_CLOCK_THRESHOLD = 1000;
+	/** The system property config name for the period in ms. on which the coarse clock samples the CPU time of threads in measured frames */
+	public static final String PROP_CPU_CLOCK_PERIOD = "tsdb.cpuclock.period";
+	/** The default coarse clock sampling period in ms. */
+	public static final long DEFAULT_CPU_CLOCK_PERIOD = 10;
+	/** The system property config name for the age in ns. under which a thread's last contention read is reused by the next measured frame boundary */
+	public static final String PROP_CONTENTION_MAXAGE = "tsdb.contention.maxage";
+	/** The default contention read reuse age in ns. */
+	public static final long DEFAULT_CONTENTION_MAXAGE = 10000;
+	/** The system property config name for the number of measured frames a thread must enter per sampler period to have its contention read by the batched sampler. Less than 1 disables the sampler */
+	public static final String PROP_CONTENTION_HOT = "tsdb.contention.hot";
+	/** The default hot thread frame count */
+	public static final int DEFAULT_CONTENTION_HOT = 100;
+	/** The system property config name for the period in ms. on which the batched sampler reads the contention of hot threads */
+	public static final String PROP_CONTENTION_PERIOD = "tsdb.contention.period";
+	/** The default contention sampler period in ms. */
+	public static final long DEFAULT_CONTENTION_PERIOD = 10;
+
+	// =======================================
+	// Backpressure
+	// =======================================
+
+	/** The system property config name for the load shedding policy applied to producers when the pipeline is overloaded */
+	public static final String PROP_BP_POLICY = "tsdb.backpressure.policy";
+	/** The default load shedding policy */
+	public static final BackpressurePolicy DEFAULT_BP_POLICY = BackpressurePolicy.DROP_NEWEST;
+	/** The system property config name for the pressure level (percent) at or above which the load shedding policy is applied */
+	public static final String PROP_BP_THRESHOLD = "tsdb.backpressure.threshold";
+	/** The default pressure threshold percentage */
+	public static final int DEFAULT_BP_THRESHOLD = 80;
+	/** The system property config name for the maximum time in ms. a producer will block under the BLOCK policy */
+	public static final String PROP_BP_MAX_BLOCK = "tsdb.backpressure.block.max";
+	/** The default maximum block time in ms. */
+	public static final long DEFAULT_BP_MAX_BLOCK = 500;
+	/** The system property config name for the percentage of submissions accepted under the SAMPLE policy */
+	public static final String PROP_BP_SAMPLE_RATE = "tsdb.backpressure.sample.rate";
+	/** The default sample acceptance percentage */
+	public static final int DEFAULT_BP_SAMPLE_RATE = 10;
+	/** The system property config name for the minimum period in ms. between pressure level recomputations */
+	public static final String PROP_BP_REFRESH = "tsdb.backpressure.refresh";
+	/** The default pressure level refresh period in ms. */
+	public static final long DEFAULT_BP_REFRESH = 50;
+	/** The system property config name for the maximum number of in-flight metric http posts */
+	public static final String PROP_MAX_INFLIGHT = "tsdb.http.max.inflight";
+	/** The default maximum number of in-flight metric http posts */
+	public static final int DEFAULT_MAX_INFLIGHT = CORES * 4;
+
+	// =======================================
+	// Delivery Tracing
+	// =======================================
+
+	/** The system property config name for enabling batch delivery stage tracing */
+	public static final String PROP_TRACE_ENABLED = "tsdb.trace.enabled";
+	/** The default batch delivery stage tracing enablement */
+	public static final boolean DEFAULT_TRACE_ENABLED = true;
+	/** The system property config name for the period in ms. on which delivery stage self-metrics are traced. Less than 1 disables */
+	public static final String PROP_TRACE_PERIOD = "tsdb.trace.period";
+	/** The default delivery stage self-metric period in ms. */
+	public static final long DEFAULT_TRACE_PERIOD = 15000;
+	/** The system property config name for the delivery stage self-metric name */
+	public static final String PROP_TRACE_METRIC = "tsdb.trace.metric";
+	/** The default delivery stage self-metric name */
+	public static final String DEFAULT_TRACE_METRIC = "tsdb.client.delivery";
+
+	// =======================================
+	// Reporting
+	// =======================================
+
+	/** The system property config name for reporting histogram snapshots per interval, resetting the sample on each report */
+	public static final String PROP_INTERVAL_SNAPSHOTS = "tsdb.reporter.interval";
+	/** The default interval snapshot enablement */
+	public static final boolean DEFAULT_INTERVAL_SNAPSHOTS = true;
+	/** The system property config name for the maximum number of values sampled per interval by an interval histogram */
+	public static final String PROP_INTERVAL_SAMPLE_SIZE = "tsdb.reporter.interval.samplesize";
+	/** The default maximum number of values sampled per interval */
+	public static final int DEFAULT_INTERVAL_SAMPLE_SIZE = 1028;
+	/** The system property config name for the number of metrics per report partition. Reports of more metrics are rendered in parallel, one batch per partition */
+	public static final String PROP_REPORT_PARTITION_SIZE = "tsdb.reporter.partition.size";
+	/** The default number of metrics per report partition */
+	public static final int DEFAULT_REPORT_PARTITION_SIZE = 10000;
+	/** The system property config name for the deadline in ms. for rendering a partitioned report. Partitions still rendering at the deadline post what they rendered, and unstarted ones are skipped */
+	public static final String PROP_REPORT_DEADLINE = "tsdb.reporter.deadline";
+	/** The default partitioned report render deadline in ms. */
+	public static final long DEFAULT_REPORT_DEADLINE = 10000;
+	/** The system property config name for reporting only metrics updated since they were last reported. Gauges are always reported.
+	 * Note that the 1, 5 and 15 minute rates of idle meters and timers are then not reported as they decay, until the idle heartbeat */
+	public static final String PROP_REPORT_DIRTY_ONLY = "tsdb.reporter.dirtyonly";
+	/** The default dirty only reporting enablement */
+	public static final boolean DEFAULT_REPORT_DIRTY_ONLY = false;
+	/** The system property config name for the period in ms. on which idle metrics are reported anyway when reporting dirty metrics only. Less than 1 disables */
+	public static final String PROP_REPORT_IDLE_HEARTBEAT = "tsdb.reporter.idle.heartbeat";
+	/** The default idle metric heartbeat period in ms. */
+	public static final long DEFAULT_REPORT_IDLE_HEARTBEAT = 300000;
+
+	// =======================================
+	// Priority Lanes
+	// =======================================
+
+	/** The system property config name for the regex matched against metric names to assign them to the critical priority lane */
+	public static final String PROP_PRIORITY_CRITICAL_PATTERN = "tsdb.priority.critical.pattern";
+	/** The default critical priority metric name pattern (none) */
+	public static final String DEFAULT_PRIORITY_CRITICAL_PATTERN = "";
+	/** The system property config name for the number of buffered critical metrics that triggers a flush */
+	public static final String PROP_LANE_CRITICAL_SIZE = "tsdb.lane.critical.size";
+	/** The default critical lane flush size trigger */
+	public static final int DEFAULT_LANE_CRITICAL_SIZE = 20;
+	/** The system property config name for the critical lane flush period in ms. */
+	public static final String PROP_LANE_CRITICAL_TIME = "tsdb.lane.critical.time";
+	/** The default critical lane flush period in ms. */
+	public static final long DEFAULT_LANE_CRITICAL_TIME = 1000;
+	/** The system property config name for the maximum number of concurrent critical lane http posts */
+	public static final String PROP_LANE_CRITICAL_SENDERS = "tsdb.lane.critical.senders";
+	/** The default maximum number of concurrent critical lane http posts */
+	public static final int DEFAULT_LANE_CRITICAL_SENDERS = 2;
+	/** The system property config name for the critical lane delivery latency SLO in ms. */
+	public static final String PROP_LANE_CRITICAL_SLO = "tsdb.lane.critical.slo";
+	/** The default critical lane delivery latency SLO in ms. */
+	public static final long DEFAULT_LANE_CRITICAL_SLO = 2000;
+	/** The system property config name for the number of buffered normal metrics that triggers a flush */
+	public static final String PROP_LANE_NORMAL_SIZE = "tsdb.lane.normal.size";
+	/** The default normal lane flush size trigger */
+	public static final int DEFAULT_LANE_NORMAL_SIZE = 100;
+	/** The system property config name for the normal lane flush period in ms. */
+	public static final String PROP_LANE_NORMAL_TIME = "tsdb.lane.normal.time";
+	/** The default normal lane flush period in ms. */
+	public static final long DEFAULT_LANE_NORMAL_TIME = 5000;
+	/** The system property config name for the maximum number of concurrent normal lane http posts */
+	public static final String PROP_LANE_NORMAL_SENDERS = "tsdb.lane.normal.senders";
+	/** The default maximum number of concurrent normal lane http posts */
+	public static final int DEFAULT_LANE_NORMAL_SENDERS = CORES * 2;
+	/** The system property config name for the normal lane delivery latency SLO in ms. */
+	public static final String PROP_LANE_NORMAL_SLO = "tsdb.lane.normal.slo";
+	/** The default normal lane delivery latency SLO in ms. */
+	public static final long DEFAULT_LANE_NORMAL_SLO = 30000;
+
 
 	// =======================================
 	// LongIdOTMetricCache
@@ -402,6 +594,63 @@ public interface Constants {
 	public static final String PROP_SHORTHAND_TOLERANT_PROPERTY = "tsdb.aop.shorthand.tolerant";
 	/** The default default-domain of the default MBeanServer which is the platform MBeanServer */
 	public static final boolean DEFAULT_SHORTHAND_TOLERANT_PROPERTY = false;
+	/** The system property name for enabling the persistence of the shorthand type index between restarts */
+	public static final String PROP_TYPE_INDEX_PERSIST = "tsdb.aop.typeindex.persist";
+	/** The default type index persistence */
+	public static final boolean DEFAULT_TYPE_INDEX_PERSIST = true;
+	/** The system property name for the maximum number of distinct runtime values a dynamic metric name call site resolves before using the "other" metric */
+	public static final String PROP_NAMING_CACHE_SIZE = "tsdb.aop.naming.cachesize";
+	/** The default dynamic metric name call site cache size */
+	public static final int DEFAULT_NAMING_CACHE_SIZE = 64;
+	/** The system property name for enabling the persistent cache of instrumented bytecode */
+	public static final String PROP_WOVEN_CACHE = "tsdb.aop.wovencache";
+	/** The default instrumented bytecode cache enablement */
+	public static final boolean DEFAULT_WOVEN_CACHE = true;
+	/** The system property name for the maximum total size in bytes of the instrumented bytecode cache, pruned of the least recently used entries at startup */
+	public static final String PROP_WOVEN_CACHE_SIZE = "tsdb.aop.wovencache.maxsize";
+	/** The default maximum instrumented bytecode cache size in bytes */
+	public static final long DEFAULT_WOVEN_CACHE_SIZE = 64L * 1024L * 1024L;
+	/** The system property name for the maximum age in ms. since their last use of the instrumented bytecode cache entries, pruned at startup */
+	public static final String PROP_WOVEN_CACHE_AGE = "tsdb.aop.wovencache.maxage";
+	/** The default maximum instrumented bytecode cache entry age in ms. (7 days) */
+	public static final long DEFAULT_WOVEN_CACHE_AGE = 7L * 24L * 60L * 60L * 1000L;
+	/** The system property name for the weaving engine: <b><code>javassist</code></b> compiles the hooks from source, <b><code>streaming</code></b> emits them straight into the class file */
+	public static final String PROP_WEAVER = "tsdb.aop.weaver";
+	/** The default weaving engine */
+	public static final String DEFAULT_WEAVER = "javassist";
+	/** The system property name for the comma separated internal form package prefixes of classes never matched as they load */
+	public static final String PROP_LOADTIME_EXCLUDES = "tsdb.aop.loadtime.excludes";
+	/** The default load time excluded package prefixes: the JVM internals and the agent's own packages */
+	public static final String DEFAULT_LOADTIME_EXCLUDES = "java/lang/invoke/,jdk/internal/,sun/reflect/,com/sun/proxy/,com/heliosapm/opentsdb/,heliosapm/,javassist/,jsr166e/,org/cliffc/,org/apache/logging/log4j/";
+	/** The system property name for the period in ms. at which classes matched as they load are woven */
+	public static final String PROP_LOADTIME_PERIOD = "tsdb.aop.loadtime.period";
+	/** The default load time weaving period in ms. */
+	public static final long DEFAULT_LOADTIME_PERIOD = 100;
+	/** The system property name for the number of instrumented sites that can be switched on and off at runtime */
+	public static final String PROP_SITE_SWITCHES = "tsdb.aop.switches";
+	/** The default number of switchable instrumented sites */
+	public static final int DEFAULT_SITE_SWITCHES = 32768;
+	
+	//======================================================================================================================
+	//     Instrumentation Overhead Guard Props
+	//======================================================================================================================
+	/** The system property name for enabling the instrumentation overhead guard */
+	public static final String PROP_OVERHEAD_ENABLED = "tsdb.aop.overhead.enabled";
+	/** The default instrumentation overhead guard enablement */
+	public static final boolean DEFAULT_OVERHEAD_ENABLED = true;
+	/** The system property name for the instrumentation overhead budget per instrumented method in ns. per second */
+	public static final String PROP_OVERHEAD_BUDGET = "tsdb.aop.overhead.budget";
+	/** The default instrumentation overhead budget (1% of a CPU) */
+	public static final long DEFAULT_OVERHEAD_BUDGET = 10000000L;
+	/** The system property name for the instrumentation overhead guard check period in ms. */
+	public static final String PROP_OVERHEAD_PERIOD = "tsdb.aop.overhead.period";
+	/** The default instrumentation overhead guard check period in ms. */
+	public static final long DEFAULT_OVERHEAD_PERIOD = 5000L;
+	/** The system property name for the action taken on a method over budget: <b><code>sample</code></b> switches to sampling and restores the
+	 * original bytecode if still over budget, <b><code>restore</code></b> restores the original bytecode, <b><code>log</code></b> only reports it */
+	public static final String PROP_OVERHEAD_ACTION = "tsdb.aop.overhead.action";
+	/** The default action taken on a method over budget */
+	public static final String DEFAULT_OVERHEAD_ACTION = "sample";
 	
 	
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+/**
+ * <p>Title: DeliveryStage</p>
+ * <p>Description: Enumerates the traced stages of a metric batch's delivery, from the first append to its buffer
+ * until the OpenTSDB acknowledgement, the failed response or the offline spill.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.DeliveryStage</code></p>
+ */
+
+public enum DeliveryStage {
+	/** From the first metric appended to the batch's buffer to the flush trigger */
+	BUFFER,
+	/** From the flush trigger to the first http request start, including compression */
+	QUEUE,
+	/** The batch compression */
+	COMPRESS,
+	/** From the http request start to the response received */
+	REQUEST,
+	/** From the first metric appended to the OpenTSDB acknowledgement (a 2xx response) */
+	DELIVERY,
+	/** From the first metric appended to a non 2xx OpenTSDB response. Counts the failed deliveries. */
+	FAILED,
+	/** From the first metric appended to the batch being spilled to the offline store */
+	SPILL;
+}
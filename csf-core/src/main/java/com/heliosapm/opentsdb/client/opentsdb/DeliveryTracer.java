@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.EnumMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Snapshot;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: DeliveryTracer</p>
+ * <p>Description: Singleton collector of per batch {@link DeliveryStage} elapsed times, recorded by each batch's {@link BatchTrace}.
+ * Each stage's histogram is registered as a {@link StageHistogramMBean} and, every {@link Constants#PROP_TRACE_PERIOD} ms.,
+ * each stage's count, median, 99th and 99.9th percentile and max (in ms.) are traced as self-metrics
+ * named {@link Constants#PROP_TRACE_METRIC} and tagged with the stage and statistic.
+ * Stage times are recorded once per batch, not per metric.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.DeliveryTracer</code></p>
+ */
+
+public class DeliveryTracer implements Runnable {
+	/** The singleton instance */
+	private static volatile DeliveryTracer instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The traced statistic names */
+	private static final String[] STATS = {"count", "p50", "p99", "p999", "max"};
+
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+	/** The stage histograms */
+	private final EnumMap<DeliveryStage, StageHistogram> stages = new EnumMap<DeliveryStage, StageHistogram>(DeliveryStage.class);
+	/** Indicates if stage times are recorded */
+	private volatile boolean enabled;
+	/** The self-metric name */
+	private final String metricName;
+	/** The self-metrics, indexed by stage ordinal then statistic, built on first use */
+	private OTMetric[][] selfMetrics = null;
+
+	/**
+	 * Acquires the DeliveryTracer singleton instance
+	 * @return the DeliveryTracer singleton instance
+	 */
+	public static DeliveryTracer getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new DeliveryTracer();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private DeliveryTracer() {
+		enabled = ConfigurationReader.confBool(Constants.PROP_TRACE_ENABLED, Constants.DEFAULT_TRACE_ENABLED);
+		metricName = ConfigurationReader.conf(Constants.PROP_TRACE_METRIC, Constants.DEFAULT_TRACE_METRIC);
+		for(DeliveryStage stage: DeliveryStage.values()) {
+			final StageHistogram sh = new StageHistogram(stage);
+			stages.put(stage, sh);
+			try {
+				JMXHelper.registerMBean(sh, sh.objectName);
+			} catch (Exception ex) {
+				log.warn("Failed to register StageHistogram management interface for [{}]. Will continue without.", stage, ex);
+			}
+		}
+		final long period = ConfigurationReader.confLong(Constants.PROP_TRACE_PERIOD, Constants.DEFAULT_TRACE_PERIOD);
+		if(enabled && period > 0) {
+			Threading.getInstance().schedule(this, period);
+		}
+		log.info("DeliveryTracer initialized. Enabled: {}, self-metric period: {} ms.", enabled, period);
+	}
+
+	/**
+	 * Records a stage's elapsed time
+	 * @param stage The stage
+	 * @param nanos The elapsed time in nanos.
+	 */
+	void record(final DeliveryStage stage, final long nanos) {
+		if(enabled) stages.get(stage).update(nanos);
+	}
+
+	/**
+	 * Returns the histogram for the passed stage
+	 * @param stage The stage
+	 * @return the stage's histogram
+	 */
+	public StageHistogram getStage(final DeliveryStage stage) {
+		return stages.get(stage);
+	}
+
+	/**
+	 * Indicates if stage times are recorded
+	 * @return true if enabled, false otherwise
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables or disables recording of stage times
+	 * @param enabled true to enable, false to disable
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Traces the stage statistics as self-metrics
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		if(!enabled) return;
+		try {
+			if(selfMetrics==null) {
+				final OTMetric[][] metrics = new OTMetric[DeliveryStage.values().length][];
+				for(DeliveryStage stage: DeliveryStage.values()) {
+					metrics[stage.ordinal()] = new OTMetric[STATS.length];
+					for(int i = 0; i < STATS.length; i++) {
+						metrics[stage.ordinal()][i] = MetricBuilder.metric(metricName).tag("stage", stage.name().toLowerCase()).tag("stat", STATS[i]).build();
+					}
+				}
+				selfMetrics = metrics;
+			}
+			final long now = System.currentTimeMillis();
+			for(StageHistogram sh: stages.values()) {
+				final long count = sh.getCount();
+				if(count==0) continue;
+				final OTMetric[] metrics = selfMetrics[sh.stage.ordinal()];
+				final Snapshot snap = sh.getSnapshot();
+				MetricBuilder.trace(metrics[0], now, count);
+				MetricBuilder.trace(metrics[1], now, snap.getMedian() / 1000D);
+				MetricBuilder.trace(metrics[2], now, snap.get99thPercentile() / 1000D);
+				MetricBuilder.trace(metrics[3], now, snap.get999thPercentile() / 1000D);
+				MetricBuilder.trace(metrics[4], now, snap.getMax() / 1000D);
+			}
+		} catch (Exception ex) {
+			log.warn("Failed to trace delivery stage self-metrics", ex);
+		}
+	}
+}
@@ -74,6 +74,7 @@ public class Heartbeat implements Closeable, Runnable, AgentNameChangeListener {
 		tags.put(Constants.HOST_TAG, AgentName.getInstance().getHostName());
 		value = ConfigurationReader.confInt(Constants.PROP_HEARTBEAT_VALUE, Constants.DEFAULT_HEARTBEAT_VALUE);
 		otMetric = OTMetricCache.getInstance().getOTMetric(metricName, null, null, tags);
+		MetricLanes.getInstance().assign(otMetric, MetricPriority.CRITICAL);
 	}
 	
 	/**
@@ -82,7 +83,8 @@ public class Heartbeat implements Closeable, Runnable, AgentNameChangeListener {
 	 */
 	public Heartbeat start() {
 		if(timeout==null) {
-			timeout = Threading.getInstance().schedule(this, period, TimeUnit.SECONDS);
+			// runs on the scheduler thread so a backlogged thread pool cannot delay the heartbeat
+			timeout = Threading.getInstance().scheduleInline(this, TimeUnit.SECONDS.toMillis(period));
 		}
 		return this;
 	}
@@ -134,6 +136,7 @@ public class Heartbeat implements Closeable, Runnable, AgentNameChangeListener {
 			}
 		}
 		otMetric = OTMetricCache.getInstance().getOTMetric(metricName, null, null, tags);
+		MetricLanes.getInstance().assign(otMetric, MetricPriority.CRITICAL);
 	}
 	
 
@@ -39,6 +39,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -106,6 +107,8 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	protected int retryCount = confInt(PROP_REQUEST_RETRY, DEFAULT_REQUEST_RETRY);
 	/** The maximum number of concurrent flushes */
 	protected int maxConcurrentFlushes = confInt(PROP_MAX_CN_FLUSH, DEFAULT_MAX_CN_FLUSH);
+	/** The number of in-flight metric posts at which the sender reports full pressure */
+	protected int maxInFlight = confInt(PROP_MAX_INFLIGHT, DEFAULT_MAX_INFLIGHT);
 	/** The retry delay in ms. */
 	protected int requestRetryDelay = confInt(PROP_REQUEST_RETRY_DELAY, DEFAULT_REQUEST_RETRY_DELAY);	
 	/** The http request timeout in ms */
@@ -170,6 +173,8 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	protected final AtomicLong successfulMetrics = new AtomicLong(0);
 	/** A counter of failed (bad) submitted metrics based on OpenTSDB responses */
 	protected final AtomicLong failedMetrics = new AtomicLong(0);
+	/** A gauge of metric posts issued but not yet responded to */
+	protected final AtomicInteger inFlight = new AtomicInteger(0);
 
 	
 	/** The http proxy */
@@ -195,6 +200,16 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	
 	/** The http client */
 	protected AsyncHttpClient httpClient = null;
+	/** The dedicated http client for the critical priority lane */
+	protected AsyncHttpClient priorityClient = null;
+	/** Indicates if metrics are posted with the native netty sender */
+	protected volatile boolean nativeSender = confBool(PROP_NATIVE_SENDER, DEFAULT_NATIVE_SENDER);
+	/** The maximum number of pipelined posts per native sender connection */
+	protected int nativePipeline = confInt(PROP_NATIVE_PIPELINE, DEFAULT_NATIVE_PIPELINE);
+	/** The native sender for bulk posts, null until native mode is first enabled */
+	protected volatile NettyHttpSender bulkSender = null;
+	/** The native sender for the critical priority lane, null until native mode is first enabled */
+	protected volatile NettyHttpSender prioritySender = null;
 	
 	/** The header map */
 	protected final Map<String,Collection<String>> httpHeaders = new ConcurrentHashMap<String,Collection<String>>(2);
@@ -236,24 +251,11 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 				proxy = new ProxyServer(proxyURI.getHost(), proxyURI.getPort());
 			}
 		}
-		AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder()		
-			.setAllowPoolingConnection(poolConnections)
-			.setIOThreadMultiplier(1)
-			.setAsyncHttpClientProviderConfig(new NettyAsyncHttpProviderConfig()
-				.addProperty(NettyAsyncHttpProviderConfig.BOSS_EXECUTOR_SERVICE, Threading.getInstance().getThreadPool())
-				.addProperty(NettyAsyncHttpProviderConfig.USE_DIRECT_BYTEBUFFER, new DirectChannelBufferFactory(4096))
-				.addProperty(NettyAsyncHttpProviderConfig.REUSE_ADDRESS, true)
-				.addProperty(NettyAsyncHttpProviderConfig.EXECUTE_ASYNC_CONNECT, true)
-			)
-			.setMaximumConnectionsPerHost(5)
-			.setMaximumConnectionsTotal(15)
-			.setConnectionTimeoutInMs(connectionTimeout)
-			.setRequestTimeoutInMs(requestTimeout)
-			.setExecutorService(Threading.getInstance().getThreadPool());
-//		if(proxy!=null) {
-//			builder.setProxyServer(proxy);
-//		} 
-		httpClient = new AsyncHttpClient(builder.build());
+		httpClient = new AsyncHttpClient(clientConfig(5, 15, Threading.getInstance().getThreadPool()));
+		final int criticalSenders = confInt(PROP_LANE_CRITICAL_SENDERS, DEFAULT_LANE_CRITICAL_SENDERS);
+		priorityClient = new AsyncHttpClient(clientConfig(criticalSenders, criticalSenders, Threading.getInstance().getPriorityThreadPool()));
+		// the native senders start their own io threads, so are only created once native mode is enabled
+		if(nativeSender && proxy==null) createSenders();
 		checker = new ConnectivityChecker(httpClient, tsdbUrl + connCheckPath, connCheckMethod, offlineReconnectPeriod, connectionTimeout, connCheckPeriod, proxy, this);
 		httpHeaders.put(Names.CONTENT_TYPE, Collections.singleton("application/json"));
 		httpHeaders.put(Names.ACCEPT_ENCODING, Collections.singleton("gzip"));
@@ -264,11 +266,57 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 		heartbeat = new Heartbeat(heartbeatMetric, heartbeatPeriod).start();
 		log.info("AsyncHttpClient Created");
 		OBJECT_NAME = registerMBean();
+		BackpressureGovernor.getInstance().registerSource("sender", new BackpressureGovernor.PressureSource() {
+			@Override
+			public int getPressure() {
+				return BackpressureGovernor.percent(inFlight.get(), maxInFlight);
+			}
+		});
 		if(checker.syncCheck(true)) {
 			onConnected();
 		}
 	}
 	
+	/**
+	 * Builds an http client configuration
+	 * @param maxConnsPerHost The maximum number of connections per host
+	 * @param maxConnsTotal The maximum total number of connections
+	 * @param executor The executor for the client's io and callbacks
+	 * @return the http client configuration
+	 */
+	private AsyncHttpClientConfig clientConfig(final int maxConnsPerHost, final int maxConnsTotal, final ExecutorService executor) {
+		AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder()		
+			.setAllowPoolingConnection(poolConnections)
+			.setIOThreadMultiplier(1)
+			.setAsyncHttpClientProviderConfig(new NettyAsyncHttpProviderConfig()
+				.addProperty(NettyAsyncHttpProviderConfig.BOSS_EXECUTOR_SERVICE, executor)
+				.addProperty(NettyAsyncHttpProviderConfig.USE_DIRECT_BYTEBUFFER, new DirectChannelBufferFactory(4096))
+				.addProperty(NettyAsyncHttpProviderConfig.REUSE_ADDRESS, true)
+				.addProperty(NettyAsyncHttpProviderConfig.EXECUTE_ASYNC_CONNECT, true)
+			)
+			.setMaximumConnectionsPerHost(maxConnsPerHost)
+			.setMaximumConnectionsTotal(maxConnsTotal)
+			.setConnectionTimeoutInMs(connectionTimeout)
+			.setRequestTimeoutInMs(requestTimeout)
+			.setExecutorService(executor);
+//		if(proxy!=null) {
+//			builder.setProxyServer(proxy);
+//		} 
+		return builder.build();
+	}
+	
+	/**
+	 * (Re)creates the native senders for the current post url, closing any prior senders
+	 */
+	private synchronized void createSenders() {
+		final NettyHttpSender priorBulk = bulkSender, priorPriority = prioritySender;
+		final int criticalSenders = confInt(PROP_LANE_CRITICAL_SENDERS, DEFAULT_LANE_CRITICAL_SENDERS);
+		bulkSender = new NettyHttpSender(postUrl, 5, nativePipeline, connectionTimeout, requestTimeout);
+		prioritySender = new NettyHttpSender(postUrl, criticalSenders, 1, connectionTimeout, requestTimeout);
+		if(priorBulk!=null) priorBulk.close();
+		if(priorPriority!=null) priorPriority.close();
+	}
+	
 	private ObjectName registerMBean() {
 		try {
 			ObjectName on = new ObjectName(Util.getJMXDomain() + ":service=" + getClass().getSimpleName());
@@ -286,10 +334,12 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	 * Determines the outcome of a metrics post
 	 * @param status The HTTP response status
 	 * @param t The throwable that resulted, possibly null
+	 * @param trace The batch's delivery stage trace
 	 * @return true if retried
 	 */
-	private boolean processResponse(final HttpResponseStatus status, final Throwable t, final ChannelBuffer body, final int metricCount, final int retries, final long startTime) {		
+	private boolean processResponse(final AsyncHttpClient client, final HttpResponseStatus status, final Throwable t, final ChannelBuffer body, final int metricCount, final int retries, final long startTime, final BatchTrace trace) {		
 		if(status!=null) {
+			trace.responded(status.getStatusCode());
 			sentMetrics.addAndGet(metricCount);
 			lastSendTime.set(System.currentTimeMillis() - startTime);
 			return false;
@@ -297,7 +347,8 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 		
 		if(t!=null) {
 			if(t instanceof ConnectException || t instanceof TimeoutException) {
-				if(!retry(body, metricCount, retries)) {
+				if(!retry(client, body, metricCount, retries, trace)) {
+					trace.spilled();
 					mpersistor.offline(body);
 					bufferedMetrics.addAndGet(metricCount);
 					return false;
@@ -361,21 +412,23 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	
 	/**
 	 * Submits a retry
+	 * @param client The http client to retry on
 	 * @param body Thge body to send
 	 * @param metricCount The number of metrics in the body
 	 * @param retries The number of retries so far
+	 * @param trace The batch's delivery stage trace
 	 * @return true if a retry was scheduled, false otherwise
 	 */
-	private boolean retry(final ChannelBuffer body, final int metricCount, final int retries) {
+	private boolean retry(final AsyncHttpClient client, final ChannelBuffer body, final int metricCount, final int retries, final BatchTrace trace) {
 		if(retries >= retryCount || !checker.isConnected()) {
 			return false;  
 		}
 		Threading.getInstance().delay(new Runnable(){
 			public void run() {
 				try {
-					send(body, metricCount, (retries + 1));
+					send(client, body, metricCount, (retries + 1), trace);
 				} catch (Exception ex) {
-					retry(body, metricCount, retries);
+					retry(client, body, metricCount, retries, trace);
 				}
 			}
 		}, requestRetryDelay);
@@ -434,7 +487,7 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 		}
 		// FIXME:  
 		try {
-			send(buff, 0, retryCount-1, new FinalHookAsyncHandler<Object>(){
+			send(buff, 0, retryCount-1, BatchTrace.flushed(), new FinalHookAsyncHandler<Object>(){
 				int completionCode = 0;
 				@Override
 				public void onFinal(final boolean success) {
@@ -495,6 +548,7 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 			failedMetrics.compareAndSet(-1L, 0);			
 		}
 		if(checker!=null) checker.setUrlToCheck(tsdbUrl);
+		if(bulkSender!=null) createSenders();
 	}
 	
 	private static void throwAsyncHandlers(final Throwable t, final AsyncHandler<Object>...handlers) {
@@ -507,36 +561,95 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	
 	void send(final ChannelBuffer body, final int metricsToWrite) {
 		try {
-			send(body, metricsToWrite, 0, null);
+			send(body, metricsToWrite, 0, BatchTrace.flushed(), null);
 		} catch (Exception ex) {
 			log.error("Failed to send [{}] metrics", metricsToWrite, ex);
 		}
 	}
 	
+	/**
+	 * Sends a metrics buffer on the bulk http client
+	 * @param body The buffer containing the metrics to send
+	 * @param metricsToWrite The number of metrics in the buffer
+	 * @param handler The async handler notified of the post's outcome
+	 */
+	@SuppressWarnings("unchecked")
+	void send(final ChannelBuffer body, final int metricsToWrite, final AsyncHandler<Object> handler) {
+		try {
+			send(body, metricsToWrite, 0, BatchTrace.flushed(), handler);
+		} catch (Exception ex) {
+			log.error("Failed to send [{}] metrics", metricsToWrite, ex);
+		}
+	}
+	
+	
+	/**
+	 * Sends a metrics buffer flushed from a {@link MetricLane}. Critical lane flushes are posted on a dedicated
+	 * http client so they never queue behind bulk posts or offline replays.
+	 * @param body The buffer containing the metrics to send
+	 * @param metricsToWrite The number of metrics in the buffer
+	 * @param priority The priority lane the buffer was flushed from
+	 * @param trace The batch's delivery stage trace
+	 * @param handler The async handler notified of the post's outcome
+	 */
+	@SuppressWarnings("unchecked")
+	void send(final ChannelBuffer body, final int metricsToWrite, final MetricPriority priority, final BatchTrace trace, final AsyncHandler<Object> handler) {
+		try {
+			send(priority==MetricPriority.CRITICAL ? priorityClient : httpClient, body, metricsToWrite, 0, trace, handler);
+		} catch (Exception ex) {
+			log.error("Failed to send [{}] {} metrics", metricsToWrite, priority, ex);
+		}
+	}
+	
+	/**
+	 * Sends a metrics buffer on the bulk http client
+	 * @param body
+	 * @param metricsToWrite
+	 * @param retries
+	 * @param trace
+	 * @param handlers
+	 * @throws IOException
+	 */
+	private void send(final ChannelBuffer body, final int metricsToWrite, final int retries, final BatchTrace trace, final AsyncHandler<Object>...handlers) throws IOException {
+		send(httpClient, body, metricsToWrite, retries, trace, handlers);
+	}
 	
 	/**
 	 * This is where the real metrics HTTP post is done
+	 * @param client The http client to post with
 	 * @param body
 	 * @param metricsToWrite
 	 * @param retries
+	 * @param trace The batch's delivery stage trace
 	 * @param handlers
 	 * @throws IOException
 	 */
-	private void send(final ChannelBuffer body, final int metricsToWrite, final int retries, final AsyncHandler<Object>...handlers) throws IOException {
+	private void send(final AsyncHttpClient client, final ChannelBuffer body, final int metricsToWrite, final int retries, final BatchTrace trace, final AsyncHandler<Object>...handlers) throws IOException {
 		if(hardDown.get() || retries == retryCount) {			
+			trace.spilled();
 			try { mpersistor.offline(body); } catch (Exception x) {/* TODO */}
 			bufferedMetrics.addAndGet(metricsToWrite);
 			throwAsyncHandlers(null, handlers);
 			return;
 		}
 		if(enableCompression && !OffHeapFIFOFile.isGzipped(body)) {
+			trace.compressing();
 			OffHeapFIFOFile.compress(body, null, null);
+			trace.compressed();
 		}
 		final boolean hasHandlers = handlers!=null && handlers.length>0;
 		final int contentLength = body.readableBytes();
 		final long start = System.currentTimeMillis();
+		// only bulk posts count towards the sender's backpressure
+		final AtomicBoolean landed = new AtomicBoolean(client!=httpClient);
+		if(client==httpClient) inFlight.incrementAndGet();
+		trace.requested();
+		if(nativeSender && proxy==null) {
+			sendNative(client, body, metricsToWrite, retries, start, trace, landed, handlers);
+			return;
+		}
 		try {
-			httpClient.preparePost(postUrl) 
+			client.preparePost(postUrl) 
 			.setHeaders(httpHeaders)				  // TODO: add accepts gzip
 			.setBody(new BodyGenerator(){
 				/**
@@ -589,8 +702,9 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 				@SuppressWarnings("null")
 				@Override
 				public void onThrowable(final Throwable t) {
+					if(landed.compareAndSet(false, true)) inFlight.decrementAndGet();
 					try {
-						processResponse(null, t, body, metricsToWrite, retries, start);
+						processResponse(client, null, t, body, metricsToWrite, retries, start, trace);
 						if(hasHandlers) {
 							for(AsyncHandler<Object> h: handlers) {
 								if(h==null) continue;
@@ -629,7 +743,8 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 				@Override
 				public STATE onStatusReceived(final HttpResponseStatus responseStatus) throws Exception {
 					responseCode = responseStatus.getStatusCode();
-					processResponse(responseStatus, null, body, metricsToWrite, retries, start);
+					if(landed.compareAndSet(false, true)) inFlight.decrementAndGet();
+					processResponse(client, responseStatus, null, body, metricsToWrite, retries, start, trace);
 					if(hasHandlers) {
 						for(AsyncHandler<Object> h: handlers) {
 							if(h==null) continue;
@@ -692,6 +807,7 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 				
 			});
 		} catch (Exception ex) {
+			if(landed.compareAndSet(false, true)) inFlight.decrementAndGet();
 			throwAsyncHandlers(ex, handlers);
 			if(ex instanceof IOException) throw (IOException)ex;
 			throw new IOException("Failed to http-post", ex);
@@ -699,7 +815,112 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 	}
 	
 	
+	/**
+	 * Posts a metrics buffer with the native sender matching the passed client. 
+	 * The outcome is processed exactly as for the async http client path, and the passed handlers are notified
+	 * with {@link AsyncHandler#onStatusReceived(HttpResponseStatus)} and {@link AsyncHandler#onCompleted()} 
+	 * or with {@link AsyncHandler#onThrowable(Throwable)}.
+	 * @param client The http client the post was issued for, which determines the native sender used
+	 * @param body The buffer containing the metrics to send
+	 * @param metricsToWrite The number of metrics in the buffer
+	 * @param retries The number of retries already attempted
+	 * @param start The post start time
+	 * @param trace The batch's delivery stage trace
+	 * @param landed Indicates if the post has already been removed from the in-flight count
+	 * @param handlers The async handlers to notify
+	 */
+	private void sendNative(final AsyncHttpClient client, final ChannelBuffer body, final int metricsToWrite, final int retries, final long start, final BatchTrace trace, final AtomicBoolean landed, final AsyncHandler<Object>...handlers) {
+		final NettyHttpSender sender = client==priorityClient ? prioritySender : bulkSender;
+		final boolean hasHandlers = handlers!=null && handlers.length>0;
+		sender.post(body, new NettyHttpSender.ResponseListener() {
+			@Override
+			public void onResponse(final int code, final String reason, final ChannelBuffer content) {
+				if(landed.compareAndSet(false, true)) inFlight.decrementAndGet();
+				final HttpResponseStatus responseStatus = new NativeResponseStatus(postUrl, code, reason);
+				try {
+					processResponse(client, responseStatus, null, body, metricsToWrite, retries, start, trace);
+					if(hasHandlers) {
+						for(AsyncHandler<Object> h: handlers) {
+							if(h==null) continue;
+							try {
+								h.onStatusReceived(responseStatus);
+								h.onCompleted();
+							} catch (Exception ex) {
+								log.error("Failed to execute async handler [{}].onCompleted", h, ex);
+							}
+						}
+					}
+					int[] counts = putResponseHandler.process(code, content);
+					if(counts!=null && counts[0] + counts[1] != 0) {
+						failedMetrics.addAndGet(counts[0]);
+						successfulMetrics.addAndGet(counts[1]);						
+					}
+				} finally {
+					OffHeapFIFOFile.clean(body);
+				}
+			}
+
+			@Override
+			public void onFailure(final Throwable t) {
+				if(landed.compareAndSet(false, true)) inFlight.decrementAndGet();
+				processResponse(client, null, t, body, metricsToWrite, retries, start, trace);
+				throwAsyncHandlers(t, handlers);
+			}
+		});
+	}
 	
+	/**
+	 * <p>Title: NativeResponseStatus</p>
+	 * <p>Description: Adapts a native sender response status to the async http client status passed to async handlers</p>
+	 */
+	private static class NativeResponseStatus extends HttpResponseStatus {
+		/** The status code */
+		private final int code;
+		/** The status reason phrase */
+		private final String reason;
+		
+		/**
+		 * Creates a new NativeResponseStatus
+		 * @param url The post url
+		 * @param code The status code
+		 * @param reason The status reason phrase
+		 */
+		NativeResponseStatus(final String url, final int code, final String reason) {
+			super(URI.create(url), null);
+			this.code = code;
+			this.reason = reason;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return code;
+		}
+
+		@Override
+		public String getStatusText() {
+			return reason;
+		}
+
+		@Override
+		public String getProtocolName() {
+			return "HTTP";
+		}
+
+		@Override
+		public int getProtocolMajorVersion() {
+			return 1;
+		}
+
+		@Override
+		public int getProtocolMinorVersion() {
+			return 1;
+		}
+
+		@Override
+		public String getProtocolText() {
+			return "HTTP/1.1";
+		}
+	}
 	
 	
 //	/**
@@ -1233,6 +1454,68 @@ public class HttpMetricsPoster extends NotificationBroadcasterSupport implements
 		this.maxConcurrentFlushes = maxConcurrentFlushes;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#getInFlight()
+	 */
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#getMaxInFlight()
+	 */
+	@Override
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#setMaxInFlight(int)
+	 */
+	@Override
+	public void setMaxInFlight(final int maxInFlight) {
+		if(maxInFlight < 1) throw new IllegalArgumentException("Invalid max in-flight [" + maxInFlight + "]");
+		this.maxInFlight = maxInFlight;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#isNativeSender()
+	 */
+	@Override
+	public boolean isNativeSender() {
+		return nativeSender;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#setNativeSender(boolean)
+	 */
+	@Override
+	public void setNativeSender(final boolean nativeSender) {
+		if(nativeSender && proxy!=null) throw new IllegalStateException("The native sender does not support http proxies");
+		if(nativeSender && bulkSender==null) {
+			synchronized(this) {
+				if(bulkSender==null) createSenders();
+			}
+		}
+		this.nativeSender = nativeSender;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#getNativeConnections()
+	 */
+	@Override
+	public int getNativeConnections() {
+		final NettyHttpSender bulk = bulkSender, priority = prioritySender;
+		return (bulk==null ? 0 : bulk.getConnectionCount()) + (priority==null ? 0 : priority.getConnectionCount());
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPosterMBean#dumpMetricNames(boolean)
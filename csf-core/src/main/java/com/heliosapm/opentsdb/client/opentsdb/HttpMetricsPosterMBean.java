@@ -301,7 +301,43 @@ public interface HttpMetricsPosterMBean {
 	 * @param maxConcurrentFlushes the maximum number of concurrent flushes
 	 */
 	public void setMaxConcurrentFlushes(final int maxConcurrentFlushes);
-	
+
+	/**
+	 * Returns the number of metric posts issued but not yet responded to
+	 * @return the number of in-flight metric posts
+	 */
+	public int getInFlight();
+
+	/**
+	 * Returns the number of in-flight metric posts at which the sender reports full backpressure
+	 * @return the maximum number of in-flight metric posts
+	 */
+	public int getMaxInFlight();
+
+	/**
+	 * Sets the number of in-flight metric posts at which the sender reports full backpressure
+	 * @param maxInFlight the maximum number of in-flight metric posts
+	 */
+	public void setMaxInFlight(final int maxInFlight);
+
+	/**
+	 * Indicates if metrics are posted with the native netty sender rather than the async http client
+	 * @return true if the native sender is in use, false otherwise
+	 */
+	public boolean isNativeSender();
+
+	/**
+	 * Enables or disables posting metrics with the native netty sender
+	 * @param nativeSender true to use the native sender, false to use the async http client
+	 */
+	public void setNativeSender(final boolean nativeSender);
+
+	/**
+	 * Returns the number of open native sender connections
+	 * @return the number of open native sender connections
+	 */
+	public int getNativeConnections();
+
 	/**
 	 * Returns the currently installed put response handler
 	 * @return the currently installed put response handler
@@ -26,13 +26,11 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.ObjectName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.jboss.netty.buffer.ChannelBuffer;
 
 import com.codahale.metrics.Clock;
 import com.google.common.hash.Funnel;
@@ -42,7 +40,6 @@ import com.heliosapm.opentsdb.client.opentsdb.opt.CHMetric;
 import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOTMetricCache;
 import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
 import com.heliosapm.opentsdb.client.opentsdb.opt.SubMetric;
-import com.heliosapm.opentsdb.client.util.DynamicByteBufferBackedChannelBufferFactory;
 import com.heliosapm.opentsdb.client.util.Util;
 
 
@@ -74,16 +71,13 @@ public class MetricBuilder {
 	private int subMetricMask = 0;
 	/** The CHMetric type of the metric to build */
 	private byte chMetric = 0;
+	/** The optional explicit priority of the metric to build */
+	private MetricPriority priority = null;
 	
 
-	/** The buffer factory for allocating buffers to stream metrics out to the tracer */
-    private static final DynamicByteBufferBackedChannelBufferFactory bufferFactory = new DynamicByteBufferBackedChannelBufferFactory(128);
-    
     /** A thread local map of OTMetric groups keyed by the group name */
     private static final ThreadLocal<Map<String, Set<OTMetric>>> groups = new ThreadLocal<Map<String, Set<OTMetric>>>(); 
 
-    private static final MetricBuffer METRIC_BUFFER = new MetricBuffer();
-    
     /** The clock for generating timestamps */
     private static Clock clock = null;
     
@@ -382,6 +376,16 @@ public class MetricBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets the priority of the metric to build, overriding the priority resolved by name pattern
+	 * @param priority The priority
+	 * @return this builder
+	 */
+	public MetricBuilder priority(final MetricPriority priority) {
+		this.priority = priority;
+		return this;
+	}
+	
 	/**
 	 * Sets the sub-metric mask of the metric to build
 	 * @param subMetricMask The sub-metric mask
@@ -577,6 +581,7 @@ public class MetricBuilder {
 			if(subMetricMask!=0) otm.setSubMetric(subMetricMask);
 		}
 		if(chMetric!=0) otm.setCHMetricType(chMetric);
+		if(priority!=null) MetricLanes.getInstance().assign(otm, priority);
 	}
 	
 	/**
@@ -727,7 +732,7 @@ public class MetricBuilder {
 				System.out.println(metric.toString() + ":[" + timestamp + "/" + value + "]");
 			}
 		} else {
-			METRIC_BUFFER.append(metric, timestamp, value);
+			MetricLanes.getInstance().trace(metric, timestamp, value);
 		}
 		if(traceLogger!=null) {
 			traceLogger.info(traceStdOutJson ? metric.toJSON(timestamp, value) : metric.toString() + ":[" + timestamp + "/" + value + "]");
@@ -776,58 +781,5 @@ public class MetricBuilder {
 		}
 		return clock;
 	}
-	
-	static class MetricBuffer implements Runnable {
-		protected final AtomicInteger counter = new AtomicInteger(0);
-		protected final int sizeThreshold = 100;
-		protected final long timeThreshold = 5000;
-		protected ChannelBuffer metricBuffer = bufferFactory.getBuffer(4096);
-		
-		MetricBuffer() {
-			metricBuffer.writeBytes(OTMetric.JSON_OPEN_ARR);
-			Threading.getInstance().schedule(this, timeThreshold);
-		}
-		
-		public void run() {
-			try {
-				synchronized(counter) {
-					final int count = counter.get();
-					if(count>0) {
-						flush(count);
-					}
-				}
-			} catch (Exception ex) {
-				ex.printStackTrace(System.err);
-			}
-		}
-		
-		void append(final OTMetric otm, final long timestamp, final Object value) {			
-			synchronized(counter) {
-				final int count = counter.incrementAndGet();
-				otm.toJSON(timestamp, value, metricBuffer, true);
-				if(count < sizeThreshold) {
-					return;
-				}
-				flush(count);
-			}
-		}
-		
-		void flush(final int count) {
-			try {
-				metricBuffer.writerIndex(metricBuffer.writerIndex()-OTMetric.JSON_COMMA.length);
-				metricBuffer.writeBytes(OTMetric.JSON_CLOSE_ARR);
-//				try {
-//					System.err.println(new JSONArray(metricBuffer.toString(UTF8)).toString(1));
-//					System.err.println("Sending " + count + " metrics");
-//				} catch (Exception ex) {}
-				OpenTsdb.getInstance().send(metricBuffer, count);
-				metricBuffer = bufferFactory.getBuffer(4096);
-				metricBuffer.writeBytes(OTMetric.JSON_OPEN_ARR);
-				counter.set(0);
-			} catch (Exception ex) {
-				ex.printStackTrace(System.err);
-			}
-		}
-	}
 
 }
@@ -0,0 +1,598 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.heliosapm.opentsdb.client.opentsdb.EmptyAsyncHandler.FinalHookAsyncHandler;
+import com.heliosapm.opentsdb.client.util.DynamicByteBufferBackedChannelBufferFactory;
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+import com.ning.http.client.HttpResponseStatus;
+
+/**
+ * <p>Title: MetricLane</p>
+ * <p>Description: A per {@link MetricPriority} metric buffer with its own flush triggers, its own bounded send concurrency
+ * and a delivery latency SLO. Traced metrics are appended to the lane's buffer and flushed to OpenTSDB when the size
+ * threshold is reached or the flush period elapses. A flush is deferred (and the buffer keeps accumulating) while all
+ * the lane's senders are busy, and the oldest pending batch is discarded if the backlog limit is reached.
+ * The buffer lock is only held to swap out a full buffer: the batch is serialized and posted on a sender thread, so appending threads
+ * and the scheduler never wait on a post.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.MetricLane</code></p>
+ */
+
+public class MetricLane implements Runnable, MetricLaneMBean {
+	/** The multiple of the size threshold at which pending metrics are discarded */
+	public static final int BACKLOG_FACTOR = 10;
+
+	/** The buffer factory for allocating lane buffers */
+	private static final DynamicByteBufferBackedChannelBufferFactory bufferFactory = new DynamicByteBufferBackedChannelBufferFactory(128);
+
+	/** Instance logger */
+	private final Logger log;
+	/** The priority of this lane */
+	final MetricPriority priority;
+	/** The lane's JMX ObjectName */
+	final ObjectName objectName;
+	/** The number of metrics in the current buffer. Also the buffer lock. */
+	private final AtomicInteger counter = new AtomicInteger(0);
+	/** The number of buffered metrics that triggers a flush */
+	private volatile int sizeThreshold;
+	/** The flush period in ms. */
+	private final long timeThreshold;
+	/** The maximum number of concurrent http posts */
+	private final int maxSenders;
+	/** The sender permits */
+	private final Semaphore senders;
+	/** The delivery latency SLO in ms. */
+	private volatile long slo;
+	/** The current metric buffer */
+	private ChannelBuffer metricBuffer = null;
+	/** The time the oldest metric in the current buffer was appended */
+	private long batchStart = 0L;
+	/** The delivery stage trace of the current buffer */
+	private BatchTrace batchTrace = null;
+
+	/** The last delivery latency in ms. */
+	private final AtomicLong lastLatency = new AtomicLong(0L);
+	/** The highest delivery latency in ms. */
+	private final AtomicLong maxLatency = new AtomicLong(0L);
+	/** The number of SLO breaches */
+	private final LongAdder sloBreaches = new LongAdder();
+	/** The number of issued flushes */
+	private final LongAdder flushes = new LongAdder();
+	/** The number of failed flushes */
+	private final LongAdder failedFlushes = new LongAdder();
+	/** The number of deferred flushes */
+	private final LongAdder deferredFlushes = new LongAdder();
+	/** The number of discarded metrics */
+	private final LongAdder discardedMetrics = new LongAdder();
+	/** The number of delivered metrics */
+	private final LongAdder sentMetrics = new LongAdder();
+	/** The number of raw data points folded into rollups */
+	private final LongAdder rolledUpMetrics = new LongAdder();
+	/** The pending rollups of raw data points, keyed by the metric's long hash code */
+	private final NonBlockingHashMapLong<Rollup> rollups = new NonBlockingHashMapLong<Rollup>(128, false);
+
+	/**
+	 * <p>Title: Rollup</p>
+	 * <p>Description: The numeric values of a metric's raw data points accumulated while the {@link BackpressurePolicy#AGGREGATE_ONLY} policy is in effect</p>
+	 */
+	private static class Rollup {
+		/** The rolled up metric */
+		final OTMetric otm;
+		/** The number of rolled up values */
+		int count = 0;
+		/** The sum of the rolled up values */
+		double sum = 0D;
+		/** The latest timestamp of the rolled up values */
+		long timestamp = 0L;
+		/** Set when the rollup has been drained and can no longer accept values */
+		boolean drained = false;
+
+		Rollup(final OTMetric otm) {
+			this.otm = otm;
+		}
+
+		/**
+		 * Adds a value to this rollup
+		 * @param ts The timestamp of the value
+		 * @param value The value
+		 * @return true if added, false if this rollup has been drained
+		 */
+		synchronized boolean add(final long ts, final double value) {
+			if(drained) return false;
+			count++;
+			sum += value;
+			if(ts > timestamp) timestamp = ts;
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Title: Batch</p>
+	 * <p>Description: A buffer of metrics swapped out of the lane, sent outside the buffer lock</p>
+	 */
+	private static class Batch {
+		/** The metrics buffer */
+		final ChannelBuffer body;
+		/** The number of metrics in the buffer */
+		final int count;
+		/** The time the oldest metric in the buffer was appended */
+		final long started;
+		/** The delivery stage trace of the buffer */
+		final BatchTrace trace;
+
+		Batch(final ChannelBuffer body, final int count, final long started, final BatchTrace trace) {
+			this.body = body;
+			this.count = count;
+			this.started = started;
+			this.trace = trace;
+		}
+	}
+
+	/**
+	 * Creates a new MetricLane, configured from the passed priority's config properties
+	 * @param priority The priority of the lane
+	 */
+	MetricLane(final MetricPriority priority) {
+		this.priority = priority;
+		log = LogManager.getLogger(getClass().getName() + "." + priority.name());
+		sizeThreshold = ConfigurationReader.confInt(priority.sizeProp, priority.sizeDefault);
+		timeThreshold = ConfigurationReader.confLong(priority.timeProp, priority.timeDefault);
+		maxSenders = ConfigurationReader.confInt(priority.sendersProp, priority.sendersDefault);
+		slo = ConfigurationReader.confLong(priority.sloProp, priority.sloDefault);
+		senders = new Semaphore(maxSenders);
+		newBuffer();
+		objectName = JMXHelper.objectName(Util.getJMXDomain() + ":service=MetricLane,priority=" + priority.name());
+		try {
+			JMXHelper.registerMBean(this, objectName);
+		} catch (Exception ex) {
+			log.warn("Failed to register MetricLane management interface. Will continue without.", ex);
+		}
+		if(priority==MetricPriority.CRITICAL) {
+			// swaps on the scheduler thread so a backlogged thread pool cannot delay critical metrics, the post runs on the priority thread pool
+			Threading.getInstance().scheduleInline(this, timeThreshold);
+		} else {
+			Threading.getInstance().schedule(this, timeThreshold);
+			BackpressureGovernor.getInstance().registerSource("lane." + priority.name().toLowerCase(), new BackpressureGovernor.PressureSource() {
+				@Override
+				public int getPressure() {
+					return BackpressureGovernor.percent(counter.get(), sizeThreshold * BACKLOG_FACTOR);
+				}
+			});
+		}
+	}
+
+	private void newBuffer() {
+		metricBuffer = bufferFactory.getBuffer(4096);
+		metricBuffer.writeBytes(OTMetric.JSON_OPEN_ARR);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			drainRollups();
+			final Batch batch;
+			synchronized(counter) {
+				final int count = counter.get();
+				batch = count>0 ? swap(count) : null;
+			}
+			if(batch!=null) send(batch);
+		} catch (Exception ex) {
+			log.warn("Periodic flush failed", ex);
+		}
+	}
+
+	/**
+	 * Appends a traced value to the lane's buffer
+	 * @param otm The metric to trace
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 * @param evict true to discard the currently pending metrics before appending
+	 */
+	void append(final OTMetric otm, final long timestamp, final Object value, final boolean evict) {
+		final Batch batch;
+		synchronized(counter) {
+			if(evict) {
+				final int evicted = discard();
+				if(evicted > 0) {
+					BackpressureGovernor.getInstance().evicted(evicted);
+				}
+			}
+			final int count = counter.incrementAndGet();
+			if(count==1) {
+				batchStart = System.currentTimeMillis();
+				batchTrace = BatchTrace.appended();
+			}
+			otm.toJSON(timestamp, value, metricBuffer, true);
+			if(count < sizeThreshold) {
+				return;
+			}
+			batch = swap(count);
+		}
+		if(batch!=null) send(batch);
+	}
+
+	/**
+	 * Folds a raw data point into its metric's rollup. The rollup is appended to the lane as a single data point
+	 * on the next periodic flush.
+	 * @param otm The metric to trace
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 * @return true if the value was rolled up, false if it is not numeric
+	 */
+	boolean rollup(final OTMetric otm, final long timestamp, final Object value) {
+		if(!(value instanceof Number)) return false;
+		final double d = ((Number)value).doubleValue();
+		final long key = otm.longHashCode();
+		while(true) {
+			Rollup r = rollups.get(key);
+			if(r==null) {
+				r = new Rollup(otm);
+				final Rollup prior = rollups.putIfAbsent(key, r);
+				if(prior!=null) r = prior;
+			}
+			if(r.add(timestamp, d)) break;
+			// drained concurrently: retry with a new rollup
+			rollups.remove(key, r);
+		}
+		rolledUpMetrics.increment();
+		return true;
+	}
+
+	/**
+	 * Appends each pending rollup to the lane as the mean of its values at its latest timestamp
+	 */
+	private void drainRollups() {
+		if(rollups.isEmpty()) return;
+		for(Rollup r: rollups.values()) {
+			rollups.remove(r.otm.longHashCode(), r);
+			final double mean;
+			final long timestamp;
+			synchronized(r) {
+				r.drained = true;
+				if(r.count==0) continue;
+				mean = r.sum / r.count;
+				timestamp = r.timestamp;
+			}
+			append(r.otm, timestamp, mean, false);
+		}
+	}
+
+	/**
+	 * Discards the pending metrics. Caller must hold the counter lock.
+	 * @return the number of discarded metrics
+	 */
+	private int discard() {
+		final int pending = counter.get();
+		if(pending > 0) {
+			metricBuffer.writerIndex(OTMetric.JSON_OPEN_ARR.length);
+			counter.set(0);
+		}
+		return pending;
+	}
+
+	/**
+	 * Swaps out the pending metrics for sending if a sender permit is available. Caller must hold the counter lock.
+	 * @param count The number of pending metrics
+	 * @return the swapped out batch, or null if the flush was deferred
+	 */
+	private Batch swap(final int count) {
+		if(!senders.tryAcquire()) {
+			deferredFlushes.increment();
+			if(count >= sizeThreshold * BACKLOG_FACTOR) {
+				// a backlog discard, not a policy eviction, so it is not reported to the governor
+				discardedMetrics.add(discard());
+			}
+			return null;
+		}
+		final Batch batch = new Batch(metricBuffer, count, batchStart, batchTrace.flush());
+		newBuffer();
+		counter.set(0);
+		flushes.increment();
+		return batch;
+	}
+
+	/**
+	 * Sends a swapped out batch on a sender thread: the priority thread pool for the critical lane, the shared thread pool otherwise.
+	 * Never called holding the counter lock.
+	 * @param batch The batch to send
+	 */
+	private void send(final Batch batch) {
+		final ExecutorService executor = priority==MetricPriority.CRITICAL ? Threading.getInstance().getPriorityThreadPool() : Threading.getInstance().getThreadPool();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					post(batch);
+				}
+			});
+		} catch (RejectedExecutionException rex) {
+			senders.release();
+			failedFlushes.increment();
+			log.warn("No sender thread available to flush [{}] metrics", batch.count);
+		}
+	}
+
+	/**
+	 * Posts a swapped out batch to OpenTSDB, releasing the sender permit once the post completes
+	 * @param batch The batch to post
+	 */
+	private void post(final Batch batch) {
+		final ChannelBuffer body = batch.body;
+		final int count = batch.count;
+		final long started = batch.started;
+		try {
+			body.writerIndex(body.writerIndex()-OTMetric.JSON_COMMA.length);
+			body.writeBytes(OTMetric.JSON_CLOSE_ARR);
+			OpenTsdb.getInstance().send(body, count, priority, batch.trace, new FinalHookAsyncHandler<Object>() {
+				final AtomicBoolean done = new AtomicBoolean(false);
+				@Override
+				public void onFinal(final boolean success) {
+					if(done.compareAndSet(false, true)) {
+						senders.release();
+						landed(count, started, success);
+					}
+				}
+				@Override
+				public STATE onStatusReceived(final HttpResponseStatus responseStatus) throws Exception {
+					final int code = responseStatus.getStatusCode();
+					onFinal(code >= 200 && code < 300);
+					return STATE.CONTINUE;
+				}
+			});
+		} catch (Exception ex) {
+			senders.release();
+			failedFlushes.increment();
+			log.warn("Failed to flush [{}] metrics", count, ex);
+		}
+	}
+
+	/**
+	 * Records the outcome of a flush. The delivery latency is only recorded for successful posts.
+	 * @param count The number of metrics in the flushed batch
+	 * @param started The time the oldest metric in the batch was appended
+	 * @param success true if the post succeeded, false otherwise
+	 */
+	private void landed(final int count, final long started, final boolean success) {
+		if(!success) {
+			failedFlushes.increment();
+			return;
+		}
+		final long latency = System.currentTimeMillis() - started;
+		lastLatency.set(latency);
+		while(true) {
+			final long max = maxLatency.get();
+			if(latency <= max || maxLatency.compareAndSet(max, latency)) break;
+		}
+		if(latency > slo) {
+			sloBreaches.increment();
+			log.debug("{} lane batch of [{}] metrics delivered in [{}] ms., exceeding the SLO of [{}] ms.", priority, count, latency, slo);
+		}
+		sentMetrics.add(count);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getPriority()
+	 */
+	@Override
+	public String getPriority() {
+		return priority.name();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getPending()
+	 */
+	@Override
+	public int getPending() {
+		return counter.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getSizeThreshold()
+	 */
+	@Override
+	public int getSizeThreshold() {
+		return sizeThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#setSizeThreshold(int)
+	 */
+	@Override
+	public void setSizeThreshold(final int sizeThreshold) {
+		if(sizeThreshold < 1) throw new IllegalArgumentException("Invalid size threshold [" + sizeThreshold + "]");
+		this.sizeThreshold = sizeThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getTimeThreshold()
+	 */
+	@Override
+	public long getTimeThreshold() {
+		return timeThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getMaxSenders()
+	 */
+	@Override
+	public int getMaxSenders() {
+		return maxSenders;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getActiveSenders()
+	 */
+	@Override
+	public int getActiveSenders() {
+		return maxSenders - senders.availablePermits();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getSlo()
+	 */
+	@Override
+	public long getSlo() {
+		return slo;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#setSlo(long)
+	 */
+	@Override
+	public void setSlo(final long slo) {
+		if(slo < 1L) throw new IllegalArgumentException("Invalid SLO [" + slo + "]");
+		this.slo = slo;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getLastLatency()
+	 */
+	@Override
+	public long getLastLatency() {
+		return lastLatency.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getMaxLatency()
+	 */
+	@Override
+	public long getMaxLatency() {
+		return maxLatency.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getSloBreaches()
+	 */
+	@Override
+	public long getSloBreaches() {
+		return sloBreaches.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getFlushes()
+	 */
+	@Override
+	public long getFlushes() {
+		return flushes.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getFailedFlushes()
+	 */
+	@Override
+	public long getFailedFlushes() {
+		return failedFlushes.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getDeferredFlushes()
+	 */
+	@Override
+	public long getDeferredFlushes() {
+		return deferredFlushes.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getDiscardedMetrics()
+	 */
+	@Override
+	public long getDiscardedMetrics() {
+		return discardedMetrics.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getRolledUpMetrics()
+	 */
+	@Override
+	public long getRolledUpMetrics() {
+		return rolledUpMetrics.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getPendingRollups()
+	 */
+	@Override
+	public int getPendingRollups() {
+		return rollups.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#getSentMetrics()
+	 */
+	@Override
+	public long getSentMetrics() {
+		return sentMetrics.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean#resetCounters()
+	 */
+	@Override
+	public void resetCounters() {
+		lastLatency.set(0L);
+		maxLatency.set(0L);
+		sloBreaches.reset();
+		flushes.reset();
+		failedFlushes.reset();
+		deferredFlushes.reset();
+		discardedMetrics.reset();
+		sentMetrics.reset();
+	}
+
+}
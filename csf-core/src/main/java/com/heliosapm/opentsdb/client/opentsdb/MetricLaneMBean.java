@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+/**
+ * <p>Title: MetricLaneMBean</p>
+ * <p>Description: JMX MBean interface for {@link MetricLane} instances.
+ * Each lane is registered under <b><code>&lt;domain&gt;:service=MetricLane,priority=&lt;priority&gt;</code></b></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.MetricLaneMBean</code></p>
+ */
+
+public interface MetricLaneMBean {
+
+	/**
+	 * Returns the priority name of this lane
+	 * @return the priority name of this lane
+	 */
+	public String getPriority();
+
+	/**
+	 * Returns the number of metrics buffered in this lane waiting to be sent
+	 * @return the number of pending metrics
+	 */
+	public int getPending();
+
+	/**
+	 * Returns the number of buffered metrics that triggers a flush
+	 * @return the flush size trigger
+	 */
+	public int getSizeThreshold();
+
+	/**
+	 * Sets the number of buffered metrics that triggers a flush
+	 * @param sizeThreshold the flush size trigger
+	 */
+	public void setSizeThreshold(int sizeThreshold);
+
+	/**
+	 * Returns the flush period in ms.
+	 * @return the flush period in ms.
+	 */
+	public long getTimeThreshold();
+
+	/**
+	 * Returns the maximum number of concurrent http posts for this lane
+	 * @return the maximum number of concurrent http posts
+	 */
+	public int getMaxSenders();
+
+	/**
+	 * Returns the number of http posts for this lane issued but not yet responded to
+	 * @return the number of active http posts
+	 */
+	public int getActiveSenders();
+
+	/**
+	 * Returns the delivery latency SLO in ms.
+	 * @return the delivery latency SLO in ms.
+	 */
+	public long getSlo();
+
+	/**
+	 * Sets the delivery latency SLO in ms.
+	 * @param slo the delivery latency SLO in ms.
+	 */
+	public void setSlo(long slo);
+
+	/**
+	 * Returns the elapsed time in ms. between the oldest metric of the last completed batch being buffered
+	 * and the OpenTSDB response for that batch being received
+	 * @return the last delivery latency in ms.
+	 */
+	public long getLastLatency();
+
+	/**
+	 * Returns the highest delivery latency in ms. since the counters were last reset
+	 * @return the highest delivery latency in ms.
+	 */
+	public long getMaxLatency();
+
+	/**
+	 * Returns the number of batches delivered later than the SLO since the counters were last reset
+	 * @return the number of SLO breaches
+	 */
+	public long getSloBreaches();
+
+	/**
+	 * Returns the number of issued flushes
+	 * @return the number of issued flushes
+	 */
+	public long getFlushes();
+
+	/**
+	 * Returns the number of flushes that failed
+	 * @return the number of failed flushes
+	 */
+	public long getFailedFlushes();
+
+	/**
+	 * Returns the number of flushes deferred because all the lane's senders were busy
+	 * @return the number of deferred flushes
+	 */
+	public long getDeferredFlushes();
+
+	/**
+	 * Returns the number of buffered metrics discarded because the lane's backlog limit was reached
+	 * @return the number of discarded metrics
+	 */
+	public long getDiscardedMetrics();
+
+	/**
+	 * Returns the number of raw data points folded into per metric rollups under the {@link BackpressurePolicy#AGGREGATE_ONLY} policy
+	 * @return the number of rolled up data points
+	 */
+	public long getRolledUpMetrics();
+
+	/**
+	 * Returns the number of metric rollups waiting for the next periodic flush
+	 * @return the number of pending rollups
+	 */
+	public int getPendingRollups();
+
+	/**
+	 * Returns the number of metrics successfully delivered by this lane
+	 * @return the number of delivered metrics
+	 */
+	public long getSentMetrics();
+
+	/**
+	 * Resets the lane's latency and flush counters
+	 */
+	public void resetCounters();
+
+}
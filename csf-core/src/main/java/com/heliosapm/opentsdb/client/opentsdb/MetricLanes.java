@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.EnumMap;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+
+import com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernor.Admission;
+
+/**
+ * <p>Title: MetricLanes</p>
+ * <p>Description: Singleton router that assigns traced metrics to a {@link MetricPriority} and appends them to that priority's {@link MetricLane}.
+ * A metric's priority is either explicitly assigned (e.g. by {@link MetricBuilder#priority(MetricPriority)}) or resolved once,
+ * by matching the metric name against the configured critical pattern ({@link Constants#PROP_PRIORITY_CRITICAL_PATTERN}).
+ * Critical metrics bypass the {@link BackpressureGovernor}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.MetricLanes</code></p>
+ */
+
+public class MetricLanes {
+	/** The singleton instance */
+	private static volatile MetricLanes instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+	/** The lanes keyed by priority */
+	private final EnumMap<MetricPriority, MetricLane> lanes = new EnumMap<MetricPriority, MetricLane>(MetricPriority.class);
+	/** The resolved priorities keyed by the OTMetric long hash code */
+	private final NonBlockingHashMapLong<MetricPriority> priorities = new NonBlockingHashMapLong<MetricPriority>(128, false);
+	/** The critical metric name pattern, null if none is configured */
+	private final Pattern criticalPattern;
+
+	/**
+	 * Acquires the MetricLanes singleton instance
+	 * @return the MetricLanes singleton instance
+	 */
+	public static MetricLanes getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new MetricLanes();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private MetricLanes() {
+		final String pattern = ConfigurationReader.conf(Constants.PROP_PRIORITY_CRITICAL_PATTERN, Constants.DEFAULT_PRIORITY_CRITICAL_PATTERN);
+		criticalPattern = (pattern==null || pattern.trim().isEmpty()) ? null : Pattern.compile(pattern.trim());
+		for(MetricPriority p: MetricPriority.values()) {
+			lanes.put(p, new MetricLane(p));
+		}
+		log.info("MetricLanes initialized. Critical pattern: [{}]", criticalPattern);
+	}
+
+	/**
+	 * Explicitly assigns a priority to the passed metric
+	 * @param otm The metric to assign
+	 * @param priority The priority to assign
+	 */
+	public void assign(final OTMetric otm, final MetricPriority priority) {
+		if(otm==null) throw new IllegalArgumentException("The passed metric was null");
+		if(priority==null) throw new IllegalArgumentException("The passed priority was null");
+		priorities.put(otm.longHashCode(), priority);
+	}
+
+	/**
+	 * Returns the priority of the passed metric, resolving and caching it on first access
+	 * @param otm The metric to get the priority for
+	 * @return the metric's priority
+	 */
+	public MetricPriority getPriority(final OTMetric otm) {
+		final long key = otm.longHashCode();
+		MetricPriority p = priorities.get(key);
+		if(p==null) {
+			p = (criticalPattern!=null && criticalPattern.matcher(otm.getMetricName()).matches()) ? MetricPriority.CRITICAL : MetricPriority.NORMAL;
+			final MetricPriority prior = priorities.putIfAbsent(key, p);
+			if(prior!=null) p = prior;
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the lane for the passed priority
+	 * @param priority The priority
+	 * @return the lane
+	 */
+	public MetricLane getLane(final MetricPriority priority) {
+		return lanes.get(priority);
+	}
+
+	/**
+	 * Routes a traced value to the lane for the metric's priority
+	 * @param otm The metric to trace
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 */
+	public void trace(final OTMetric otm, final long timestamp, final Object value) {
+		final MetricPriority p = getPriority(otm);
+		if(p==MetricPriority.CRITICAL) {
+			lanes.get(p).append(otm, timestamp, value, false);
+			return;
+		}
+		final Admission admission = BackpressureGovernor.getInstance().admit(false);
+		if(admission==Admission.AGGREGATE) {
+			if(!lanes.get(p).rollup(otm, timestamp, value)) {
+				BackpressureGovernor.getInstance().unaggregated();
+			}
+		} else if(admission!=Admission.REJECT) {
+			lanes.get(p).append(otm, timestamp, value, admission==Admission.EVICT);
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+/**
+ * <p>Title: MetricPriority</p>
+ * <p>Description: Enumerates the metric priority classes. Each priority has its own {@link MetricLane}
+ * with its own buffer, flush triggers, send concurrency and delivery latency SLO.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.MetricPriority</code></p>
+ */
+
+public enum MetricPriority {
+	/** Heartbeats and health metrics. Sent on a dedicated http client, exempt from backpressure and never queued behind bulk or offline replay traffic */
+	CRITICAL(Constants.PROP_LANE_CRITICAL_SIZE, Constants.DEFAULT_LANE_CRITICAL_SIZE, Constants.PROP_LANE_CRITICAL_TIME, Constants.DEFAULT_LANE_CRITICAL_TIME, Constants.PROP_LANE_CRITICAL_SENDERS, Constants.DEFAULT_LANE_CRITICAL_SENDERS, Constants.PROP_LANE_CRITICAL_SLO, Constants.DEFAULT_LANE_CRITICAL_SLO),
+	/** Bulk application metrics */
+	NORMAL(Constants.PROP_LANE_NORMAL_SIZE, Constants.DEFAULT_LANE_NORMAL_SIZE, Constants.PROP_LANE_NORMAL_TIME, Constants.DEFAULT_LANE_NORMAL_TIME, Constants.PROP_LANE_NORMAL_SENDERS, Constants.DEFAULT_LANE_NORMAL_SENDERS, Constants.PROP_LANE_NORMAL_SLO, Constants.DEFAULT_LANE_NORMAL_SLO);
+
+	private MetricPriority(final String sizeProp, final int sizeDefault, final String timeProp, final long timeDefault, final String sendersProp, final int sendersDefault, final String sloProp, final long sloDefault) {
+		this.sizeProp = sizeProp;
+		this.sizeDefault = sizeDefault;
+		this.timeProp = timeProp;
+		this.timeDefault = timeDefault;
+		this.sendersProp = sendersProp;
+		this.sendersDefault = sendersDefault;
+		this.sloProp = sloProp;
+		this.sloDefault = sloDefault;
+	}
+
+	/** The config property name for the lane's flush size trigger */
+	public final String sizeProp;
+	/** The default lane flush size trigger */
+	public final int sizeDefault;
+	/** The config property name for the lane's flush period in ms. */
+	public final String timeProp;
+	/** The default lane flush period in ms. */
+	public final long timeDefault;
+	/** The config property name for the lane's maximum concurrent http posts */
+	public final String sendersProp;
+	/** The default lane maximum concurrent http posts */
+	public final int sendersDefault;
+	/** The config property name for the lane's delivery latency SLO in ms. */
+	public final String sloProp;
+	/** The default lane delivery latency SLO in ms. */
+	public final long sloDefault;
+
+	/**
+	 * Decodes the passed name to a MetricPriority
+	 * @param name The name to decode. Trimmed and case insensitive.
+	 * @return the decoded MetricPriority
+	 */
+	public static MetricPriority forName(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed priority name was null or empty");
+		try {
+			return MetricPriority.valueOf(name.trim().toUpperCase());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid metric priority name [" + name + "]");
+		}
+	}
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.util.Timeout;
+
+/**
+ * <p>Title: NettyHttpSender</p>
+ * <p>Description: A lean metric post sender built directly on the Netty 3 client bootstrap, used by the {@link HttpMetricsPoster}
+ * in place of the ning AsyncHttpClient when {@link Constants#PROP_NATIVE_SENDER} is enabled.
+ * The request line and headers are encoded once; each post writes a small header buffer carrying the content length,
+ * followed by the metric batch buffer itself which, being direct, is handed to the socket without a copy.
+ * Requests are pipelined over a small pool of keep-alive connections and the responses are matched to requests in order.</p>
+ * <p>Each post is timed out from the time it is posted, whether it is still waiting for a connection or written. A written post is timed out
+ * by closing its connection, and is only failed, handing its body back to the caller, once the channel has closed and its writes have completed.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.NettyHttpSender</code></p>
+ */
+
+public class NettyHttpSender {
+	/** The shared netty client channel factory */
+	private static volatile ChannelFactory channelFactory = null;
+	/** The channel factory ctor lock */
+	private static final Object lock = new Object();
+	/** The maximum response content length */
+	public static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+	/** CRLF bytes */
+	private static final byte[] CRLF = "\r\n".getBytes(Constants.UTF8);
+
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+	/** The netty client bootstrap */
+	private final ClientBootstrap bootstrap;
+	/** The OpenTSDB endpoint address */
+	private final InetSocketAddress address;
+	/** The pre-encoded request head for uncompressed bodies, up to and including the <b><code>Content-Length: </code></b> header name */
+	private final byte[] plainHead;
+	/** The pre-encoded request head for gzipped bodies */
+	private final byte[] gzipHead;
+	/** The maximum number of connections */
+	private final int maxConnections;
+	/** The maximum number of pipelined requests per connection before another connection is opened */
+	private final int maxPipeline;
+	/** The request timeout in ms. */
+	private final long requestTimeout;
+	/** The open connections */
+	private final CopyOnWriteArrayList<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	/** The number of connections being opened */
+	private final AtomicInteger connecting = new AtomicInteger(0);
+	/** Posts waiting for a connection. Also the lock of the posts moving between waiting and written. */
+	private final Queue<Pending> waiting = new LinkedList<Pending>();
+	/** Indicates if this sender has been closed */
+	private volatile boolean closed = false;
+
+	/**
+	 * <p>Title: ResponseListener</p>
+	 * <p>Description: Callback notified of the outcome of a post</p>
+	 */
+	public static interface ResponseListener {
+		/**
+		 * Callback when the response to a post is received
+		 * @param code The http status code
+		 * @param reason The http status reason phrase
+		 * @param content The (decompressed) response content
+		 */
+		public void onResponse(int code, String reason, ChannelBuffer content);
+
+		/**
+		 * Callback when a post fails
+		 * @param t The failure cause
+		 */
+		public void onFailure(Throwable t);
+	}
+
+	/**
+	 * Creates a new NettyHttpSender
+	 * @param postUrl The full post URL including the query string
+	 * @param maxConnections The maximum number of connections
+	 * @param maxPipeline The maximum number of pipelined requests per connection before another connection is opened
+	 * @param connectionTimeout The connection timeout in ms.
+	 * @param requestTimeout The request timeout in ms.
+	 */
+	public NettyHttpSender(final String postUrl, final int maxConnections, final int maxPipeline, final int connectionTimeout, final long requestTimeout) {
+		final URI uri = URI.create(postUrl);
+		final int port = uri.getPort()==-1 ? 80 : uri.getPort();
+		address = new InetSocketAddress(uri.getHost(), port);
+		this.maxConnections = maxConnections;
+		this.maxPipeline = maxPipeline;
+		this.requestTimeout = requestTimeout;
+		final String path = uri.getRawPath() + (uri.getRawQuery()==null ? "" : ("?" + uri.getRawQuery()));
+		final StringBuilder b = new StringBuilder("POST ").append(path).append(" HTTP/1.1\r\n")
+			.append("Host: ").append(uri.getHost()).append(':').append(port).append("\r\n")
+			.append("Content-Type: application/json\r\n")
+			.append("Accept-Encoding: gzip\r\n")
+			.append("Connection: keep-alive\r\n");
+		plainHead = new StringBuilder(b).append("Content-Length: ").toString().getBytes(Constants.UTF8);
+		gzipHead = b.append("Content-Encoding: gzip\r\n").append("Content-Length: ").toString().getBytes(Constants.UTF8);
+		bootstrap = new ClientBootstrap(getChannelFactory());
+		bootstrap.setOption("tcpNoDelay", true);
+		bootstrap.setOption("keepAlive", true);
+		bootstrap.setOption("connectTimeoutMillis", connectionTimeout);
+		log.info("NettyHttpSender created for [{}], max connections: {}, max pipeline: {}", postUrl, maxConnections, maxPipeline);
+	}
+
+	private static ChannelFactory getChannelFactory() {
+		if(channelFactory==null) {
+			synchronized(lock) {
+				if(channelFactory==null) {
+					final ThreadFactory tf = new ThreadFactory() {
+						final AtomicInteger serial = new AtomicInteger(0);
+						@Override
+						public Thread newThread(final Runnable r) {
+							Thread t = new Thread(r, "metrics-opentsdb-nio#" + serial.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					};
+					channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(tf), Executors.newCachedThreadPool(tf), 1, 2);
+				}
+			}
+		}
+		return channelFactory;
+	}
+
+	/**
+	 * Posts a metrics batch. The body's reader index is not modified.
+	 * @param body The body to post
+	 * @param listener The listener to notify of the outcome
+	 */
+	public void post(final ChannelBuffer body, final ResponseListener listener) {
+		final Pending p = new Pending(body, listener);
+		if(closed) {
+			p.fail(new ConnectException("Sender closed"));
+			return;
+		}
+		p.timeout = Threading.getInstance().delay(new Runnable() {
+			@Override
+			public void run() {
+				timeout(p);
+			}
+		}, requestTimeout);
+		final Connection c = select();
+		if(c!=null) {
+			c.dispatch(p);
+		} else {
+			synchronized(waiting) {
+				waiting.add(p);
+			}
+			if(connections.size() + connecting.get() < maxConnections) {
+				connect();
+			}
+		}
+	}
+
+	/**
+	 * Times out a post. A waiting post is failed right away. A written post's connection is closed, since the response order on it is now unreliable,
+	 * and the post is failed once the channel has closed.
+	 * @param p The timed out post
+	 */
+	private void timeout(final Pending p) {
+		p.timedOut = true;
+		final Connection c;
+		synchronized(waiting) {
+			c = p.connection;
+			if(c==null) {
+				// not in the waiting queue when being dispatched by post, in which case dispatch sees the time out
+				if(waiting.remove(p)) p.fail(p.timeoutException());
+				return;
+			}
+		}
+		c.channel.close();
+	}
+
+	/**
+	 * Selects the least loaded connection
+	 * @return the selected connection, or null if a new connection should be opened
+	 */
+	private Connection select() {
+		Connection selected = null;
+		int min = Integer.MAX_VALUE;
+		for(Connection c: connections) {
+			final int depth = c.pending.size();
+			if(depth < min) {
+				min = depth;
+				selected = c;
+			}
+		}
+		if(selected==null) return null;
+		if(min >= maxPipeline && connections.size() + connecting.get() < maxConnections) return null;
+		return selected;
+	}
+
+	/**
+	 * Selects the least loaded connection, however deep its pipeline
+	 * @return the selected connection, or null if there is no open connection
+	 */
+	private Connection selectAny() {
+		Connection selected = null;
+		int min = Integer.MAX_VALUE;
+		for(Connection c: connections) {
+			final int depth = c.pending.size();
+			if(depth < min) {
+				min = depth;
+				selected = c;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Opens a new connection and dispatches the waiting posts to it once connected
+	 */
+	private void connect() {
+		connecting.incrementAndGet();
+		final Connection c = new Connection();
+		final ChannelPipeline pipeline = Channels.pipeline();
+		pipeline.addLast("decoder", new HttpResponseDecoder());
+		pipeline.addLast("aggregator", new HttpChunkAggregator(MAX_RESPONSE_SIZE));
+		pipeline.addLast("inflater", new HttpContentDecompressor());
+		pipeline.addLast("handler", c);
+		final Channel channel = bootstrap.getFactory().newChannel(pipeline);
+		channel.getConfig().setOptions(bootstrap.getOptions());
+		c.channel = channel;
+		channel.connect(address).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture future) throws Exception {
+				connecting.decrementAndGet();
+				if(future.isSuccess()) {
+					connections.add(c);
+					drainWaiting();
+				} else {
+					log.debug("Failed to connect to [{}]", address, future.getCause());
+					final ConnectException cex = new ConnectException("Failed to connect to [" + address + "]");
+					cex.initCause(future.getCause());
+					drainFailed(cex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Dispatches the waiting posts once a connection is opened, opening another connection if the open ones are full
+	 */
+	private void drainWaiting() {
+		synchronized(waiting) {
+			Pending p = null;
+			while((p = waiting.poll())!=null) {
+				final Connection c = select();
+				if(c==null) {
+					waiting.add(p);
+					if(connections.size() + connecting.get() < maxConnections) connect();
+					return;
+				}
+				c.dispatch(p);
+			}
+		}
+	}
+
+	/**
+	 * Handles the waiting posts after a failed connect: they are dispatched to the open connections, however deep their pipelines,
+	 * left waiting for the other connections being opened, or failed if there are none
+	 * @param cex The connect failure
+	 */
+	private void drainFailed(final ConnectException cex) {
+		synchronized(waiting) {
+			Pending p = null;
+			while((p = waiting.poll())!=null) {
+				final Connection c = selectAny();
+				if(c!=null) {
+					c.dispatch(p);
+				} else if(connecting.get() > 0) {
+					waiting.add(p);
+					return;
+				} else {
+					p.fail(cex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all the connections. Pending posts are failed.
+	 */
+	public void close() {
+		closed = true;
+		for(Connection c: connections) {
+			c.channel.close();
+		}
+		synchronized(waiting) {
+			Pending p = null;
+			while((p = waiting.poll())!=null) {
+				p.fail(new ConnectException("Sender closed"));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of open connections
+	 * @return the number of open connections
+	 */
+	public int getConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * <p>Title: Pending</p>
+	 * <p>Description: A post awaiting its response</p>
+	 */
+	private class Pending {
+		final ChannelBuffer body;
+		final ResponseListener listener;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		volatile Timeout timeout = null;
+		/** The connection the post was written on, null while waiting */
+		volatile Connection connection = null;
+		/** The future of the body write, null while waiting */
+		volatile ChannelFuture written = null;
+		/** Set when the post has timed out */
+		volatile boolean timedOut = false;
+
+		Pending(final ChannelBuffer body, final ResponseListener listener) {
+			this.body = body;
+			this.listener = listener;
+		}
+
+		TimeoutException timeoutException() {
+			return new TimeoutException("Request timed out after [" + requestTimeout + "] ms.");
+		}
+
+		/**
+		 * Fails a written post once its body write has completed, so the body is never handed back while the channel may still read it
+		 * @param t The failure cause
+		 */
+		void failWritten(final Throwable t) {
+			final ChannelFuture w = written;
+			if(w==null || w.isDone()) {
+				fail(t);
+				return;
+			}
+			w.addListener(new ChannelFutureListener() {
+				@Override
+				public void operationComplete(final ChannelFuture future) throws Exception {
+					fail(t);
+				}
+			});
+		}
+
+		void respond(final HttpResponse response) {
+			if(done.compareAndSet(false, true)) {
+				if(timeout!=null) timeout.cancel();
+				try {
+					listener.onResponse(response.getStatus().getCode(), response.getStatus().getReasonPhrase(), response.getContent());
+				} catch (Exception ex) {
+					log.error("Response listener failed", ex);
+				}
+			}
+		}
+
+		void fail(final Throwable t) {
+			if(done.compareAndSet(false, true)) {
+				if(timeout!=null) timeout.cancel();
+				try {
+					listener.onFailure(t);
+				} catch (Exception ex) {
+					log.error("Response listener failed", ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: Connection</p>
+	 * <p>Description: A keep-alive connection and its queue of pipelined posts</p>
+	 */
+	private class Connection extends SimpleChannelUpstreamHandler {
+		/** The posts written and awaiting a response, in write order */
+		final Queue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+		/** The connection's channel */
+		Channel channel = null;
+
+		/**
+		 * Writes a post on this connection
+		 * @param p The post to write
+		 */
+		void dispatch(final Pending p) {
+			final int length = p.body.readableBytes();
+			final byte[] head = OffHeapFIFOFile.isGzipped(p.body) ? gzipHead : plainHead;
+			final byte[] len = Integer.toString(length).getBytes(Constants.UTF8);
+			final ChannelBuffer headBuffer = ChannelBuffers.buffer(head.length + len.length + CRLF.length * 2);
+			headBuffer.writeBytes(head);
+			headBuffer.writeBytes(len);
+			headBuffer.writeBytes(CRLF);
+			headBuffer.writeBytes(CRLF);
+			synchronized(this) {
+				p.connection = this;
+				pending.add(p);
+				channel.write(headBuffer);
+				// duplicate so the channel's reads do not move the caller's indexes
+				p.written = channel.write(p.body.duplicate());
+			}
+			// timed out while being dispatched
+			if(p.timedOut) channel.close();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+		 */
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+			final HttpResponse response = (HttpResponse)e.getMessage();
+			final Pending p = pending.poll();
+			if(p!=null) {
+				p.respond(response);
+			} else {
+				log.warn("Received unsolicited response [{}] on [{}]", response.getStatus(), e.getChannel());
+			}
+			if(!HttpHeaders.isKeepAlive(response)) {
+				e.getChannel().close();
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+		 */
+		@Override
+		public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+			connections.remove(this);
+			Pending p = null;
+			while((p = pending.poll())!=null) {
+				p.failWritten(p.timedOut ? p.timeoutException() : new ConnectException("Connection to [" + address + "] closed before the response was received"));
+			}
+			super.channelClosed(ctx, e);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#exceptionCaught(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ExceptionEvent)
+		 */
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+			log.debug("Connection to [{}] failed", address, e.getCause());
+			e.getChannel().close();
+		}
+	}
+
+}
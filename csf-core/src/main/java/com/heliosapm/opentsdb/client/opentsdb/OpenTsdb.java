@@ -29,6 +29,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
 import com.heliosapm.opentsdb.client.logging.LoggingConfiguration;
 import com.heliosapm.opentsdb.client.name.AgentName;
+import com.ning.http.client.AsyncHandler;
 
 
 
@@ -144,6 +145,37 @@ public class OpenTsdb {
     	logger.debug("Sent [{}] metrics", metricCount);
     }
     
+    /**
+     * Sends a metrics buffer on the bulk http client, notifying the passed handler of the post's outcome
+     * @param chBuff The buffer containing the metrics to send
+     * @param metricCount The number of metrics in the buffer
+     * @param handler The async handler notified of the post's outcome
+     */
+    public void send(final ChannelBuffer chBuff, final int metricCount, final AsyncHandler<Object> handler) {
+    	if(httpClient==null) {
+    		httpClient = HttpMetricsPoster.getInstance();
+    	}
+    	if(chBuff.readableBytes()<5) return;
+    	httpClient.send(chBuff, metricCount, handler);
+    	logger.debug("Sent [{}] metrics", metricCount);
+    }
+    
+    /**
+     * Sends a metrics buffer on the http client for the passed priority lane
+     * @param chBuff The buffer containing the metrics to send
+     * @param metricCount The number of metrics in the buffer
+     * @param priority The priority lane the buffer was flushed from
+     * @param trace The batch's delivery stage trace
+     * @param handler The async handler notified of the post's outcome
+     */
+    void send(final ChannelBuffer chBuff, final int metricCount, final MetricPriority priority, final BatchTrace trace, final AsyncHandler<Object> handler) {
+    	if(httpClient==null) {
+    		httpClient = HttpMetricsPoster.getInstance();
+    	}
+    	httpClient.send(chBuff, metricCount, priority, trace, handler);
+    	logger.debug("Sent [{}] {} metrics", metricCount, priority);
+    }
+    
     
 //    private void sendHelper(final Set<OpenTsdbMetric> metrics) {
 //        /*
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: StageHistogram</p>
+ * <p>Description: A forward decaying histogram of one {@link DeliveryStage}'s elapsed times, recorded in microseconds.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.StageHistogram</code></p>
+ */
+
+public class StageHistogram implements StageHistogramMBean {
+	/** Microseconds per ms. */
+	private static final double MICROS_PER_MS = 1000D;
+
+	/** The traced stage */
+	final DeliveryStage stage;
+	/** The stage's JMX ObjectName */
+	final ObjectName objectName;
+	/** The histogram of elapsed times in microseconds */
+	private volatile Histogram histogram = newHistogram();
+
+	/**
+	 * Creates a new StageHistogram
+	 * @param stage The traced stage
+	 */
+	StageHistogram(final DeliveryStage stage) {
+		this.stage = stage;
+		objectName = JMXHelper.objectName(Util.getJMXDomain() + ":service=DeliveryTracer,stage=" + stage.name());
+	}
+
+	private static Histogram newHistogram() {
+		return new Histogram(new ExponentiallyDecayingReservoir());
+	}
+
+	/**
+	 * Records an elapsed time
+	 * @param nanos The elapsed time in nanos.
+	 */
+	void update(final long nanos) {
+		histogram.update(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Returns a snapshot of the recorded elapsed times in microseconds
+	 * @return a snapshot of the histogram
+	 */
+	public Snapshot getSnapshot() {
+		return histogram.getSnapshot();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getStage()
+	 */
+	@Override
+	public String getStage() {
+		return stage.name();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getCount()
+	 */
+	@Override
+	public long getCount() {
+		return histogram.getCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getMean()
+	 */
+	@Override
+	public double getMean() {
+		return histogram.getSnapshot().getMean() / MICROS_PER_MS;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getMedian()
+	 */
+	@Override
+	public double getMedian() {
+		return histogram.getSnapshot().getMedian() / MICROS_PER_MS;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getP99()
+	 */
+	@Override
+	public double getP99() {
+		return histogram.getSnapshot().get99thPercentile() / MICROS_PER_MS;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getP999()
+	 */
+	@Override
+	public double getP999() {
+		return histogram.getSnapshot().get999thPercentile() / MICROS_PER_MS;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#getMax()
+	 */
+	@Override
+	public double getMax() {
+		return histogram.getSnapshot().getMax() / MICROS_PER_MS;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean#reset()
+	 */
+	@Override
+	public void reset() {
+		histogram = newHistogram();
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb;
+
+/**
+ * <p>Title: StageHistogramMBean</p>
+ * <p>Description: JMX MBean interface for a {@link StageHistogram}. Times are in ms.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.StageHistogramMBean</code></p>
+ */
+
+public interface StageHistogramMBean {
+
+	/**
+	 * Returns the name of the traced delivery stage
+	 * @return the stage name
+	 */
+	public String getStage();
+
+	/**
+	 * Returns the number of batches recorded for this stage
+	 * @return the number of recorded batches
+	 */
+	public long getCount();
+
+	/**
+	 * Returns the mean stage time in ms.
+	 * @return the mean stage time
+	 */
+	public double getMean();
+
+	/**
+	 * Returns the median stage time in ms.
+	 * @return the median stage time
+	 */
+	public double getMedian();
+
+	/**
+	 * Returns the 99th percentile stage time in ms.
+	 * @return the 99th percentile stage time
+	 */
+	public double getP99();
+
+	/**
+	 * Returns the 99.9th percentile stage time in ms.
+	 * @return the 99.9th percentile stage time
+	 */
+	public double getP999();
+
+	/**
+	 * Returns the maximum stage time in ms.
+	 * @return the maximum stage time
+	 */
+	public double getMax();
+
+	/**
+	 * Resets the stage histogram
+	 */
+	public void reset();
+
+}
@@ -19,6 +19,7 @@ import java.lang.management.ManagementFactory;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -54,6 +55,14 @@ public class Threading {
 	
 	/** The shared thread pool */
 	private final ExecutorService threadPool;
+	/** The shared thread pool's submission queue */
+	private final ArrayBlockingQueue<Runnable> threadPoolQueue;
+	/** The shared thread pool's submission queue capacity */
+	private final int threadPoolQueueSize;
+	/** The dedicated thread pool for critical priority lane http io */
+	private final ExecutorService priorityThreadPool;
+	/** The dedicated thread pool for rendering partitioned reports */
+	private final ExecutorService renderThreadPool;
 	
 
 
@@ -97,7 +106,29 @@ public class Threading {
 				return t;
 			}
 		};
-		threadPool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(qSize, false), poolFactory);
+		threadPoolQueue = new ArrayBlockingQueue<Runnable>(qSize, false);
+		threadPoolQueueSize = qSize;
+		threadPool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, threadPoolQueue, poolFactory);
+		final ThreadFactory priorityPoolFactory = new ThreadFactory(){
+			private final AtomicInteger serial = new AtomicInteger(0);
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "metrics-opentsdb-priority#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		priorityThreadPool = Executors.newCachedThreadPool(priorityPoolFactory);
+		final ThreadFactory renderPoolFactory = new ThreadFactory(){
+			private final AtomicInteger serial = new AtomicInteger(0);
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "metrics-opentsdb-render#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		renderThreadPool = Executors.newFixedThreadPool(CORES, renderPoolFactory);
 		final ThreadFactory schedulerThreadFactory = new ThreadFactory(){
 			private final AtomicInteger serial = new AtomicInteger(0);
 			@Override
@@ -121,10 +152,18 @@ public class Threading {
 			public void run() {
 				scheduler.stop();
 				threadPool.shutdown();
+				priorityThreadPool.shutdown();
+				renderThreadPool.shutdown();
 			}			
 		};
 		sdh.setDaemon(true);
 		Runtime.getRuntime().addShutdownHook(sdh);
+		BackpressureGovernor.getInstance().registerSource("threadpool", new BackpressureGovernor.PressureSource() {
+			@Override
+			public int getPressure() {
+				return BackpressureGovernor.percent(threadPoolQueue.size(), threadPoolQueueSize);
+			}
+		});
 		log.info("ThreadPoolAndScheduling Service Initialized\n\tThreadPool Size:{}\n\tThreadPool QueueSize:{}\n\tTick Size: {}\n\tWheel Size: {}", poolSize, qSize, tickSize, wheelSize);
 	}
 	
@@ -139,6 +178,40 @@ public class Threading {
 	public ExecutorService getThreadPool() {
 		return threadPool;
 	}
+	
+	/**
+	 * Returns the dedicated thread pool for critical priority lane http io, 
+	 * which is not subject to the shared thread pool's queueing
+	 * @return the priority thread pool
+	 */
+	public ExecutorService getPriorityThreadPool() {
+		return priorityThreadPool;
+	}
+	
+	/**
+	 * Returns the dedicated thread pool for rendering partitioned reports,
+	 * so large report cycles do not compete with http io for the shared thread pool
+	 * @return the render thread pool
+	 */
+	public ExecutorService getRenderThreadPool() {
+		return renderThreadPool;
+	}
+	
+	/**
+	 * Returns the number of tasks waiting in the shared thread pool's submission queue
+	 * @return the submission queue depth
+	 */
+	public int getQueueDepth() {
+		return threadPoolQueue.size();
+	}
+	
+	/**
+	 * Returns the capacity of the shared thread pool's submission queue
+	 * @return the submission queue capacity
+	 */
+	public int getQueueCapacity() {
+		return threadPoolQueueSize;
+	}
 
 	
 	/**
@@ -213,8 +286,20 @@ public class Threading {
 	public Timeout schedule(final Runnable task, final long initialDelay, final long delay, final TimeUnit unit) {
 		if(task==null) throw new IllegalArgumentException("The passed task was null");
 		if(unit==null) throw new IllegalArgumentException("The passed time unit was null");
-		final DelegatingTimeout dt = new DelegatingTimeout(null);
-		Timeout actualTimeOut = scheduler.newTimeout(new TimerTask(){
+		return schedule(task, initialDelay < 1L ? delay : initialDelay, delay, unit, new DelegatingTimeout(null));
+	}
+
+	/**
+	 * Schedules the next execution of a repeated task, pointing the task's handle at it
+	 * @param task The task to execute
+	 * @param nextDelay The delay before the next execution
+	 * @param delay The post execution delay
+	 * @param unit The unit of the delays
+	 * @param dt The handle of the task
+	 * @return the handle of the task
+	 */
+	private Timeout schedule(final Runnable task, final long nextDelay, final long delay, final TimeUnit unit, final DelegatingTimeout dt) {
+		return dt.setTimeout(scheduler.newTimeout(new TimerTask(){
 			@Override
 			public void run(final Timeout timeout) throws Exception {
 				threadPool.execute(new Runnable(){
@@ -223,15 +308,14 @@ public class Threading {
 						try {
 							task.run();
 						} finally {
-							if(!timeout.isCancelled()) {
-								dt.setTimeout(((DelegatingTimeout)schedule(task, 0L, delay, unit)).timeout);
+							if(!dt.isCancelled()) {
+								schedule(task, delay, delay, unit, dt);
 							}
 						}
 					}
 				});
 			}
-		}, initialDelay < 1L ? delay : initialDelay, unit);
-		return dt.setTimeout(actualTimeOut);
+		}, nextDelay, unit));
 	}
 	
 	
@@ -253,21 +337,67 @@ public class Threading {
 	 * @return The timeout handle of the task which can be used to check on the state of the task and cancel the task
 	 */
 	public Timeout schedule(final Runnable task, final long initialDelay, final long delay) {
-		return schedule(task, initialDelay, delay, TimeUnit.MILLISECONDS);		
+		return schedule(task, initialDelay, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedules a short, non-blocking task for repeated fixed delay execution on the specified period in ms.
+	 * The task is executed directly on the scheduler thread, so it is not delayed (or rejected) when the shared
+	 * thread pool is backlogged.
+	 * @param task The task to execute
+	 * @param delay The initial and post execution delay in ms.
+	 * @return The timeout handle of the task which can be used to check on the state of the task and cancel the task
+	 */
+	public Timeout scheduleInline(final Runnable task, final long delay) {
+		if(task==null) throw new IllegalArgumentException("The passed task was null");
+		return scheduleInline(task, delay, new DelegatingTimeout(null));
+	}
+
+	/**
+	 * Schedules the next inline execution of a repeated task, pointing the task's handle at it
+	 * @param task The task to execute
+	 * @param delay The delay before the next execution in ms.
+	 * @param dt The handle of the task
+	 * @return the handle of the task
+	 */
+	private Timeout scheduleInline(final Runnable task, final long delay, final DelegatingTimeout dt) {
+		return dt.setTimeout(scheduler.newTimeout(new TimerTask(){
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					log.warn("Inline scheduled task [{}] failed", task, t);
+				} finally {
+					// the fired timeout cannot be cancelled any more, so a cancel while the task runs is only seen by the handle
+					if(!dt.isCancelled()) {
+						scheduleInline(task, delay, dt);
+					}
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS));
 	}
 	
+	/**
+	 * <p>Title: DelegatingTimeout</p>
+	 * <p>Description: The handle of a repeated task, delegating to the timeout of its next execution. Once cancelled, the task is not rescheduled.</p>
+	 */
 	private static class DelegatingTimeout implements Timeout {
 		Timeout timeout = null;
+		/** Set when the task has been cancelled through this handle */
+		private volatile boolean cancelled = false;
 		
 		public DelegatingTimeout(Timeout timeout) {
 			this.timeout = timeout;
 		}
 		
-		public DelegatingTimeout setTimeout(Timeout timeout) {
+		public synchronized DelegatingTimeout setTimeout(Timeout timeout) {
 			if(this.timeout!=null) {
 				try { this.timeout.cancel(); } catch (Exception x) {/* No Op */}
 			}
 			this.timeout = timeout;
+			// cancelled while the next execution was being scheduled
+			if(cancelled) timeout.cancel();
 			return this;
 		};
 		
@@ -289,11 +419,12 @@ public class Threading {
 
 		@Override
 		public boolean isCancelled() {
-			return timeout.isCancelled();
+			return cancelled || timeout.isCancelled();
 		}
 
 		@Override
-		public void cancel() {
+		public synchronized void cancel() {
+			cancelled = true;
 			timeout.cancel();
 		}
 
@@ -31,6 +31,7 @@ import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.UniformReservoir;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
 import com.heliosapm.opentsdb.client.util.Util;
 
 /**
@@ -47,13 +48,13 @@ public enum CHMetric implements CHMetricFactory {
 	/** The {@link Gauge} metric */
 	GAUGE(Gauge.class, new GaugeMetricWriter(), SubMetric.GAUGE_SUBMETRIC_MASK, SubMetric.GAUGE_SUBMETRICS, SubMetric.DEFAULT_GAUGE_SUBMETRIC_MASK, SubMetric.DEFAULT_GAUGE_SUBMETRICS){@Override public Metric createNewMetric() {return new UpdateableLongGauge();}},
 	/** The {@link Timer} metric */
-	TIMER(Timer.class, new TimerMetricWriter(), SubMetric.TIMER_SUBMETRIC_MASK, SubMetric.TIMER_SUBMETRICS, SubMetric.DEFAULT_TIMER_SUBMETRIC_MASK, SubMetric.DEFAULT_TIMER_SUBMETRICS){@Override public Timer createNewMetric() {return new Timer();}},
+	TIMER(Timer.class, new TimerMetricWriter(), SubMetric.TIMER_SUBMETRIC_MASK, SubMetric.TIMER_SUBMETRICS, SubMetric.DEFAULT_TIMER_SUBMETRIC_MASK, SubMetric.DEFAULT_TIMER_SUBMETRICS){@Override public Timer createNewMetric() {return new WeightedTimer();}},
 	/** The {@link Meter} metric */
 	METER(Meter.class, new MeterMetricWriter(), SubMetric.METER_SUBMETRIC_MASK, SubMetric.METER_SUBMETRICS, SubMetric.DEFAULT_METER_SUBMETRIC_MASK, SubMetric.DEFAULT_METER_SUBMETRICS){@Override public Meter createNewMetric() {return new Meter();}},
 	/** The {@link Histogram} metric */
-	HISTOGRAM(Histogram.class, new HistogramMetricWriter(), SubMetric.HISTOGRAM_SUBMETRIC_MASK, SubMetric.HISTOGRAM_SUBMETRICS, SubMetric.DEFAULT_HISTOGRAM_SUBMETRIC_MASK, SubMetric.DEFAULT_HISTOGRAM_SUBMETRICS){@Override public Histogram createNewMetric() {return new Histogram(new UniformReservoir());}},
+	HISTOGRAM(Histogram.class, new HistogramMetricWriter(), SubMetric.HISTOGRAM_SUBMETRIC_MASK, SubMetric.HISTOGRAM_SUBMETRICS, SubMetric.DEFAULT_HISTOGRAM_SUBMETRIC_MASK, SubMetric.DEFAULT_HISTOGRAM_SUBMETRICS){@Override public Histogram createNewMetric() {return new IntervalHistogram(new UniformReservoir());}},
 	/** The {@link Counter} metric */
-	COUNTER(Counter.class, new CounterMetricWriter(), SubMetric.COUNTER_SUBMETRIC_MASK, SubMetric.COUNTER_SUBMETRICS, SubMetric.DEFAULT_COUNTER_SUBMETRIC_MASK, SubMetric.DEFAULT_COUNTER_SUBMETRICS){@Override public Counter createNewMetric() {return new Counter();}};
+	COUNTER(Counter.class, new CounterMetricWriter(), SubMetric.COUNTER_SUBMETRIC_MASK, SubMetric.COUNTER_SUBMETRICS, SubMetric.DEFAULT_COUNTER_SUBMETRIC_MASK, SubMetric.DEFAULT_COUNTER_SUBMETRICS){@Override public Counter createNewMetric() {return new SequencedCounter();}};
 	
 	private CHMetric(final Class<? extends Metric> type, final MetricWriter metricWriter, final int subMetricMask, final Set<SubMetric> subMetrics, final int defaultSubMetricMask, final Set<SubMetric> defaultSubMetrics) {
 		this.type = type;
@@ -65,6 +66,17 @@ public enum CHMetric implements CHMetricFactory {
 		this.metricWriter = metricWriter;
 	}
 	
+	/**
+	 * Creates a new metric of this type for the passed metric, selecting the {@link StripedMeter}
+	 * for meters where the metric is selected for striping
+	 * @param otMetric The metric the new metric is created for
+	 * @return the new metric
+	 */
+	public Metric createNewMetric(final OTMetric otMetric) {
+		if(this==METER && StripedMeter.isStriped(otMetric)) return new StripedMeter();
+		return createNewMetric();
+	}
+	
 	public static void main(String[] args) {
 		for(CHMetric c: values()) {
 			System.out.println(c);
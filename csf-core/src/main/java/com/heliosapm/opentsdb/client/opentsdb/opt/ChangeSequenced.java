@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+/**
+ * <p>Title: ChangeSequenced</p>
+ * <p>Description: A metric whose count can move in both directions, exposing a sequence advanced by every change
+ * so a reporter can tell it changed even when the count came back to a previously reported value.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.ChangeSequenced</code></p>
+ */
+
+public interface ChangeSequenced {
+	/**
+	 * Returns the change sequence, which only ever increases and advances on every change of the metric
+	 * @return the change sequence
+	 */
+	public long getChangeSequence();
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import jsr166e.LongAdder;
+
+import com.codahale.metrics.Gauge;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+
+/**
+ * <p>Title: ConcurrencyCounter</p>
+ * <p>Description: Tracks the number of threads concurrently executing an instrumented block for {@link Measurement#CONCURRENT},
+ * and the maximum concurrency observed per interval. As a {@link Gauge}, the value is the maximum concurrency observed since the last read,
+ * and each counter is registered as such with the {@link LongIdMetricRegistry} under its metric tagged <b><code>m=maxconc</code></b>,
+ * so the reporter reads (and resets) the max once per report.</p>
+ * <p>The striped implementation, selected for the metrics matching {@link Constants#PROP_STRIPED_PATTERN}, keeps the in-flight
+ * count in striped cells so entering threads do not contend on a single atomic. Summing the cells on every entry would read every
+ * cell's contended cache line, so the sum is only sampled on one in {@link StripedConcurrencyCounter#SAMPLE_EVERY} entries of each thread
+ * and on each read of the max. The concurrency it reports on entry is the last sampled one, and its max is the max of the samples.
+ * The atomic implementation is exact.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.ConcurrencyCounter</code></p>
+ */
+
+public abstract class ConcurrencyCounter implements Gauge<Integer> {
+	/** The max concurrency field updater */
+	private static final AtomicIntegerFieldUpdater<ConcurrencyCounter> MAX = AtomicIntegerFieldUpdater.newUpdater(ConcurrencyCounter.class, "max");
+
+	/** The maximum concurrency observed in the current interval */
+	private volatile int max = 0;
+
+	/**
+	 * Creates a new concurrency counter for the passed metric
+	 * @param otMetric The metric
+	 * @return a striped counter if the metric is selected for striping, otherwise an atomic counter
+	 */
+	public static ConcurrencyCounter newCounter(final OTMetric otMetric) {
+		return StripedMeter.isStriped(otMetric) ? new StripedConcurrencyCounter() : new AtomicConcurrencyCounter();
+	}
+
+	/**
+	 * Records a thread entering the instrumented block
+	 * @return the concurrency including the entering thread
+	 */
+	public abstract int enter();
+
+	/**
+	 * Records a thread exiting the instrumented block
+	 */
+	public abstract void exit();
+
+	/**
+	 * Returns the current concurrency
+	 * @return the current concurrency
+	 */
+	public abstract int get();
+
+	/**
+	 * Raises the interval max to the passed concurrency if it is higher. Only contended when the max rises.
+	 * @param concurrency The observed concurrency
+	 */
+	protected final void observe(final int concurrency) {
+		int m;
+		while(concurrency > (m = max)) {
+			if(MAX.compareAndSet(this, m, concurrency)) return;
+		}
+	}
+
+	/**
+	 * Returns the maximum concurrency observed in the current interval without resetting it
+	 * @return the interval max concurrency
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the maximum concurrency observed since the last read and starts a new interval at the current concurrency
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Gauge#getValue()
+	 */
+	@Override
+	public Integer getValue() {
+		return MAX.getAndSet(this, get());
+	}
+
+	/**
+	 * <p>Title: StripedConcurrencyCounter</p>
+	 * <p>Description: A concurrency counter keeping the in-flight count in striped cells, sampling the sum lazily</p>
+	 */
+	public static class StripedConcurrencyCounter extends ConcurrencyCounter {
+		/** The number of entries of a thread per sample of the in-flight count. A power of 2. */
+		public static final int SAMPLE_EVERY = 32;
+		/** The per-thread entry ticks, shared by all striped counters */
+		private static final ThreadLocal<int[]> ticks = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[1];
+			}
+		};
+
+		/** The striped in-flight count */
+		private final LongAdder inFlight = new LongAdder();
+		/** The last sampled in-flight count */
+		private volatile int sampled = 0;
+
+		@Override
+		public int enter() {
+			inFlight.increment();
+			final int[] tick = ticks.get();
+			if((++tick[0] & (SAMPLE_EVERY - 1))==0) {
+				return sample();
+			}
+			return Math.max(1, sampled);
+		}
+
+		/**
+		 * Samples the in-flight count and raises the interval max to it
+		 * @return the sampled count
+		 */
+		private int sample() {
+			final int c = (int)inFlight.sum();
+			sampled = c;
+			observe(c);
+			return c;
+		}
+
+		@Override
+		public int getMax() {
+			sample();
+			return super.getMax();
+		}
+
+		@Override
+		public Integer getValue() {
+			sample();
+			return super.getValue();
+		}
+
+		@Override
+		public void exit() {
+			inFlight.decrement();
+		}
+
+		@Override
+		public int get() {
+			return (int)inFlight.sum();
+		}
+	}
+
+	/**
+	 * <p>Title: AtomicConcurrencyCounter</p>
+	 * <p>Description: A concurrency counter keeping the in-flight count in a single atomic</p>
+	 */
+	public static class AtomicConcurrencyCounter extends ConcurrencyCounter {
+		/** The in-flight count */
+		private final AtomicInteger inFlight = new AtomicInteger(0);
+
+		@Override
+		public int enter() {
+			final int c = inFlight.incrementAndGet();
+			observe(c);
+			return c;
+		}
+
+		@Override
+		public void exit() {
+			inFlight.decrementAndGet();
+		}
+
+		@Override
+		public int get() {
+			return inFlight.get();
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import jsr166e.LongAdder;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: IntervalHistogram</p>
+ * <p>Description: A histogram which, when {@link Constants#PROP_INTERVAL_SNAPSHOTS} is enabled, samples into an
+ * {@link IntervalReservoir} so reporters can take a per-interval snapshot and reset it through {@link #getIntervalSnapshot()}.
+ * When disabled, the histogram samples into the passed fallback reservoir and interval snapshots are plain snapshots.
+ * The count is cumulative either way, and includes the values {@link WeightedSampling} updates stand for.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.IntervalHistogram</code></p>
+ */
+
+public class IntervalHistogram extends Histogram implements WeightedSampling {
+	/** Indicates if histograms sample per interval */
+	public static final boolean INTERVAL_SNAPSHOTS = ConfigurationReader.confBool(Constants.PROP_INTERVAL_SNAPSHOTS, Constants.DEFAULT_INTERVAL_SNAPSHOTS);
+	/** The maximum number of values sampled per interval */
+	public static final int SAMPLE_SIZE = ConfigurationReader.confInt(Constants.PROP_INTERVAL_SAMPLE_SIZE, Constants.DEFAULT_INTERVAL_SAMPLE_SIZE);
+
+	/** The interval reservoir, or null if interval snapshots are disabled */
+	private final IntervalReservoir intervalReservoir;
+	/** The number of values counted but not sampled */
+	private final LongAdder unsampled = new LongAdder();
+
+	/**
+	 * Creates a new IntervalHistogram
+	 * @param fallback The reservoir to sample into when interval snapshots are disabled
+	 */
+	public IntervalHistogram(final Reservoir fallback) {
+		this(INTERVAL_SNAPSHOTS ? new IntervalReservoir(SAMPLE_SIZE) : null, fallback);
+	}
+
+	/**
+	 * Creates a new IntervalHistogram
+	 * @param interval The interval reservoir, or null if interval snapshots are disabled
+	 * @param fallback The reservoir to sample into when interval snapshots are disabled
+	 */
+	private IntervalHistogram(final IntervalReservoir interval, final Reservoir fallback) {
+		super(interval!=null ? interval : fallback);
+		intervalReservoir = interval;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.WeightedSampling#update(long, long)
+	 */
+	@Override
+	public void update(final long value, final long count) {
+		update(value);
+		if(count > 1L) unsampled.add(count - 1L);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Histogram#getCount()
+	 */
+	@Override
+	public long getCount() {
+		return super.getCount() + unsampled.sum();
+	}
+
+	/**
+	 * Returns a snapshot of the values recorded since the last interval snapshot and starts a new interval.
+	 * If interval snapshots are disabled, returns a regular snapshot.
+	 * @return the interval snapshot
+	 */
+	public Snapshot getIntervalSnapshot() {
+		return intervalReservoir==null ? getSnapshot() : intervalReservoir.snapshotAndReset();
+	}
+
+	/**
+	 * Indicates if this histogram samples per interval
+	 * @return true if sampling per interval, false otherwise
+	 */
+	public boolean isInterval() {
+		return intervalReservoir!=null;
+	}
+
+}
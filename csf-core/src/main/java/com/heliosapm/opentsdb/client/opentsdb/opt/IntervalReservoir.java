@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * <p>Title: IntervalReservoir</p>
+ * <p>Description: A uniformly sampled reservoir of the values recorded in the current reporting interval.
+ * {@link #snapshotAndReset()} takes the interval's values and starts a new interval, so each report reflects only
+ * the values recorded since the last one, rather than the whole or decaying history of the metric.</p>
+ * <p>The reservoir keeps two sample buffers and alternates between them, so resetting does not allocate a new buffer.
+ * Each buffer counts the writers in flight, and a reset waits out the writers of the ended buffer before copying and recycling it,
+ * so a late writer can neither be missed by the snapshot nor leak into the next interval.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.IntervalReservoir</code></p>
+ */
+
+public class IntervalReservoir implements Reservoir {
+	/** The per-thread random used to pick the slot to replace once an interval's sample is full */
+	private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	/** The maximum number of values sampled per interval */
+	private final int sampleSize;
+	/** The sample of the current interval */
+	private volatile Sample current;
+	/** The spare sample, swapped in on reset */
+	private Sample spare;
+
+	/**
+	 * <p>Title: Sample</p>
+	 * <p>Description: One interval's sample buffer and the number of values recorded into it</p>
+	 */
+	private static final class Sample {
+		/** The number of values recorded in the interval */
+		final AtomicLong count = new AtomicLong(0L);
+		/** The number of writers in flight */
+		final AtomicInteger writers = new AtomicInteger(0);
+		/** The sampled values */
+		final AtomicLongArray values;
+
+		Sample(final int size) {
+			values = new AtomicLongArray(size);
+		}
+	}
+
+	/**
+	 * Creates a new IntervalReservoir
+	 * @param sampleSize The maximum number of values sampled per interval
+	 */
+	public IntervalReservoir(final int sampleSize) {
+		if(sampleSize < 1) throw new IllegalArgumentException("Invalid sample size [" + sampleSize + "]");
+		this.sampleSize = sampleSize;
+		current = new Sample(sampleSize);
+		spare = new Sample(sampleSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Reservoir#size()
+	 */
+	@Override
+	public int size() {
+		return (int)Math.min(current.count.get(), sampleSize);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Reservoir#update(long)
+	 */
+	@Override
+	public void update(final long value) {
+		Sample sample;
+		while(true) {
+			sample = current;
+			sample.writers.incrementAndGet();
+			// re-check so a reset that missed our increment cannot be recycling this sample
+			if(current==sample) break;
+			sample.writers.decrementAndGet();
+		}
+		try {
+			final long c = sample.count.incrementAndGet();
+			if(c <= sampleSize) {
+				sample.values.set((int)c - 1, value);
+			} else {
+				final long r = (random.get().nextLong() & Long.MAX_VALUE) % c;
+				if(r < sampleSize) {
+					sample.values.set((int)r, value);
+				}
+			}
+		} finally {
+			sample.writers.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the current interval's values without resetting the interval
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Reservoir#getSnapshot()
+	 */
+	@Override
+	public Snapshot getSnapshot() {
+		return new IntervalSnapshot(copy(current));
+	}
+
+	/**
+	 * Returns a snapshot of the current interval's values and starts a new interval
+	 * @return the snapshot of the ended interval
+	 */
+	public synchronized IntervalSnapshot snapshotAndReset() {
+		final Sample ended = current;
+		current = spare;
+		// wait out the writers that entered the ended sample before the swap
+		while(ended.writers.get()!=0) {
+			Thread.yield();
+		}
+		final long[] values = copy(ended);
+		ended.count.set(0L);
+		spare = ended;
+		return new IntervalSnapshot(values);
+	}
+
+	/**
+	 * Copies the sampled values out of the passed sample
+	 * @param sample The sample to copy
+	 * @return the sampled values
+	 */
+	private long[] copy(final Sample sample) {
+		final int size = (int)Math.min(sample.count.get(), sampleSize);
+		final long[] values = new long[size];
+		for(int i = 0; i < size; i++) {
+			values[i] = sample.values.get(i);
+		}
+		return values;
+	}
+
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import com.codahale.metrics.Snapshot;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: IntervalSnapshot</p>
+ * <p>Description: A snapshot of one interval's sampled values which only computes what is read from it.
+ * The min, max, mean and standard deviation are computed together in a single pass the first time any of them is read,
+ * and the values are sorted once, the first time a quantile is read. A reporter reading only the sub-metrics in its
+ * snapshot mask therefore pays only for those.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.IntervalSnapshot</code></p>
+ */
+
+public class IntervalSnapshot extends Snapshot {
+	/** The sampled values, sorted on the first quantile read */
+	private final long[] values;
+	/** Indicates if the values have been sorted */
+	private boolean sorted = false;
+	/** Indicates if the min, max, mean and standard deviation have been computed */
+	private boolean computed = false;
+	/** The lowest value */
+	private long min = 0L;
+	/** The highest value */
+	private long max = 0L;
+	/** The arithmetic mean of the values */
+	private double mean = 0D;
+	/** The standard deviation of the values */
+	private double stdDev = 0D;
+
+	/**
+	 * Creates a new IntervalSnapshot
+	 * @param values The sampled values, which the snapshot takes ownership of
+	 */
+	public IntervalSnapshot(final long[] values) {
+		this.values = values;
+	}
+
+	/**
+	 * Sorts the values if they have not been sorted yet
+	 * @return the sorted values
+	 */
+	private long[] sorted() {
+		if(!sorted) {
+			Arrays.sort(values);
+			sorted = true;
+		}
+		return values;
+	}
+
+	/**
+	 * Computes the min, max, mean and standard deviation in one pass if they have not been computed yet
+	 */
+	private void compute() {
+		if(computed) return;
+		computed = true;
+		final int n = values.length;
+		if(n==0) return;
+		long lo = Long.MAX_VALUE, hi = Long.MIN_VALUE;
+		double sum = 0D, sumSq = 0D;
+		for(int i = 0; i < n; i++) {
+			final long v = values[i];
+			if(v < lo) lo = v;
+			if(v > hi) hi = v;
+			sum += v;
+			sumSq += (double)v * v;
+		}
+		min = lo;
+		max = hi;
+		mean = sum / n;
+		if(n > 1) {
+			final double variance = (sumSq - (sum * mean)) / (n - 1);
+			stdDev = variance > 0D ? Math.sqrt(variance) : 0D;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#getValue(double)
+	 */
+	@Override
+	public synchronized double getValue(final double quantile) {
+		if(quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+			throw new IllegalArgumentException(quantile + " is not in [0..1]");
+		}
+		if(values.length==0) return 0D;
+		final long[] vals = sorted();
+		final double pos = quantile * (vals.length + 1);
+		final int index = (int)pos;
+		if(index < 1) return vals[0];
+		if(index >= vals.length) return vals[vals.length - 1];
+		final double lower = vals[index - 1];
+		final double upper = vals[index];
+		return lower + (pos - Math.floor(pos)) * (upper - lower);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#getValues()
+	 */
+	@Override
+	public synchronized long[] getValues() {
+		return Arrays.copyOf(sorted(), values.length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#size()
+	 */
+	@Override
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#getMax()
+	 */
+	@Override
+	public synchronized long getMax() {
+		compute();
+		return max;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#getMean()
+	 */
+	@Override
+	public synchronized double getMean() {
+		compute();
+		return mean;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#getMin()
+	 */
+	@Override
+	public synchronized long getMin() {
+		compute();
+		return min;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#getStdDev()
+	 */
+	@Override
+	public synchronized double getStdDev() {
+		compute();
+		return stdDev;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Snapshot#dump(java.io.OutputStream)
+	 */
+	@Override
+	public synchronized void dump(final OutputStream output) {
+		final PrintWriter out = new PrintWriter(new OutputStreamWriter(output, Constants.UTF8));
+		try {
+			for(long value: sorted()) {
+				out.printf("%d%n", value);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -624,7 +624,7 @@ public class LongIdMetricRegistry implements LongIdMetricSet, OTMetricIdListener
     	public long getId();
     }
 	
-    public static class OTCounter extends Counter implements OTLongIdMetric {
+    public static class OTCounter extends SequencedCounter implements OTLongIdMetric {
     	/** The OTMetric id for this metric */
     	private final long otmId;
 
@@ -647,7 +647,7 @@ public class LongIdMetricRegistry implements LongIdMetricSet, OTMetricIdListener
 		}
     }
     
-    public static class OTHistogram extends Histogram implements OTLongIdMetric {
+    public static class OTHistogram extends IntervalHistogram implements OTLongIdMetric {
     	/** The OTMetric id for this metric */
     	private final long otmId;
 
@@ -88,6 +88,14 @@ public class LongIdOTMetricCache implements LongIdOTMetricCacheMBean, RemovalLis
 			.weakKeys()
 			.build();
 	
+	/** A global cache of concurrency counters keyed by the OTMetric */
+	private final Cache<OTMetric, ConcurrencyCounter> concurrencyCounters = CacheBuilder.newBuilder()
+			.concurrencyLevel(Constants.CORES)
+			.initialCapacity(512)
+			.recordStats()
+			.weakKeys()
+			.build();
+	
 	/** A global cache of a string const keyed by the OTMetric. Used to track enqueued OTMetrics no longer in use */
 	private final Cache<OTMetric, String> enqueueWatcher = CacheBuilder.newBuilder()
 			.concurrencyLevel(1)
@@ -163,6 +171,7 @@ public class LongIdOTMetricCache implements LongIdOTMetricCacheMBean, RemovalLis
 			final OTMetric otm = notification.getKey();
 			if(otm!=null) {
 				counters.invalidate(otm);
+				concurrencyCounters.invalidate(otm);
 				final long metricId = otm.longHashCode();
 				cache.remove(metricId);
 				subMetrics.remove(metricId);
@@ -242,6 +251,31 @@ public class LongIdOTMetricCache implements LongIdOTMetricCacheMBean, RemovalLis
 
 	
 	
+	/**
+	 * Returns the concurrency counter for the passed OTMetric id
+	 * @param otMetricId the OTMetric id to get the concurrency counter for
+	 * @return the concurrency counter
+	 */
+	public ConcurrencyCounter getConcurrencyCounter(final long otMetricId) {
+		final OTMetric metric =  cache.get(otMetricId);
+		if(metric==null) throw new RuntimeException("No otmeric for id [" + otMetricId + "]");
+		try {
+			return this.concurrencyCounters.get(metric, new Callable<ConcurrencyCounter>() {
+				@Override
+				public ConcurrencyCounter call() throws Exception {					
+					final ConcurrencyCounter counter = ConcurrencyCounter.newCounter(metric);
+					// report the interval max concurrency
+					LongIdMetricRegistry.getInstance().register(MetricBuilder.metric(metric).tag("m", "maxconc").optBuild(), counter);
+					return counter;
+				}			
+			});
+		} catch (Exception ex) {
+			// this should never happen
+			this.log.error("Unexpected exception getting concurrency counter", ex);
+			throw new RuntimeException(ex);
+		}		
+	}
+	
 	/**
 	 * Increments a counter for the passed OTMetric and returns the new value
 	 * @param otMetric the OTMetric 
@@ -757,7 +791,7 @@ public class LongIdOTMetricCache implements LongIdOTMetricCacheMBean, RemovalLis
 					final OTMetric parentMetric = getOTMetric(parentMetricId);
 					for(Measurement m: parentMetric.getMeasurements()) {
 						MetricBuilder.metric(parentMetric).tag("m", m.shortName).parent(parentMetricId).optBuild();
-						metricMap.put(m, m.chMetric.createNewMetric());
+						metricMap.put(m, m.chMetric.createNewMetric(parentMetric));
 					}
 					aggregateMetrics.put(parentMetricId, metricMap);
 					
@@ -20,18 +20,32 @@ import static com.heliosapm.opentsdb.client.opentsdb.Constants.UTF8;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong.IteratorLong;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.util.Timeout;
 
 import com.codahale.metrics.Clock;
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Counting;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
@@ -44,6 +58,7 @@ import com.codahale.metrics.Snapshot;
 import com.codahale.metrics.Timer;
 import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
 import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.EmptyAsyncHandler.FinalHookAsyncHandler;
 import com.heliosapm.opentsdb.client.opentsdb.EpochClock;
 import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
 import com.heliosapm.opentsdb.client.opentsdb.OTMetricCache;
@@ -52,16 +67,25 @@ import com.heliosapm.opentsdb.client.opentsdb.OpenTsdb;
 import com.heliosapm.opentsdb.client.opentsdb.Threading;
 import com.heliosapm.opentsdb.client.util.DynamicByteBufferBackedChannelBuffer;
 import com.heliosapm.opentsdb.client.util.DynamicByteBufferBackedChannelBufferFactory;
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+import com.ning.http.client.HttpResponseStatus;
 
 /**
  * <p>Title: LongIdOpenTSDBReporter</p>
- * <p>Description: The optimized metric reporter</p> 
+ * <p>Description: The optimized metric reporter. Report cycles of more than {@link Constants#PROP_REPORT_PARTITION_SIZE} metrics
+ * are partitioned into ranges which are rendered in parallel, each into its own buffer sent as an independent batch.</p>
+ * <p>When {@link Constants#PROP_REPORT_DIRTY_ONLY} is enabled, counters, histograms, meters and timers whose count has not
+ * changed since they were last reported are skipped, except for a heartbeat every {@link Constants#PROP_REPORT_IDLE_HEARTBEAT} ms.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporter</code></p>
  */
 
-public class LongIdOpenTSDBReporter implements Reporter, Closeable {
+public class LongIdOpenTSDBReporter implements Reporter, Closeable, LongIdOpenTSDBReporterMBean {
+	/** Serial number factory for reporter JMX ObjectNames */
+	private static final AtomicInteger serial = new AtomicInteger(0);
+
 	/** Instance logger */
 	protected final Logger log = LogManager.getLogger(getClass());
 	/** Started flag */
@@ -92,6 +116,39 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
     protected final int snapshotMask;
     /** The metered sub-metric mask */
     protected final int meteredMask;
+    /** The snapshot sub-metrics enabled by the snapshot mask */
+    protected final OTSnapshot[] snapshotSubs;
+    /** The number of metrics per report partition */
+    protected final int partitionSize;
+    /** The partitioned report render deadline in ms. */
+    protected final long renderDeadline;
+    /** The thread pool partitions are rendered on */
+    protected final ExecutorService renderPool = Threading.getInstance().getRenderThreadPool();
+    /** This reporter's JMX ObjectName */
+    protected final ObjectName objectName;
+    /** The elapsed time of the last report cycle's rendering in ms. */
+    protected volatile long lastRenderTime = 0L;
+    /** The number of metrics rendered in the last report cycle */
+    protected volatile int lastRenderedMetrics = 0;
+    /** The number of partitions the last report cycle was rendered in */
+    protected volatile int lastPartitions = 0;
+    /** The number of partitions abandoned on account of the render deadline */
+    protected final AtomicLong deadlineMisses = new AtomicLong(0L);
+    /** Indicates if only metrics updated since they were last reported are reported */
+    protected final boolean dirtyOnly;
+    /** The period in ms. on which idle metrics are reported anyway */
+    protected final long idleHeartbeat;
+    /** The change sequence and time of each counting metric's last delivered report, and the last cycle it was seen in, keyed by OTMetric id */
+    protected final NonBlockingHashMapLong<long[]> reportedCounts = new NonBlockingHashMapLong<long[]>();
+    /** The report cycle serial number */
+    protected volatile long cycle = 0L;
+    /** The number of idle metrics skipped in the current report cycle */
+    protected final AtomicInteger idleMetrics = new AtomicInteger(0);
+    /** The number of idle metrics skipped in the last report cycle */
+    protected volatile int lastIdleMetrics = 0;
+    
+    /** The number of report cycles between purges of the reported counts of metrics no longer in the registry */
+    private static final int PURGE_CYCLES = 64;
     
     /** The initial capacity of collection buffers */
     protected int initialCapacity = 1024;
@@ -136,6 +193,17 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
         this.rateFactor = rateUnit.toSeconds(1);
         this.snapshotMask = snapshotMask;
         this.meteredMask = meteredMask;
+        this.snapshotSubs = OTSnapshot.getEnabled(snapshotMask);
+        this.partitionSize = Math.max(1, ConfigurationReader.confInt(Constants.PROP_REPORT_PARTITION_SIZE, Constants.DEFAULT_REPORT_PARTITION_SIZE));
+        this.renderDeadline = ConfigurationReader.confLong(Constants.PROP_REPORT_DEADLINE, Constants.DEFAULT_REPORT_DEADLINE);
+        this.dirtyOnly = ConfigurationReader.confBool(Constants.PROP_REPORT_DIRTY_ONLY, Constants.DEFAULT_REPORT_DIRTY_ONLY);
+        this.idleHeartbeat = ConfigurationReader.confLong(Constants.PROP_REPORT_IDLE_HEARTBEAT, Constants.DEFAULT_REPORT_IDLE_HEARTBEAT);
+        objectName = JMXHelper.objectName(Util.getJMXDomain() + ":service=LongIdOpenTSDBReporter,instance=" + serial.incrementAndGet());
+        try {
+        	JMXHelper.registerMBean(this, objectName);
+        } catch (Exception ex) {
+        	log.warn("Failed to register LongIdOpenTSDBReporter JMX interface. Will continue without:" + ex);
+        }
     }
 
 	/**
@@ -145,6 +213,7 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
 	@Override
 	public void close() throws IOException {
 		stop();
+		try { JMXHelper.unregisterMBean(objectName); } catch (Exception x) {/* No Op */}
 	}
 	
     /**
@@ -199,7 +268,10 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
 	private static final byte[] ARR_CLOSER = "]".getBytes(UTF8);
 	
     /**
-     * Collects from all the metrics passed and posts to OpenTSDB
+     * Collects from all the metrics passed and posts to OpenTSDB.
+     * If there are more metrics than the partition size, the metrics are rendered in parallel partitions,
+     * each posted as its own batch. Partitions still rendering at the deadline stop rendering and post what they rendered,
+     * and partitions not started by the deadline are skipped.
      * @param gauges A map of gauges keyed by the metric name
      * @param counters A map of counters keyed by the metric name
      * @param histograms A map of histograms keyed by the metric name
@@ -207,44 +279,216 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
      * @param timers A map of timers keyed by the metric name
      */
     public void report(final Map<OTMetric, Gauge> gauges, final Map<OTMetric, Counter> counters, final Map<OTMetric, Histogram> histograms, final Map<OTMetric, Meter> meters, final Map<OTMetric, Timer> timers) {
-    	final DynamicByteBufferBackedChannelBuffer buffer = bufferFactory.getBuffer(initialCapacity);
-    	buffer.writeBytes(ARR_OPENER);
+    	final long start = System.nanoTime();
         final long timestamp = clock.getTime();
-        int metricCount = 0;
-        for (Map.Entry<OTMetric, Gauge> g : gauges.entrySet()) {
-        	final Object value = g.getValue().getValue(); 
-            metricCount += build(g.getKey(), value, timestamp, buffer);
+        final List<Map.Entry<OTMetric, ? extends Metric>> entries = new ArrayList<Map.Entry<OTMetric, ? extends Metric>>(
+        		gauges.size() + counters.size() + histograms.size() + meters.size() + timers.size());
+        entries.addAll(gauges.entrySet());
+        entries.addAll(counters.entrySet());
+        entries.addAll(histograms.entrySet());
+        entries.addAll(meters.entrySet());
+        entries.addAll(timers.entrySet());
+        final int size = entries.size();
+        cycle++;
+        idleMetrics.set(0);
+        int partitions = 1;
+        if(size <= partitionSize) {
+        	render(entries, 0, size, timestamp, null);
+        } else {
+        	partitions = renderPartitioned(entries, timestamp, start);
         }
-        
-        for (Map.Entry<OTMetric, Counter> entry : counters.entrySet()) {
-        	metricCount += build(entry.getKey(), entry.getValue(), timestamp, buffer);
+        lastRenderedMetrics = size;
+        lastPartitions = partitions;
+        lastIdleMetrics = idleMetrics.get();
+        if(dirtyOnly && cycle % PURGE_CYCLES == 0) {
+        	purgeReportedCounts();
         }
-
-        for (Map.Entry<OTMetric, Histogram> entry : histograms.entrySet()) {
-        	metricCount += build(entry.getKey(), entry.getValue(), timestamp, buffer);
-        }
-
-        for (Map.Entry<OTMetric, Meter> entry : meters.entrySet()) {
-        	metricCount += build(entry.getKey(), entry.getValue(), timestamp, buffer);
-        }
-
-        for (Map.Entry<OTMetric, Timer> entry : timers.entrySet()) {
-        	metricCount += build(entry.getKey(), entry.getValue(), timestamp, buffer);
+        lastRenderTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+    
+    /**
+     * Renders the passed metrics in partitions on the render thread pool, waiting up to the render deadline.
+     * Partitions are never interrupted: a send in flight completes, and a partition abandoned mid render posts
+     * the metrics it rendered (whose interval histograms have already been reset) rather than discarding them.
+     * @param entries The metrics to render
+     * @param timestamp The timestamp of the metrics
+     * @param start The nano time the report cycle started
+     * @return the number of partitions
+     */
+    protected int renderPartitioned(final List<Map.Entry<OTMetric, ? extends Metric>> entries, final long timestamp, final long start) {
+    	final int size = entries.size();
+    	final List<Future<Integer>> futures = new ArrayList<Future<Integer>>((size / partitionSize) + 1);
+    	final AtomicBoolean abandoned = new AtomicBoolean(false);
+    	for(int from = 0; from < size; from += partitionSize) {
+    		final int f = from, t = Math.min(size, from + partitionSize);
+    		futures.add(renderPool.submit(new Callable<Integer>() {
+    			@Override
+    			public Integer call() {
+    				return render(entries, f, t, timestamp, abandoned);
+    			}
+    		}));
+    	}
+    	final long deadline = start + TimeUnit.MILLISECONDS.toNanos(renderDeadline);
+    	for(Future<Integer> future: futures) {
+    		try {
+    			if(renderDeadline > 0) {
+    				future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    			} else {
+    				future.get();
+    			}
+    		} catch (TimeoutException tex) {
+    			abandoned.set(true);
+    			future.cancel(false);
+    			deadlineMisses.incrementAndGet();
+    		} catch (InterruptedException iex) {
+    			abandoned.set(true);
+    			future.cancel(false);
+    			Thread.currentThread().interrupt();
+    		} catch (ExecutionException eex) {
+    			log.error("Failed to render report partition", eex.getCause());
+    		}
+    	}
+    	return futures.size();
+    }
+    
+    /**
+     * Renders a range of the passed metrics into a new buffer and posts it to OpenTSDB
+     * @param entries The metrics to render
+     * @param from The index of the first metric to render
+     * @param to The index after the last metric to render
+     * @param timestamp The timestamp of the metrics
+     * @param abandoned Set when the report cycle abandons the partition, in which case the metrics rendered so far are posted. Null if never abandoned.
+     * @return the number of metrics traced
+     */
+    protected int render(final List<Map.Entry<OTMetric, ? extends Metric>> entries, final int from, final int to, final long timestamp, final AtomicBoolean abandoned) {
+    	final DynamicByteBufferBackedChannelBuffer buffer = bufferFactory.getBuffer(initialCapacity);
+    	buffer.writeBytes(ARR_OPENER);
+        int metricCount = 0;
+        // the change sequences of the rendered counting metrics, committed as reported once the post succeeds
+        final long[] pendingIds = dirtyOnly ? new long[to - from] : null;
+        final long[] pendingSequences = dirtyOnly ? new long[to - from] : null;
+        int pending = 0;
+        for(int i = from; i < to; i++) {
+        	if(abandoned!=null && ((i - from) & 0xFF)==0 && abandoned.get()) break;
+        	final Map.Entry<OTMetric, ? extends Metric> entry = entries.get(i);
+        	final Metric metric = entry.getValue();
+        	if(dirtyOnly && metric instanceof Counting) {
+        		final long otmId = entry.getKey().longHashCode();
+        		final long sequence = changeSequence(metric);
+        		if(!isDirty(otmId, sequence)) {
+        			idleMetrics.incrementAndGet();
+        			continue;
+        		}
+        		pendingIds[pending] = otmId;
+        		pendingSequences[pending++] = sequence;
+        	}
+        	metricCount += render(entry.getKey(), metric, timestamp, buffer);
         }
         if(metricCount>0) {
         	buffer.writerIndex(buffer.writerIndex()-1);
         	buffer.writeBytes(ARR_CLOSER);
-        	
-//       	try {
-//    		JSONArray j = new JSONArray(buffer.toString(UTF8));
-//    		System.out.println(j.toString(2));    		
-//    	} catch (Exception ex) {
-//    		System.out.println(buffer.toString(UTF8));
-//    	}
-        	
-        	
-        	opentsdb.send(buffer, metricCount);
+        	if(pending==0) {
+        		opentsdb.send(buffer, metricCount);
+        	} else {
+        		final int committed = pending;
+        		opentsdb.send(buffer, metricCount, new FinalHookAsyncHandler<Object>() {
+        			final AtomicBoolean done = new AtomicBoolean(false);
+        			@Override
+        			public void onFinal(final boolean success) {
+        				if(done.compareAndSet(false, true) && success) {
+        					commitReported(pendingIds, pendingSequences, committed);
+        				}
+        			}
+        			@Override
+        			public STATE onStatusReceived(final HttpResponseStatus responseStatus) throws Exception {
+        				final int code = responseStatus.getStatusCode();
+        				onFinal(code >= 200 && code < 300);
+        				return STATE.CONTINUE;
+        			}
+        		});
+        	}
         }
+        return metricCount;
+    }
+    
+    /**
+     * Traces the values of the passed metric according to its type
+     * @param otm The OTMetric defining the metric name
+     * @param metric The metric to trace the values from
+     * @param timestamp The timestamp of the metric
+     * @param chBuff The buffer to write to
+     * @return the number of metrics traced
+     */
+    protected int render(final OTMetric otm, final Metric metric, final long timestamp, final ChannelBuffer chBuff) {
+    	if(metric instanceof Gauge) return build(otm, ((Gauge<?>)metric).getValue(), timestamp, chBuff);
+    	if(metric instanceof Counter) return build(otm, (Counter)metric, timestamp, chBuff);
+    	if(metric instanceof Histogram) return build(otm, (Histogram)metric, timestamp, chBuff);
+    	if(metric instanceof Meter) return build(otm, (Meter)metric, timestamp, chBuff);
+    	if(metric instanceof Timer) return build(otm, (Timer)metric, timestamp, chBuff);
+    	return 0;
+    }
+    
+    /**
+     * Returns the change sequence of a counting metric: the {@link ChangeSequenced} sequence of metrics whose count can go down,
+     * otherwise the count, which every write path of the other counting metrics advances
+     * @param metric The counting metric
+     * @return the change sequence
+     */
+    protected static long changeSequence(final Metric metric) {
+    	return metric instanceof ChangeSequenced ? ((ChangeSequenced)metric).getChangeSequence() : ((Counting)metric).getCount();
+    }
+    
+    /**
+     * Determines if a counting metric has changed since its last delivered report, or is due an idle heartbeat.
+     * The metric is only recorded as reported by {@link #commitReported(long[], long[], int)} once the post succeeds,
+     * so a failed post leaves it dirty for the next cycle.
+     * @param otmId The OTMetric id of the metric
+     * @param sequence The metric's current change sequence
+     * @return true if the metric should be reported, false if it is idle
+     */
+    protected boolean isDirty(final long otmId, final long sequence) {
+    	long[] reported = reportedCounts.get(otmId);
+    	if(reported==null) {
+    		// never delivered: the sentinel sequence matches no metric
+    		reported = new long[]{Long.MIN_VALUE, 0L, cycle};
+    		final long[] prior = reportedCounts.putIfAbsent(otmId, reported);
+    		if(prior==null) return true;
+    		reported = prior;
+    	}
+    	reported[2] = cycle;
+    	return reported[0]!=sequence || (idleHeartbeat > 0 && System.currentTimeMillis() - reported[1] >= idleHeartbeat);
+    }
+    
+    /**
+     * Records the change sequences of successfully posted metrics as reported
+     * @param otmIds The OTMetric ids of the posted metrics
+     * @param sequences The change sequences the metrics were posted at
+     * @param count The number of posted metrics
+     */
+    protected void commitReported(final long[] otmIds, final long[] sequences, final int count) {
+    	final long now = System.currentTimeMillis();
+    	for(int i = 0; i < count; i++) {
+    		final long[] reported = reportedCounts.get(otmIds[i]);
+    		if(reported!=null) {
+    			reported[0] = sequences[i];
+    			reported[1] = now;
+    		}
+    	}
+    }
+    
+    /**
+     * Removes the reported counts of metrics which were not seen in the last report cycle
+     */
+    protected void purgeReportedCounts() {
+    	final long current = cycle;
+    	final IteratorLong iter = reportedCounts.new IteratorLong();
+    	while(iter.hasNext()) {
+    		final long otmId = iter.nextLong();
+    		final long[] reported = reportedCounts.get(otmId);
+    		if(reported!=null && reported[2] < current) {
+    			iter.remove();
+    		}
+    	}
     }
     
     /**
@@ -274,9 +518,20 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
     	return 1;
     }
     
+    /**
+     * Traces the count and the snapshot sub-metrics of the passed histogram.
+     * {@link IntervalHistogram}s are reported per interval: the snapshot covers only the values recorded since the
+     * last report and the histogram's sample is reset.
+     * @param otm The OTMetric defining the metric name
+     * @param histogram The histogram to trace the values from
+     * @param timestamp The timestamp of the metric
+     * @param chBuff The buffer to write to
+     * @return the number of metrics traced
+     */
     protected int build(final OTMetric otm, final Histogram histogram, final long timestamp, final ChannelBuffer chBuff) {
     	registry.register(otm, histogram, "hcount").toJSON(timestamp, histogram.getCount(), chBuff, true);
-    	return 1 + build(otm, histogram, histogram.getSnapshot(), timestamp, chBuff, false);
+    	final Snapshot snapshot = histogram instanceof IntervalHistogram ? ((IntervalHistogram)histogram).getIntervalSnapshot() : histogram.getSnapshot();
+    	return 1 + build(otm, histogram, snapshot, timestamp, chBuff, false);
     }
     
     protected int build(final OTMetric otm, final Meter meter, final long timestamp, final ChannelBuffer chBuff) {
@@ -290,11 +545,10 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
     }
     
     protected int build(final OTMetric otm, final Metric parentMetric, final Snapshot snapshot, final long timestamp, final ChannelBuffer chBuff, final boolean conv) {
-    	final OTSnapshot[] subs = OTSnapshot.getEnabled(snapshotMask);
-    	for(OTSnapshot snap: subs) {
+    	for(OTSnapshot snap: snapshotSubs) {
     		registry.register(otm, parentMetric, snap.name()).toJSON(timestamp, snap.get(snapshot), chBuff, true);
     	}
-    	return subs.length;
+    	return snapshotSubs.length;
     }
     
     protected int build(final OTMetric otm, final Metered meter, final long timestamp, final ChannelBuffer chBuff, final boolean conv) {
@@ -478,6 +732,87 @@ public class LongIdOpenTSDBReporter implements Reporter, Closeable {
 
 
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getLastRenderTime()
+	 */
+	@Override
+	public long getLastRenderTime() {
+		return lastRenderTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getLastRenderedMetrics()
+	 */
+	@Override
+	public int getLastRenderedMetrics() {
+		return lastRenderedMetrics;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getLastPartitions()
+	 */
+	@Override
+	public int getLastPartitions() {
+		return lastPartitions;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getDeadlineMisses()
+	 */
+	@Override
+	public long getDeadlineMisses() {
+		return deadlineMisses.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getLastIdleMetrics()
+	 */
+	@Override
+	public int getLastIdleMetrics() {
+		return lastIdleMetrics;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#isDirtyOnly()
+	 */
+	@Override
+	public boolean isDirtyOnly() {
+		return dirtyOnly;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getIdleHeartbeat()
+	 */
+	@Override
+	public long getIdleHeartbeat() {
+		return idleHeartbeat;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getPartitionSize()
+	 */
+	@Override
+	public int getPartitionSize() {
+		return partitionSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean#getRenderDeadline()
+	 */
+	@Override
+	public long getRenderDeadline() {
+		return renderDeadline;
+	}
+
 	/**
 	 * Returns the 
 	 * @return the registry
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+/**
+ * <p>Title: LongIdOpenTSDBReporterMBean</p>
+ * <p>Description: JMX MBean interface for a {@link LongIdOpenTSDBReporter}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporterMBean</code></p>
+ */
+
+public interface LongIdOpenTSDBReporterMBean {
+
+	/**
+	 * Returns the elapsed time of the last report cycle's rendering in ms.
+	 * @return the last render time
+	 */
+	public long getLastRenderTime();
+
+	/**
+	 * Returns the number of metrics rendered in the last report cycle
+	 * @return the number of rendered metrics
+	 */
+	public int getLastRenderedMetrics();
+
+	/**
+	 * Returns the number of partitions the last report cycle was rendered in
+	 * @return the number of partitions
+	 */
+	public int getLastPartitions();
+
+	/**
+	 * Returns the total number of partitions abandoned because they were not rendered by the deadline
+	 * @return the number of abandoned partitions
+	 */
+	public long getDeadlineMisses();
+
+	/**
+	 * Returns the number of idle metrics skipped in the last report cycle
+	 * @return the number of skipped idle metrics
+	 */
+	public int getLastIdleMetrics();
+
+	/**
+	 * Indicates if only metrics updated since they were last reported are reported
+	 * @return true if reporting dirty metrics only, false if reporting all metrics
+	 */
+	public boolean isDirtyOnly();
+
+	/**
+	 * Returns the period in ms. on which idle metrics are reported anyway
+	 * @return the idle heartbeat period, or less than 1 if idle metrics are never reported
+	 */
+	public long getIdleHeartbeat();
+
+	/**
+	 * Returns the number of metrics per report partition
+	 * @return the partition size
+	 */
+	public int getPartitionSize();
+
+	/**
+	 * Returns the partitioned report render deadline in ms.
+	 * @return the render deadline
+	 */
+	public long getRenderDeadline();
+
+}
@@ -16,7 +16,6 @@
 package com.heliosapm.opentsdb.client.opentsdb.opt;
 
 import java.lang.management.ManagementFactory;
-import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.nio.ByteBuffer;
 import java.nio.LongBuffer;
@@ -225,6 +224,8 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 	public static final int ALL_MASK = getMaskFor(Measurement.values());
 	/** The mask for disabled measurements if thread cpu time is not supported */
 	public static final int CPU_CONDITIONAL_MASK = getMaskFor(CPU, UCPU);
+	/** The mask for measurements reading a {@link ThreadCpuClock}, which need the measured frame bracketed by the clock's frame calls */
+	public static final int CPU_CLOCK_MASK = getMaskFor(CPU, UCPU, TCPU);
 	/** The mask for disabled measurements if thread contention monitoring is not supported */
 	public static final int CONT_CONDITIONAL_MASK = getMaskFor(WAITTIME, BLOCKTIME);
 	/** The mask for all possibly disabled measurements */
@@ -243,8 +244,22 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 	public static final int BODY_MASK;
 	/** The measurements mask for dependent measurements */
 	public static final int DEPENDENT_MASK;
-	
-	
+
+	/** The shift of the sampling exponent (the log2 of the 1-in-N sampling rate) in an instrumentation mask */
+	public static final int SAMPLING_SHIFT = 24;
+	/** The instrumentation mask bits holding the sampling exponent */
+	public static final int SAMPLING_EXPONENT_MASK = 0x1F << SAMPLING_SHIFT;
+	/** The instrumentation mask bit enabling adaptive sampling */
+	public static final int SAMPLING_ADAPTIVE_MASK = 1 << 29;
+	/** All the instrumentation mask bits holding the sampling options */
+	public static final int SAMPLING_MASK = SAMPLING_EXPONENT_MASK | SAMPLING_ADAPTIVE_MASK;
+	/** The instrumentation mask bit limiting measurement to the outermost invocation when an instrumented method is re-entered on a thread */
+	public static final int REENTRANCY_GUARD_MASK = 1 << 30;
+	/** All the instrumentation mask bits holding options rather than measurements */
+	public static final int OPTIONS_MASK = SAMPLING_MASK | REENTRANCY_GUARD_MASK;
+	/** The maximum sampling exponent, sampling 1 in 2^20 invocations */
+	public static final int MAX_SAMPLING_EXPONENT = 20;
+
 	/** Maps the member bitmask to the member */
 	public static final Map<Integer, Measurement> MASK2ENUM;
 	
@@ -375,12 +390,14 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 	}
 	
 	/**
-	 * Determines if the passed mask has any finally block requiring mesurements
+	 * Determines if the passed mask has any finally block requiring mesurements.
+	 * A re-entrancy guarded mask with a body block also needs one, since the guard must be unwound however the method exits,
+	 * and so does a mask with any CPU measurement, since the {@link ThreadCpuClock} frame must be exited however the method exits.
 	 * @param mask The mask to test
 	 * @return true if the passed mask has any finally block requiring mesurements, false otherwise
 	 */
 	public static boolean hasFinallyBlock(final int mask) {
-		return (FINALLY_MASK & ~mask) != FINALLY_MASK;
+		return (FINALLY_MASK & ~mask) != FINALLY_MASK || (isReentrancyGuarded(mask) && hasBodyBlock(mask)) || (mask & CPU_CLOCK_MASK)!=0;
 	}
 	
 	/**
@@ -400,6 +417,64 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 	public static boolean hasBodyBlock(final int mask) {
 		return (BODY_MASK & ~mask) != BODY_MASK;
 	}
+
+	/**
+	 * Adds the sampling options to the passed measurement mask, making an instrumentation mask
+	 * @param mask The measurement mask
+	 * @param rate The fixed 1-in-N sampling rate, rounded up to a power of 2, or the initial rate if adaptive. 1 samples every invocation.
+	 * @param adaptive true to adapt the sampling rate to the sampling overhead budget, false for a fixed rate
+	 * @return the instrumentation mask
+	 */
+	public static int sampled(final int mask, final int rate, final boolean adaptive) {
+		if(rate < 1) throw new IllegalArgumentException("Invalid sampling rate [" + rate + "]");
+		final int exponent = Math.min(MAX_SAMPLING_EXPONENT, 32 - Integer.numberOfLeadingZeros(rate - 1));
+		return measurementMask(mask) | (exponent << SAMPLING_SHIFT) | (adaptive ? SAMPLING_ADAPTIVE_MASK : 0);
+	}
+
+	/**
+	 * Returns the measurement mask of the passed instrumentation mask, without the sampling and re-entrancy options
+	 * @param mask The instrumentation mask
+	 * @return the measurement mask
+	 */
+	public static int measurementMask(final int mask) {
+		return mask & ~OPTIONS_MASK;
+	}
+
+	/**
+	 * Determines if the passed instrumentation mask only measures the outermost invocation of a method re-entered on a thread
+	 * @param mask The instrumentation mask
+	 * @return true if re-entrancy guarded, false if every invocation is measured
+	 */
+	public static boolean isReentrancyGuarded(final int mask) {
+		return (mask & REENTRANCY_GUARD_MASK) != 0;
+	}
+
+	/**
+	 * Determines if the passed instrumentation mask samples invocations
+	 * @param mask The instrumentation mask
+	 * @return true if sampled, false if every invocation is measured
+	 */
+	public static boolean isSampled(final int mask) {
+		return (mask & SAMPLING_MASK) != 0;
+	}
+
+	/**
+	 * Determines if the passed instrumentation mask adapts its sampling rate to the sampling overhead budget
+	 * @param mask The instrumentation mask
+	 * @return true if adaptively sampled, false otherwise
+	 */
+	public static boolean isAdaptiveSampling(final int mask) {
+		return (mask & SAMPLING_ADAPTIVE_MASK) != 0;
+	}
+
+	/**
+	 * Returns the sampling exponent of the passed instrumentation mask. 1 in 2^exponent invocations are measured.
+	 * @param mask The instrumentation mask
+	 * @return the sampling exponent
+	 */
+	public static int getSamplingExponent(final int mask) {
+		return (mask & SAMPLING_EXPONENT_MASK) >>> SAMPLING_SHIFT;
+	}
 	
 	/**
 	 * Decodes the passed expression into an array of Measurements.
@@ -502,19 +577,6 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 	}
 
 	
-	/** A thread info thread local for the initial tinfo capture */
-	private static final ThreadLocal<ThreadInfo> TINFO = new ThreadLocal<ThreadInfo>() {
-		private final long TID = Thread.currentThread().getId();
-		/**
-		 * {@inheritDoc}
-		 * @see java.lang.ThreadLocal#initialValue()
-		 */
-		@Override
-		protected ThreadInfo initialValue() {			
-			return TMX.getThreadInfo(TID);
-		}		
-	};
-	
 	/**
 	 * Returns an array of the unique CHMetrics required to capture measurements for the passed measurement bit mask
 	 * @param mask The bit mask defining which measurements are to be captured
@@ -565,18 +627,14 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		final long[] valueBuffer = allocate(parentMetricId, mask);
 		int index = VALUEBUFFER_HEADER_SIZE;
 		final boolean ti = (mask & ~TI_REQUIRED_MASK) != mask; 
-		try {
-			if(ti) {
-				TINFO.get();
-			}
-			for(Measurement m: getEnabled(mask)) {
-				if(m.reader!=NOOP_MEAS) {
-					m.reader.pre(valueBuffer, index);
-				}
-				index++;
+		if(ti) {
+			ThreadContention.current().enter();
+		}
+		for(Measurement m: getEnabled(mask)) {
+			if(m.reader!=NOOP_MEAS) {
+				m.reader.pre(valueBuffer, index);
 			}
-		} finally {
-			if(ti) TINFO.remove();
+			index++;
 		}
 		return valueBuffer;
 	}
@@ -590,15 +648,14 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		int index = VALUEBUFFER_HEADER_SIZE;
 		buffer[2] = System.currentTimeMillis();
 		final boolean ti = (mask & ~TI_REQUIRED_MASK) != mask;
-		try {
-			for(Measurement m: getEnabled((mask))) {
-				if(m.reader!=NOOP_MEAS) {
-					m.reader.post(buffer, index);
-				}
-				index++;
+		if(ti) {
+			ThreadContention.current().refresh();
+		}
+		for(Measurement m: getEnabled((mask))) {
+			if(m.reader!=NOOP_MEAS) {
+				m.reader.post(buffer, index);
 			}
-		} finally {
-			if(ti) TINFO.remove();
+			index++;
 		}
 	}
 	
@@ -922,12 +979,15 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return CPUTIMEON.getValue() ? TMX.getCurrentThreadCpuTime() : -1L; 
+			if(!CPUTIMEON.getValue()) return -1L;
+			return ThreadCpuClock.CPU.cpuTime();
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return CPUTIMEON.getValue() ? (TMX.getCurrentThreadCpuTime()-pre) : -1L;
+			if(!CPUTIMEON.getValue()) return -1L;
+			final long cpu = ThreadCpuClock.CPU.cpuTime();
+			return cpu - pre;
 		}
 	}
 	
@@ -937,12 +997,15 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return CPUTIMEON.getValue() ? (TMX.getCurrentThreadCpuTime() + TMX.getCurrentThreadUserTime()) : -1L; 
+			if(!CPUTIMEON.getValue()) return -1L;
+			return ThreadCpuClock.CPU.cpuTime() + ThreadCpuClock.USER.userTime();
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return CPUTIMEON.getValue() ? ((TMX.getCurrentThreadCpuTime() + TMX.getCurrentThreadUserTime())-pre) : -1L;
+			if(!CPUTIMEON.getValue()) return -1L;
+			final long cpu = ThreadCpuClock.CPU.cpuTime() + ThreadCpuClock.USER.userTime();
+			return cpu - pre;
 		}
 	}
 	
@@ -953,12 +1016,15 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return CPUTIMEON.getValue() ? TMX.getCurrentThreadUserTime() : -1L; 
+			if(!CPUTIMEON.getValue()) return -1L;
+			return ThreadCpuClock.USER.userTime();
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return CPUTIMEON.getValue() ? (TMX.getCurrentThreadUserTime()-pre) : -1L;
+			if(!CPUTIMEON.getValue()) return -1L;
+			final long user = ThreadCpuClock.USER.userTime();
+			return user - pre;
 		}
 	}
 	
@@ -968,12 +1034,12 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return TINFO.get().getWaitedCount();
+			return ThreadContention.current().getWaitedCount();
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return TINFO.get().getWaitedCount() - pre;
+			return ThreadContention.current().getWaitedCount() - pre;
 		}
 	}
 	
@@ -983,12 +1049,12 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return TINFO.get().getBlockedCount();
+			return ThreadContention.current().getBlockedCount();
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return TINFO.get().getBlockedCount() - pre;
+			return ThreadContention.current().getBlockedCount() - pre;
 		}
 	}
 	
@@ -998,12 +1064,12 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return CONTENTIONON.getValue() ? TINFO.get().getWaitedTime() : -1L; 
+			return CONTENTIONON.getValue() ? ThreadContention.current().getWaitedTime() : -1L; 
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return CONTENTIONON.getValue() ? TINFO.get().getWaitedTime() - pre : -1L;
+			return CONTENTIONON.getValue() ? ThreadContention.current().getWaitedTime() - pre : -1L;
 		}
 	}
 	
@@ -1013,12 +1079,12 @@ public enum Measurement implements Measurers, ThreadMetricReader {
 		}
 		@Override
 		protected long pre() {
-			return CONTENTIONON.getValue() ? TINFO.get().getBlockedTime() : -1L; 
+			return CONTENTIONON.getValue() ? ThreadContention.current().getBlockedTime() : -1L; 
 		}
 
 		@Override
 		protected long post(final long pre) {
-			return CONTENTIONON.getValue() ? TINFO.get().getBlockedTime() - pre : -1L;
+			return CONTENTIONON.getValue() ? ThreadContention.current().getBlockedTime() - pre : -1L;
 		}
 	}
 	
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jsr166e.LongAdder;
+
+import com.codahale.metrics.Gauge;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: Sampler</p>
+ * <p>Description: Decides which invocations of a sampled instrumented method are measured. Each invocation is measured
+ * with a probability of 1 in 2^exponent, drawn from a per-thread random sequence so the measured invocations are a uniform
+ * sample and the timer distributions stay unbiased. An unsampled invocation only increments a striped counter.
+ * The unsampled invocations are folded into the weight of the next measured invocation, so the invocation counts and rates are exact.</p>
+ * <p>An adaptive sampler tracks the time spent measuring the sampled invocations and, every {@link Constants#PROP_SAMPLING_PERIOD},
+ * halves the sampling rate if the time exceeded the {@link Constants#PROP_SAMPLING_BUDGET} or doubles it if the time was under a quarter of the budget.</p>
+ * <p>As a {@link Gauge}, the value is the current 1-in-N sampling rate, reported alongside the sampled metric so consumers know how its
+ * timer and histogram samples were drawn. When measurements are accumulated per thread, their counts are scaled by the invocation weights;
+ * when they are submitted to the sink queue, the counts are those of the measured invocations only and the rate is needed to scale them.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.Sampler</code></p>
+ */
+
+public class Sampler implements Gauge<Long> {
+	/** The adaptive sampling overhead budget in ns. per second */
+	public static final long BUDGET = ConfigurationReader.confLong(Constants.PROP_SAMPLING_BUDGET, Constants.DEFAULT_SAMPLING_BUDGET);
+	/** The adaptive sampling adjustment period in ns. */
+	public static final long PERIOD = TimeUnit.MILLISECONDS.toNanos(ConfigurationReader.confLong(Constants.PROP_SAMPLING_PERIOD, Constants.DEFAULT_SAMPLING_PERIOD));
+
+	/** The per-thread random sequence state */
+	private static final ThreadLocal<long[]> SEEDS = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			final long seed = System.nanoTime() ^ (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L);
+			return new long[]{seed==0L ? 1L : seed};
+		}
+	};
+
+	/** Indicates if the sampling rate adapts to the overhead budget */
+	private final boolean adaptive;
+	/** The current sampling exponent */
+	private volatile int exponent;
+	/** The random bits that must be zero for an invocation to be sampled */
+	private volatile long sampleMask;
+	/** The number of unsampled invocations */
+	private final LongAdder unsampled = new LongAdder();
+	/** The number of unsampled invocations folded into sampled invocation weights */
+	private final AtomicLong folded = new AtomicLong(0L);
+	/** The time spent measuring sampled invocations in ns. */
+	private final LongAdder cost = new LongAdder();
+	/** Guards the adaptive rate adjustment */
+	private final AtomicBoolean adjusting = new AtomicBoolean(false);
+	/** The nano time of the next adaptive rate adjustment */
+	private volatile long nextAdjust;
+	/** The nano time of the last adaptive rate adjustment, guarded by {@link #adjusting} */
+	private long lastAdjust;
+	/** The measuring time at the last adaptive rate adjustment, guarded by {@link #adjusting} */
+	private long lastCost = 0L;
+
+	/**
+	 * Creates a new Sampler for the passed instrumentation mask
+	 * @param mask The instrumentation mask
+	 * @return the sampler, or null if the mask is not sampled
+	 */
+	public static Sampler newSampler(final int mask) {
+		return Measurement.isSampled(mask) ? new Sampler(Measurement.getSamplingExponent(mask), Measurement.isAdaptiveSampling(mask)) : null;
+	}
+
+	/**
+	 * Creates a new Sampler
+	 * @param exponent The initial sampling exponent
+	 * @param adaptive true to adapt the sampling rate to the overhead budget, false for a fixed rate
+	 */
+	public Sampler(final int exponent, final boolean adaptive) {
+		this.adaptive = adaptive;
+		setExponent(exponent);
+		lastAdjust = System.nanoTime();
+		nextAdjust = lastAdjust + PERIOD;
+	}
+
+	/**
+	 * Decides if the current invocation is measured, counting it as unsampled if not
+	 * @return true if the invocation should be measured, false otherwise
+	 */
+	public boolean sample() {
+		final long m = sampleMask;
+		if(m==0L) return true;
+		final long[] seed = SEEDS.get();
+		long x = seed[0];
+		x ^= (x << 13);
+		x ^= (x >>> 7);
+		x ^= (x << 17);
+		seed[0] = x;
+		if((x & m)==0L) return true;
+		unsampled.increment();
+		return false;
+	}
+
+	/**
+	 * Returns the number of invocations a measured invocation stands for: itself and the unsampled invocations not yet folded into another weight
+	 * @return the measured invocation's weight
+	 */
+	public long weight() {
+		final long total = unsampled.sum();
+		long prior;
+		while(total > (prior = folded.get())) {
+			if(folded.compareAndSet(prior, total)) return 1L + (total - prior);
+		}
+		return 1L;
+	}
+
+	/**
+	 * Records time spent measuring a sampled invocation, adjusting the sampling rate when the adjustment period has elapsed
+	 * @param elapsed The measuring time in ns.
+	 * @param now The current nano time
+	 */
+	public void cost(final long elapsed, final long now) {
+		cost.add(elapsed);
+		if(now < nextAdjust || !adjusting.compareAndSet(false, true)) return;
+		try {
+			final long period = now - lastAdjust;
+			final long total = cost.sum();
+			final long spent = total - lastCost;
+			lastCost = total;
+			lastAdjust = now;
+			nextAdjust = now + PERIOD;
+			final double budget = (double)BUDGET * period / TimeUnit.SECONDS.toNanos(1);
+			final int e = exponent;
+			if(spent > budget && e < Measurement.MAX_SAMPLING_EXPONENT) {
+				setExponent(e + 1);
+			} else if(spent * 4 < budget && e > 0) {
+				setExponent(e - 1);
+			}
+		} finally {
+			adjusting.set(false);
+		}
+	}
+
+	/**
+	 * Lowers the sampling rate by the passed number of steps, each halving it, up to {@link Measurement#MAX_SAMPLING_EXPONENT}.
+	 * An adaptive sampler keeps adapting from the new rate.
+	 * @param steps The number of rate steps
+	 * @return true if the rate was lowered, false if it was already the lowest rate
+	 */
+	public boolean escalate(final int steps) {
+		final int e = exponent;
+		if(e >= Measurement.MAX_SAMPLING_EXPONENT) return false;
+		setExponent(Math.min(e + Math.max(1, steps), Measurement.MAX_SAMPLING_EXPONENT));
+		return true;
+	}
+
+	/**
+	 * Sets the sampling exponent
+	 * @param exponent The sampling exponent
+	 */
+	private void setExponent(final int exponent) {
+		this.exponent = exponent;
+		sampleMask = (1L << exponent) - 1L;
+	}
+
+	/**
+	 * Indicates if the sampling rate adapts to the overhead budget
+	 * @return true if adaptive, false if fixed
+	 */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Returns the current 1-in-N sampling rate
+	 * @return the sampling rate
+	 */
+	public long getRate() {
+		return 1L << exponent;
+	}
+
+	/**
+	 * Returns the current 1-in-N sampling rate
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Gauge#getValue()
+	 */
+	@Override
+	public Long getValue() {
+		return getRate();
+	}
+
+	/**
+	 * Returns the total number of unsampled invocations
+	 * @return the unsampled invocation count
+	 */
+	public long getUnsampled() {
+		return unsampled.sum();
+	}
+
+}
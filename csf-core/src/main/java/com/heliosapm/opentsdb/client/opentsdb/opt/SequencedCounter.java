@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import jsr166e.LongAdder;
+
+import com.codahale.metrics.Counter;
+
+/**
+ * <p>Title: SequencedCounter</p>
+ * <p>Description: A counter exposing a {@link ChangeSequenced} sequence advanced by every increment and decrement</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.SequencedCounter</code></p>
+ */
+
+public class SequencedCounter extends Counter implements ChangeSequenced {
+	/** The number of changes */
+	private final LongAdder changes = new LongAdder();
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Counter#inc(long)
+	 */
+	@Override
+	public void inc(final long n) {
+		super.inc(n);
+		changes.increment();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Counter#dec(long)
+	 */
+	@Override
+	public void dec(final long n) {
+		super.dec(n);
+		changes.increment();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.ChangeSequenced#getChangeSequence()
+	 */
+	@Override
+	public long getChangeSequence() {
+		return changes.sum();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import jsr166e.LongAdder;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.EWMA;
+import com.codahale.metrics.Meter;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+
+/**
+ * <p>Title: StripedMeter</p>
+ * <p>Description: A {@link Meter} whose mark is a single striped cell increment. The stock meter updates its count and
+ * three moving average accumulators and checks the tick clock on every mark; this meter defers the moving average
+ * ticks to the readers, which catch up on the elapsed ticks by spreading the count accumulated since the last catch up across them.</p>
+ * <p>Striped meters are selected for the metrics whose name matches {@link Constants#PROP_STRIPED_PATTERN}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.StripedMeter</code></p>
+ */
+
+public class StripedMeter extends Meter {
+	/** The moving average tick interval in ns. */
+	private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+	/** The striped metric name pattern, null if none are striped */
+	private static final Pattern STRIPED_PATTERN;
+
+	static {
+		final String pattern = ConfigurationReader.conf(Constants.PROP_STRIPED_PATTERN, Constants.DEFAULT_STRIPED_PATTERN);
+		STRIPED_PATTERN = (pattern==null || pattern.trim().isEmpty()) ? null : Pattern.compile(pattern.trim());
+	}
+
+	/** The striped mark count */
+	private final LongAdder count = new LongAdder();
+	/** The one minute moving average */
+	private final EWMA m1Rate = EWMA.oneMinuteEWMA();
+	/** The five minute moving average */
+	private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
+	/** The fifteen minute moving average */
+	private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+	/** The tick clock */
+	private final Clock clock;
+	/** The start tick */
+	private final long startTime;
+	/** The tick the moving averages have been ticked up to */
+	private long lastTick;
+	/** The count the moving averages have been updated with */
+	private long tickedCount = 0L;
+
+	/**
+	 * Indicates if the metric with the passed name should use striped meters and concurrency counters
+	 * @param otMetric The metric
+	 * @return true if striped, false otherwise
+	 */
+	public static boolean isStriped(final OTMetric otMetric) {
+		return STRIPED_PATTERN!=null && STRIPED_PATTERN.matcher(otMetric.getMetricName()).matches();
+	}
+
+	/**
+	 * Creates a new StripedMeter using the default clock
+	 */
+	public StripedMeter() {
+		this(Clock.defaultClock());
+	}
+
+	/**
+	 * Creates a new StripedMeter
+	 * @param clock The tick clock
+	 */
+	public StripedMeter(final Clock clock) {
+		super(clock);
+		this.clock = clock;
+		startTime = clock.getTick();
+		lastTick = startTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#mark()
+	 */
+	@Override
+	public void mark() {
+		count.increment();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#mark(long)
+	 */
+	@Override
+	public void mark(final long n) {
+		count.add(n);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#getCount()
+	 */
+	@Override
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#getMeanRate()
+	 */
+	@Override
+	public double getMeanRate() {
+		final long c = getCount();
+		if(c==0L) return 0D;
+		final double elapsed = (clock.getTick() - startTime);
+		return c / elapsed * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#getOneMinuteRate()
+	 */
+	@Override
+	public double getOneMinuteRate() {
+		catchUp();
+		return m1Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#getFiveMinuteRate()
+	 */
+	@Override
+	public double getFiveMinuteRate() {
+		catchUp();
+		return m5Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Meter#getFifteenMinuteRate()
+	 */
+	@Override
+	public double getFifteenMinuteRate() {
+		catchUp();
+		return m15Rate.getRate(TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Ticks the moving averages for each tick interval elapsed since the last catch up,
+	 * spreading the count accumulated since then evenly across the elapsed ticks
+	 */
+	private synchronized void catchUp() {
+		final long age = clock.getTick() - lastTick;
+		if(age < TICK_INTERVAL) return;
+		final long ticks = age / TICK_INTERVAL;
+		lastTick += ticks * TICK_INTERVAL;
+		final long total = count.sum();
+		final long delta = total - tickedCount;
+		tickedCount = total;
+		final long perTick = delta / ticks;
+		final long remainder = delta - (perTick * ticks);
+		for(long t = 1; t <= ticks; t++) {
+			final long n = t==ticks ? perTick + remainder : perTick;
+			if(n!=0L) {
+				m1Rate.update(n);
+				m5Rate.update(n);
+				m15Rate.update(n);
+			}
+			m1Rate.tick();
+			m5Rate.tick();
+			m15Rate.tick();
+		}
+	}
+
+}
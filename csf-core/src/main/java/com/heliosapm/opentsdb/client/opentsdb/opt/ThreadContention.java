@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: ThreadContention</p>
+ * <p>Description: A thread's handle on its blocked and waited counts and times for the {@link Measurement#WAIT}, {@link Measurement#BLOCK},
+ * {@link Measurement#WAITTIME} and {@link Measurement#BLOCKTIME} measurements. Each measured frame boundary refreshes the handle once for all
+ * the contention measurements, and a read younger than {@link Constants#PROP_CONTENTION_MAXAGE} is reused, so nested frames entering or exiting together share one read.</p>
+ * <p>Threads entering at least {@link Constants#PROP_CONTENTION_HOT} measured frames per {@link Constants#PROP_CONTENTION_PERIOD} are served by a
+ * sampler thread instead, which reads the contention of all the hot threads with one batched {@link ThreadMXBean#getThreadInfo(long[])}
+ * call per period. The frame boundaries of a served thread only read the handle's fields, and contention is attributed to frames at the sampler's resolution.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.ThreadContention</code></p>
+ */
+
+public class ThreadContention extends WeakReference<Thread> {
+	/** Static class logger */
+	private static final Logger LOG = LogManager.getLogger(ThreadContention.class);
+	/** The thread mx bean */
+	private static final ThreadMXBean TMX = ManagementFactory.getThreadMXBean();
+	/** The age in ns. under which a read is reused */
+	public static final long MAX_AGE = ConfigurationReader.confLong(Constants.PROP_CONTENTION_MAXAGE, Constants.DEFAULT_CONTENTION_MAXAGE);
+	/** The number of frames per period a thread must enter to be served by the sampler */
+	public static final int HOT = ConfigurationReader.confInt(Constants.PROP_CONTENTION_HOT, Constants.DEFAULT_CONTENTION_HOT);
+	/** The sampler period in ms. */
+	public static final long PERIOD = ConfigurationReader.confLong(Constants.PROP_CONTENTION_PERIOD, Constants.DEFAULT_CONTENTION_PERIOD);
+
+	/** The handles of the threads that have entered measured frames */
+	private static final ConcurrentLinkedQueue<ThreadContention> handles = new ConcurrentLinkedQueue<ThreadContention>();
+	/** The calling thread's handle */
+	private static final ThreadLocal<ThreadContention> handle = new ThreadLocal<ThreadContention>() {
+		@Override
+		protected ThreadContention initialValue() {
+			final ThreadContention tc = new ThreadContention(Thread.currentThread());
+			handles.add(tc);
+			return tc;
+		}
+	};
+
+	static {
+		if(HOT > 0) {
+			final Thread t = new Thread("ThreadContentionSampler") {
+				@Override
+				public void run() {
+					while(true) {
+						try {
+							Thread.sleep(PERIOD);
+							sample();
+						} catch (InterruptedException iex) {
+							return;
+						} catch (Exception ex) {
+							LOG.warn("Thread contention sample failed", ex);
+						}
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** The thread id */
+	private final long threadId;
+	/** The number of measured frames the thread has entered, only written by the thread */
+	private volatile long entries = 0L;
+	/** The number of entered frames at the sampler's last visit, only accessed by the sampler */
+	private long sampledEntries = 0L;
+	/** Indicates if the sampler reads this thread's contention, only written by the sampler */
+	private volatile boolean served = false;
+	/** The nano time of the last direct read, only accessed by the thread */
+	private long readAt = Long.MIN_VALUE;
+	/** The waited count */
+	private volatile long waitedCount = 0L;
+	/** The waited time in ms. */
+	private volatile long waitedTime = 0L;
+	/** The blocked count */
+	private volatile long blockedCount = 0L;
+	/** The blocked time in ms. */
+	private volatile long blockedTime = 0L;
+
+	/**
+	 * Creates a new ThreadContention
+	 * @param thread The thread
+	 */
+	private ThreadContention(final Thread thread) {
+		super(thread);
+		threadId = thread.getId();
+	}
+
+	/**
+	 * Returns the calling thread's handle
+	 * @return the handle
+	 */
+	public static ThreadContention current() {
+		return handle.get();
+	}
+
+	/**
+	 * Called by the thread when it enters a measured frame, refreshing the handle
+	 * @return this handle
+	 */
+	public ThreadContention enter() {
+		entries++;
+		return refresh();
+	}
+
+	/**
+	 * Refreshes the handle from a direct read, unless the sampler serves this thread or the last read is recent enough to reuse
+	 * @return this handle
+	 */
+	public ThreadContention refresh() {
+		if(served) return this;
+		final long now = System.nanoTime();
+		if(readAt!=Long.MIN_VALUE && now - readAt < MAX_AGE) return this;
+		final ThreadInfo ti = TMX.getThreadInfo(threadId);
+		if(ti!=null) update(ti);
+		readAt = now;
+		return this;
+	}
+
+	/**
+	 * Updates the handle's fields from the passed thread info
+	 * @param ti The thread info
+	 */
+	private void update(final ThreadInfo ti) {
+		waitedCount = ti.getWaitedCount();
+		waitedTime = ti.getWaitedTime();
+		blockedCount = ti.getBlockedCount();
+		blockedTime = ti.getBlockedTime();
+	}
+
+	/**
+	 * Reclassifies the hot threads and reads the contention of the hot threads in one batch
+	 */
+	private static void sample() {
+		final List<ThreadContention> read = new ArrayList<ThreadContention>();
+		for(final Iterator<ThreadContention> iter = handles.iterator(); iter.hasNext();) {
+			final ThreadContention tc = iter.next();
+			final Thread t = tc.get();
+			if(t==null || !t.isAlive()) {
+				iter.remove();
+				continue;
+			}
+			final long e = tc.entries;
+			final boolean isHot = (e - tc.sampledEntries) >= HOT;
+			tc.sampledEntries = e;
+			if(!isHot) {
+				// cooled threads go back to direct reads
+				tc.served = false;
+				continue;
+			}
+			// hot threads are read every period so a frame entered between samples starts from a value at most one period old
+			read.add(tc);
+		}
+		if(read.isEmpty()) return;
+		final long[] ids = new long[read.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = read.get(i).threadId;
+		}
+		final ThreadInfo[] infos = TMX.getThreadInfo(ids);
+		for(int i = 0; i < ids.length; i++) {
+			final ThreadContention tc = read.get(i);
+			if(infos[i]!=null) tc.update(infos[i]);
+			tc.served = true;
+		}
+	}
+
+	/**
+	 * Returns the thread's waited count
+	 * @return the waited count
+	 */
+	public long getWaitedCount() {
+		return waitedCount;
+	}
+
+	/**
+	 * Returns the thread's waited time
+	 * @return the waited time in ms.
+	 */
+	public long getWaitedTime() {
+		return waitedTime;
+	}
+
+	/**
+	 * Returns the thread's blocked count
+	 * @return the blocked count
+	 */
+	public long getBlockedCount() {
+		return blockedCount;
+	}
+
+	/**
+	 * Returns the thread's blocked time
+	 * @return the blocked time in ms.
+	 */
+	public long getBlockedTime() {
+		return blockedTime;
+	}
+
+	/**
+	 * Indicates if the sampler serves this thread
+	 * @return true if served by the sampler, false if read directly
+	 */
+	public boolean isServed() {
+		return served;
+	}
+}
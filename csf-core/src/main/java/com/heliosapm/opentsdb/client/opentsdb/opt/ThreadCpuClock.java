@@ -0,0 +1,317 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+
+/**
+ * <p>Title: ThreadCpuClock</p>
+ * <p>Description: A source of the current thread's CPU times for the {@link Measurement#CPU}, {@link Measurement#UCPU} and {@link Measurement#TCPU} measurements.
+ * The CPU measurements read the CPU time on both sides of the measured frame, which their caller brackets with {@link #enterFrame()}
+ * and {@link #exitFrame()}. The exit must run however the frame exits, so instrumented code calls it from its finally block.</p>
+ * <p>Two clocks are available:<ul>
+ * 	<li><b>mxbean</b>: Reads the CPU time from the {@link ThreadMXBean} on every read. Exact, but on some platforms each read is a syscall or a proc file read.</li>
+ * 	<li><b>coarse</b>: A sampler thread reads the CPU time of the threads in measured frames every {@link Constants#PROP_CPU_CLOCK_PERIOD} and attributes the
+ * CPU consumed since its last sample to the frame active on the thread. A read is a field read. Frames shorter than the period are attributed CPU statistically.</li>
+ * </ul>
+ * In <b>auto</b> mode, the mxbean clock's cost per read is calibrated for each CPU time at startup, and the times costing more than
+ * {@link Constants#PROP_CPU_CLOCK_THRESHOLD} are read from the coarse clock. The calibrated costs of the selected clocks are logged.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.ThreadCpuClock</code></p>
+ */
+
+public abstract class ThreadCpuClock {
+	/** Static class logger */
+	private static final Logger LOG = LogManager.getLogger(ThreadCpuClock.class);
+	/** The thread mx bean */
+	private static final ThreadMXBean TMX = ManagementFactory.getThreadMXBean();
+	/** The number of reads per calibration */
+	private static final int CALIBRATION_READS = 5000;
+
+	/** The configured clock mode */
+	public static final String MODE = ConfigurationReader.conf(Constants.PROP_CPU_CLOCK, Constants.DEFAULT_CPU_CLOCK).trim().toLowerCase();
+	/** The auto mode read cost threshold in ns. */
+	public static final long THRESHOLD = ConfigurationReader.confLong(Constants.PROP_CPU_CLOCK_THRESHOLD, Constants.DEFAULT_CPU_CLOCK_THRESHOLD);
+	/** The coarse clock sampling period in ms. */
+	public static final long PERIOD = ConfigurationReader.confLong(Constants.PROP_CPU_CLOCK_PERIOD, Constants.DEFAULT_CPU_CLOCK_PERIOD);
+
+	/** The clock the current thread's total CPU time is read from */
+	public static final ThreadCpuClock CPU;
+	/** The clock the current thread's user mode CPU time is read from */
+	public static final ThreadCpuClock USER;
+
+	static {
+		final ThreadCpuClock mxbean = new MXBeanThreadCpuClock();
+		long[] mxbeanCost = null;
+		if("mxbean".equals(MODE)) {
+			CPU = mxbean;
+			USER = mxbean;
+		} else if("coarse".equals(MODE)) {
+			CPU = new CoarseThreadCpuClock();
+			USER = CPU;
+		} else {
+			mxbeanCost = calibrate(mxbean);
+			final ThreadCpuClock coarse = (mxbeanCost[0] > THRESHOLD || mxbeanCost[1] > THRESHOLD) ? new CoarseThreadCpuClock() : null;
+			CPU = mxbeanCost[0] > THRESHOLD ? coarse : mxbean;
+			USER = mxbeanCost[1] > THRESHOLD ? coarse : mxbean;
+			LOG.info("Calibrated mxbean thread CPU clock. cpu: {} ns/read, user: {} ns/read, threshold: {} ns/read", mxbeanCost[0], mxbeanCost[1], THRESHOLD);
+		}
+		// each clock is calibrated once, the mxbean clock's cost is reused if it was calibrated for the auto mode
+		final long[] cpuCost = (CPU==mxbean && mxbeanCost!=null) ? mxbeanCost : calibrate(CPU);
+		final long[] userCost = USER==CPU ? cpuCost : (USER==mxbean && mxbeanCost!=null) ? mxbeanCost : calibrate(USER);
+		LOG.info("Thread CPU clocks selected in [{}] mode. cpu: {} ({} ns/read), user: {} ({} ns/read)", MODE, CPU.getName(), cpuCost[0], USER.getName(), userCost[1]);
+	}
+
+	/**
+	 * Called by the calling thread when it enters a frame measured by any of the CPU measurements
+	 */
+	public static void enterFrame() {
+		CPU.enter();
+		if(USER!=CPU) USER.enter();
+	}
+
+	/**
+	 * Called by the calling thread when it exits a frame measured by any of the CPU measurements, however the frame exits
+	 */
+	public static void exitFrame() {
+		CPU.exit();
+		if(USER!=CPU) USER.exit();
+	}
+
+	/**
+	 * Measures the passed clock's cost per read of each CPU time on the calling thread
+	 * @param clock The clock to calibrate
+	 * @return the ns. per read of the total CPU time and of the user mode CPU time
+	 */
+	public static long[] calibrate(final ThreadCpuClock clock) {
+		long sink = 0L;
+		for(int i = 0; i < CALIBRATION_READS/5; i++) {
+			sink += clock.cpuTime() + clock.userTime();
+		}
+		clock.enter();
+		try {
+			long start = System.nanoTime();
+			for(int i = 0; i < CALIBRATION_READS; i++) {
+				sink += clock.cpuTime();
+			}
+			final long cpu = (System.nanoTime() - start) / CALIBRATION_READS;
+			start = System.nanoTime();
+			for(int i = 0; i < CALIBRATION_READS; i++) {
+				sink += clock.userTime();
+			}
+			final long user = (System.nanoTime() - start) / CALIBRATION_READS;
+			// keeps the reads from being optimized away
+			if(sink==Long.MIN_VALUE) LOG.debug("Calibration sink: {}", sink);
+			return new long[]{cpu, user};
+		} finally {
+			clock.exit();
+		}
+	}
+
+	/**
+	 * Called by the calling thread when it enters a measured frame
+	 */
+	public abstract void enter();
+
+	/**
+	 * Called by the calling thread when it exits a measured frame
+	 */
+	public abstract void exit();
+
+	/**
+	 * Returns the calling thread's total CPU time
+	 * @return the CPU time in ns.
+	 */
+	public abstract long cpuTime();
+
+	/**
+	 * Returns the calling thread's user mode CPU time
+	 * @return the user mode CPU time in ns.
+	 */
+	public abstract long userTime();
+
+	/**
+	 * Returns the clock name
+	 * @return the clock name
+	 */
+	public abstract String getName();
+
+	/**
+	 * <p>Title: MXBeanThreadCpuClock</p>
+	 * <p>Description: Reads the calling thread's CPU times from the {@link ThreadMXBean}</p>
+	 */
+	public static class MXBeanThreadCpuClock extends ThreadCpuClock {
+		@Override
+		public void enter() {
+			/* No Op */
+		}
+
+		@Override
+		public void exit() {
+			/* No Op */
+		}
+
+		@Override
+		public long cpuTime() {
+			return TMX.getCurrentThreadCpuTime();
+		}
+
+		@Override
+		public long userTime() {
+			return TMX.getCurrentThreadUserTime();
+		}
+
+		@Override
+		public String getName() {
+			return "mxbean";
+		}
+	}
+
+	/**
+	 * <p>Title: CoarseThreadCpuClock</p>
+	 * <p>Description: Reads the calling thread's CPU times as last attributed by a sampler thread,
+	 * which only reads the CPU times of threads in measured frames</p>
+	 */
+	public static class CoarseThreadCpuClock extends ThreadCpuClock implements Runnable {
+		/** The frames of the threads that have used this clock */
+		private final ConcurrentLinkedQueue<Frame> frames = new ConcurrentLinkedQueue<Frame>();
+		/** The calling thread's frame */
+		private final ThreadLocal<Frame> frame = new ThreadLocal<Frame>() {
+			@Override
+			protected Frame initialValue() {
+				final Frame f = new Frame(Thread.currentThread());
+				frames.add(f);
+				return f;
+			}
+		};
+
+		/**
+		 * Creates a new CoarseThreadCpuClock and starts its sampler thread
+		 */
+		CoarseThreadCpuClock() {
+			final Thread t = new Thread(this, "ThreadCpuClockSampler");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		@Override
+		public void enter() {
+			frame.get().depth++;
+		}
+
+		@Override
+		public void exit() {
+			final Frame f = frame.get();
+			if(f.depth > 0) f.depth--;
+		}
+
+		@Override
+		public long cpuTime() {
+			return frame.get().cpu;
+		}
+
+		@Override
+		public long userTime() {
+			return frame.get().user;
+		}
+
+		@Override
+		public String getName() {
+			return "coarse";
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					Thread.sleep(PERIOD);
+					sample();
+				} catch (InterruptedException iex) {
+					return;
+				} catch (Exception ex) {
+					LOG.warn("Thread CPU clock sample failed", ex);
+				}
+			}
+		}
+
+		/**
+		 * Attributes the CPU consumed since the last sample to each thread in a measured frame
+		 */
+		private void sample() {
+			for(final Iterator<Frame> iter = frames.iterator(); iter.hasNext();) {
+				final Frame f = iter.next();
+				final Thread t = f.get();
+				if(t==null || !t.isAlive()) {
+					iter.remove();
+					continue;
+				}
+				final long cpu = TMX.getThreadCpuTime(f.threadId);
+				final long user = TMX.getThreadUserTime(f.threadId);
+				if(cpu < 0L) continue;
+				// idle threads only move their baseline, so the CPU of a frame entered since is counted from the last sample
+				if(f.baseCpu >= 0L && f.depth > 0) {
+					f.cpu += (cpu - f.baseCpu);
+					f.user += (user - f.baseUser);
+				}
+				f.baseCpu = cpu;
+				f.baseUser = user;
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: Frame</p>
+	 * <p>Description: A thread's coarse clock state</p>
+	 */
+	private static class Frame extends WeakReference<Thread> {
+		/** The thread id */
+		final long threadId;
+		/** The thread's measured frame depth, only written by the thread */
+		volatile int depth = 0;
+		/** The total CPU time attributed to the thread's measured frames, only written by the sampler */
+		volatile long cpu = 0L;
+		/** The user mode CPU time attributed to the thread's measured frames, only written by the sampler */
+		volatile long user = 0L;
+		/** The total CPU time at the last sample, -1 if not sampled yet */
+		long baseCpu = -1L;
+		/** The user mode CPU time at the last sample */
+		long baseUser = -1L;
+
+		/**
+		 * Creates a new Frame
+		 * @param thread The thread
+		 */
+		Frame(final Thread thread) {
+			super(thread);
+			threadId = thread.getId();
+		}
+	}
+}
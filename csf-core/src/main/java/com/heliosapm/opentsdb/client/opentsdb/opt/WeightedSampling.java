@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+/**
+ * <p>Title: WeightedSampling</p>
+ * <p>Description: A sampling metric that can record a value standing for several recorded values, so pre-aggregated values
+ * can be written with one reservoir update rather than one update per value.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.WeightedSampling</code></p>
+ */
+
+public interface WeightedSampling {
+	/**
+	 * Samples the passed value once and counts it as the passed number of values
+	 * @param value The value
+	 * @param count The number of values the value stands for, at least 1
+	 */
+	public void update(long value, long count);
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.opt;
+
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * <p>Title: WeightedTimer</p>
+ * <p>Description: A timer accepting {@link WeightedSampling} updates in nanoseconds. The values a weighted update stands for
+ * beyond the sampled one are added to the count and the rates, but not to the reservoir.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.opt.WeightedTimer</code></p>
+ */
+
+public class WeightedTimer extends Timer implements WeightedSampling {
+	/** Marks the values counted but not sampled */
+	private final Meter unsampled = new Meter();
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.opt.WeightedSampling#update(long, long)
+	 */
+	@Override
+	public void update(final long value, final long count) {
+		update(value, TimeUnit.NANOSECONDS);
+		if(count > 1L) unsampled.mark(count - 1L);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Timer#getCount()
+	 */
+	@Override
+	public long getCount() {
+		return super.getCount() + unsampled.getCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Timer#getMeanRate()
+	 */
+	@Override
+	public double getMeanRate() {
+		return super.getMeanRate() + unsampled.getMeanRate();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Timer#getOneMinuteRate()
+	 */
+	@Override
+	public double getOneMinuteRate() {
+		return super.getOneMinuteRate() + unsampled.getOneMinuteRate();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Timer#getFiveMinuteRate()
+	 */
+	@Override
+	public double getFiveMinuteRate() {
+		return super.getFiveMinuteRate() + unsampled.getFiveMinuteRate();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.codahale.metrics.Timer#getFifteenMinuteRate()
+	 */
+	@Override
+	public double getFifteenMinuteRate() {
+		return super.getFifteenMinuteRate() + unsampled.getFifteenMinuteRate();
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.sink;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.codahale.metrics.Metric;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.opt.CHMetric;
+import com.heliosapm.opentsdb.client.opentsdb.opt.IntervalHistogram;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+import com.heliosapm.opentsdb.client.opentsdb.opt.MetricWriter;
+import com.heliosapm.opentsdb.client.opentsdb.opt.WeightedSampling;
+
+/**
+ * <p>Title: AccumulatorCell</p>
+ * <p>Description: A single thread's accumulator for one metric id and measurement mask. The owning thread accumulates
+ * each measured invocation's values into the cell in place of submitting the value array to the {@link MetricSink},
+ * and the {@link AccumulatorHarvester} periodically harvests the accumulated values and hands them to the metric's owning {@link SinkShard},
+ * which merges them into the metric's aggregate metrics.</p>
+ * <p>For each enabled measurement the cell keeps the count, sum, min, max and last value and, for timer and histogram
+ * measurements, a log2 bucketed histogram of the values. The cell is double-buffered: the harvester swaps in the spare
+ * buffer and waits out any accumulation in progress before copying the frozen one, so the owning thread never blocks or spins.</p>
+ * <p>A cell left idle for {@link Constants#PROP_SINK_CELL_IDLE} harvests (e.g. its interceptor was discarded, or its pooled thread stopped
+ * calling it) is retired by the harvester, and re-registered by its owner on its next accumulation.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorCell</code></p>
+ */
+
+public class AccumulatorCell {
+	/** The offset of the count in a measurement's slot */
+	static final int COUNT = 0;
+	/** The offset of the sum in a measurement's slot */
+	static final int SUM = 1;
+	/** The offset of the min in a measurement's slot */
+	static final int MIN = 2;
+	/** The offset of the max in a measurement's slot */
+	static final int MAX = 3;
+	/** The offset of the last value in a measurement's slot */
+	static final int LAST = 4;
+	/** The offset of the first histogram bucket in a measurement's slot */
+	static final int BUCKETS = 5;
+	/** The number of log2 histogram buckets */
+	static final int BUCKET_COUNT = 64;
+	/** The number of values sampled into a timer or histogram per merged harvest, beyond the min and max */
+	static final int SAMPLE_BUDGET = IntervalHistogram.SAMPLE_SIZE;
+
+	/** The metric id */
+	final long metricId;
+	/** The measurement mask */
+	final int mask;
+	/** The enabled measurements */
+	final Measurement[] measurements;
+	/** The value array index of each enabled measurement */
+	private final int[] valueIndexes;
+	/** The accumulator buffer offset of each enabled measurement's slot */
+	private final int[] offsets;
+	/** Indicates if each enabled measurement keeps a histogram */
+	private final boolean[] bucketed;
+	/** The owning thread */
+	final WeakReference<Thread> owner;
+
+	/** The buffer currently accumulated into */
+	private volatile long[] active;
+	/** The spare buffer, swapped in on harvest */
+	private long[] spare;
+	/** The accumulation sequence, odd while the owner is accumulating */
+	private volatile int seq = 0;
+	/** Set while the cell is retired from the harvester */
+	final AtomicBoolean retired = new AtomicBoolean(false);
+	/** The accumulation sequence at the last harvest. Only accessed by the harvester. */
+	int harvestedSeq = 0;
+	/** The number of consecutive harvests that found the cell idle. Only accessed by the harvester. */
+	int idleHarvests = 0;
+
+	/**
+	 * Creates a new AccumulatorCell for the current thread
+	 * @param metricId The metric id
+	 * @param mask The measurement mask
+	 * @param swapMap The swap map for the mask
+	 */
+	AccumulatorCell(final long metricId, final int mask, final Map<Measurement, Integer> swapMap) {
+		this.metricId = metricId;
+		this.mask = mask;
+		measurements = Measurement.getEnabled(mask);
+		valueIndexes = new int[measurements.length];
+		offsets = new int[measurements.length];
+		bucketed = new boolean[measurements.length];
+		int width = 0;
+		for(int i = 0; i < measurements.length; i++) {
+			valueIndexes[i] = swapMap.get(measurements[i]);
+			offsets[i] = width;
+			bucketed[i] = measurements[i].chMetric==CHMetric.TIMER || measurements[i].chMetric==CHMetric.HISTOGRAM;
+			width += BUCKETS + (bucketed[i] ? BUCKET_COUNT : 0);
+		}
+		active = new long[width];
+		spare = new long[width];
+		owner = new WeakReference<Thread>(Thread.currentThread());
+	}
+
+	/**
+	 * Returns the log2 histogram bucket for the passed value
+	 * @param value The value
+	 * @return the bucket index
+	 */
+	static int bucket(final long value) {
+		return value <= 0L ? 0 : 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	/**
+	 * Returns the value representing the passed log2 histogram bucket, clamped to the passed range
+	 * @param bucket The bucket index
+	 * @param min The minimum recorded value
+	 * @param max The maximum recorded value
+	 * @return the representative value
+	 */
+	static long representative(final int bucket, final long min, final long max) {
+		final long v;
+		if(bucket==0) {
+			v = 0L;
+		} else {
+			final long lower = 1L << (bucket-1);
+			v = lower + ((lower - 1L) / 2L);
+		}
+		return v < min ? min : v > max ? max : v;
+	}
+
+	/**
+	 * Accumulates a measured invocation's values. Only called by the owning thread.
+	 * @param valueArr The value array populated by {@link Measurement#exit(long[])}
+	 * @param weight The number of invocations the measured invocation stands for, greater than 1 when invocations are sampled.
+	 * Timer and histogram measurements are counted with this weight, so their counts are those of all the invocations.
+	 */
+	public void accumulate(final long[] valueArr, final long weight) {
+		final int s = seq;
+		seq = s + 1;
+		final long[] acc = active;
+		for(int i = 0; i < offsets.length; i++) {
+			final long v = valueArr[valueIndexes[i]];
+			final int off = offsets[i];
+			if(acc[off + COUNT]==0L) {
+				acc[off + MIN] = v;
+				acc[off + MAX] = v;
+			} else {
+				if(v < acc[off + MIN]) acc[off + MIN] = v;
+				if(v > acc[off + MAX]) acc[off + MAX] = v;
+			}
+			acc[off + LAST] = v;
+			if(bucketed[i]) {
+				acc[off + COUNT] += weight;
+				acc[off + SUM] += v * weight;
+				acc[off + BUCKETS + bucket(v)] += weight;
+			} else {
+				acc[off + COUNT]++;
+				acc[off + SUM] += v;
+			}
+		}
+		seq = s + 2;
+		if(retired.get() && retired.compareAndSet(true, false)) {
+			AccumulatorHarvester.getInstance().revive(this);
+		}
+	}
+
+	/**
+	 * Harvests the accumulated values. Only called by the harvester.
+	 * @return the harvested values, or null if nothing was accumulated since the last harvest
+	 */
+	Harvest harvest() {
+		final int s = seq;
+		if(s==harvestedSeq) return null;
+		final long[] frozen = active;
+		active = spare;
+		final int t = seq;
+		if((t & 1) != 0) {
+			// the owner is mid accumulation, possibly into the frozen buffer
+			while(seq==t) {
+				Thread.yield();
+			}
+		}
+		// an odd sequence never matches, so an accumulation that raced the swap into the new buffer is harvested next time
+		harvestedSeq = t;
+		final Harvest harvest = new Harvest(this, frozen.clone());
+		Arrays.fill(frozen, 0L);
+		spare = frozen;
+		return harvest;
+	}
+
+	/**
+	 * Merges harvested values into the passed aggregate metrics. Only called by the metric's owning shard.
+	 * @param values The harvested values
+	 * @param metricMap The metric's aggregate metrics
+	 */
+	@SuppressWarnings("unchecked")
+	void merge(final long[] values, final Map<Measurement, Metric> metricMap) {
+		for(int i = 0; i < offsets.length; i++) {
+			final int off = offsets[i];
+			if(values[off + COUNT]==0L) continue;
+			final Measurement m = measurements[i];
+			Metric met = metricMap.get(m);
+			if(met==null) {
+				met = m.chMetric.createNewMetric();
+				metricMap.put(m, met);
+			}
+			switch(m.chMetric) {
+				case COUNTER:
+				case METER:
+					m.chMetric.metricWriter.writeValue(values[off + SUM], met);
+					break;
+				case GAUGE:
+					m.chMetric.metricWriter.writeValue(values[off + LAST], met);
+					break;
+				case TIMER:
+				case HISTOGRAM:
+					if(met instanceof WeightedSampling) {
+						sample(values, off, (WeightedSampling)met);
+					} else {
+						replay(values, off, m.chMetric.metricWriter, met);
+					}
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Writes a bucketed measurement into a weighted timer or histogram: the exact min and max, then each bucket's representative value
+	 * sampled in proportion to the bucket's share of the count, at most {@link #SAMPLE_BUDGET} samples in all, and weighted so the count is exact.
+	 * @param values The harvested values
+	 * @param off The measurement's slot offset
+	 * @param met The aggregate metric
+	 */
+	private static void sample(final long[] values, final int off, final WeightedSampling met) {
+		final long count = values[off + COUNT], min = values[off + MIN], max = values[off + MAX];
+		met.update(min, 1L);
+		values[off + BUCKETS + bucket(min)]--;
+		if(count > 1L) {
+			met.update(max, 1L);
+			values[off + BUCKETS + bucket(max)]--;
+		}
+		for(int b = 0; b < BUCKET_COUNT; b++) {
+			final long n = values[off + BUCKETS + b];
+			if(n < 1L) continue;
+			final long v = representative(b, min, max);
+			final long samples = Math.min(n, Math.max(1L, Math.round((double)n * SAMPLE_BUDGET / count)));
+			for(long x = 1; x < samples; x++) {
+				met.update(v, 1L);
+			}
+			met.update(v, n - samples + 1L);
+		}
+	}
+
+	/**
+	 * Replays a bucketed measurement into a timer or histogram that does not support weighted updates:
+	 * the exact min and max, and each bucket's representative value once per count
+	 * @param values The harvested values
+	 * @param off The measurement's slot offset
+	 * @param writer The measurement's metric writer
+	 * @param met The aggregate metric
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void replay(final long[] values, final int off, final MetricWriter writer, final Metric met) {
+		final long count = values[off + COUNT], min = values[off + MIN], max = values[off + MAX];
+		writer.writeValue(min, met);
+		values[off + BUCKETS + bucket(min)]--;
+		if(count > 1L) {
+			writer.writeValue(max, met);
+			values[off + BUCKETS + bucket(max)]--;
+		}
+		for(int b = 0; b < BUCKET_COUNT; b++) {
+			final long n = values[off + BUCKETS + b];
+			if(n < 1L) continue;
+			final long v = representative(b, min, max);
+			for(long x = 0; x < n; x++) {
+				writer.writeValue(v, met);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of invocations in the passed harvested values
+	 * @param values The harvested values
+	 * @return the number of invocations
+	 */
+	long invocations(final long[] values) {
+		return offsets.length==0 ? 0L : values[offsets[0] + COUNT];
+	}
+
+	/**
+	 * Retires this cell if it was idle since the last harvest and is not being accumulated into. Only called by the harvester.
+	 * @return true if retired, false if the owner accumulated concurrently
+	 */
+	boolean retire() {
+		retired.set(true);
+		if(seq!=harvestedSeq && retired.compareAndSet(true, false)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * <p>Title: Harvest</p>
+	 * <p>Description: The values harvested from a cell, merged by the cell's owning shard</p>
+	 */
+	static final class Harvest {
+		/** The harvested cell */
+		final AccumulatorCell cell;
+		/** The harvested values */
+		final long[] values;
+
+		Harvest(final AccumulatorCell cell, final long[] values) {
+			this.cell = cell;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Indicates if the owning thread has terminated
+	 * @return true if the owning thread has terminated, false otherwise
+	 */
+	boolean isOrphaned() {
+		final Thread t = owner.get();
+		return t==null || !t.isAlive();
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.sink;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.accumulator.PeriodEventListener;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.Threading;
+import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOTMetricCache;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: AccumulatorHarvester</p>
+ * <p>Description: Singleton that owns the per-thread {@link AccumulatorCell}s and, every {@link Constants#PROP_SINK_HARVEST_PERIOD} ms.
+ * or on each {@link PeriodEventListener#onNewPeriod(long, long, long, long)}, harvests them and hands the harvested values to the
+ * {@link SinkShard} owning each metric, which merges them into the aggregate metrics it would otherwise have written from queued submissions,
+ * so each metric's aggregates keep a single writer. Cells of terminated threads are harvested one last time and dropped,
+ * and cells idle for {@link Constants#PROP_SINK_CELL_IDLE} harvests are retired until their owner accumulates again.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvester</code></p>
+ */
+
+public class AccumulatorHarvester implements Runnable, PeriodEventListener, AccumulatorHarvesterMBean {
+	/** The singleton instance */
+	private static volatile AccumulatorHarvester instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+	/** The opt cache */
+	private final LongIdOTMetricCache otCache = LongIdOTMetricCache.getInstance();
+	/** The live accumulator cells */
+	private final Queue<AccumulatorCell> cells = new ConcurrentLinkedQueue<AccumulatorCell>();
+	/** Indicates if measurements are accumulated */
+	private final boolean enabled;
+	/** The number of consecutive idle harvests after which a cell is retired */
+	private final int idleLimit;
+	/** The number of retired cells */
+	private final LongAdder retiredCells = new LongAdder();
+	/** The number of completed harvests */
+	private final LongAdder harvests = new LongAdder();
+	/** The number of harvested invocations */
+	private final LongAdder harvestedInvocations = new LongAdder();
+	/** The elapsed time of the last harvest in ms. */
+	private volatile long lastHarvestTime = 0L;
+
+	/**
+	 * Acquires the AccumulatorHarvester singleton instance
+	 * @return the AccumulatorHarvester singleton instance
+	 */
+	public static AccumulatorHarvester getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new AccumulatorHarvester();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private AccumulatorHarvester() {
+		enabled = ConfigurationReader.confBool(Constants.PROP_SINK_ACCUMULATE, Constants.DEFAULT_SINK_ACCUMULATE);
+		final long period = ConfigurationReader.confLong(Constants.PROP_SINK_HARVEST_PERIOD, Constants.DEFAULT_SINK_HARVEST_PERIOD);
+		idleLimit = Math.max(1, ConfigurationReader.confInt(Constants.PROP_SINK_CELL_IDLE, Constants.DEFAULT_SINK_CELL_IDLE));
+		if(enabled) {
+			Threading.getInstance().schedule(this, period);
+		}
+		try {
+			JMXHelper.registerMBean(this, OBJECT_NAME);
+		} catch (Exception ex) {
+			log.warn("Failed to register AccumulatorHarvester JMX interface. Will continue without:" + ex);
+		}
+		log.info("AccumulatorHarvester initialized. Enabled: {}, harvest period: {} ms.", enabled, period);
+	}
+
+	/**
+	 * Creates and registers a new accumulator cell for the calling thread
+	 * @param metricId The metric id
+	 * @param mask The measurement mask
+	 * @return the new cell
+	 */
+	public AccumulatorCell newCell(final long metricId, final int mask) {
+		SinkShard.keep(otCache, metricId);
+		final AccumulatorCell cell = new AccumulatorCell(metricId, mask, otCache.getSwapMap(mask));
+		cells.add(cell);
+		return cell;
+	}
+
+	/**
+	 * Re-registers a retired cell. Called by the cell's owner when it accumulates into the retired cell.
+	 * @param cell The cell to re-register
+	 */
+	void revive(final AccumulatorCell cell) {
+		cells.add(cell);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			harvest();
+		} catch (Exception ex) {
+			log.warn("Accumulator harvest failed", ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.accumulator.PeriodEventListener#onNewPeriod(long, long, long, long)
+	 */
+	@Override
+	public void onNewPeriod(final long newStartTime, final long newEndTime, final long priorStartTime, final long priorEndTime) {
+		run();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#harvest()
+	 */
+	@Override
+	public synchronized void harvest() {
+		final long start = System.nanoTime();
+		final MetricSink sink = MetricSink.sink();
+		long invocations = 0L;
+		for(Iterator<AccumulatorCell> iter = cells.iterator(); iter.hasNext();) {
+			final AccumulatorCell cell = iter.next();
+			// checked before the harvest so a terminated thread's final values are not lost
+			final boolean orphaned = cell.isOrphaned();
+			final AccumulatorCell.Harvest harvest = cell.harvest();
+			if(harvest!=null) {
+				cell.idleHarvests = 0;
+				invocations += cell.invocations(harvest.values);
+				sink.shardFor(cell.metricId).merge(harvest);
+			}
+			if(orphaned) {
+				iter.remove();
+			} else if(harvest==null && ++cell.idleHarvests >= idleLimit && cell.retire()) {
+				cell.idleHarvests = 0;
+				iter.remove();
+				retiredCells.increment();
+			}
+		}
+		harvestedInvocations.add(invocations);
+		harvests.increment();
+		lastHarvestTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#isEnabled()
+	 */
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#getCellCount()
+	 */
+	@Override
+	public int getCellCount() {
+		return cells.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#getHarvests()
+	 */
+	@Override
+	public long getHarvests() {
+		return harvests.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#getHarvestedInvocations()
+	 */
+	@Override
+	public long getHarvestedInvocations() {
+		return harvestedInvocations.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#getLastHarvestTime()
+	 */
+	@Override
+	public long getLastHarvestTime() {
+		return lastHarvestTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean#getRetiredCells()
+	 */
+	@Override
+	public long getRetiredCells() {
+		return retiredCells.sum();
+	}
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.sink;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: AccumulatorHarvesterMBean</p>
+ * <p>Description: JMX MBean interface for the {@link AccumulatorHarvester}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorHarvesterMBean</code></p>
+ */
+
+public interface AccumulatorHarvesterMBean {
+
+	/** The AccumulatorHarvester JMX ObjectName */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName(Util.getJMXDomain() + ":service=MetricSink,type=AccumulatorHarvester");
+
+	/**
+	 * Indicates if instrumented method measurements are accumulated in per-thread cells
+	 * @return true if accumulating, false if measurements are submitted to the sink
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Returns the number of live per-thread accumulator cells
+	 * @return the number of cells
+	 */
+	public int getCellCount();
+
+	/**
+	 * Returns the number of completed harvests
+	 * @return the number of harvests
+	 */
+	public long getHarvests();
+
+	/**
+	 * Returns the total number of harvested invocations
+	 * @return the number of harvested invocations
+	 */
+	public long getHarvestedInvocations();
+
+	/**
+	 * Returns the elapsed time of the last harvest in ms.
+	 * @return the last harvest time
+	 */
+	public long getLastHarvestTime();
+
+	/**
+	 * Returns the number of accumulator cells retired after being idle
+	 * @return the number of retired cells
+	 */
+	public long getRetiredCells();
+
+	/**
+	 * Harvests all the accumulator cells now
+	 */
+	public void harvest();
+
+}
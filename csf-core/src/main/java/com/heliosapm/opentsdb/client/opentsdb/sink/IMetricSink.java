@@ -16,7 +16,7 @@
 
 package com.heliosapm.opentsdb.client.opentsdb.sink;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import com.heliosapm.opentsdb.client.opentsdb.opt.ConcurrencyCounter;
 
 
 /**
@@ -40,7 +40,7 @@ public interface IMetricSink {
 	 * @param parentMetricId The parent metric id for the concurrency counter
 	 * @return the concurrency counter
 	 */
-	public AtomicInteger getConcurrencyCounter(final long parentMetricId);
+	public ConcurrencyCounter getConcurrencyCounter(final long parentMetricId);
 	
 	
 	
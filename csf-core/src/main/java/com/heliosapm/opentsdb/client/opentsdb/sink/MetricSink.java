@@ -17,37 +17,32 @@
 package com.heliosapm.opentsdb.client.opentsdb.sink;
 
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import jsr166e.LongAdder;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jboss.netty.buffer.ChannelBuffer;
 
-import com.codahale.metrics.Metric;
+import com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernor;
+import com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernor.Admission;
 import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
 import com.heliosapm.opentsdb.client.opentsdb.Constants;
-import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
-import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+import com.heliosapm.opentsdb.client.opentsdb.opt.ConcurrencyCounter;
 import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdMetricRegistry;
 import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOTMetricCache;
 import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOpenTSDBReporter;
 import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
-import com.heliosapm.opentsdb.client.opentsdb.opt.ValueArrayAggregator;
 import com.heliosapm.opentsdb.client.util.DynamicByteBufferBackedChannelBufferFactory;
 import com.heliosapm.utils.jmx.JMXHelper;
 
 /**
  * <p>Title: MetricSink</p>
- * <p>Description: The metric ingestion sink.</p> 
+ * <p>Description: The metric ingestion sink. Submissions are routed by metric id to one of N {@link SinkShard}s, 
+ * each of which aggregates the metric ids it owns on its own thread.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.MetricSink</code></p>
@@ -69,22 +64,20 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	protected int sizeThreshold;
 	/** The maximum elapsed time in ms. before a flush */
 	protected long timeThreshold;
-	/** The size of the input queue */
+	/** The total size of the shard input queues */
 	protected final int inputQueueSize;
-	/** The fairness of the input queue */
+	/** The fairness of the input queues */
 	protected final boolean inputQueueFair;
-	/** The input queue */
-	protected final BlockingQueue<long[]> inputQueue;
-	/** The input queue processor thread */
-	protected Thread inputProcessorThread = null;
+	/** The aggregation shards */
+	protected final SinkShard[] shards;
 	/** The metric registry */
 	protected final LongIdMetricRegistry registry = LongIdMetricRegistry.getInstance();
 	/** The metric reporter */   // FIXME:  add options for reporter
 	protected final LongIdOpenTSDBReporter reporter = LongIdOpenTSDBReporter.forRegistry(registry).build();
 	/** The opt cache */
 	protected final LongIdOTMetricCache otCache = LongIdOTMetricCache.getInstance(); 
-	/** The input queue processor thread */
-	protected final Thread inputProcessor;
+	/** The backpressure governor */
+	protected final BackpressureGovernor governor = BackpressureGovernor.getInstance();
 	
 	
 	
@@ -97,11 +90,6 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	protected final AtomicBoolean flushInProgress = new AtomicBoolean(false);
 	/** The input Q in progress flag */
 	protected final AtomicBoolean inputInProgress = new AtomicBoolean(true);
-
-	/** A shared counter to track metric submissions dropped on account of a full input queue */
-	protected final LongAdder fullQueueDrops = new LongAdder();
-	/** A counter to track the number of processed metric submissions */
-	protected final LongAdder processedMetrics = new LongAdder();
 	
 	/**
 	 * Acquires the MetricSink singleton instance
@@ -126,10 +114,25 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 		timeThreshold = ConfigurationReader.confLong(Constants.PROP_SINK_TIME_TRIGGER, Constants.DEFAULT_SINK_TIME_TRIGGER);
 		inputQueueSize = ConfigurationReader.confInt(Constants.PROP_SINK_INPUT_QSIZE, Constants.DEFAULT_SINK_INPUT_QSIZE);
 		inputQueueFair = ConfigurationReader.confBool(Constants.PROP_SINK_INPUT_QFAIR, Constants.DEFAULT_SINK_INPUT_QFAIR);
-		inputQueue = new ArrayBlockingQueue<long[]>(inputQueueSize, inputQueueFair); 
-		inputProcessor = new Thread(getQProcessorTask(), "InputQProcessor");
-		inputProcessor.setDaemon(true);
-		inputProcessor.start();
+		final int shardCount = ConfigurationReader.confInt(Constants.PROP_SINK_SHARDS, Constants.DEFAULT_SINK_SHARDS);
+		if(shardCount < 1) throw new IllegalArgumentException("Invalid metric sink shard count [" + shardCount + "]");
+		final int shardQueueSize = Math.max(sizeThreshold, inputQueueSize / shardCount);
+		shards = new SinkShard[shardCount];
+		for(int i = 0; i < shardCount; i++) {
+			shards[i] = new SinkShard(this, i, shardQueueSize, inputQueueFair, sizeThreshold - 1);
+		}
+		governor.registerSource("sink", new BackpressureGovernor.PressureSource() {
+			@Override
+			public int getPressure() {
+				// the fullest shard is the bottleneck
+				int max = 0;
+				for(SinkShard shard: shards) {
+					final int p = BackpressureGovernor.percent(shard.inputQueue.size(), shard.inputQueueSize);
+					if(p > max) max = p;
+				}
+				return max;
+			}
+		});
 		try {
 			JMXHelper.registerMBean(this, OBJECT_NAME);
 		} catch (Exception ex) {
@@ -138,56 +141,17 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	}
 	
 	/**
-	 * Creates the input queue processor task
-	 * @return the input queue processor task
+	 * Returns the shard that owns the passed metric id
+	 * @param metricId The metric id
+	 * @return the owning shard
 	 */
-	protected Runnable getQProcessorTask() {
-		return new Runnable() {			
-			final Set<long[]> submissions = new HashSet<long[]>(); 
-			final int maxDrain = sizeThreshold - 1;
-			public void run() {
-				while(true) {
-					try {
-						submissions.add(inputQueue.take());
-						final int qsize = inputQueue.size();
-						if(qsize>0) {
-							inputQueue.drainTo(submissions, maxDrain);
-						}
-						processedMetrics.add(submissions.size());
-						
-						for(long[] valueArr: submissions) {
-							final long metricId = valueArr[1];
-							final OTMetric otMetric = otCache.getOTMetric(metricId);
-							if(otCache.putRefKeeperIfAbsent(metricId, otMetric)==null) {
-								for(Measurement m: otMetric.getMeasurements()) {
-									final OTMetric subMetric = MetricBuilder.metric(otMetric, true).tag("submetric", m.shortName).measurement(m).optBuild();
-									otCache.putRefKeeper(subMetric.longHashCode(), subMetric);
-								}
-							}
-							final int mask = (int)valueArr[0];
-							Map<Measurement, Integer> swapMap = otCache.getSwapMap(mask);
-//							log.info(printSwapMap(mask, swapMap, valueArr));
-							final Map<Measurement, Metric> metricMap = otCache.getMetricMap(metricId);
-							ValueArrayAggregator.aggregate(valueArr, swapMap, metricMap);
-						}
-					} catch (InterruptedException iex) {
-						if(inputInProgress.get()) {
-							if(Thread.interrupted()) Thread.interrupted();							
-						} else {
-							break;
-						}
-					} catch (Exception ex) {
-						log.error("MetricSink InputQ Processor Error", ex);
-					} finally {
-						submissions.clear();
-					}
-				}
-			}
-		};
+	protected SinkShard shardFor(final long metricId) {
+		if(shards.length==1) return shards[0];
+		int h = (int)(metricId ^ (metricId >>> 32));
+		h ^= (h >>> 16);
+		return shards[(h & Integer.MAX_VALUE) % shards.length];
 	}
 	
-	
-	
 	protected String printSwapMap(final int mask, final Map<Measurement, Integer> swapMap, final long[] valueArray) {
 		final StringBuilder b = new StringBuilder("\n\t=============================================\n\tSwapMap for Mask:").append(mask).append("\n\t=============================================");
 //		final long[] valueArray = new long[valueArrayX.length-2];
@@ -241,7 +205,11 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	 */
 	@Override
 	public int getInputQueueDepth() {
-		return inputQueue.size();
+		int depth = 0;
+		for(SinkShard shard: shards) {
+			depth += shard.inputQueue.size();
+		}
+		return depth;
 	}
 	
 	/**
@@ -250,7 +218,20 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	 */
 	@Override
 	public int getInputQueueFree() {	
-		return inputQueue.remainingCapacity();
+		int free = 0;
+		for(SinkShard shard: shards) {
+			free += shard.inputQueue.remainingCapacity();
+		}
+		return free;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.MetricSinkMBean#getShardCount()
+	 */
+	@Override
+	public int getShardCount() {
+		return shards.length;
 	}
 	
 	
@@ -260,7 +241,11 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	 */
 	@Override
 	public long getProcessedArrays() {
-		return processedMetrics.longValue();
+		long processed = 0L;
+		for(SinkShard shard: shards) {
+			processed += shard.processedMetrics.longValue();
+		}
+		return processed;
 	}
 	
 	/**
@@ -269,7 +254,11 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	 */
 	@Override
 	public long getInputQueueDropCount() {	
-		return fullQueueDrops.longValue();
+		long drops = 0L;
+		for(SinkShard shard: shards) {
+			drops += shard.fullQueueDrops.longValue();
+		}
+		return drops;
 	}
 	
 	
@@ -279,8 +268,8 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.IMetricSink#getConcurrencyCounter(long)
 	 */
 	@Override
-	public AtomicInteger getConcurrencyCounter(long parentMetricId) {		
-		return LongIdOTMetricCache.getInstance().getCounter(parentMetricId);
+	public ConcurrencyCounter getConcurrencyCounter(long parentMetricId) {		
+		return LongIdOTMetricCache.getInstance().getConcurrencyCounter(parentMetricId);
 	}
 
 	/**
@@ -289,9 +278,18 @@ public class MetricSink implements Runnable, IMetricSink, MetricSinkMBean {
 	 */
 	@Override
 	public void submit(final long[] measurements) {
+		final Admission admission = governor.admit(true);
+		if(admission==Admission.REJECT) return;
+		final SinkShard shard = shardFor(measurements[1]);
+		final BlockingQueue<long[]> inputQueue = shard.inputQueue;
+		if(admission==Admission.EVICT && inputQueue.poll()!=null) governor.evicted(1);
 		if(!inputQueue.offer(measurements)) {
-			fullQueueDrops.increment();
-			System.err.println("\n\t !!!!!  QUEUE DROP :" + inputQueue.size() + "  !!!!!!\n");
+			final Admission retry = governor.overflow(true);
+			if(retry==Admission.EVICT && inputQueue.poll()!=null) governor.evicted(1);
+			if(retry==Admission.REJECT) return;
+			if(!inputQueue.offer(measurements)) {
+				shard.fullQueueDrops.increment();
+			}
 		}		
 	}
 
@@ -41,8 +41,8 @@ public interface MetricSinkMBean {
 	
 	
 	/**
-	 * Returns the number of submissions in the input queue
-	 * @return the number of submissions in the input queue
+	 * Returns the number of submissions in the input queues of all shards
+	 * @return the number of submissions in the input queues
 	 */
 	public int getInputQueueDepth();
 	
@@ -57,5 +57,11 @@ public interface MetricSinkMBean {
 	 * @return the number of dropped input items
 	 */
 	public long getInputQueueDropCount();
+	
+	/**
+	 * Returns the number of aggregation shards
+	 * @return the number of aggregation shards
+	 */
+	public int getShardCount();
 
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.ObjectName;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+import com.heliosapm.opentsdb.client.opentsdb.opt.LongIdOTMetricCache;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+import com.heliosapm.opentsdb.client.opentsdb.opt.ValueArrayAggregator;
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: SinkShard</p>
+ * <p>Description: One of the {@link MetricSink}'s aggregation shards. Each shard has its own input queue and processing thread
+ * and is the single writer of the aggregate metrics of the metric ids routed to it, so shards aggregate in parallel without
+ * any cross-shard locking. Values harvested from {@link AccumulatorCell}s are merged by the owning shard's thread as well.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.SinkShard</code></p>
+ */
+
+public class SinkShard implements Runnable, SinkShardMBean {
+	/** The submission offered to wake up the shard when harvested values are pending */
+	private static final long[] HARVEST_PENDING = new long[0];
+
+	/** Instance logger */
+	protected final Logger log;
+	/** The shard index */
+	protected final int shard;
+	/** The owning sink */
+	protected final MetricSink sink;
+	/** The shard's input queue */
+	protected final BlockingQueue<long[]> inputQueue;
+	/** The harvested accumulator values pending merge */
+	protected final ConcurrentLinkedQueue<AccumulatorCell.Harvest> harvests = new ConcurrentLinkedQueue<AccumulatorCell.Harvest>();
+	/** The shard's input queue capacity */
+	protected final int inputQueueSize;
+	/** The maximum number of submissions drained per pass */
+	protected final int maxDrain;
+	/** The opt cache */
+	protected final LongIdOTMetricCache otCache = LongIdOTMetricCache.getInstance();
+	/** The shard's processing thread */
+	protected final Thread processor;
+	/** The shard's JMX ObjectName */
+	protected final ObjectName objectName;
+
+	/** A counter to track submissions dropped on account of a full input queue */
+	protected final LongAdder fullQueueDrops = new LongAdder();
+	/** A counter to track the number of processed submissions */
+	protected final LongAdder processedMetrics = new LongAdder();
+	/** The processed submission rate */
+	protected final Meter processedRate = new Meter();
+
+	/**
+	 * Creates and starts a new SinkShard
+	 * @param sink The owning sink
+	 * @param shard The shard index
+	 * @param inputQueueSize The shard's input queue capacity
+	 * @param inputQueueFair The fairness of the shard's input queue
+	 * @param maxDrain The maximum number of submissions drained per pass
+	 */
+	SinkShard(final MetricSink sink, final int shard, final int inputQueueSize, final boolean inputQueueFair, final int maxDrain) {
+		this.sink = sink;
+		this.shard = shard;
+		this.inputQueueSize = inputQueueSize;
+		this.maxDrain = maxDrain;
+		log = LogManager.getLogger(getClass().getName() + "." + shard);
+		inputQueue = new ArrayBlockingQueue<long[]>(inputQueueSize, inputQueueFair);
+		processor = new Thread(this, "InputQProcessor#" + shard);
+		processor.setDaemon(true);
+		processor.start();
+		objectName = JMXHelper.objectName(Util.getJMXDomain() + ":service=MetricSink,shard=" + shard);
+		try {
+			JMXHelper.registerMBean(this, objectName);
+		} catch (Exception ex) {
+			log.warn("Failed to register SinkShard JMX interface. Will continue without:" + ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		final List<long[]> submissions = new ArrayList<long[]>(maxDrain + 1);
+		while(true) {
+			try {
+				submissions.add(inputQueue.take());
+				if(!inputQueue.isEmpty()) {
+					inputQueue.drainTo(submissions, maxDrain);
+				}
+				final int size = submissions.size();
+				int processed = 0;
+				for(int i = 0; i < size; i++) {
+					final long[] valueArr = submissions.get(i);
+					if(valueArr==HARVEST_PENDING) continue;
+					aggregate(valueArr);
+					processed++;
+				}
+				processedMetrics.add(processed);
+				processedRate.mark(processed);
+				mergeHarvests();
+			} catch (InterruptedException iex) {
+				if(sink.inputInProgress.get()) {
+					if(Thread.interrupted()) Thread.interrupted();
+				} else {
+					break;
+				}
+			} catch (Exception ex) {
+				log.error("MetricSink InputQ Processor Error", ex);
+			} finally {
+				submissions.clear();
+			}
+		}
+	}
+
+	/**
+	 * Aggregates one submission into its metric's aggregate metrics
+	 * @param valueArr The submitted value array
+	 */
+	protected void aggregate(final long[] valueArr) {
+		final long metricId = valueArr[1];
+		keep(otCache, metricId);
+		final int mask = (int)valueArr[0];
+		final Map<Measurement, Integer> swapMap = otCache.getSwapMap(mask);
+		final Map<Measurement, Metric> metricMap = otCache.getMetricMap(metricId);
+		ValueArrayAggregator.aggregate(valueArr, swapMap, metricMap);
+	}
+
+	/**
+	 * Enqueues harvested accumulator values to be merged by this shard's thread
+	 * @param harvest The harvested values
+	 */
+	void merge(final AccumulatorCell.Harvest harvest) {
+		harvests.add(harvest);
+		// a full queue means the shard is busy and merges the harvests after its current pass
+		inputQueue.offer(HARVEST_PENDING);
+	}
+
+	/**
+	 * Merges the pending harvested accumulator values into their metrics' aggregate metrics. Only called by the shard's thread.
+	 */
+	protected void mergeHarvests() {
+		AccumulatorCell.Harvest harvest = null;
+		while((harvest = harvests.poll())!=null) {
+			harvest.cell.merge(harvest.values, otCache.getMetricMap(harvest.cell.metricId));
+		}
+	}
+
+	/**
+	 * Retains the metric for the passed id and its measurement sub-metrics in the opt cache the first time the metric is aggregated
+	 * @param otCache The opt cache
+	 * @param metricId The metric id
+	 */
+	static void keep(final LongIdOTMetricCache otCache, final long metricId) {
+		final OTMetric otMetric = otCache.getOTMetric(metricId);
+		if(otCache.putRefKeeperIfAbsent(metricId, otMetric)==null) {
+			for(Measurement m: otMetric.getMeasurements()) {
+				final OTMetric subMetric = MetricBuilder.metric(otMetric, true).tag("submetric", m.shortName).measurement(m).optBuild();
+				otCache.putRefKeeper(subMetric.longHashCode(), subMetric);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean#getShard()
+	 */
+	@Override
+	public int getShard() {
+		return shard;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean#getInputQueueDepth()
+	 */
+	@Override
+	public int getInputQueueDepth() {
+		return inputQueue.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean#getInputQueueFree()
+	 */
+	@Override
+	public int getInputQueueFree() {
+		return inputQueue.remainingCapacity();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean#getProcessedArrays()
+	 */
+	@Override
+	public long getProcessedArrays() {
+		return processedMetrics.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean#getProcessedRate()
+	 */
+	@Override
+	public double getProcessedRate() {
+		return processedRate.getOneMinuteRate();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean#getInputQueueDropCount()
+	 */
+	@Override
+	public long getInputQueueDropCount() {
+		return fullQueueDrops.longValue();
+	}
+
+}
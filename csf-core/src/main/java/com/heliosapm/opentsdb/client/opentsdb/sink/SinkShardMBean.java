@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.sink;
+
+/**
+ * <p>Title: SinkShardMBean</p>
+ * <p>Description: JMX MBean interface for a {@link SinkShard}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.SinkShardMBean</code></p>
+ */
+
+public interface SinkShardMBean {
+
+	/**
+	 * Returns the shard's index
+	 * @return the shard's index
+	 */
+	public int getShard();
+
+	/**
+	 * Returns the number of submissions in the shard's input queue
+	 * @return the number of submissions in the shard's input queue
+	 */
+	public int getInputQueueDepth();
+
+	/**
+	 * Returns the number of free slots in the shard's input queue
+	 * @return the number of free slots in the shard's input queue
+	 */
+	public int getInputQueueFree();
+
+	/**
+	 * Returns the number of submissions aggregated by the shard
+	 * @return the number of processed submissions
+	 */
+	public long getProcessedArrays();
+
+	/**
+	 * Returns the one minute rate of submissions aggregated by the shard per second
+	 * @return the one minute processing rate
+	 */
+	public double getProcessedRate();
+
+	/**
+	 * Returns the number of submissions dropped due to a full shard input queue
+	 * @return the number of dropped submissions
+	 */
+	public long getInputQueueDropCount();
+
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.accumulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.heliosapm.opentsdb.client.BaseTest;
+
+/**
+ * <p>Title: OffHeapAccumulatorTableTest</p>
+ * <p>Description: Unit tests for concurrent accumulation into an {@link OffHeapAccumulatorTable}, handing off the frozen half on flips,
+ * dropping values when full and closing with writers in flight</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.accumulator.OffHeapAccumulatorTableTest</code></p>
+ */
+@RunWith(JUnit4.class)
+public class OffHeapAccumulatorTableTest extends BaseTest {
+	/** The number of accumulating threads */
+	static final int WRITERS = 4;
+	/** The number of metric ids each thread accumulates */
+	static final int METRICS = 64;
+	/** The number of accumulations per thread */
+	static final int ACCUMULATIONS = 200000;
+
+	/**
+	 * Returns the metric id a writer accumulates on the passed accumulation
+	 * @param i The accumulation index
+	 * @return the metric id
+	 */
+	static long metricId(final int i) {
+		return (i % METRICS) + 1;
+	}
+
+	/**
+	 * Returns the value a writer accumulates on the passed accumulation
+	 * @param writer The writer index
+	 * @param i The accumulation index
+	 * @return the value
+	 */
+	static long value(final int writer, final int i) {
+		return ((i * 31L) % 10007L) - 5000L + writer;
+	}
+
+	/**
+	 * Starts the writers, each accumulating {@link #ACCUMULATIONS} values into the passed table
+	 * @param table The table to accumulate into
+	 * @param start The latch the writers wait on before accumulating
+	 * @param dropped Set if any value is dropped
+	 * @return the started writers
+	 */
+	static Thread[] startWriters(final OffHeapAccumulatorTable table, final CountDownLatch start, final AtomicBoolean dropped) {
+		final Thread[] writers = new Thread[WRITERS];
+		for(int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			writers[w] = new Thread("OffHeapAccumulatorTableTest#" + w) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int i = 0; i < ACCUMULATIONS; i++) {
+							if(!table.accumulate(metricId(i), value(writer, i))) dropped.set(true);
+						}
+					} catch (InterruptedException iex) {
+						/* No Op */
+					}
+				}
+			};
+			writers[w].setDaemon(true);
+			writers[w].start();
+		}
+		return writers;
+	}
+
+	/**
+	 * Computes the expected <b><code>{count, sum, min, max}</code></b> per metric id of all the writers' accumulations
+	 * @return the expected totals keyed by metric id
+	 */
+	static Map<Long, long[]> expected() {
+		final Map<Long, long[]> totals = new HashMap<Long, long[]>();
+		for(int w = 0; w < WRITERS; w++) {
+			for(int i = 0; i < ACCUMULATIONS; i++) {
+				add(totals, metricId(i), 1L, value(w, i), value(w, i), value(w, i));
+			}
+		}
+		return totals;
+	}
+
+	/**
+	 * Adds a count, sum, min and max into the totals of the passed metric id
+	 * @param totals The totals keyed by metric id
+	 * @param metricId The metric id
+	 * @param count The count
+	 * @param sum The sum
+	 * @param min The min
+	 * @param max The max
+	 */
+	static void add(final Map<Long, long[]> totals, final long metricId, final long count, final long sum, final long min, final long max) {
+		long[] t = totals.get(metricId);
+		if(t==null) {
+			t = new long[]{0L, 0L, Long.MAX_VALUE, Long.MIN_VALUE};
+			totals.put(metricId, t);
+		}
+		t[0] += count;
+		t[1] += sum;
+		t[2] = Math.min(t[2], min);
+		t[3] = Math.max(t[3], max);
+	}
+
+	/**
+	 * Asserts the collected totals match the expected totals
+	 * @param expected The expected totals
+	 * @param actual The collected totals
+	 */
+	static void assertTotals(final Map<Long, long[]> expected, final Map<Long, long[]> actual) {
+		Assert.assertEquals("Metric id count", expected.size(), actual.size());
+		for(Map.Entry<Long, long[]> entry: expected.entrySet()) {
+			final long[] e = entry.getValue(), a = actual.get(entry.getKey());
+			Assert.assertNotNull("No totals for metric id [" + entry.getKey() + "]", a);
+			Assert.assertEquals("Count of metric id [" + entry.getKey() + "]", e[0], a[0]);
+			Assert.assertEquals("Sum of metric id [" + entry.getKey() + "]", e[1], a[1]);
+			Assert.assertEquals("Min of metric id [" + entry.getKey() + "]", e[2], a[2]);
+			Assert.assertEquals("Max of metric id [" + entry.getKey() + "]", e[3], a[3]);
+		}
+	}
+
+	/**
+	 * <p>Title: Collector</p>
+	 * <p>Description: Procedure adding each frozen half's slots into running totals</p>
+	 */
+	static class Collector implements CopiedAddressProcedure<Void> {
+		/** The totals keyed by metric id */
+		final Map<Long, long[]> totals = new HashMap<Long, long[]>();
+		/** The number of frozen halves collected */
+		int halves = 0;
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.heliosapm.accumulator.CopiedAddressProcedure#addressSpace(java.lang.String, long, java.lang.Object[])
+		 */
+		@Override
+		public Void addressSpace(final String metricName, final long address, final Object... refs) {
+			final int capacity = (Integer)refs[0];
+			final int size = (Integer)refs[1];
+			int found = 0;
+			for(int slot = 0; slot < capacity; slot++) {
+				final long metricId = OffHeapAccumulatorTable.key(address, slot);
+				if(metricId==0L) continue;
+				found++;
+				add(totals, metricId, OffHeapAccumulatorTable.count(address, slot), OffHeapAccumulatorTable.sum(address, slot),
+						OffHeapAccumulatorTable.min(address, slot), OffHeapAccumulatorTable.max(address, slot));
+			}
+			Assert.assertEquals("Frozen half size", size, found);
+			halves++;
+			return null;
+		}
+	}
+
+	/**
+	 * Accumulates from several threads into one period and checks the frozen half holds the exact totals
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentAccumulate() throws Exception {
+		final OffHeapAccumulatorTable table = new OffHeapAccumulatorTable(name.getMethodName(), METRICS, 0L);
+		try {
+			final Collector collector = new Collector();
+			table.addProcedure(collector);
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicBoolean dropped = new AtomicBoolean(false);
+			final Thread[] writers = startWriters(table, start, dropped);
+			start.countDown();
+			for(Thread t: writers) {
+				t.join(TimeUnit.SECONDS.toMillis(30));
+			}
+			Assert.assertFalse("Values dropped", dropped.get());
+			Assert.assertEquals("Active size", METRICS, table.getSize());
+			table.flip();
+			Assert.assertEquals("Frozen halves", 1, collector.halves);
+			assertTotals(expected(), collector.totals);
+			Assert.assertEquals("Active size after flip", 0, table.getSize());
+			Assert.assertEquals("Flips", 1L, table.getFlips());
+		} finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * Flips repeatedly while several threads accumulate and checks the frozen halves handed off add up to the exact totals,
+	 * and that the frozen half is cleared before it becomes the active half again
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFlipWhileAccumulating() throws Exception {
+		final OffHeapAccumulatorTable table = new OffHeapAccumulatorTable(name.getMethodName(), METRICS, 0L);
+		try {
+			final Collector collector = new Collector();
+			table.addProcedure(collector);
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicBoolean dropped = new AtomicBoolean(false);
+			final Thread[] writers = startWriters(table, start, dropped);
+			start.countDown();
+			boolean running = true;
+			while(running) {
+				running = false;
+				for(Thread t: writers) {
+					if(t.isAlive()) running = true;
+				}
+				// a final flip once every writer has finished
+				table.flip();
+			}
+			log("Flips: %s", table.getFlips());
+			Assert.assertFalse("Values dropped", dropped.get());
+			Assert.assertEquals("Frozen halves", table.getFlips(), collector.halves);
+			assertTotals(expected(), collector.totals);
+			final Collector cleared = new Collector();
+			table.addProcedure(cleared);
+			table.flip();
+			table.flip();
+			Assert.assertTrue("Cleared halves not empty", cleared.totals.isEmpty());
+		} finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * Checks values for new metric ids are dropped once the period's table is full, while known metric ids are still accumulated
+	 */
+	@Test
+	public void testDropsWhenFull() {
+		final int maxEntries = 4;
+		final OffHeapAccumulatorTable table = new OffHeapAccumulatorTable(name.getMethodName(), maxEntries, 0L);
+		try {
+			final Collector collector = new Collector();
+			table.addProcedure(collector);
+			for(int i = 1; i <= maxEntries; i++) {
+				Assert.assertTrue("Metric id [" + i + "] dropped", table.accumulate(i, i));
+			}
+			Assert.assertFalse("Metric id accumulated into a full table", table.accumulate(maxEntries + 1, 1L));
+			Assert.assertFalse("Metric id accumulated into a full table", table.accumulate(maxEntries + 2, 1L));
+			Assert.assertEquals("Drops", 2L, table.getDrops());
+			Assert.assertTrue("Known metric id dropped", table.accumulate(1L, 10L));
+			Assert.assertEquals("Size", maxEntries, table.getSize());
+			table.flip();
+			Assert.assertEquals("Frozen metric ids", maxEntries, collector.totals.size());
+			Assert.assertNull("Dropped metric id in the frozen half", collector.totals.get(maxEntries + 1L));
+			Assert.assertEquals("Count of known metric id", 2L, collector.totals.get(1L)[0]);
+			Assert.assertEquals("Sum of known metric id", 11L, collector.totals.get(1L)[1]);
+			Assert.assertTrue("Metric id dropped after the flip", table.accumulate(maxEntries + 1, 1L));
+			Assert.assertEquals("Drops after the flip", 2L, table.getDrops());
+			try {
+				table.accumulate(0L, 1L);
+				Assert.fail("Accumulated reserved metric id 0");
+			} catch (IllegalArgumentException iex) {
+				/* No Op */
+			}
+		} finally {
+			table.close();
+		}
+	}
+
+	/**
+	 * Closes the table while several threads accumulate and checks the writers in flight back out, and later values are refused
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloseWithWritersInFlight() throws Exception {
+		final OffHeapAccumulatorTable table = new OffHeapAccumulatorTable(name.getMethodName(), METRICS, 0L);
+		final CountDownLatch started = new CountDownLatch(WRITERS);
+		final Thread[] writers = new Thread[WRITERS];
+		final long[] accumulated = new long[WRITERS];
+		for(int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			writers[w] = new Thread("OffHeapAccumulatorTableTest#" + w) {
+				@Override
+				public void run() {
+					started.countDown();
+					int i = 0;
+					// accumulate until the close refuses the value
+					while(table.accumulate(metricId(i), value(writer, i))) {
+						i++;
+					}
+					accumulated[writer] = i;
+				}
+			};
+			writers[w].setDaemon(true);
+			writers[w].start();
+		}
+		Assert.assertTrue("Writers not started", started.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		table.flip();
+		table.close();
+		for(Thread t: writers) {
+			t.join(TimeUnit.SECONDS.toMillis(5));
+			Assert.assertFalse("Writer still accumulating after close", t.isAlive());
+		}
+		for(int w = 0; w < WRITERS; w++) {
+			log("Writer #%s accumulated %s values", w, accumulated[w]);
+		}
+		Assert.assertFalse("Accumulated after close", table.accumulate(1L, 1L));
+		final long flips = table.getFlips();
+		table.flip();
+		Assert.assertEquals("Flipped after close", flips, table.getFlips());
+		// a second close is a no op
+		table.close();
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.client.opentsdb.sink;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.heliosapm.opentsdb.client.BaseTest;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: AccumulatorCellTest</p>
+ * <p>Description: Unit tests for harvesting {@link AccumulatorCell}s while their owners accumulate, and for retiring and reviving idle cells</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.client.opentsdb.sink.AccumulatorCellTest</code></p>
+ */
+@RunWith(JUnit4.class)
+public class AccumulatorCellTest extends BaseTest {
+	/** The measurement mask of the test cells: a bucketed timer and a counter */
+	static final int MASK = Measurement.getMaskFor(Measurement.ELAPSED, Measurement.RETURN);
+	/** The slot offset of the elapsed timer, the first enabled measurement */
+	static final int ELAPSED_OFF = 0;
+	/** The slot offset of the return counter, following the timer's slot and histogram */
+	static final int RETURN_OFF = AccumulatorCell.BUCKETS + AccumulatorCell.BUCKET_COUNT;
+	/** The number of accumulating threads */
+	static final int WRITERS = 4;
+	/** The number of accumulations per thread */
+	static final int ACCUMULATIONS = 200000;
+
+	/**
+	 * Stops the harvester singleton from scheduling harvests, so only the test harvests the test cells
+	 */
+	@BeforeClass
+	public static void disableScheduledHarvests() {
+		System.setProperty(Constants.PROP_SINK_ACCUMULATE, "false");
+	}
+
+	/**
+	 * Creates the swap map placing the timer's value at index 0 and the counter's at index 1
+	 * @return the swap map
+	 */
+	static Map<Measurement, Integer> swapMap() {
+		final Map<Measurement, Integer> map = new EnumMap<Measurement, Integer>(Measurement.class);
+		map.put(Measurement.ELAPSED, 0);
+		map.put(Measurement.RETURN, 1);
+		return map;
+	}
+
+	/**
+	 * Returns the value accumulated by a writer on the passed accumulation
+	 * @param writer The writer index
+	 * @param i The accumulation index
+	 * @return the value
+	 */
+	static long value(final int writer, final int i) {
+		return ((i * 31L) % 10007L) + writer;
+	}
+
+	/**
+	 * Harvests several cells while their owners accumulate and checks the harvested counts, sums, min, max and histograms
+	 * add up exactly to what was accumulated
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHarvestWhileAccumulating() throws Exception {
+		final AccumulatorCell[] cells = new AccumulatorCell[WRITERS];
+		final CountDownLatch created = new CountDownLatch(WRITERS);
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] writers = new Thread[WRITERS];
+		final Throwable[] errors = new Throwable[WRITERS];
+		for(int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			writers[w] = new Thread("AccumulatorCellTest#" + w) {
+				@Override
+				public void run() {
+					try {
+						// the cell is owned by the thread creating it
+						cells[writer] = new AccumulatorCell(writer + 1, MASK, swapMap());
+						created.countDown();
+						start.await();
+						final long[] valueArr = new long[2];
+						for(int i = 0; i < ACCUMULATIONS; i++) {
+							valueArr[0] = value(writer, i);
+							valueArr[1] = 1L;
+							cells[writer].accumulate(valueArr, 1L);
+						}
+					} catch (Throwable t) {
+						errors[writer] = t;
+					}
+				}
+			};
+			writers[w].setDaemon(true);
+			writers[w].start();
+		}
+		Assert.assertTrue("Cells not created", created.await(5, TimeUnit.SECONDS));
+		final long[][] totals = new long[WRITERS][];
+		for(int w = 0; w < WRITERS; w++) {
+			totals[w] = new long[]{0L, 0L, Long.MAX_VALUE, Long.MIN_VALUE, 0L, 0L, 0L};
+		}
+		int harvests = 0;
+		start.countDown();
+		boolean running = true;
+		while(running) {
+			running = false;
+			for(int w = 0; w < WRITERS; w++) {
+				if(writers[w].isAlive()) running = true;
+			}
+			// a final pass once every writer has finished
+			for(int w = 0; w < WRITERS; w++) {
+				final AccumulatorCell.Harvest harvest = cells[w].harvest();
+				if(harvest!=null) {
+					add(totals[w], harvest.values);
+					harvests++;
+				}
+			}
+		}
+		log("Harvests: %s", harvests);
+		for(int w = 0; w < WRITERS; w++) {
+			Assert.assertNull("Writer #" + w + " failed: " + errors[w], errors[w]);
+			long sum = 0L, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+			for(int i = 0; i < ACCUMULATIONS; i++) {
+				final long v = value(w, i);
+				sum += v;
+				if(v < min) min = v;
+				if(v > max) max = v;
+			}
+			Assert.assertEquals("Timer count of cell #" + w, ACCUMULATIONS, totals[w][0]);
+			Assert.assertEquals("Timer sum of cell #" + w, sum, totals[w][1]);
+			Assert.assertEquals("Timer min of cell #" + w, min, totals[w][2]);
+			Assert.assertEquals("Timer max of cell #" + w, max, totals[w][3]);
+			Assert.assertEquals("Timer histogram count of cell #" + w, ACCUMULATIONS, totals[w][4]);
+			Assert.assertEquals("Counter count of cell #" + w, ACCUMULATIONS, totals[w][5]);
+			Assert.assertEquals("Counter sum of cell #" + w, ACCUMULATIONS, totals[w][6]);
+			Assert.assertNull("Harvest after the last accumulation", cells[w].harvest());
+		}
+	}
+
+	/**
+	 * Adds harvested values into running totals of <b><code>{count, sum, min, max, histogram count, counter count, counter sum}</code></b>
+	 * @param totals The running totals
+	 * @param values The harvested values
+	 */
+	static void add(final long[] totals, final long[] values) {
+		final long count = values[ELAPSED_OFF + AccumulatorCell.COUNT];
+		if(count > 0L) {
+			totals[0] += count;
+			totals[1] += values[ELAPSED_OFF + AccumulatorCell.SUM];
+			totals[2] = Math.min(totals[2], values[ELAPSED_OFF + AccumulatorCell.MIN]);
+			totals[3] = Math.max(totals[3], values[ELAPSED_OFF + AccumulatorCell.MAX]);
+			for(int b = 0; b < AccumulatorCell.BUCKET_COUNT; b++) {
+				totals[4] += values[ELAPSED_OFF + AccumulatorCell.BUCKETS + b];
+			}
+		}
+		totals[5] += values[RETURN_OFF + AccumulatorCell.COUNT];
+		totals[6] += values[RETURN_OFF + AccumulatorCell.SUM];
+	}
+
+	/**
+	 * Checks a cell only retires when idle since its last harvest, and is handed back to the harvester when its owner accumulates again
+	 */
+	@Test
+	public void testRetireAndRevive() {
+		final AccumulatorHarvester harvester = AccumulatorHarvester.getInstance();
+		final AccumulatorCell cell = new AccumulatorCell(WRITERS + 1, MASK, swapMap());
+		final long[] valueArr = new long[]{100L, 1L};
+		cell.accumulate(valueArr, 1L);
+		Assert.assertNotNull("First harvest", cell.harvest());
+		cell.accumulate(valueArr, 1L);
+		Assert.assertFalse("Retired with unharvested values", cell.retire());
+		Assert.assertFalse("Retired flag left set", cell.retired.get());
+		final AccumulatorCell.Harvest harvest = cell.harvest();
+		Assert.assertNotNull("Second harvest", harvest);
+		Assert.assertEquals("Second harvest count", 1L, cell.invocations(harvest.values));
+		Assert.assertNull("Idle harvest", cell.harvest());
+		Assert.assertTrue("Idle cell not retired", cell.retire());
+		Assert.assertTrue("Retired flag not set", cell.retired.get());
+		final int priorCells = harvester.getCellCount();
+		valueArr[0] = 200L;
+		cell.accumulate(valueArr, 1L);
+		Assert.assertFalse("Cell not revived", cell.retired.get());
+		Assert.assertEquals("Revived cell not handed to the harvester", priorCells + 1, harvester.getCellCount());
+		cell.accumulate(valueArr, 1L);
+		Assert.assertEquals("Cell revived twice", priorCells + 1, harvester.getCellCount());
+		final AccumulatorCell.Harvest revived = cell.harvest();
+		Assert.assertNotNull("Harvest after revival", revived);
+		Assert.assertEquals("Count after revival", 2L, cell.invocations(revived.values));
+		Assert.assertEquals("Sum after revival", 400L, revived.values[ELAPSED_OFF + AccumulatorCell.SUM]);
+		Assert.assertEquals("Min after revival", 200L, revived.values[ELAPSED_OFF + AccumulatorCell.MIN]);
+	}
+
+}
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: OpenTsdbStandIn</p>
+ * <p>Description: Singleton state of the OpenTSDB stand-in served by the <b><code>api</code></b> handler group and the telnet <b><code>put</code></b> handler.
+ * Validates and counts the submitted data points (without storing them), and injects configurable response latency,
+ * 500 errors and 413 (request too large) responses so the agent's sender can be measured against a reproducible, local sink.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.OpenTsdbStandIn</code></p>
+ */
+
+public class OpenTsdbStandIn implements OpenTsdbStandInMBean {
+	/** The singleton instance */
+	private static volatile OpenTsdbStandIn instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	/** The system property config name for the fixed latency in ms. injected before each put response */
+	public static final String PROP_LATENCY = "standin.latency";
+	/** The default injected latency in ms. */
+	public static final long DEFAULT_LATENCY = 0L;
+	/** The system property config name for the maximum random latency in ms. added to the fixed latency */
+	public static final String PROP_JITTER = "standin.latency.jitter";
+	/** The default latency jitter in ms. */
+	public static final long DEFAULT_JITTER = 0L;
+	/** The system property config name for the percentage of put requests failed with a 500 response */
+	public static final String PROP_ERROR_RATE = "standin.error.rate";
+	/** The default injected error rate percentage */
+	public static final int DEFAULT_ERROR_RATE = 0;
+	/** The system property config name for the request size in bytes above which put requests are rejected with a 413 */
+	public static final String PROP_MAX_REQUEST = "standin.request.max";
+	/** The default maximum request size (no limit) */
+	public static final int DEFAULT_MAX_REQUEST = 0;
+
+	/** The version reported by <b><code>/api/version</code></b> and the telnet <b><code>version</code></b> command */
+	public static final String VERSION = "2.1.0-standin";
+
+	/** Instance logger */
+	private final Logger log = LogManager.getLogger(getClass());
+	/** The timer used to delay responses */
+	private final HashedWheelTimer timer;
+	/** Random source for jitter and error injection */
+	private final Random random = new Random();
+	/** The delayed responses of each channel, in request order */
+	private final ChannelLocal<ResponseQueue> responseQueues = new ChannelLocal<ResponseQueue>(true) {
+		@Override
+		protected ResponseQueue initialValue(final Channel channel) {
+			return new ResponseQueue();
+		}
+	};
+
+	/** The injected latency in ms. */
+	private volatile long latency;
+	/** The injected latency jitter in ms. */
+	private volatile long jitter;
+	/** The injected error rate percentage */
+	private volatile int errorRate;
+	/** The maximum request size in bytes */
+	private volatile int maxRequestSize;
+
+	/** The put request counter */
+	private final LongAdder requests = new LongAdder();
+	/** The accepted data point counter */
+	private final LongAdder points = new LongAdder();
+	/** The rejected data point counter */
+	private final LongAdder failedPoints = new LongAdder();
+	/** The received bytes counter */
+	private final LongAdder bytes = new LongAdder();
+	/** The injected error counter */
+	private final LongAdder injectedErrors = new LongAdder();
+	/** The 413 response counter */
+	private final LongAdder tooLarge = new LongAdder();
+	/** The accepted data point meter */
+	private volatile Meter pointMeter = new Meter();
+	/** The put response timer */
+	private volatile Timer responseTimer = new Timer();
+
+	/**
+	 * Acquires the OpenTsdbStandIn singleton instance
+	 * @return the OpenTsdbStandIn singleton instance
+	 */
+	public static OpenTsdbStandIn getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new OpenTsdbStandIn();
+				}
+			}
+		}
+		return instance;
+	}
+
+	private OpenTsdbStandIn() {
+		latency = ConfigurationReader.confLong(PROP_LATENCY, DEFAULT_LATENCY);
+		jitter = ConfigurationReader.confLong(PROP_JITTER, DEFAULT_JITTER);
+		errorRate = ConfigurationReader.confInt(PROP_ERROR_RATE, DEFAULT_ERROR_RATE);
+		maxRequestSize = ConfigurationReader.confInt(PROP_MAX_REQUEST, DEFAULT_MAX_REQUEST);
+		timer = new HashedWheelTimer(new ThreadFactory() {
+			final AtomicInteger serial = new AtomicInteger(0);
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(r, "StandInLatencyTimer#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}, 1, TimeUnit.MILLISECONDS);
+		try {
+			JMXHelper.registerMBean(this, OBJECT_NAME);
+		} catch (Exception ex) {
+			log.warn("Failed to register OpenTsdbStandIn management interface. Will continue without.", ex);
+		}
+		log.info("OpenTsdbStandIn started. latency: {} ms, jitter: {} ms, error rate: {}%, max request: {}", latency, jitter, errorRate, maxRequestSize);
+	}
+
+	/**
+	 * Executes the passed response task after the injected latency, if any. The responses of a channel are written in request order,
+	 * so a pipelined response is never written before the one of an earlier request, and is delayed further if the earlier one is still pending.
+	 * @param channel The channel the request was received on
+	 * @param response The task that writes the response
+	 * @param startTime The System.nanoTime() the request was received at
+	 */
+	public void respond(final Channel channel, final Runnable response, final long startTime) {
+		final long delay = latency + (jitter > 0 ? (long)(random.nextDouble() * jitter) : 0L);
+		enqueue(channel, response, startTime, delay);
+	}
+
+	/**
+	 * Executes the passed response task without injected latency and without timing it, but still in request order:
+	 * it is delayed until the channel's earlier responses have been written.
+	 * @param channel The channel the request was received on
+	 * @param response The task that writes the response
+	 */
+	public void respondInOrder(final Channel channel, final Runnable response) {
+		enqueue(channel, response, -1L, 0L);
+	}
+
+	/**
+	 * Executes the passed response task after the passed delay, behind the channel's earlier responses
+	 * @param channel The channel the request was received on
+	 * @param response The task that writes the response
+	 * @param startTime The System.nanoTime() the request was received at, -1 if the response is not timed
+	 * @param delay The delay in ms.
+	 */
+	private void enqueue(final Channel channel, final Runnable response, final long startTime, final long delay) {
+		final ResponseQueue queue = responseQueues.get(channel);
+		synchronized(queue) {
+			if(queue.pending.isEmpty() && delay < 1L) {
+				complete(response, startTime);
+				return;
+			}
+			final long due = Math.max(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), queue.lastDue);
+			queue.lastDue = due;
+			queue.pending.addLast(new PendingResponse(response, startTime, due));
+			if(queue.pending.size()==1) {
+				schedule(queue, due);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the writing of the queue's head response
+	 * @param queue The channel's response queue
+	 * @param due The System.nanoTime() the head response is due at
+	 */
+	private void schedule(final ResponseQueue queue, final long due) {
+		timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				synchronized(queue) {
+					final PendingResponse head = queue.pending.removeFirst();
+					try {
+						complete(head.response, head.startTime);
+					} finally {
+						// chain the next response of the channel after this one
+						if(!queue.pending.isEmpty()) {
+							schedule(queue, queue.pending.getFirst().due);
+						}
+					}
+				}
+			}
+		}, Math.max(0L, due - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * <p>Title: ResponseQueue</p>
+	 * <p>Description: The delayed responses of a channel</p>
+	 */
+	private static class ResponseQueue {
+		/** The pending responses in request order */
+		final LinkedList<PendingResponse> pending = new LinkedList<PendingResponse>();
+		/** The System.nanoTime() the last queued response is due at */
+		long lastDue = 0L;
+	}
+
+	/**
+	 * <p>Title: PendingResponse</p>
+	 * <p>Description: A delayed response</p>
+	 */
+	private static class PendingResponse {
+		/** The task that writes the response */
+		final Runnable response;
+		/** The System.nanoTime() the request was received at */
+		final long startTime;
+		/** The System.nanoTime() the response is due at */
+		final long due;
+
+		PendingResponse(final Runnable response, final long startTime, final long due) {
+			this.response = response;
+			this.startTime = startTime;
+			this.due = due;
+		}
+	}
+
+	private void complete(final Runnable response, final long startTime) {
+		try {
+			response.run();
+		} finally {
+			if(startTime!=-1L) responseTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Records a put request and determines if it should be rejected
+	 * @param size The request body size in bytes
+	 * @return the http status code to reject the request with, or 0 if the request should be processed
+	 */
+	public int admit(final int size) {
+		requests.increment();
+		bytes.add(size);
+		final int max = maxRequestSize;
+		if(max > 0 && size > max) {
+			tooLarge.increment();
+			return 413;
+		}
+		final int rate = errorRate;
+		if(rate > 0 && random.nextInt(100) < rate) {
+			injectedErrors.increment();
+			return 500;
+		}
+		return 0;
+	}
+
+	/**
+	 * Validates and counts the data points in the passed JSON put request body
+	 * @param json The request body, a single data point object or an array of them
+	 * @param errors An optional array the rejected data points and their errors are added to, as in the OpenTSDB details response
+	 * @return a two slot array containing the failed and successful counts
+	 */
+	public int[] put(final String json, final JSONArray errors) {
+		final int[] results = new int[2];
+		final String trimmed = json.trim();
+		final JSONArray arr = trimmed.startsWith("[") ? new JSONArray(trimmed) : new JSONArray().put(new JSONObject(trimmed));
+		final int size = arr.length();
+		for(int i = 0; i < size; i++) {
+			final JSONObject dp = arr.optJSONObject(i);
+			final String error = validate(dp);
+			if(error==null) {
+				results[1]++;
+			} else {
+				results[0]++;
+				if(errors!=null) {
+					errors.put(new JSONObject().put("datapoint", dp==null ? JSONObject.NULL : dp).put("error", error));
+				}
+			}
+		}
+		count(results);
+		return results;
+	}
+
+	/**
+	 * Validates and counts a telnet put command
+	 * @param tokens The whitespace split command line, starting with <b><code>put</code></b>
+	 * @return null if the data point was accepted, otherwise the error message
+	 */
+	public String put(final String[] tokens) {
+		String error = null;
+		if(tokens.length < 5) {
+			error = "not enough arguments (need least 4, got " + (tokens.length-1) + ")";
+		} else {
+			try {
+				Long.parseLong(tokens[2]);
+				Double.parseDouble(tokens[3]);
+				for(int i = 4; i < tokens.length; i++) {
+					if(tokens[i].indexOf('=') < 1) {
+						error = "invalid tag: " + tokens[i];
+						break;
+					}
+				}
+			} catch (NumberFormatException nex) {
+				error = "invalid timestamp or value: " + nex.getMessage();
+			}
+		}
+		count(error==null ? new int[]{0, 1} : new int[]{1, 0});
+		return error;
+	}
+
+	private void count(final int[] results) {
+		if(results[0] > 0) failedPoints.add(results[0]);
+		if(results[1] > 0) {
+			points.add(results[1]);
+			pointMeter.mark(results[1]);
+		}
+	}
+
+	/**
+	 * Validates a JSON data point
+	 * @param dp The data point
+	 * @return null if valid, otherwise the error message
+	 */
+	private static String validate(final JSONObject dp) {
+		if(dp==null) return "Not a data point object";
+		if(dp.optString("metric", "").isEmpty()) return "Missing metric";
+		if(!dp.has("timestamp")) return "Missing timestamp";
+		if(!dp.has("value")) return "Missing value";
+		final JSONObject tags = dp.optJSONObject("tags");
+		if(tags==null || tags.length()==0) return "Missing tags";
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getLatency()
+	 */
+	@Override
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#setLatency(long)
+	 */
+	@Override
+	public void setLatency(final long latency) {
+		this.latency = latency < 0L ? 0L : latency;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getJitter()
+	 */
+	@Override
+	public long getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#setJitter(long)
+	 */
+	@Override
+	public void setJitter(final long jitter) {
+		this.jitter = jitter < 0L ? 0L : jitter;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getErrorRate()
+	 */
+	@Override
+	public int getErrorRate() {
+		return errorRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#setErrorRate(int)
+	 */
+	@Override
+	public void setErrorRate(final int errorRate) {
+		if(errorRate < 0 || errorRate > 100) throw new IllegalArgumentException("Invalid error rate [" + errorRate + "]. Must be 0 - 100");
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getMaxRequestSize()
+	 */
+	@Override
+	public int getMaxRequestSize() {
+		return maxRequestSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#setMaxRequestSize(int)
+	 */
+	@Override
+	public void setMaxRequestSize(final int maxRequestSize) {
+		this.maxRequestSize = maxRequestSize < 0 ? 0 : maxRequestSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getRequests()
+	 */
+	@Override
+	public long getRequests() {
+		return requests.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getPoints()
+	 */
+	@Override
+	public long getPoints() {
+		return points.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getFailedPoints()
+	 */
+	@Override
+	public long getFailedPoints() {
+		return failedPoints.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getBytes()
+	 */
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getInjectedErrors()
+	 */
+	@Override
+	public long getInjectedErrors() {
+		return injectedErrors.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getTooLarge()
+	 */
+	@Override
+	public long getTooLarge() {
+		return tooLarge.sum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getPointRate()
+	 */
+	@Override
+	public double getPointRate() {
+		return pointMeter.getOneMinuteRate();
+	}
+
+	/**
+	 * Returns a snapshot of the put response times in ns.
+	 * @return a snapshot of the put response times
+	 */
+	public Snapshot getResponseTimes() {
+		return responseTimer.getSnapshot();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getMedianResponseTime()
+	 */
+	@Override
+	public double getMedianResponseTime() {
+		return TimeUnit.NANOSECONDS.toMicros((long)getResponseTimes().getMedian()) / 1000D;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getP99ResponseTime()
+	 */
+	@Override
+	public double getP99ResponseTime() {
+		return TimeUnit.NANOSECONDS.toMicros((long)getResponseTimes().get99thPercentile()) / 1000D;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#getP999ResponseTime()
+	 */
+	@Override
+	public double getP999ResponseTime() {
+		return TimeUnit.NANOSECONDS.toMicros((long)getResponseTimes().get999thPercentile()) / 1000D;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.OpenTsdbStandInMBean#resetCounters()
+	 */
+	@Override
+	public void resetCounters() {
+		requests.reset();
+		points.reset();
+		failedPoints.reset();
+		bytes.reset();
+		injectedErrors.reset();
+		tooLarge.reset();
+		pointMeter = new Meter();
+		responseTimer = new Timer();
+	}
+
+}
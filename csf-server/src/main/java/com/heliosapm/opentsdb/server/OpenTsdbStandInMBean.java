@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server;
+
+import javax.management.ObjectName;
+
+import com.heliosapm.opentsdb.client.util.Util;
+import com.heliosapm.utils.jmx.JMXHelper;
+
+/**
+ * <p>Title: OpenTsdbStandInMBean</p>
+ * <p>Description: JMX MBean interface for the {@link OpenTsdbStandIn}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.OpenTsdbStandInMBean</code></p>
+ */
+
+public interface OpenTsdbStandInMBean {
+
+	/** The OpenTsdbStandIn JMX ObjectName */
+	public static final ObjectName OBJECT_NAME = JMXHelper.objectName(Util.getJMXDomain() + ":service=OpenTsdbStandIn");
+
+	/**
+	 * Returns the fixed latency in ms. injected before each put response
+	 * @return the injected latency in ms.
+	 */
+	public long getLatency();
+
+	/**
+	 * Sets the fixed latency in ms. injected before each put response
+	 * @param latency the injected latency in ms.
+	 */
+	public void setLatency(long latency);
+
+	/**
+	 * Returns the maximum random latency in ms. added to the fixed latency
+	 * @return the latency jitter in ms.
+	 */
+	public long getJitter();
+
+	/**
+	 * Sets the maximum random latency in ms. added to the fixed latency
+	 * @param jitter the latency jitter in ms.
+	 */
+	public void setJitter(long jitter);
+
+	/**
+	 * Returns the percentage of put requests failed with a 500 response
+	 * @return the injected error rate percentage
+	 */
+	public int getErrorRate();
+
+	/**
+	 * Sets the percentage of put requests failed with a 500 response
+	 * @param errorRate the injected error rate percentage
+	 */
+	public void setErrorRate(int errorRate);
+
+	/**
+	 * Returns the request body size in bytes above which put requests are rejected with a 413 response
+	 * @return the maximum request size, or 0 for no limit
+	 */
+	public int getMaxRequestSize();
+
+	/**
+	 * Sets the request body size in bytes above which put requests are rejected with a 413 response
+	 * @param maxRequestSize the maximum request size, or 0 for no limit
+	 */
+	public void setMaxRequestSize(int maxRequestSize);
+
+	/**
+	 * Returns the number of received put requests (http and telnet)
+	 * @return the number of put requests
+	 */
+	public long getRequests();
+
+	/**
+	 * Returns the number of data points accepted
+	 * @return the number of accepted data points
+	 */
+	public long getPoints();
+
+	/**
+	 * Returns the number of data points rejected as invalid
+	 * @return the number of rejected data points
+	 */
+	public long getFailedPoints();
+
+	/**
+	 * Returns the number of received put request body bytes
+	 * @return the number of received bytes
+	 */
+	public long getBytes();
+
+	/**
+	 * Returns the number of injected 500 responses
+	 * @return the number of injected errors
+	 */
+	public long getInjectedErrors();
+
+	/**
+	 * Returns the number of 413 responses
+	 * @return the number of 413 responses
+	 */
+	public long getTooLarge();
+
+	/**
+	 * Returns the accepted data point rate per second over the last minute
+	 * @return the one minute data point rate
+	 */
+	public double getPointRate();
+
+	/**
+	 * Returns the median put response time in ms.
+	 * @return the median put response time
+	 */
+	public double getMedianResponseTime();
+
+	/**
+	 * Returns the 99th percentile put response time in ms.
+	 * @return the 99th percentile put response time
+	 */
+	public double getP99ResponseTime();
+
+	/**
+	 * Returns the 99.9th percentile put response time in ms.
+	 * @return the 99.9th percentile put response time
+	 */
+	public double getP999ResponseTime();
+
+	/**
+	 * Resets the counters and response time statistics
+	 */
+	public void resetCounters();
+
+}
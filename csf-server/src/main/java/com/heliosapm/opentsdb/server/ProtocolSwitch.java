@@ -33,8 +33,10 @@ import org.jboss.netty.channel.UpstreamMessageEvent;
 import org.jboss.netty.handler.codec.compression.ZlibDecoder;
 import org.jboss.netty.handler.codec.compression.ZlibWrapper;
 import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.Delimiters;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.jboss.netty.handler.codec.string.StringDecoder;
+import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.execution.ExecutionHandler;
 import org.jboss.netty.util.CharsetUtil;
 
@@ -70,6 +72,8 @@ public class ProtocolSwitch extends FrameDecoder {
 	), false, true);
 	/** The socket based metric submission handler */
 	protected final SocketSubmissionHandler submissionHandler = new SocketSubmissionHandler();
+	/** The OpenTSDB telnet style put handler */
+	protected final TelnetPutHandler telnetHandler = new TelnetPutHandler();
 	
 
 
@@ -87,6 +91,19 @@ public class ProtocolSwitch extends FrameDecoder {
 		final int magic1 = buffer.getUnsignedByte(buffer.readerIndex());  // 22 and 3 for RMI/JMX
 		final int magic2 = buffer.getUnsignedByte(buffer.readerIndex() + 1);		
 		if(log.isDebugEnabled()) log.debug("\n\t  MAGIC:" + new String(new byte[]{(byte)magic1, (byte)magic2}) + "\n");
+		if (isTelnet(magic1, magic2)) {
+			if(log.isDebugEnabled()) log.debug("Switching to Telnet");
+			ChannelHandler ch = null;
+			while((ch = pipeline.getFirst())!=null) {
+					pipeline.remove(ch);
+			}
+			pipeline.addLast("frameDecoder", new DelimiterBasedFrameDecoder(MAX_FRAME_SIZE, true, true, Delimiters.lineDelimiter()));
+			pipeline.addLast("stringDecoder", new StringDecoder(CharsetUtil.UTF_8));
+			pipeline.addLast("stringEncoder", new StringEncoder(CharsetUtil.UTF_8));
+			pipeline.addLast("telnet-handler", telnetHandler);
+			pipeline.sendUpstream(new UpstreamMessageEvent(channel, buffer.readBytes(buffer.readableBytes()), channel.getRemoteAddress()));
+			return null;
+		}
 		if (!isHttp(magic1, magic2)) {
 			boolean gzip = false;
 			if(isGzip(magic1, magic2)) {
@@ -117,6 +134,18 @@ public class ProtocolSwitch extends FrameDecoder {
 		return buffer.readBytes(buffer.readableBytes());
 	}
 	
+	/**
+	 * Determines if the channel is carrying OpenTSDB telnet style commands
+	 * @param magic1 The first byte of the incoming request
+	 * @param magic2 The second byte of the incoming request
+	 * @return true if the incoming is a telnet <b><code>put</code></b> or <b><code>version</code></b> command
+	 */
+	private boolean isTelnet(int magic1, int magic2) {
+		return
+		magic1 == 'p' && magic2 == 'u' || // put
+		magic1 == 'v' && magic2 == 'e';   // version
+	}
+	
 	/**
 	 * Determines if the channel is carrying a gzipped metric submssion
 	 * @param magic1 The first byte of the incoming request
@@ -29,6 +29,7 @@ import java.util.concurrent.Executors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFactory;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
@@ -66,6 +67,8 @@ public class Server {
 	protected final InetSocketAddress isock;
 	/** The static content directory */
 	protected final String contentRoot;
+	/** The bound server channel */
+	protected final Channel serverChannel;
 	
 	/** The default binding interface */
 	public static final String DEFAULT_INTERFACE = "0.0.0.0";
@@ -114,6 +117,9 @@ public class Server {
 			root = DEFAULT_CONTENT_DIR;
 		}
 		new Server(iface, port, root);
+		try { Thread.currentThread().join(); } catch (Exception e) {
+			e.printStackTrace(System.err);
+		}
 	}
 	
 	
@@ -136,11 +142,25 @@ public class Server {
 		bstrap = new ServerBootstrap(channelFactory);
 		bstrap.setPipelineFactory(pipelineFactory);
 		bstrap.setOption("child.keepAlive", true);
-		bstrap.bind(isock);
+		serverChannel = bstrap.bind(isock);
 		LOG.info("Netty-Ajax Server Started with Root [" + contentRoot + "]");		
-		try { Thread.currentThread().join(); } catch (Exception e) {
-			e.printStackTrace(System.err);
-		}
+	}
+	
+	/**
+	 * Returns the port the server is listening on
+	 * @return the listening port
+	 */
+	public int getPort() {
+		return ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+	}
+	
+	/**
+	 * Stops the server
+	 */
+	public void stop() {
+		serverChannel.close().awaitUninterruptibly();
+		bstrap.releaseExternalResources();
+		LOG.info("Netty-Ajax Server Stopped");
 	}
 	
 	protected Map<String, PipelineModifier> getPipelineModifiers() {
@@ -43,6 +43,8 @@ public class ServerPipelineFactory implements ChannelPipelineFactory {
 	protected final Logger log = LogManager.getLogger(getClass());
 	/** The modifier map */
 	protected final Map<String, PipelineModifier> modifierMap;
+	/** The maximum aggregated http request content length. Larger put requests are rejected by the OpenTSDB stand-in, not the aggregator. */
+	public static final int MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
 	/** The logging handler logger */
 	protected final Logger logHandlerLogger = LogManager.getLogger(LoggingHandler.class);
 	
@@ -75,7 +77,7 @@ public class ServerPipelineFactory implements ChannelPipelineFactory {
 		ChannelPipeline pipeline = Channels.pipeline();
 		pipeline.addLast("protocolSwitch", ps);
 		pipeline.addLast("decoder", new HttpRequestDecoder());
-		pipeline.addLast("aggregator", new HttpChunkAggregator(65536));
+		pipeline.addLast("aggregator", new HttpChunkAggregator(MAX_CONTENT_LENGTH));
 		pipeline.addLast("encoder", new HttpResponseEncoder());
 		pipeline.addLast("chunkedWriter", new ChunkedWriteHandler());
 		if(logHandlerLogger.isDebugEnabled()) {
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server;
+
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * <p>Title: TelnetPutHandler</p>
+ * <p>Description: Handles the OpenTSDB telnet style line protocol for the OpenTSDB stand-in. 
+ * Supports the <b><code>put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagk=tagv&gt;...</code></b> and <b><code>version</code></b> commands.
+ * As with OpenTSDB, nothing is written back for a successful put.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.TelnetPutHandler</code></p>
+ */
+
+public class TelnetPutHandler extends SimpleChannelUpstreamHandler {
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The stand-in state */
+	protected final OpenTsdbStandIn standIn = OpenTsdbStandIn.getInstance();
+	/** Whitespace splitter */
+	private static final Pattern WS_SPLITTER = Pattern.compile("\\s+");
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+		final String line = ((String)e.getMessage()).trim();
+		if(line.isEmpty()) return;
+		final String[] tokens = WS_SPLITTER.split(line);
+		if("put".equals(tokens[0])) {
+			final int reject = standIn.admit(line.length());
+			final String error = reject==0 ? standIn.put(tokens) : "injected failure";
+			if(error!=null) {
+				e.getChannel().write("put: " + error + "\n");
+			}
+		} else if("version".equals(tokens[0])) {
+			e.getChannel().write("net.opentsdb " + OpenTsdbStandIn.VERSION + "\n");
+		} else {
+			e.getChannel().write("unknown command: " + tokens[0] + ".  Try `help'.\n");
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#exceptionCaught(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ExceptionEvent)
+	 */
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+		log.warn("Telnet request failed", e.getCause());
+		e.getChannel().close();
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.handlergroups.api;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_ENCODING;
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.CONTENT_TYPE;
+import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.heliosapm.opentsdb.server.OpenTsdbStandIn;
+
+/**
+ * <p>Title: ApiHandler</p>
+ * <p>Description: A channel handler serving the OpenTSDB compatible <b><code>/api/put</code></b> (plain, <b><code>?summary</code></b> 
+ * and <b><code>?details</code></b> variants, optionally gzipped) and <b><code>/api/version</code></b> endpoints, 
+ * delegating validation, counting and fault injection to the {@link OpenTsdbStandIn}.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.handlergroups.api.ApiHandler</code></p>
+ */
+
+public class ApiHandler extends SimpleChannelUpstreamHandler {
+	/** Instance logger */
+	protected final Logger log = LogManager.getLogger(getClass());
+	/** The stand-in state */
+	protected final OpenTsdbStandIn standIn = OpenTsdbStandIn.getInstance();
+	
+	/** The UTF8 character set */
+	public static final Charset UTF8 = Charset.forName("UTF8");
+	/** The JSON content type */
+	public static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+	/** The /api/version response content */
+	public static final String VERSION_CONTENT = new JSONObject()
+		.put("version", OpenTsdbStandIn.VERSION)
+		.put("short_revision", "")
+		.put("full_revision", "")
+		.put("repo_status", "MODIFIED")
+		.put("user", System.getProperty("user.name"))
+		.put("timestamp", "" + (System.currentTimeMillis()/1000))
+		.toString();
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+		final Object message = e.getMessage();
+		if(!(message instanceof HttpRequest)) {
+			ctx.sendUpstream(e);
+			return;
+		}
+		final long start = System.nanoTime();
+		final HttpRequest request = (HttpRequest)message;
+		final QueryStringDecoder qsd = new QueryStringDecoder(request.getUri());
+		final String path = qsd.getPath();
+		if(path.endsWith("/api/version")) {
+			writeInOrder(e.getChannel(), request, HttpResponseStatus.OK, VERSION_CONTENT);
+		} else if(path.endsWith("/api/put")) {
+			if(request.getMethod()!=HttpMethod.POST) {
+				writeInOrder(e.getChannel(), request, HttpResponseStatus.METHOD_NOT_ALLOWED, error(405, "Method not allowed", "The HTTP method [" + request.getMethod() + "] is not permitted for this endpoint"));
+				return;
+			}
+			put(e.getChannel(), request, qsd.getParameters().containsKey("summary"), qsd.getParameters().containsKey("details"), start);
+		} else {
+			writeInOrder(e.getChannel(), request, HttpResponseStatus.NOT_FOUND, error(404, "Endpoint not found", path));
+		}
+	}
+
+	/**
+	 * Writes an undelayed response through the channel's response queue, so it cannot overtake the delayed response of an earlier pipelined request
+	 * @param channel The channel to write to
+	 * @param request The request being responded to
+	 * @param status The response status
+	 * @param body The optional response body
+	 */
+	protected void writeInOrder(final Channel channel, final HttpRequest request, final HttpResponseStatus status, final String body) {
+		standIn.respondInOrder(channel, new Runnable() {
+			public void run() {
+				write(channel, request, status, body);
+			}
+		});
+	}
+	
+	/**
+	 * Processes a put request
+	 * @param channel The channel to respond on
+	 * @param request The put request
+	 * @param summary true if a summary response was requested
+	 * @param details true if a details response was requested
+	 * @param start The System.nanoTime() the request was received at
+	 */
+	protected void put(final Channel channel, final HttpRequest request, final boolean summary, final boolean details, final long start) {
+		final ChannelBuffer content = request.getContent();
+		final int reject = standIn.admit(content.readableBytes());
+		HttpResponseStatus status;
+		String body;
+		if(reject==413) {
+			status = HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+			body = error(413, "Request Entity Too Large", "The request body of [" + content.readableBytes() + "] bytes exceeds the maximum of [" + standIn.getMaxRequestSize() + "]");
+		} else if(reject==500) {
+			status = HttpResponseStatus.INTERNAL_SERVER_ERROR;
+			body = error(500, "Injected failure", "Failure injected by the OpenTSDB stand-in");
+		} else {
+			try {
+				final JSONArray errors = details ? new JSONArray() : null;
+				final int[] results = standIn.put(decode(request), errors);
+				final String counts = "\"failed\":" + results[0] + ",\"success\":" + results[1] + "}";
+				if(details) {
+					body = "{\"errors\":" + errors.toString() + "," + counts;
+				} else if(summary) {
+					body = "{" + counts;
+				} else {
+					body = results[0]==0 ? null : error(400, "One or more data points had errors", "Please see the TSD logs or append \"details\" to the put request");
+				}
+				status = results[0] > 0 ? HttpResponseStatus.BAD_REQUEST : (body==null ? HttpResponseStatus.NO_CONTENT : HttpResponseStatus.OK);
+			} catch (Exception ex) {
+				status = HttpResponseStatus.BAD_REQUEST;
+				body = error(400, "Unable to parse the given JSON", ex.toString());
+			}
+		}
+		final HttpResponseStatus fstatus = status;
+		final String fbody = body;
+		standIn.respond(channel, new Runnable() {
+			public void run() {
+				write(channel, request, fstatus, fbody);
+			}
+		}, start);
+	}
+	
+	/**
+	 * Reads the request content as a string, decompressing it if it is gzipped
+	 * @param request The request to read
+	 * @return the request content
+	 * @throws IOException thrown on errors decompressing the content
+	 */
+	protected static String decode(final HttpRequest request) throws IOException {
+		final String encoding = HttpHeaders.getHeader(request, CONTENT_ENCODING);
+		if(encoding==null || !encoding.trim().toLowerCase().endsWith("gzip")) {
+			return request.getContent().toString(UTF8);
+		}
+		InputStream is = null;
+		try {
+			is = new GZIPInputStream(new ChannelBufferInputStream(request.getContent()));
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(request.getContent().readableBytes() * 4);
+			final byte[] buff = new byte[8192];
+			int bytesRead = -1;
+			while((bytesRead = is.read(buff))!=-1) {
+				baos.write(buff, 0, bytesRead);
+			}
+			return new String(baos.toByteArray(), UTF8);
+		} finally {
+			if(is!=null) try { is.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+	
+	/**
+	 * Renders an OpenTSDB style error response body
+	 * @param code The http status code
+	 * @param message The error message
+	 * @param details The error details
+	 * @return the error response body
+	 */
+	protected static String error(final int code, final String message, final String details) {
+		return new JSONObject().put("error", new JSONObject().put("code", code).put("message", message).put("details", details)).toString();
+	}
+	
+	/**
+	 * Writes a response, closing the channel afterwards unless the request is keep-alive
+	 * @param channel The channel to write to
+	 * @param request The request being responded to
+	 * @param status The response status
+	 * @param body The optional response body
+	 */
+	protected static void write(final Channel channel, final HttpRequest request, final HttpResponseStatus status, final String body) {
+		final HttpResponse response = new DefaultHttpResponse(HTTP_1_1, status);
+		if(body!=null) {
+			response.setContent(ChannelBuffers.copiedBuffer(body, UTF8));
+			HttpHeaders.setHeader(response, CONTENT_TYPE, JSON_CONTENT_TYPE);
+		}
+		HttpHeaders.setContentLength(response, response.getContent().readableBytes());
+		final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+		if(keepAlive) {
+			HttpHeaders.setHeader(response, HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+		}
+		final ChannelFuture future = channel.write(response);
+		if(!keepAlive) {
+			future.addListener(ChannelFutureListener.CLOSE);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#exceptionCaught(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ExceptionEvent)
+	 */
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+		log.warn("API request failed", e.getCause());
+		e.getChannel().close();
+	}
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+/**
+ * <p>Title: IWeaveFixture</p>
+ * <p>Description: The interface of the weaving benchmark fixture, loaded by the benchmark class loader so a woven fixture loaded in a child class loader can be called directly</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.IWeaveFixture</code></p>
+ */
+
+public interface IWeaveFixture {
+	/**
+	 * Sums the integers under the passed count which are not multiples of 3
+	 * @param count The count
+	 * @return the sum
+	 */
+	public int loop(int count);
+
+	/**
+	 * Describes the passed argument
+	 * @param arg The argument
+	 * @return the description
+	 */
+	public String branchy(Object arg);
+
+	/**
+	 * Throws an {@link IllegalStateException}
+	 * @param message The exception message
+	 */
+	public void thrower(String message);
+
+	/**
+	 * Scales the passed value through a static method
+	 * @param value The value
+	 * @param factor The factor
+	 * @return the scaled value
+	 */
+	public long widen(long value, double factor);
+
+	/**
+	 * Recurses down to the passed depth
+	 * @param depth The depth to recurse to
+	 * @param fail true to throw an {@link IllegalStateException} at the bottom of the recursion
+	 * @return the depth recursed to
+	 */
+	public int recurse(int depth, boolean fail);
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import jsr166e.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Snapshot;
+import com.heliosapm.opentsdb.client.opentsdb.BackpressureGovernor;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPoster;
+import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
+import com.heliosapm.opentsdb.client.opentsdb.MetricLane;
+import com.heliosapm.opentsdb.client.opentsdb.MetricLanes;
+import com.heliosapm.opentsdb.client.opentsdb.MetricPriority;
+import com.heliosapm.opentsdb.client.opentsdb.OTMetric;
+import com.heliosapm.opentsdb.server.OpenTsdbStandIn;
+import com.heliosapm.opentsdb.server.Server;
+
+/**
+ * <p>Title: LoadDriver</p>
+ * <p>Description: Load harness that starts an in-process csf-server as an OpenTSDB stand-in, points the real
+ * {@link HttpMetricsPoster} at it and drives traced metrics through the agent's full send path at a configured rate.
+ * Reports the offered and received data point rates each second, and at the end, the sustained points/sec, 
+ * the stand-in's put response time percentiles, the normal lane's delivery latency and, if an outage was configured,
+ * the time taken to recover after the stand-in came back.</p>
+ * <p>Configuration is by system property (or environment variable):<ul>
+ * 	<li><b>standin.load.threads</b>: The number of generator threads (default 4)</li>
+ *  <li><b>standin.load.series</b>: The number of distinct series traced by each thread (default 100)</li>
+ *  <li><b>standin.load.rate</b>: The data points per second traced by each thread (default 1000)</li>
+ *  <li><b>standin.load.duration</b>: The run duration in seconds (default 60)</li>
+ *  <li><b>standin.load.port</b>: The stand-in's listening port (default 0, an ephemeral port)</li>
+ *  <li><b>standin.outage.start</b>: The number of seconds into the run to take the stand-in down (default 0, no outage)</li>
+ *  <li><b>standin.outage.length</b>: The outage length in seconds (default 10)</li>
+ *  <li>The {@link OpenTsdbStandIn} fault injection properties</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.LoadDriver</code></p>
+ */
+
+public class LoadDriver {
+	/** Static class logger */
+	protected static final Logger LOG = LogManager.getLogger(LoadDriver.class);
+
+	/** The system property config name for the number of generator threads */
+	public static final String PROP_THREADS = "standin.load.threads";
+	/** The system property config name for the number of distinct series traced by each thread */
+	public static final String PROP_SERIES = "standin.load.series";
+	/** The system property config name for the data points per second traced by each thread */
+	public static final String PROP_RATE = "standin.load.rate";
+	/** The system property config name for the run duration in seconds */
+	public static final String PROP_DURATION = "standin.load.duration";
+	/** The system property config name for the stand-in's listening port */
+	public static final String PROP_PORT = "standin.load.port";
+	/** The system property config name for the number of seconds into the run to take the stand-in down */
+	public static final String PROP_OUTAGE_START = "standin.outage.start";
+	/** The system property config name for the outage length in seconds */
+	public static final String PROP_OUTAGE_LENGTH = "standin.outage.length";
+
+	/** The stand-in's binding interface */
+	public static final String IFACE = "127.0.0.1";
+
+	/** The number of generator threads */
+	protected final int threads = ConfigurationReader.confInt(PROP_THREADS, 4);
+	/** The number of series per thread */
+	protected final int series = ConfigurationReader.confInt(PROP_SERIES, 100);
+	/** The data points per second per thread */
+	protected final int rate = ConfigurationReader.confInt(PROP_RATE, 1000);
+	/** The run duration in seconds */
+	protected final int duration = ConfigurationReader.confInt(PROP_DURATION, 60);
+	/** The outage start in seconds, 0 for no outage */
+	protected final int outageStart = ConfigurationReader.confInt(PROP_OUTAGE_START, 0);
+	/** The outage length in seconds */
+	protected final int outageLength = ConfigurationReader.confInt(PROP_OUTAGE_LENGTH, 10);
+
+	/** The offered data point counter */
+	protected final LongAdder offered = new LongAdder();
+	/** The stand-in */
+	protected final OpenTsdbStandIn standIn = OpenTsdbStandIn.getInstance();
+	/** The stand-in's listening port */
+	protected int port;
+	/** The running stand-in server */
+	protected Server server;
+	/** Flag set when the generators should stop */
+	protected volatile boolean stopped = false;
+
+	/**
+	 * Runs the load driver
+	 * @param args None
+	 */
+	public static void main(final String[] args) {
+		new LoadDriver().run();
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the configured load and reports the results
+	 */
+	public void run() {
+		server = new Server(IFACE, ConfigurationReader.confInt(PROP_PORT, 0), Server.DEFAULT_CONTENT_DIR);
+		port = server.getPort();
+		System.setProperty(Constants.PROP_TSDB_URL, "http://" + IFACE + ":" + port);
+		final HttpMetricsPoster poster = HttpMetricsPoster.getInstance();
+		final MetricLane lane = MetricLanes.getInstance().getLane(MetricPriority.NORMAL);
+		LOG.info("Driving {} threads x {} series at {} points/s each for {} s against the stand-in on port {}", threads, series, rate, duration, port);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int i = 0; i < threads; i++) {
+			startGenerator(i, done);
+		}
+		final long startTime = System.currentTimeMillis();
+		long lastOffered = 0L, lastReceived = 0L, recoveredAt = -1L;
+		boolean down = false;
+		for(int second = 1; second <= duration; second++) {
+			LockSupport.parkUntil(startTime + (second * 1000L));
+			if(outageStart > 0 && second==outageStart) {
+				LOG.info("Outage started");
+				server.stop();
+				down = true;
+			} else if(down && second==outageStart + outageLength) {
+				LOG.info("Outage ended");
+				server = new Server(IFACE, port, Server.DEFAULT_CONTENT_DIR);
+				down = false;
+				recoveredAt = 0L;
+			}
+			final long o = offered.sum(), r = standIn.getPoints();
+			final long dOffered = o - lastOffered, dReceived = r - lastReceived;
+			lastOffered = o; lastReceived = r;
+			if(recoveredAt==0L && dReceived >= dOffered * 9 / 10) {
+				recoveredAt = second - (outageStart + outageLength);
+			}
+			LOG.info("[{}s] offered: {}/s, received: {}/s, in-flight: {}, pending: {}, offline: {}, p99 put: {} ms", second, dOffered, dReceived, poster.getInFlight(), lane.getPending(), poster.getBufferedMetrics(), standIn.getP99ResponseTime());
+		}
+		stopped = true;
+		try { done.await(5, TimeUnit.SECONDS); } catch (InterruptedException iex) {/* No Op */}
+		final Snapshot snap = standIn.getResponseTimes();
+		final StringBuilder b = new StringBuilder("\n\t==============================\n\tLoad Driver Results\n\t==============================");
+		b.append("\n\tOffered Points: ").append(offered.sum());
+		b.append("\n\tReceived Points: ").append(standIn.getPoints());
+		b.append("\n\tFailed Points: ").append(standIn.getFailedPoints());
+		b.append("\n\tPoints/sec: ").append(standIn.getPoints() / duration);
+		b.append("\n\tPut Requests: ").append(standIn.getRequests());
+		b.append("\n\tInjected Errors: ").append(standIn.getInjectedErrors());
+		b.append("\n\t413 Responses: ").append(standIn.getTooLarge());
+		b.append("\n\tPut Response ms p50/p99/p999/max: ").append(ms(snap.getMedian())).append("/").append(ms(snap.get99thPercentile())).append("/").append(ms(snap.get999thPercentile())).append("/").append(ms(snap.getMax()));
+		b.append("\n\tLane Delivery Latency ms last/max: ").append(lane.getLastLatency()).append("/").append(lane.getMaxLatency());
+		b.append("\n\tLane SLO Breaches: ").append(lane.getSloBreaches());
+		b.append("\n\tBackpressure Drops: ").append(BackpressureGovernor.getInstance().getTotalDrops());
+		b.append("\n\tOffline Buffered Metrics: ").append(poster.getBufferedMetrics());
+		if(outageStart > 0) {
+			b.append("\n\tRecovery Time (s): ").append(recoveredAt < 1L ? "not recovered" : ("" + recoveredAt));
+		}
+		b.append("\n\t==============================\n");
+		LOG.info(b);
+		server.stop();
+	}
+
+	/**
+	 * Starts a generator thread
+	 * @param id The generator id
+	 * @param done The latch to count down when the generator stops
+	 */
+	protected void startGenerator(final int id, final CountDownLatch done) {
+		final OTMetric[] metrics = new OTMetric[series];
+		for(int i = 0; i < series; i++) {
+			metrics[i] = MetricBuilder.metric("standin.load").tag("generator", id).tag("series", i).build();
+		}
+		final long periodNs = TimeUnit.SECONDS.toNanos(1) / rate;
+		final Thread t = new Thread("LoadGenerator#" + id) {
+			@Override
+			public void run() {
+				try {
+					long next = System.nanoTime();
+					long value = 0L;
+					while(!stopped) {
+						final long now = System.currentTimeMillis();
+						for(int i = 0; i < metrics.length && !stopped; i++) {
+							MetricBuilder.trace(metrics[i], now, value);
+							offered.increment();
+							next += periodNs;
+							final long wait = next - System.nanoTime();
+							if(wait > 0) LockSupport.parkNanos(wait);
+						}
+						value++;
+					}
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static String ms(final double nanos) {
+		return String.format("%.2f", nanos / 1000000D);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.aop.ShorthandCompiler;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: ReentrancyGuardBenchmark</p>
+ * <p>Description: Measures the cost per frame of the re-entrancy guard. The recursing method of the {@link WeaveFixture}
+ * is woven by the streaming engine with the body hook, with and without the guard, and deep recursions are timed through each.
+ * Runs with csf-aop on the classpath.</p>
+ * <p>Configuration is by system property (or environment variable):<ul>
+ * 	<li><b>guard.bench.depth</b>: The recursion depth (default 1000)</li>
+ *  <li><b>guard.bench.loops</b>: The number of measured recursions per weave (default 5000)</li>
+ *  <li><b>guard.bench.warmup</b>: The number of warmup recursions per weave (default 2000)</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.ReentrancyGuardBenchmark</code></p>
+ */
+
+public class ReentrancyGuardBenchmark {
+	/** Static class logger */
+	protected static final Logger LOG = LogManager.getLogger(ReentrancyGuardBenchmark.class);
+
+	/** The system property config name for the recursion depth */
+	public static final String PROP_DEPTH = "guard.bench.depth";
+	/** The system property config name for the number of measured recursions per weave */
+	public static final String PROP_LOOPS = "guard.bench.loops";
+	/** The system property config name for the number of warmup recursions per weave */
+	public static final String PROP_WARMUP = "guard.bench.warmup";
+
+	/** The recursion depth */
+	protected final int depth = ConfigurationReader.confInt(PROP_DEPTH, 1000);
+	/** The number of measured recursions per weave */
+	protected final int loops = ConfigurationReader.confInt(PROP_LOOPS, 5000);
+	/** The number of warmup recursions per weave */
+	protected final int warmup = ConfigurationReader.confInt(PROP_WARMUP, 2000);
+
+	/**
+	 * Runs the re-entrancy guard benchmark
+	 * @param args None
+	 * @throws Exception thrown on any error weaving or loading the fixture
+	 */
+	public static void main(final String[] args) throws Exception {
+		new ReentrancyGuardBenchmark().run();
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the benchmark with and without the guard and reports the results
+	 * @throws Exception thrown on any error weaving or loading the fixture
+	 */
+	public void run() throws Exception {
+		LOG.info("Benchmarking {} recursions of depth {} per weave", loops, depth);
+		final StringBuilder b = new StringBuilder("\n\t==============================\n\tRe-entrancy Guard Benchmark Results\n\t==============================");
+		for(int mask: new int[]{WeaverBenchmark.BODY, WeaverBenchmark.BODY | Measurement.REENTRANCY_GUARD_MASK}) {
+			final IWeaveFixture fixture = WeaverBenchmark.load(ShorthandCompiler.getInstance().weave(WeaveFixture.class, WeaverBenchmark.hooks("guardbench" + mask, mask), ShorthandCompiler.WEAVER_STREAMING));
+			for(int i = 0; i < warmup; i++) {
+				fixture.recurse(depth, false);
+			}
+			final long start = System.nanoTime();
+			for(int i = 0; i < loops; i++) {
+				fixture.recurse(depth, false);
+			}
+			final long elapsed = System.nanoTime() - start;
+			b.append("\n\tGuarded: ").append(Measurement.isReentrancyGuarded(mask))
+				.append(", ns/frame: ").append(elapsed / ((long)loops * (depth + 1)));
+		}
+		b.append("\n\t==============================\n");
+		LOG.info(b);
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.HttpMetricsPoster;
+import com.heliosapm.opentsdb.client.opentsdb.OpenTsdb;
+import com.heliosapm.opentsdb.server.OpenTsdbStandIn;
+import com.heliosapm.opentsdb.server.Server;
+
+/**
+ * <p>Title: SenderBenchmark</p>
+ * <p>Description: Compares the CPU cost per data point of posting metric batches with the async http client
+ * against the native netty sender ({@link Constants#PROP_NATIVE_SENDER}). An in-process stand-in is started and
+ * the same pre-rendered batches are posted through the {@link HttpMetricsPoster} in each mode, bounded by the
+ * poster's maximum in-flight posts. The reported process CPU includes the stand-in's cost of receiving the batches,
+ * which is the same for both modes, so the difference between the modes is the sender's cost.</p>
+ * <p>Configuration is by system property (or environment variable):<ul>
+ * 	<li><b>standin.bench.batches</b>: The number of batches posted in each mode (default 20000)</li>
+ *  <li><b>standin.bench.batch.size</b>: The number of data points in each batch (default 100)</li>
+ *  <li><b>standin.bench.warmup</b>: The number of batches posted in each mode before measuring (default 5000)</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.SenderBenchmark</code></p>
+ */
+
+public class SenderBenchmark {
+	/** Static class logger */
+	protected static final Logger LOG = LogManager.getLogger(SenderBenchmark.class);
+
+	/** The system property config name for the number of batches posted in each mode */
+	public static final String PROP_BATCHES = "standin.bench.batches";
+	/** The system property config name for the number of data points in each batch */
+	public static final String PROP_BATCH_SIZE = "standin.bench.batch.size";
+	/** The system property config name for the number of warmup batches posted in each mode */
+	public static final String PROP_WARMUP = "standin.bench.warmup";
+
+	/** The number of measured batches per mode */
+	protected final int batches = ConfigurationReader.confInt(PROP_BATCHES, 20000);
+	/** The number of data points per batch */
+	protected final int batchSize = ConfigurationReader.confInt(PROP_BATCH_SIZE, 100);
+	/** The number of warmup batches per mode */
+	protected final int warmup = ConfigurationReader.confInt(PROP_WARMUP, 5000);
+	/** The stand-in */
+	protected final OpenTsdbStandIn standIn = OpenTsdbStandIn.getInstance();
+	/** The process OS MXBean used to read the process CPU time */
+	protected final com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+	/** The pre-rendered batch */
+	protected byte[] batch;
+
+	/**
+	 * Runs the sender benchmark
+	 * @param args None
+	 */
+	public static void main(final String[] args) {
+		new SenderBenchmark().run();
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the benchmark in each mode and reports the results
+	 */
+	public void run() {
+		final Server server = new Server(LoadDriver.IFACE, 0, Server.DEFAULT_CONTENT_DIR);
+		System.setProperty(Constants.PROP_TSDB_URL, "http://" + LoadDriver.IFACE + ":" + server.getPort());
+		final HttpMetricsPoster poster = HttpMetricsPoster.getInstance();
+		batch = render();
+		LOG.info("Benchmarking {} batches of {} points ({} bytes) per mode", batches, batchSize, batch.length);
+		final StringBuilder b = new StringBuilder("\n\t==============================\n\tSender Benchmark Results\n\t==============================");
+		for(final boolean nativeSender: new boolean[]{false, true}) {
+			poster.setNativeSender(nativeSender);
+			final String mode = nativeSender ? "netty" : "ning";
+			post(poster, warmup);
+			final long startCpu = os.getProcessCpuTime();
+			final long startTime = System.nanoTime();
+			post(poster, batches);
+			final long cpu = os.getProcessCpuTime() - startCpu;
+			final long elapsed = System.nanoTime() - startTime;
+			final long points = (long)batches * batchSize;
+			b.append("\n\t").append(mode).append(": points/sec: ").append(points * TimeUnit.SECONDS.toNanos(1) / elapsed)
+				.append(", cpu ns/point: ").append(cpu / points)
+				.append(", elapsed ms: ").append(TimeUnit.NANOSECONDS.toMillis(elapsed));
+		}
+		b.append("\n\t==============================\n");
+		LOG.info(b);
+		server.stop();
+	}
+
+	/**
+	 * Posts the passed number of batches and waits for the stand-in to receive them all
+	 * @param poster The poster
+	 * @param count The number of batches to post
+	 */
+	protected void post(final HttpMetricsPoster poster, final int count) {
+		final long target = standIn.getPoints() + ((long)count * batchSize);
+		final OpenTsdb tsdb = OpenTsdb.getInstance();
+		for(int i = 0; i < count; i++) {
+			while(poster.getInFlight() >= poster.getMaxInFlight()) {
+				LockSupport.parkNanos(10000);
+			}
+			// the poster frees the body once posted, so each post needs its own buffer
+			final ChannelBuffer body = ChannelBuffers.directBuffer(batch.length);
+			body.writeBytes(batch);
+			tsdb.send(body, batchSize);
+		}
+		final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+		while(standIn.getPoints() < target) {
+			if(System.currentTimeMillis() > timeout) {
+				LOG.warn("Timed out waiting for posted points. Expected {}, received {}", target, standIn.getPoints());
+				break;
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Renders the batch of data points
+	 * @return the rendered batch bytes
+	 */
+	protected byte[] render() {
+		final long now = System.currentTimeMillis();
+		final StringBuilder b = new StringBuilder("[");
+		for(int i = 0; i < batchSize; i++) {
+			if(i > 0) b.append(',');
+			b.append("{\"metric\":\"standin.bench\",\"timestamp\":").append(now)
+				.append(",\"value\":").append(i)
+				.append(",\"tags\":{\"host\":\"bench\",\"series\":\"").append(i).append("\"}}");
+		}
+		return b.append(']').toString().getBytes(Constants.UTF8);
+	}
+}
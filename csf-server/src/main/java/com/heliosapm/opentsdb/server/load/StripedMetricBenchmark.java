@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.Constants;
+import com.heliosapm.opentsdb.client.opentsdb.opt.ConcurrencyCounter;
+import com.heliosapm.opentsdb.client.opentsdb.opt.StripedMeter;
+
+/**
+ * <p>Title: StripedMetricBenchmark</p>
+ * <p>Description: Compares the cost per operation of the single atomic and striped implementations of the hot path
+ * metrics under contention: the stock {@link Meter} against the {@link StripedMeter}, an {@link AtomicLong} counter against
+ * the stock {@link Counter} (which is already striped), and the atomic against the striped {@link ConcurrencyCounter}.
+ * Each case is run by the configured number of threads against one shared instance, first to warm up, then measured.
+ * The striped implementations are selected at runtime through {@link Constants#PROP_STRIPED_PATTERN}.</p>
+ * <p>Configuration is by system property (or environment variable):<ul>
+ * 	<li><b>striped.bench.threads</b>: The number of threads concurrently updating each metric (default 2 x cores)</li>
+ *  <li><b>striped.bench.ops</b>: The number of measured operations per thread in each case (default 5000000)</li>
+ *  <li><b>striped.bench.warmup</b>: The number of warmup operations per thread in each case (default 1000000)</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.StripedMetricBenchmark</code></p>
+ */
+
+public class StripedMetricBenchmark {
+	/** Static class logger */
+	protected static final Logger LOG = LogManager.getLogger(StripedMetricBenchmark.class);
+
+	/** The system property config name for the number of updating threads */
+	public static final String PROP_THREADS = "striped.bench.threads";
+	/** The system property config name for the number of measured operations per thread */
+	public static final String PROP_OPS = "striped.bench.ops";
+	/** The system property config name for the number of warmup operations per thread */
+	public static final String PROP_WARMUP = "striped.bench.warmup";
+
+	/** The number of updating threads */
+	protected final int threads = ConfigurationReader.confInt(PROP_THREADS, Constants.CORES * 2);
+	/** The number of measured operations per thread */
+	protected final int ops = ConfigurationReader.confInt(PROP_OPS, 5000000);
+	/** The number of warmup operations per thread */
+	protected final int warmup = ConfigurationReader.confInt(PROP_WARMUP, 1000000);
+
+	/**
+	 * <p>Title: Op</p>
+	 * <p>Description: A benchmarked operation against a shared metric</p>
+	 */
+	protected static interface Op {
+		/**
+		 * Executes the operation once
+		 */
+		public void execute();
+	}
+
+	/**
+	 * Runs the striped metric benchmark
+	 * @param args None
+	 */
+	public static void main(final String[] args) {
+		new StripedMetricBenchmark().run();
+		System.exit(0);
+	}
+
+	/**
+	 * Runs each case and reports the results
+	 */
+	public void run() {
+		LOG.info("Benchmarking {} ops per thread with {} threads per case", ops, threads);
+		final StringBuilder b = new StringBuilder("\n\t==============================\n\tStriped Metric Benchmark Results\n\t==============================");
+		final Meter meter = new Meter();
+		bench(b, "meter (stock)", new Op() {
+			public void execute() { meter.mark(); }
+		});
+		final StripedMeter stripedMeter = new StripedMeter();
+		bench(b, "meter (striped)", new Op() {
+			public void execute() { stripedMeter.mark(); }
+		});
+		final AtomicLong atomicLong = new AtomicLong();
+		bench(b, "counter (atomic)", new Op() {
+			public void execute() { atomicLong.incrementAndGet(); }
+		});
+		final Counter counter = new Counter();
+		bench(b, "counter (stock)", new Op() {
+			public void execute() { counter.inc(); }
+		});
+		final ConcurrencyCounter atomicConcurrency = new ConcurrencyCounter.AtomicConcurrencyCounter();
+		bench(b, "concurrency (atomic)", new Op() {
+			public void execute() { atomicConcurrency.enter(); atomicConcurrency.exit(); }
+		});
+		final ConcurrencyCounter stripedConcurrency = new ConcurrencyCounter.StripedConcurrencyCounter();
+		bench(b, "concurrency (striped)", new Op() {
+			public void execute() { stripedConcurrency.enter(); stripedConcurrency.exit(); }
+		});
+		b.append("\n\t==============================\n");
+		LOG.info(b);
+	}
+
+	/**
+	 * Warms up and measures one case, appending the result to the passed buffer
+	 * @param b The result buffer
+	 * @param name The case name
+	 * @param op The benchmarked operation
+	 */
+	protected void bench(final StringBuilder b, final String name, final Op op) {
+		execute(op, warmup);
+		final long elapsed = execute(op, ops);
+		final long total = (long)ops * threads;
+		b.append("\n\t").append(name).append(": ns/op: ").append(elapsed * threads / total)
+			.append(", ops/sec: ").append(total * TimeUnit.SECONDS.toNanos(1) / elapsed)
+			.append(", elapsed ms: ").append(TimeUnit.NANOSECONDS.toMillis(elapsed));
+	}
+
+	/**
+	 * Executes the passed operation the passed number of times in each thread, starting all threads together
+	 * @param op The operation
+	 * @param count The number of executions per thread
+	 * @return the elapsed time in ns. from the start of the first thread to the end of the last
+	 */
+	protected long execute(final Op op, final int count) {
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final Thread thread = new Thread("StripedMetricBenchmark#" + t) {
+				@Override
+				public void run() {
+					ready.countDown();
+					try {
+						start.await();
+						for(int i = 0; i < count; i++) {
+							op.execute();
+						}
+					} catch (InterruptedException iex) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		try {
+			ready.await();
+			final long startTime = System.nanoTime();
+			start.countDown();
+			done.await();
+			return System.nanoTime() - startTime;
+		} catch (InterruptedException iex) {
+			throw new RuntimeException("Interrupted while running benchmark", iex);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+/**
+ * <p>Title: WeaveFixture</p>
+ * <p>Description: A weaving benchmark fixture with returns reached by branches, a loop, a throw, wide parameters, recursion and a static method</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.WeaveFixture</code></p>
+ */
+
+public class WeaveFixture implements IWeaveFixture {
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.load.IWeaveFixture#loop(int)
+	 */
+	@Override
+	public int loop(final int count) {
+		int total = 0;
+		for(int i = 0; i < count; i++) {
+			if(i % 3 == 0) continue;
+			total += i;
+		}
+		return total;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.load.IWeaveFixture#branchy(java.lang.Object)
+	 */
+	@Override
+	public String branchy(final Object arg) {
+		if(arg==null) return "null";
+		if(arg instanceof String) {
+			return ((String)arg).length() > 4 ? "long" : "short";
+		}
+		return "other";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.load.IWeaveFixture#thrower(java.lang.String)
+	 */
+	@Override
+	public void thrower(final String message) {
+		throw new IllegalStateException(message);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.load.IWeaveFixture#widen(long, double)
+	 */
+	@Override
+	public long widen(final long value, final double factor) {
+		return scale(value, factor);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.server.load.IWeaveFixture#recurse(int, boolean)
+	 */
+	@Override
+	public int recurse(final int depth, final boolean fail) {
+		if(depth==0) {
+			if(fail) throw new IllegalStateException("bottom");
+			return 0;
+		}
+		return 1 + recurse(depth - 1, fail);
+	}
+
+	/**
+	 * Scales the passed value
+	 * @param value The value
+	 * @param factor The factor
+	 * @return the scaled value
+	 */
+	public static long scale(final long value, final double factor) {
+		return (long)(value * factor);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.heliosapm.opentsdb.server.load;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.heliosapm.opentsdb.client.aop.DefaultShorthandInterceptor;
+import com.heliosapm.opentsdb.client.aop.ShorthandCompiler;
+import com.heliosapm.opentsdb.client.aop.SiteSwitch;
+import com.heliosapm.opentsdb.client.aop.StreamingWeaver;
+import com.heliosapm.opentsdb.client.opentsdb.ConfigurationReader;
+import com.heliosapm.opentsdb.client.opentsdb.MetricBuilder;
+import com.heliosapm.opentsdb.client.opentsdb.opt.Measurement;
+
+/**
+ * <p>Title: WeaverBenchmark</p>
+ * <p>Description: Compares the time and memory per weave of the javassist and streaming weaving engines. The {@link WeaveFixture}
+ * is woven repeatedly with the body, catch and finally hooks by each engine, first to warm up, then measured. The memory is the
+ * bytes allocated by the weaving thread, and is reported as -1 on JVMs that do not track it. Runs with csf-aop on the classpath.</p>
+ * <p>Configuration is by system property (or environment variable):<ul>
+ * 	<li><b>weaver.bench.loops</b>: The number of measured weaves per engine (default 1000)</li>
+ *  <li><b>weaver.bench.warmup</b>: The number of warmup weaves per engine (default 200)</li>
+ * </ul></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.server.load.WeaverBenchmark</code></p>
+ */
+
+public class WeaverBenchmark {
+	/** Static class logger */
+	protected static final Logger LOG = LogManager.getLogger(WeaverBenchmark.class);
+
+	/** The system property config name for the number of measured weaves per engine */
+	public static final String PROP_LOOPS = "weaver.bench.loops";
+	/** The system property config name for the number of warmup weaves per engine */
+	public static final String PROP_WARMUP = "weaver.bench.warmup";
+
+	/** The body hook mask */
+	static final int BODY = Measurement.getMaskFor(Measurement.ELAPSED);
+	/** The catch hook mask */
+	static final int CATCH = Measurement.getMaskFor(Measurement.ERROR);
+	/** The finally hook mask */
+	static final int FINALLY = Measurement.getMaskFor(Measurement.CONCURRENT);
+	/** The descriptors of the fixture methods to weave */
+	static final String[] METHODS = {"loop(I)I", "branchy(Ljava/lang/Object;)Ljava/lang/String;", "thrower(Ljava/lang/String;)V", "widen(JD)J", "recurse(IZ)I", "scale(JD)J"};
+
+	/** The number of measured weaves per engine */
+	protected final int loops = ConfigurationReader.confInt(PROP_LOOPS, 1000);
+	/** The number of warmup weaves per engine */
+	protected final int warmup = ConfigurationReader.confInt(PROP_WARMUP, 200);
+
+	/**
+	 * Runs the weaver benchmark
+	 * @param args None
+	 * @throws Exception thrown on any error weaving or loading the fixture
+	 */
+	public static void main(final String[] args) throws Exception {
+		new WeaverBenchmark().run();
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the benchmark with each engine and reports the results
+	 * @throws Exception thrown on any error weaving or loading the fixture
+	 */
+	public void run() throws Exception {
+		LOG.info("Benchmarking {} weaves per engine", loops);
+		final StringBuilder b = new StringBuilder("\n\t==============================\n\tWeaver Benchmark Results\n\t==============================");
+		final Map<String, StreamingWeaver.Hook> hooks = hooks("bench", BODY | CATCH | FINALLY);
+		for(String engine: new String[]{ShorthandCompiler.WEAVER_JAVASSIST, ShorthandCompiler.WEAVER_STREAMING}) {
+			for(int i = 0; i < warmup; i++) {
+				ShorthandCompiler.getInstance().weave(WeaveFixture.class, hooks, engine);
+			}
+			final long startAlloc = allocatedBytes();
+			final long start = System.nanoTime();
+			byte[] woven = null;
+			for(int i = 0; i < loops; i++) {
+				woven = ShorthandCompiler.getInstance().weave(WeaveFixture.class, hooks, engine);
+			}
+			final long elapsed = System.nanoTime() - start;
+			final long alloc = allocatedBytes() - startAlloc;
+			// the last weave must still load and behave
+			if(!"short".equals(load(woven).branchy("ab"))) throw new IllegalStateException("The fixture woven by [" + engine + "] misbehaves");
+			b.append("\n\t").append(engine).append(": ns/weave: ").append(elapsed / loops)
+				.append(", bytes/weave: ").append(startAlloc==-1L ? -1L : alloc / loops)
+				.append(", woven bytes: ").append(woven.length);
+		}
+		b.append("\n\t==============================\n");
+		LOG.info(b);
+	}
+
+	/**
+	 * Builds the hooks of the fixture methods on a new metric
+	 * @param name The metric name suffix
+	 * @param mask The instrumentation mask
+	 * @return the hooks keyed by method name and descriptor
+	 */
+	static Map<String, StreamingWeaver.Hook> hooks(final String name, final int mask) {
+		final int measurementMask = Measurement.measurementMask(mask);
+		final long metricId = MetricBuilder.metric("bench.weave:fixture=" + name).measurement(measurementMask).subMetric(measurementMask).optBuild().longHashCode();
+		DefaultShorthandInterceptor.install(metricId, mask);
+		final Map<String, StreamingWeaver.Hook> hooks = new HashMap<String, StreamingWeaver.Hook>(METHODS.length);
+		for(String method: METHODS) {
+			hooks.put(method, new StreamingWeaver.Hook(metricId, mask, SiteSwitch.ALWAYS_ON));
+		}
+		return hooks;
+	}
+
+	/**
+	 * Loads the passed woven fixture bytecode in a new class loader and creates an instance
+	 * @param byteCode The woven fixture bytecode
+	 * @return the woven fixture instance
+	 * @throws Exception thrown on any error loading the fixture
+	 */
+	static IWeaveFixture load(final byte[] byteCode) throws Exception {
+		final ClassLoader loader = new ClassLoader(WeaveFixture.class.getClassLoader()) {
+			@Override
+			protected synchronized Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+				if(!WeaveFixture.class.getName().equals(name)) return super.loadClass(name, resolve);
+				Class<?> clazz = findLoadedClass(name);
+				if(clazz==null) clazz = defineClass(name, byteCode, 0, byteCode.length);
+				if(resolve) resolveClass(clazz);
+				return clazz;
+			}
+		};
+		return (IWeaveFixture)Class.forName(WeaveFixture.class.getName(), true, loader).newInstance();
+	}
+
+	/**
+	 * Returns the bytes allocated by the current thread
+	 * @return the allocated bytes, or -1 if not available on this JVM
+	 */
+	static long allocatedBytes() {
+		final ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+		if(tmx instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)tmx).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1L;
+	}
+}